@@ -0,0 +1,276 @@
+package org.eurocris.openaire.cris.validator;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Limits the number of requests to a host that are in progress at the same time, and the rate at which they are started.
+ * Both limits adapt to how the host copes (additive increase, multiplicative decrease):
+ * every successful request raises them a little, while a transient failure, or the time to response growing well beyond the usual, cuts them down.
+ * The limits are kept between the given floors and ceilings; a floor equal to the ceiling makes the limit fixed.
+ */
+public class AdaptiveRequestLimiter implements AdaptiveRequestLimiterMXBean {
+
+	private static final double DECREASE_FACTOR = 0.5;
+
+	/**
+	 * How many times the usual time to response is considered a sign of congestion.
+	 */
+	private static final double LATENCY_TOLERANCE = 3.0;
+
+	/**
+	 * How much longer than usual the time to response must also be at least, so that jitter on very fast responses is not taken for congestion.
+	 */
+	private static final double LATENCY_SLACK_NANOS = 50e6;
+
+	private static final double SMOOTHING = 0.2;
+
+	/**
+	 * The increase of the rate limit per successful request, in requests per second.
+	 */
+	private static final double RATE_INCREMENT = 0.1;
+
+	private final int minConcurrency;
+	private final int maxConcurrency;
+	private final double minRate;
+	private final double maxRate;
+
+	private double concurrencyLimit;
+	private double rateLimit;
+
+	private int inFlight = 0;
+	private long nextStartNanos = System.nanoTime();
+	private long lastStartNanos = 0L;
+	private long lastDecreaseNanos = 0L;
+	private double smoothedIntervalNanos = Double.NaN;
+	private double smoothedLatencyNanos = Double.NaN;
+	private double usualLatencyNanos = Double.NaN;
+	private double errorRate = 0.0;
+	private long requests = 0L;
+	private long decreases = 0L;
+
+	/**
+	 * A new limiter.
+	 * @param minConcurrency the floor of the limit on the number of requests in progress (at least 1)
+	 * @param maxConcurrency the ceiling of the limit on the number of requests in progress; the limit starts here
+	 * @param minRate the floor of the limit on the number of requests started per second
+	 * @param maxRate the ceiling of the limit on the number of requests started per second; {@link Double#POSITIVE_INFINITY} for none; the limit starts here
+	 */
+	public AdaptiveRequestLimiter( final int minConcurrency, final int maxConcurrency, final double minRate, final double maxRate ) {
+		if ( minConcurrency < 1 || maxConcurrency < minConcurrency || !( minRate > 0.0 ) || maxRate < minRate ) {
+			throw new IllegalArgumentException( "Invalid limits: concurrency " + minConcurrency + " to " + maxConcurrency + ", rate " + minRate + " to " + maxRate + " per second" );
+		}
+		this.minConcurrency = minConcurrency;
+		this.maxConcurrency = maxConcurrency;
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.concurrencyLimit = maxConcurrency;
+		this.rateLimit = maxRate;
+	}
+
+	/**
+	 * A limiter that just keeps the number of requests in progress under the given number.
+	 * @param maxConcurrency the maximum number of requests in progress
+	 * @return the limiter
+	 */
+	public static AdaptiveRequestLimiter fixed( final int maxConcurrency ) {
+		return new AdaptiveRequestLimiter( maxConcurrency, maxConcurrency, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY );
+	}
+
+	/**
+	 * Wait until both limits allow another request.
+	 * @return the permit to be released when the request is over
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	public synchronized Permit acquire() throws InterruptedException {
+		while ( true ) {
+			final long now = System.nanoTime();
+			final long toWait = nextStartNanos - now;
+			if ( inFlight < (int) concurrencyLimit && toWait <= 0L ) {
+				break;
+			}
+			if ( inFlight < (int) concurrencyLimit ) {
+				TimeUnit.NANOSECONDS.timedWait( this, toWait );
+			} else {
+				wait();
+			}
+		}
+		final long now = System.nanoTime();
+		++inFlight;
+		++requests;
+		if ( lastStartNanos != 0L ) {
+			smoothedIntervalNanos = smooth( smoothedIntervalNanos, now - lastStartNanos );
+		}
+		lastStartNanos = now;
+		if ( ! Double.isInfinite( rateLimit ) ) {
+			nextStartNanos = Math.max( now, nextStartNanos ) + (long) ( 1e9 / rateLimit );
+		}
+		return new Permit( now );
+	}
+
+	private synchronized void onSuccess( final long latencyNanos ) {
+		smoothedLatencyNanos = smooth( smoothedLatencyNanos, latencyNanos );
+		usualLatencyNanos = Double.isNaN( usualLatencyNanos ) ? latencyNanos : Math.min( latencyNanos, usualLatencyNanos + ( latencyNanos - usualLatencyNanos ) * 0.01 );
+		errorRate = errorRate * ( 1.0 - SMOOTHING );
+		if ( smoothedLatencyNanos > LATENCY_TOLERANCE * usualLatencyNanos && smoothedLatencyNanos > usualLatencyNanos + LATENCY_SLACK_NANOS ) {
+			decrease( false );
+		} else {
+			concurrencyLimit = Math.min( maxConcurrency, concurrencyLimit + 1.0 / concurrencyLimit );
+			if ( ! Double.isInfinite( rateLimit ) ) {
+				rateLimit = Math.min( maxRate, rateLimit + RATE_INCREMENT );
+				if ( Double.isInfinite( maxRate ) && rateLimit > 2.0 * observedRate() ) {
+					// the rate limit is not what holds the requests back any more
+					rateLimit = maxRate;
+				}
+			}
+		}
+		notifyAll();
+	}
+
+	private synchronized void onFailure( final boolean throttled ) {
+		errorRate = errorRate * ( 1.0 - SMOOTHING ) + SMOOTHING;
+		decrease( throttled );
+		notifyAll();
+	}
+
+	/**
+	 * Cut the limits, but just once for a series of failures of the requests that were in progress at the same time.
+	 * @param alsoRate whether to cut the rate limit as well
+	 */
+	private void decrease( final boolean alsoRate ) {
+		final long now = System.nanoTime();
+		final double window = Double.isNaN( smoothedLatencyNanos ) ? 0.0 : smoothedLatencyNanos;
+		if ( lastDecreaseNanos != 0L && now - lastDecreaseNanos < window ) {
+			return;
+		}
+		lastDecreaseNanos = now;
+		++decreases;
+		concurrencyLimit = Math.max( minConcurrency, concurrencyLimit * DECREASE_FACTOR );
+		if ( alsoRate ) {
+			final double current = Double.isInfinite( rateLimit ) ? observedRate() : rateLimit;
+			rateLimit = Math.max( minRate, Math.min( maxRate, current * DECREASE_FACTOR ) );
+		}
+	}
+
+	private double observedRate() {
+		return Double.isNaN( smoothedIntervalNanos ) ? 1.0 : 1e9 / Math.max( smoothedIntervalNanos, 1.0 );
+	}
+
+	private synchronized void release() {
+		--inFlight;
+		notifyAll();
+	}
+
+	private static double smooth( final double smoothed, final double sample ) {
+		return Double.isNaN( smoothed ) ? sample : smoothed + SMOOTHING * ( sample - smoothed );
+	}
+
+	@Override
+	public synchronized int getConcurrencyLimit() {
+		return (int) concurrencyLimit;
+	}
+
+	@Override
+	public synchronized double getRateLimit() {
+		return rateLimit;
+	}
+
+	@Override
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	@Override
+	public synchronized double getLatencyMillis() {
+		return smoothedLatencyNanos / 1e6;
+	}
+
+	@Override
+	public synchronized double getErrorRate() {
+		return errorRate;
+	}
+
+	@Override
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	@Override
+	public synchronized long getDecreases() {
+		return decreases;
+	}
+
+	/**
+	 * Publish the state of this limiter over JMX, replacing any limiter published for the same host before.
+	 * @param host the host the limiter is for
+	 */
+	public void register( final String host ) {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			final ObjectName name = new ObjectName( "org.eurocris.openaire.cris.validator:type=AdaptiveRequestLimiter,host=" + ObjectName.quote( host ) );
+			if ( server.isRegistered( name ) ) {
+				server.unregisterMBean( name );
+			}
+			server.registerMBean( this, name );
+		} catch ( final JMException e ) {
+			System.err.println( "Cannot publish the request limiter for " + host + ": " + e );
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format( "AdaptiveRequestLimiter[concurrencyLimit=%d, rateLimit=%.1f/s, latency=%.0f ms, errorRate=%.2f, requests=%d, decreases=%d]", (int) concurrencyLimit, rateLimit, getLatencyMillis(), errorRate, requests, decreases );
+	}
+
+	/**
+	 * The permission to make one request.
+	 * Report how the request went (if it got that far) and release the permit when it is over.
+	 */
+	public class Permit {
+
+		private final long startNanos;
+		private boolean released = false;
+		private boolean reported = false;
+
+		private Permit( final long startNanos ) {
+			this.startNanos = startNanos;
+		}
+
+		/**
+		 * Report that the server responded fine; the time to now is taken for its response time.
+		 */
+		public void succeeded() {
+			if ( ! reported ) {
+				reported = true;
+				onSuccess( System.nanoTime() - startNanos );
+			}
+		}
+
+		/**
+		 * Report that the request failed for a transient reason.
+		 * @param throttled true if the server asked us to slow down (429, or 503 with Retry-After)
+		 */
+		public void failed( final boolean throttled ) {
+			if ( ! reported ) {
+				reported = true;
+				onFailure( throttled );
+			}
+		}
+
+		/**
+		 * Release the permit; only the first call counts.
+		 */
+		public synchronized void release() {
+			if ( ! released ) {
+				released = true;
+				AdaptiveRequestLimiter.this.release();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,43 @@
+package org.eurocris.openaire.cris.validator;
+
+/**
+ * The current state of an {@link AdaptiveRequestLimiter}, as published over JMX.
+ */
+public interface AdaptiveRequestLimiterMXBean {
+
+	/**
+	 * @return the current limit on the number of requests in progress
+	 */
+	int getConcurrencyLimit();
+
+	/**
+	 * @return the current limit on the number of requests started per second; infinite if not limited
+	 */
+	double getRateLimit();
+
+	/**
+	 * @return the number of requests in progress
+	 */
+	int getInFlight();
+
+	/**
+	 * @return the smoothed time to the response headers, in milliseconds
+	 */
+	double getLatencyMillis();
+
+	/**
+	 * @return the smoothed share of the requests that failed for a transient reason
+	 */
+	double getErrorRate();
+
+	/**
+	 * @return the number of requests started
+	 */
+	long getRequests();
+
+	/**
+	 * @return the number of times a limit was lowered
+	 */
+	long getDecreases();
+
+}
@@ -7,6 +7,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -15,16 +17,30 @@ import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
@@ -34,19 +50,43 @@ import javax.xml.bind.JAXBElement;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Source;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.MissingArgumentException;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
 import org.eurocris.openaire.cris.validator.OAIPMHEndpoint.ConnectionStreamFactory;
+import org.eurocris.openaire.cris.validator.http.HttpClientURLConnectionFactory;
+import org.eurocris.openaire.cris.validator.capture.CaptureArchive;
+import org.eurocris.openaire.cris.validator.capture.CaptureWriter;
+import org.eurocris.openaire.cris.validator.capture.ReplayURLConnectionFactory;
+import org.eurocris.openaire.cris.validator.schema.IdentifierChecker;
+import org.eurocris.openaire.cris.validator.schema.SchemaRegistry;
+import org.eurocris.openaire.cris.validator.schema.SchematronRules;
+import org.eurocris.openaire.cris.validator.schema.VocabularyIndex;
+import org.eurocris.openaire.cris.validator.store.CheckpointStore;
+import org.eurocris.openaire.cris.validator.store.HarvestCheckpoint;
+import org.eurocris.openaire.cris.validator.store.RecordStore;
 import org.eurocris.openaire.cris.validator.tree.CERIFNode;
 import org.eurocris.openaire.cris.validator.util.CheckingIterable;
-import org.eurocris.openaire.cris.validator.util.FileSavingInputStream;
+import org.eurocris.openaire.cris.validator.util.FailureCollector;
+import org.eurocris.openaire.cris.validator.util.OrderedPipeline;
+import org.eurocris.openaire.cris.validator.util.RunBudget;
+import org.eurocris.openaire.cris.validator.util.StratifiedSample;
+import org.eurocris.openaire.cris.validator.util.TeeInputStream;
+import org.eurocris.openaire.cris.validator.util.Threads;
 import org.eurocris.openaire.cris.validator.util.XmlUtils;
+import org.junit.AfterClass;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runner.JUnitCore;
@@ -62,7 +102,6 @@ import org.openarchives.oai._2.StatusType;
 import org.openarchives.oai._2_0.oai_identifier.OaiIdentifierType;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
@@ -139,31 +178,203 @@ public class CRISValidator {
 	 */
 	public static final String OPENAIRE_CERIF_SCHEMA_FILENAME = "openaire-cerif-profile.xsd";
 
+	/**
+	 * The name of the Schematron file that comes with the XML Schema.
+	 */
+	public static final String OPENAIRE_CERIF_SCHEMATRON_FILENAME = "openaire-cerif-profile.sch";
+
 	/**
 	 * The namespace URI of the namespace that hosts the declared compatibility statements.
 	 */
 	public static final String COMPATIBILITY_NSURI = "https://www.openaire.eu/cerif-profile/vocab/OpenAIRE_Service_Compatibility";
 
+	private static CaptureWriter captureWriter = null;
+
+	/**
+	 * The writer of the copies of the responses: in the background, compressed, synced to the disk in batches.
+	 * It is created, with the archive it appends to, when the first endpoint client that keeps the copies is; it is closed on exit.
+	 * @return the writer
+	 * @throws IOException on a problem opening the archive
+	 */
+	private static synchronized CaptureWriter getCaptureWriter() throws IOException {
+		if ( captureWriter == null ) {
+			final CaptureArchive archive = ( "files".equals( System.getProperty( "harvest.capture.format", "archive" ) ) ) ? null
+					: new CaptureArchive( Paths.get( System.getProperty( "harvest.capture.dir", "data" ) ), Long.getLong( "harvest.capture.segment.mb", 256L ) << 20, Integer.getInteger( "harvest.capture.max.segments", 16 ) );
+			final CaptureWriter writer = new CaptureWriter(
+					archive,
+					CaptureWriter.Compression.valueOf( System.getProperty( "harvest.capture.compression", "gzip" ).toUpperCase() ),
+					CaptureWriter.OverflowPolicy.valueOf( System.getProperty( "harvest.capture.overflow", "block" ).toUpperCase() ),
+					Long.getLong( "harvest.capture.queue.mb", 16L ) << 20,
+					Long.getLong( "harvest.capture.sync.mb", 64L ) << 20 );
+			Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+				try {
+					writer.close();
+					if ( archive != null ) {
+						archive.close();
+					}
+				} catch ( final InterruptedException | IOException | IllegalStateException e ) {
+					// exiting anyway
+				}
+			}, "capture-writer-shutdown" ) );
+			captureWriter = writer;
+		}
+		return captureWriter;
+	}
+
+	/**
+	 * The directory of the capture archive to serve the responses from instead of the network; null to harvest the endpoint.
+	 */
+	private static String replayDir = System.getProperty( "harvest.replay" );
+
+	/**
+	 * Whether to harvest all the sets in all the metadata formats concurrently.
+	 */
+	private static final boolean CONCURRENT_HARVEST = Boolean.getBoolean( "harvest.concurrent" );
+
+	/**
+	 * Into how many datestamp windows to split the list of records of a set, to harvest them at the same time (1 for no splitting).
+	 */
+	private static final int HARVEST_PARTITIONS = Integer.getInteger( "harvest.partitions", 1 );
+
+	/**
+	 * The number of records over which a datestamp window gets split further.
+	 */
+	private static final long HARVEST_PARTITION_MAX_RECORDS = Long.getLong( "harvest.partition.max.records", 10000L );
+
+	/**
+	 * Whether to continue the harvests from the checkpoints of an interrupted run, rather than start them afresh.
+	 */
+	private static boolean resumeHarvests = Boolean.getBoolean( "harvest.resume" );
+
+	/**
+	 * Whether to save checkpoints of the harvests, for them to be resumed after an interruption, even without resuming this run.
+	 * Also on when the directory or the interval of the checkpoints is given.
+	 */
+	private static final boolean CHECKPOINTS = Boolean.getBoolean( "harvest.checkpoint" ) || System.getProperty( "harvest.checkpoint.dir" ) != null || System.getProperty( "harvest.checkpoint.interval.s" ) != null;
+
 	/**
-	 * The connection stream factory to use for getting the response stream from a connection.
+	 * Where to keep the checkpoints of the harvests, and how often to save them.
 	 */
-	public static final ConnectionStreamFactory CONN_STREAM_FACTORY = new FileLoggingConnectionStreamFactory( "data" );
+	private static final CheckpointStore checkpointStore = new CheckpointStore( Paths.get( System.getProperty( "harvest.checkpoint.dir", "data/checkpoints" ) ), Long.getLong( "harvest.checkpoint.interval.s", 60L ) * 1000L );
+
+	/**
+	 * Whether to harvest just the records changed since the last successful run, checking them together with the records kept from the previous runs.
+	 */
+	private static boolean incrementalHarvest = Boolean.getBoolean( "harvest.incremental" );
+
+	/**
+	 * Where to keep the records between the incremental runs.
+	 */
+	private static final Path recordStoreFile = Paths.get( System.getProperty( "harvest.record.store", "data/records.store" ) );
+
+	private static RecordStore recordStore = null;
+
+	/**
+	 * The lower bound of the harvests: the time of the last successful incremental run; null to harvest everything.
+	 */
+	private static ZonedDateTime harvestFrom = null;
+
+	private static volatile boolean harvestFailed = false;
 
 	private static final Map<String, MetadataFormatType> metadataFormatsByPrefix = new HashMap<>();
 
-	private static final Map<String, String> schemaUrlsByNs = new HashMap<>();
-	private static final Map<String, String> nssBySchemaUrl = new HashMap<>();
+	private static final Map<String, String> localNamesBySetSpec = new LinkedHashMap<>();
+	static {
+		localNamesBySetSpec.put( OPENAIRE_CRIS_PUBLICATIONS__SET_SPEC, "Publication" );
+		localNamesBySetSpec.put( OPENAIRE_CRIS_PRODUCTS__SET_SPEC, "Product" );
+		localNamesBySetSpec.put( OPENAIRE_CRIS_PATENTS__SET_SPEC, "Patent" );
+		localNamesBySetSpec.put( OPENAIRE_CRIS_PERSONS__SET_SPEC, "Person" );
+		localNamesBySetSpec.put( OPENAIRE_CRIS_ORGUNITS__SET_SPEC, "OrgUnit" );
+		localNamesBySetSpec.put( OPENAIRE_CRIS_PROJECTS__SET_SPEC, "Project" );
+		localNamesBySetSpec.put( OPENAIRE_CRIS_FUNDING__SET_SPEC, "Funding" );
+		localNamesBySetSpec.put( OPENAIRE_CRIS_EQUIPMENTS__SET_SPEC, "Equipment" );
+		localNamesBySetSpec.put( OPENAIRE_CRIS_EVENTS__SET_SPEC, "Event" );
+	}
+
+	private static final ExecutorService harvestExecutor = Threads.newTaskExecutor( "oai-pmh-harvest" );
+
+	/**
+	 * The number of threads to check the payloads of the records and build their trees on, shared by all the harvests (0 to do this on the harvesting thread).
+	 */
+	private static final int VALIDATION_WORKERS = Integer.getInteger( "validation.workers", Runtime.getRuntime().availableProcessors() );
+
+	/**
+	 * The maximum number of records of a harvest waiting between reading them and the checks in their order.
+	 */
+	private static final int VALIDATION_QUEUE = Integer.getInteger( "validation.queue", 256 );
+
+	/**
+	 * The part of the records whose payloads are checked (1 for all); the headers of all the records are checked.
+	 */
+	private static final double SAMPLE_RATE = Double.parseDouble( System.getProperty( "validation.sample.rate", "1" ) );
+
+	/**
+	 * The records whose payloads are checked, picked by their OAI identifiers, and the failure rates estimated from them per harvest; null to check all the records.
+	 */
+	private static final StratifiedSample sample = ( SAMPLE_RATE < 1.0 ) ? new StratifiedSample( SAMPLE_RATE, Long.getLong( "validation.sample.seed", 0L ) ) : null;
+
+	/**
+	 * The bounds of the run: its wall time, the failures of each check in a harvest, and the records of a harvest (0 for no bound).
+	 */
+	private static final RunBudget budget = new RunBudget( Long.getLong( "validation.budget.time.s", 0L ) * 1000L, Long.getLong( "validation.budget.failures", 0L ), Long.getLong( "validation.budget.records", 0L ) );
+
+	/**
+	 * Whether to go on checking the records after a failed check, and report all the failures of a harvest, grouped, at its end.
+	 * Always so for a sample, as its failure rates are estimated at the end, and with a budget of failures per check, as they are counted.
+	 */
+	private static final boolean COLLECT_FAILURES = Boolean.getBoolean( "validation.failures.collect" ) || sample != null || budget.getMaxFailuresPerCheck() > 0L;
+
+	/**
+	 * The maximum number of groups of failures reported for a harvest when collecting the failures.
+	 */
+	private static final int FAILURE_GROUPS = Integer.getInteger( "validation.failures.groups", 100 );
+
+	/**
+	 * The maximum number of identifiers of the records reported for a group of failures when collecting the failures.
+	 */
+	private static final int FAILURE_SAMPLES = Integer.getInteger( "validation.failures.samples", 5 );
+
+	private static final ExecutorService validationExecutor = ( VALIDATION_WORKERS > 0 ) ? Executors.newFixedThreadPool( VALIDATION_WORKERS, Threads.daemonThreadFactory( "validation-worker" ) ) : null;
+
+	/**
+	 * The key of the CERIF tree of a payload element, built by a validation worker or by the check in the order of the records.
+	 */
+	private static final String CERIF_NODE_KEY = CRISValidator.class.getName() + ".node";
+
+	/**
+	 * The key of the failure of the check of a payload element by a validation worker.
+	 */
+	private static final String CHECK_FAILURE_KEY = CRISValidator.class.getName() + ".failure";
+
+	private static final Map<String, List<Future<?>>> harvestsBySetSpec = new HashMap<>();
+
+	private static final Map<String, String> schemaUrlsByNs = new ConcurrentHashMap<>();
+	private static final Map<String, String> nssBySchemaUrl = new ConcurrentHashMap<>();
 
 	/**
 	 * The main method: used for running the JUnit4 test suite from the command line.
 	 * The first command line argument should be the URL of the endpoint to test.
+	 * With the <code>--resume</code> option, the harvests continue from the checkpoints of an interrupted run.
+	 * With the <code>--incremental</code> option, only the records changed since the last successful run are harvested.
 	 * @param args command line arguments
 	 * @throws Exception any uncaught exception
 	 */
 	public static void main( final String[] args ) throws Exception {
-		final String endpointUrl = ( args.length > 0 ) ? args[0] : null;
+		final Options options = new Options();
+		options.addOption( Option.builder().longOpt( "resume" ).desc( "continue the harvests from the checkpoints of an interrupted run" ).build() );
+		options.addOption( Option.builder().longOpt( "incremental" ).desc( "harvest just the records changed since the last successful run" ).build() );
+		options.addOption( Option.builder().longOpt( "replay" ).hasArg().argName( "dir" ).desc( "serve the responses from the capture archive in the directory instead of the network" ).build() );
+		final CommandLine commandLine = new DefaultParser().parse( options, args );
+		resumeHarvests |= commandLine.hasOption( "resume" );
+		incrementalHarvest |= commandLine.hasOption( "incremental" );
+		if ( commandLine.hasOption( "replay" ) ) {
+			replayDir = commandLine.getOptionValue( "replay" );
+		}
+		final List<String> arguments = commandLine.getArgList();
+		final String endpointUrl = ( arguments.size() > 0 ) ? arguments.get( 0 ) : null;
 		final URL endpointBaseUrl = URI.create( endpointUrl ).toURL();
-		endpoint = new OAIPMHEndpoint( endpointBaseUrl, getParserSchema(), CONN_STREAM_FACTORY );
+		endpoint = createEndpoint( endpointBaseUrl );
+		resetHarvests();
 		JUnitCore.main( CRISValidator.class.getName() );
 	}
 
@@ -184,8 +395,8 @@ public class CRISValidator {
 				throw new MissingArgumentException( "Please specify the OAI-PMH endpoint URL as the value of the " + endpointPropertyKey + " system property or as the first argument on the command line" );
 			}
 			final URL endpointBaseUrl = URI.create( endpointUrl ).toURL();
-			endpoint = new OAIPMHEndpoint( endpointBaseUrl, getParserSchema(), CONN_STREAM_FACTORY );
-			metadataFormatsByPrefix.clear();
+			endpoint = createEndpoint( endpointBaseUrl );
+			resetHarvests();
 		}
 	}
 
@@ -200,11 +411,111 @@ public class CRISValidator {
 	 */
 	protected CRISValidator( final URL endpointBaseUrl ) throws SAXException, IOException, ParserConfigurationException {
 		if ( endpoint == null || ! endpointBaseUrl.toExternalForm().equals( endpoint.getBaseUrl() ) ) {
-			endpoint = new OAIPMHEndpoint( endpointBaseUrl, getParserSchema(), CONN_STREAM_FACTORY );
-			metadataFormatsByPrefix.clear();
+			endpoint = createEndpoint( endpointBaseUrl );
+			resetHarvests();
+		}
+	}
+
+	/**
+	 * Start the harvests afresh, or from the checkpoints when resuming, or from the kept records in the incremental mode.
+	 * Checking a sample does not go with resuming or the incremental mode: the records not in the sample are neither checkpointed nor kept,
+	 * so the references to them could not be told from the broken ones, and the kept records would lack them.
+	 */
+	private static void resetHarvests() {
+		if ( sample != null && ( resumeHarvests || incrementalHarvest ) ) {
+			throw new IllegalArgumentException( "Checking a sample (validation.sample.rate below 1) cannot be combined with resuming the harvests or the incremental mode" );
+		}
+		metadataFormatsByPrefix.clear();
+		synchronized ( harvestsBySetSpec ) {
+			harvestsBySetSpec.clear();
+		}
+		incompleteTypes.clear();
+		if ( ! resumeHarvests ) {
+			try {
+				checkpointStore.clear();
+			} catch ( final IOException e ) {
+				System.err.println( "Cannot delete the old checkpoints in " + checkpointStore.getDirectory() + ": " + e );
+			}
+		}
+		harvestFailed = false;
+		if ( incrementalHarvest ) {
+			loadRecordStore();
+		}
+	}
+
+	/**
+	 * Put the records kept from the previous runs in place of the harvested ones, and harvest from the time of the last successful run.
+	 */
+	private static void loadRecordStore() {
+		recordStore = RecordStore.load( recordStoreFile, endpoint.getBaseUrl() );
+		harvestFrom = OAIPMHEndpoint.parseDatestamp( recordStore.getResponseDate() );
+		recordsByName.clear();
+		recordsByOaiIdentifier.clear();
+		changedOaiIdentifiers.clear();
+		changedNames.clear();
+		for ( final Map.Entry<String, CERIFNode> entry : recordStore.getRecordsByOaiIdentifier().entrySet() ) {
+			recordsByName.put( entry.getValue().getName(), entry.getValue() );
+			recordsByOaiIdentifier.put( entry.getKey(), entry.getValue() );
+		}
+		if ( harvestFrom != null ) {
+			System.out.println( "Harvesting the records changed since " + recordStore.getResponseDate() + " (" + recordStore.size() + " records kept in " + recordStoreFile + ")" );
+		} else {
+			System.out.println( "No records kept from a successful run in " + recordStoreFile + ", harvesting all" );
 		}
 	}
 
+	/**
+	 * Create the endpoint client, configured from the system properties:
+	 * <ul>
+	 * <li><code>harvest.prefetch.pages</code>: how many chunks of a list to fetch ahead in the background (default 0, prefetching off)</li>
+	 * <li><code>harvest.prefetch.budget.mb</code>: the cap on the size of the chunks fetched ahead and not validated yet, in megabytes (default 64)</li>
+	 * <li><code>harvest.max.connections</code>: the maximum number of requests to the endpoint in progress at the same time (default 4, 0 for no limit)</li>
+	 * <li><code>harvest.replay</code>: the directory of a capture archive to serve the responses from instead of the network (the responses are not captured again then)</li>
+	 * <li><code>schema.compile.threads</code>: how many threads to compile the schemas on in the background, the parser schema at startup and then those of the advertised metadata formats (default up to 3, 0 to compile each schema when it is first needed)</li>
+	 * </ul>
+	 * @param endpointBaseUrl the URL base of the endpoint to test
+	 * @return the endpoint client
+	 * @throws SAXException when the parser schema cannot be created
+	 * @throws IOException on a problem accessing a schema
+	 * @throws ParserConfigurationException when an XML parser cannot be instantiated
+	 */
+	private static OAIPMHEndpoint createEndpoint( final URL endpointBaseUrl ) throws SAXException, IOException, ParserConfigurationException {
+		startSchemaCompilation();
+		final OAIPMHEndpoint client = new OAIPMHEndpoint( endpointBaseUrl, getParserSchema(), ( replayDir != null ) ? URLConnection::getInputStream : new FileLoggingConnectionStreamFactory( "data", getCaptureWriter() ) );
+		client.setPrefetch( Integer.getInteger( "harvest.prefetch.pages", 0 ), Long.getLong( "harvest.prefetch.budget.mb", 64L ) << 20 );
+		final int maxConnections = Integer.getInteger( "harvest.max.connections", 4 );
+		if ( maxConnections > 0 ) {
+			final int minConnections = Math.min( Integer.getInteger( "harvest.min.connections", 1 ), maxConnections );
+			final double minRate = Double.parseDouble( System.getProperty( "harvest.min.rate", "0.2" ) );
+			final double maxRate = Double.parseDouble( System.getProperty( "harvest.max.rate", "Infinity" ) );
+			final AdaptiveRequestLimiter limiter = new AdaptiveRequestLimiter( minConnections, maxConnections, minRate, maxRate );
+			limiter.register( endpointBaseUrl.getHost() );
+			client.setRequestLimiter( limiter );
+		} else {
+			client.setMaxConcurrentRequests( 0 );
+		}
+		client.setStreaming( Boolean.getBoolean( "harvest.streaming" ) );
+		client.setPayloadValidation( CRISValidator::getPayloadValidators );
+		if ( sample != null ) {
+			client.setPayloadSelection( sample::isSampled );
+		}
+		client.setRunBudget( budget );
+		final int connectTimeoutMillis = (int) Math.min( TimeUnit.SECONDS.toMillis( Long.getLong( "harvest.connect.timeout.s", 30L ) ), Integer.MAX_VALUE );
+		client.setConnectTimeout( connectTimeoutMillis );
+		client.setRetryPolicy( new RetryPolicy( Integer.getInteger( "harvest.retry.attempts", 1 ), Long.getLong( "harvest.retry.delay.ms", 1000L ), Long.getLong( "harvest.retry.max.delay.ms", 300000L ) ) );
+		if ( replayDir != null ) {
+			final CaptureArchive archive = new CaptureArchive( Paths.get( replayDir ), Long.MAX_VALUE );
+			if ( archive.size() == 0 ) {
+				throw new FileNotFoundException( "No captured responses to replay in " + replayDir );
+			}
+			System.out.println( "Replaying the responses from " + archive );
+			client.setConnectionFactory( new ReplayURLConnectionFactory( archive ) );
+		} else if ( "httpclient".equals( System.getProperty( "harvest.transport" ) ) ) {
+			client.setConnectionFactory( new HttpClientURLConnectionFactory( ( connectTimeoutMillis > 0 ) ? Duration.ofMillis( connectTimeoutMillis ) : null ) );
+		}
+		return client;
+	}
+
 	/**
 	 * @return the URL of the endpoint
 	 */
@@ -212,24 +523,96 @@ public class CRISValidator {
 		return endpoint.getBaseUrl();
 	}
 
-	private static Schema getSchema( final StreamSource ... sources ) throws IOException, SAXException, ParserConfigurationException {
+	/**
+	 * Read the target namespace of an XML Schema document, only up to its root element.
+	 * @param xsd the content of the document
+	 * @return the target namespace; an empty string for a document without one
+	 * @throws IOException when the document cannot be read
+	 */
+	private static String getTargetNamespace( final byte[] xsd ) throws IOException {
+		try {
+			final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader( new ByteArrayInputStream( xsd ) );
+			try {
+				while ( reader.next() != XMLStreamConstants.START_ELEMENT ) {
+					// skip the prolog
+				}
+				final String targetNamespace = reader.getAttributeValue( null, "targetNamespace" );
+				return ( targetNamespace != null ) ? targetNamespace : "";
+			} finally {
+				reader.close();
+			}
+		} catch ( final XMLStreamException e ) {
+			throw new IOException( "Cannot read the root element of the schema", e );
+		}
+	}
+
+	private static Schema getSchema( final String label, final StreamSource ... sources ) throws IOException, SAXException {
+		final long startNanos = System.nanoTime();
 		final List<Source> schemaList = new ArrayList<>();
 		for ( final StreamSource source : sources ) {
-			schemaList.add( source );
 			final String schemaUrl = source.getSystemId();
-			final Document doc = getDocumentBuilderFactory().newDocumentBuilder().parse( source.getInputStream() );
-			final String targetNamespace = doc.getDocumentElement().getAttribute( "targetNamespace" );
+			final byte[] xsd;
+			try ( final InputStream in = source.getInputStream() ) {
+				xsd = in.readAllBytes();
+			}
+			schemaList.add( new StreamSource( new ByteArrayInputStream( xsd ), schemaUrl ) );
+			final String targetNamespace = getTargetNamespace( xsd );
 			schemaUrlsByNs.put( targetNamespace, schemaUrl );
 			nssBySchemaUrl.put( schemaUrl, targetNamespace );
 			System.out.println( "Will use " + schemaUrl + " for namespace " + targetNamespace );
 		}
-		return getXmlSchemaFactory().newSchema( schemaList.toArray( new Source[0] ) );
+		final Schema schema = getXmlSchemaFactory().newSchema( schemaList.toArray( new Source[0] ) );
+		System.out.println( "Compiled the " + label + " schema from " + sources.length + " documents in " + ( System.nanoTime() - startNanos ) / 1000000L + " ms on " + Thread.currentThread().getName() );
+		return schema;
+	}
+
+	/**
+	 * The number of threads to compile the schemas on at startup (0 to compile each schema when it is first needed).
+	 */
+	private static final int SCHEMA_COMPILE_THREADS = Integer.getInteger( "schema.compile.threads", Math.min( 3, Runtime.getRuntime().availableProcessors() ) );
+
+	private static ExecutorService schemaCompiler = null;
+
+	private static Future<Schema> parserSchemaCompilation = null;
+
+	/**
+	 * Start compiling the parser schema on a thread of a small pool, which then stays for the schemas of the namespaces the endpoint advertises.
+	 * The endpoint client waits just for the parser schema.
+	 */
+	private static synchronized void startSchemaCompilation() {
+		if ( schemaCompiler != null || SCHEMA_COMPILE_THREADS <= 0 ) {
+			return;
+		}
+		schemaCompiler = Executors.newFixedThreadPool( SCHEMA_COMPILE_THREADS, Threads.daemonThreadFactory( "schema-compiler" ) );
+		if ( parserSchema == null ) {
+			parserSchemaCompilation = schemaCompiler.submit( CRISValidator::compileParserSchema );
+		}
+		if ( VOCABULARY_STATISTICS ) {
+			schemaCompiler.execute( CRISValidator::getVocabularyIndexes );
+		}
+	}
+
+	/**
+	 * Start compiling the schema and the Schematron rules for the second-phase validation in a namespace the endpoint advertises, on the pool of {@link #startSchemaCompilation()};
+	 * they get compiled while the next requests to the endpoint are made, and a payload that comes before waits for them.
+	 * The schemas of the versions of the profile the endpoint does not advertise are not compiled unless a payload in their namespace comes.
+	 * Nothing is started when the schemas are compiled on the first use only.
+	 * @param namespace the namespace of an advertised metadata format
+	 */
+	private static synchronized void startSchemaCompilation( final String namespace ) {
+		if ( schemaCompiler == null || ! getValidatorSchemas().contains( namespace ) ) {
+			return;
+		}
+		getValidatorSchemas().compile( namespace, schemaCompiler );
+		if ( SCHEMATRON_VALIDATION ) {
+			schemaCompiler.execute( () -> getSchematronRules( namespace ) );
+		}
 	}
 
 	private static Schema parserSchema = null;
 
 	/**
-	 * Create the schema for the validating XML parser.
+	 * Create the schema for the validating XML parser, or wait for its compilation started at startup.
 	 * @return the compound schema
 	 * @throws SAXException on a problem reading the schema
 	 * @throws IOException on a problem accessing the schema
@@ -237,49 +620,212 @@ public class CRISValidator {
 	 */
 	protected static synchronized Schema getParserSchema() throws SAXException, IOException, ParserConfigurationException {
 		if ( parserSchema == null ) {
-			parserSchema = getSchema(
-				schema( "/cached/xml.xsd", "http://www.w3.org/2001/xml.xsd" ),
-				schema( "/cached/oai-identifier.xsd" ),
-				schema( "/cached/simpledc20021212.xsd", "http://dublincore.org/schemas/xmls/simpledc20021212.xsd" ),
-				schema( "/cached/oai_dc.xsd" ),
-				schema( "/cached/provenance.xsd", "http://www.openarchives.org/OAI/2.0/provenance.xsd" ),
-				schema( "/cached/OAI-PMH.xsd" ),
-				schema( "/relaxed/current/openaire-cerif-profile.xsd", "https://www.openaire.eu/schema/cris/1.2/openaire-cerif-profile.xsd" ),
-				schema( "/relaxed/cerif_profile_1_1/openaire-cerif-profile.xsd", "https://www.openaire.eu/schema/cris/1.1.1/openaire-cerif-profile.xsd" )
-			);
+			if ( parserSchemaCompilation != null ) {
+				try {
+					parserSchema = parserSchemaCompilation.get();
+				} catch ( final ExecutionException e ) {
+					final Throwable cause = e.getCause();
+					if ( cause instanceof SAXException ) {
+						throw (SAXException) cause;
+					} else if ( cause instanceof IOException ) {
+						throw (IOException) cause;
+					} else if ( cause instanceof RuntimeException ) {
+						throw (RuntimeException) cause;
+					}
+					throw new IllegalStateException( "While compiling the parser schema", cause );
+				} catch ( final InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException( "Interrupted while compiling the parser schema", e );
+				} finally {
+					parserSchemaCompilation = null;
+				}
+			} else {
+				parserSchema = compileParserSchema();
+			}
 		}
 		return parserSchema;
 	}
 
-	private static Schema validatorSchema = null;
+	private static Schema compileParserSchema() throws SAXException, IOException {
+		return getSchema( "parser",
+			schema( "/cached/xml.xsd", "http://www.w3.org/2001/xml.xsd" ),
+			schema( "/cached/oai-identifier.xsd" ),
+			schema( "/cached/simpledc20021212.xsd", "http://dublincore.org/schemas/xmls/simpledc20021212.xsd" ),
+			schema( "/cached/oai_dc.xsd" ),
+			schema( "/cached/provenance.xsd", "http://www.openarchives.org/OAI/2.0/provenance.xsd" ),
+			schema( "/cached/OAI-PMH.xsd" ),
+			schema( "/relaxed/current/openaire-cerif-profile.xsd", "https://www.openaire.eu/schema/cris/1.2/openaire-cerif-profile.xsd" ),
+			schema( "/relaxed/cerif_profile_1_1/openaire-cerif-profile.xsd", "https://www.openaire.eu/schema/cris/1.1.1/openaire-cerif-profile.xsd" )
+		);
+	}
+
+	private static volatile SchemaRegistry validatorSchemas = null;
 
 	/**
-	 * Create the schema for the second-phase validation.
-	 * @return the compound schema
-	 * @throws SAXException when problem reading the schema
+	 * The schemas for the second-phase validation, one per version of the CERIF profile, keyed by their target namespace.
+	 * Each is compiled when first needed: in the background when the endpoint advertises a metadata format in its namespace, or else when a payload in its namespace comes.
+	 * The registry is set up once, under the lock of the class; afterwards, it is read without locking.
+	 * @return the registry of the schemas
 	 */
-	protected static synchronized Schema getValidatorSchema() {
-		if ( validatorSchema == null ) {
+	protected static SchemaRegistry getValidatorSchemas() {
+		final SchemaRegistry registry = validatorSchemas;
+		return ( registry != null ) ? registry : initValidatorSchemas();
+	}
+
+	private static synchronized SchemaRegistry initValidatorSchemas() {
+		if ( validatorSchemas == null ) {
+			final SchemaRegistry registry = new SchemaRegistry();
 			try {
-				validatorSchema = getSchema(
-					schema( "/cached/xml.xsd", "http://www.w3.org/2001/xml.xsd" ),
-					schema( "/original/current/openaire-cerif-profile.xsd", "https://www.openaire.eu/schema/cris/1.2/openaire-cerif-profile.xsd" ),
-					schema( "/original/cerif_profile_1_1/openaire-cerif-profile.xsd", "https://www.openaire.eu/schema/cris/1.1.1/openaire-cerif-profile.xsd" )
-				);
-			} catch ( final SAXException | IOException | ParserConfigurationException e ) {
-				throw new IllegalStateException( "While initializing validator schema", e );
+				registerValidatorSchema( registry, "/original/current", "https://www.openaire.eu/schema/cris/1.2/openaire-cerif-profile.xsd" );
+				registerValidatorSchema( registry, "/original/cerif_profile_1_1", "https://www.openaire.eu/schema/cris/1.1.1/openaire-cerif-profile.xsd" );
+			} catch ( final IOException e ) {
+				throw new IllegalStateException( "While initializing validator schemas", e );
 			}
+			validatorSchemas = registry;
+		}
+		return validatorSchemas;
+	}
+
+	private static void registerValidatorSchema( final SchemaRegistry registry, final String dir, final String externalUrl ) throws IOException {
+		final String path = dir + "/" + OPENAIRE_CERIF_SCHEMA_FILENAME;
+		final StreamSource source = schema( path, externalUrl );
+		final byte[] xsd;
+		try ( final InputStream in = source.getInputStream() ) {
+			xsd = in.readAllBytes();
+		}
+		final String targetNamespace = getTargetNamespace( xsd );
+		profileSchemaPathsByNs.put( targetNamespace, "/schemas" + path );
+		registry.register( targetNamespace, () -> getSchema( "validator (" + targetNamespace + ")",
+			schema( "/cached/xml.xsd", "http://www.w3.org/2001/xml.xsd" ),
+			schema( path, externalUrl )
+		) );
+		final String schematronPath = "/schemas" + dir + "/" + OPENAIRE_CERIF_SCHEMATRON_FILENAME;
+		if ( OAIPMHEndpoint.class.getResource( schematronPath ) != null ) {
+			schematronPathsByNs.put( targetNamespace, schematronPath );
 		}
-		return validatorSchema;
 	}
 
-	private static SchemaFactory xmlSchemaFactory = null;
+	private static final Map<String, String> profileSchemaPathsByNs = new ConcurrentHashMap<>();
+
+	/**
+	 * Whether to count the terms of the controlled vocabularies used in the payloads, and report the unknown and deprecated ones.
+	 */
+	private static final boolean VOCABULARY_STATISTICS = Boolean.parseBoolean( System.getProperty( "validation.vocabularies", "true" ) );
 
-	private static synchronized SchemaFactory getXmlSchemaFactory() {
-		if ( xmlSchemaFactory == null ) {
-			xmlSchemaFactory = SchemaFactory.newInstance( W3C_XML_SCHEMA_NS_URI );
+	private static volatile Map<String, VocabularyIndex> vocabularyIndexes = null;
+
+	/**
+	 * The controlled vocabularies of each version of the profile, extracted from its XML Schema; a term only the older versions have is deprecated.
+	 * They are extracted once, under the lock of the class; afterwards, they are read without locking, as this is asked for every payload.
+	 * @return the indexes of the vocabularies by the namespace of the profile
+	 */
+	protected static Map<String, VocabularyIndex> getVocabularyIndexes() {
+		final Map<String, VocabularyIndex> indexes = vocabularyIndexes;
+		return ( indexes != null ) ? indexes : loadVocabularyIndexes();
+	}
+
+	private static synchronized Map<String, VocabularyIndex> loadVocabularyIndexes() {
+		if ( vocabularyIndexes == null ) {
+			final long startNanos = System.nanoTime();
+			// the versions are registered the newest first
+			final List<String> namespaces = new ArrayList<>( getValidatorSchemas().getNamespaces() );
+			final List<VocabularyIndex> loaded = new ArrayList<>();
+			for ( final String ns : namespaces ) {
+				final String path = profileSchemaPathsByNs.get( ns );
+				try {
+					loaded.add( VocabularyIndex.load( ns, OAIPMHEndpoint.class.getResource( path ) ) );
+				} catch ( final SAXException | IOException e ) {
+					throw new IllegalStateException( "While extracting the vocabularies from " + path, e );
+				}
+			}
+			final Map<String, VocabularyIndex> indexes = new LinkedHashMap<>();
+			for ( int i = 0; i < loaded.size(); ++i ) {
+				indexes.put( namespaces.get( i ), loaded.get( i ).withDeprecatedFrom( loaded.subList( i + 1, loaded.size() ) ) );
+			}
+			vocabularyIndexes = indexes;
+			System.out.println( "Extracted the vocabularies of " + indexes.size() + " versions of the profile in " + ( System.nanoTime() - startNanos ) / 1000000L + " ms" );
 		}
-		return xmlSchemaFactory;
+		return vocabularyIndexes;
+	}
+
+	/**
+	 * Whether to check the persistent identifiers in the payloads, with their check digits, and report those that are not valid.
+	 */
+	private static final boolean IDENTIFIER_CHECKS = Boolean.parseBoolean( System.getProperty( "validation.identifiers", "true" ) );
+
+	private static final IdentifierChecker identifierChecker = new IdentifierChecker();
+
+	/**
+	 * Whether to check the payloads against the Schematron rules of the profile.
+	 */
+	private static final boolean SCHEMATRON_VALIDATION = Boolean.parseBoolean( System.getProperty( "validation.schematron", "true" ) );
+
+	private static final Map<String, String> schematronPathsByNs = new ConcurrentHashMap<>();
+
+	private static final Map<String, SchematronRules> schematronRulesByNs = new ConcurrentHashMap<>();
+
+	/**
+	 * The Schematron rules of the profile for a namespace, compiled once.
+	 * @param namespace the namespace of the payload element
+	 * @return the rules; null when there are none for the namespace
+	 */
+	protected static SchematronRules getSchematronRules( final String namespace ) {
+		if ( namespace == null ) {
+			return null;
+		}
+		final SchematronRules compiled = schematronRulesByNs.get( namespace );
+		if ( compiled != null ) {
+			return compiled;
+		}
+		if ( ! getValidatorSchemas().contains( namespace ) ) {
+			return null;
+		}
+		final String schematronPath = schematronPathsByNs.get( namespace );
+		if ( schematronPath == null ) {
+			return null;
+		}
+		return schematronRulesByNs.computeIfAbsent( namespace, ( ns ) -> {
+			final long startNanos = System.nanoTime();
+			try ( final InputStream in = OAIPMHEndpoint.class.getResourceAsStream( schematronPath ) ) {
+				final SchematronRules rules = SchematronRules.compile( schematronPath, in );
+				System.out.println( "Compiled the Schematron rules for " + ns + " (" + rules.getRules().size() + " rules) in " + ( System.nanoTime() - startNanos ) / 1000000L + " ms on " + Thread.currentThread().getName() );
+				return rules;
+			} catch ( final SAXException | IOException e ) {
+				throw new IllegalStateException( "While compiling the Schematron rules in " + schematronPath, e );
+			}
+		} );
+	}
+
+	private static final Map<String, ValidatorPool> payloadValidatorsByNs = new ConcurrentHashMap<>();
+
+	/**
+	 * The validators for the second-phase validation of the payloads in a namespace, one per thread.
+	 * @param namespace the namespace of the payload element
+	 * @return the pool of validators against the schema for the namespace from {@link #getValidatorSchemas()}; null when there is no schema for the namespace
+	 */
+	protected static ValidatorPool getPayloadValidators( final String namespace ) {
+		if ( namespace == null ) {
+			return null;
+		}
+		ValidatorPool validators = payloadValidatorsByNs.get( namespace );
+		if ( validators == null ) {
+			// compiled outside of the map, so that the namespaces do not wait for each other
+			final Schema schema = getValidatorSchemas().get( namespace );
+			if ( schema == null ) {
+				return null;
+			}
+			validators = payloadValidatorsByNs.computeIfAbsent( namespace, ( ns ) -> new ValidatorPool( schema, PayloadErrorHandler::new ) );
+		}
+		return validators;
+	}
+
+	/**
+	 * The schema factories, one per thread: a factory is not thread-safe, and the schemas get compiled on several threads.
+	 */
+	private static final ThreadLocal<SchemaFactory> xmlSchemaFactory = ThreadLocal.withInitial( () -> SchemaFactory.newInstance( W3C_XML_SCHEMA_NS_URI ) );
+
+	private static SchemaFactory getXmlSchemaFactory() {
+		return xmlSchemaFactory.get();
 	}
 
 	private static StreamSource schema( final String path ) {
@@ -342,7 +888,9 @@ public class CRISValidator {
 					if ( "Service".equals( el.getLocalName() ) && el.getNamespaceURI() != null && el.getNamespaceURI().startsWith( OPENAIRE_CERIF_XMLNS_PREFIX ) ) {
 						serviceDescription = el;
 						serviceAcronym = XmlUtils.getTextContents( XmlUtils.getFirstMatchingChild( el, "Acronym", el.getNamespaceURI() ) );
+						countVocabularyTerms( el );
 						validateMetadataPayload( el );
+						checkSchematronRules( el );
 						return true;
 					}
 				}
@@ -383,6 +931,7 @@ public class CRISValidator {
 		final long nMetadataFormats = checker.run();
 		final int nOpenAireMetadataFormats = metadataFormatsByPrefix.size();
 		System.out.println( "Having " + nOpenAireMetadataFormats + " OpenAIRE CRIS metadata formats (out of the total " + nMetadataFormats + " metadata formats)" );
+		System.out.println( "Validator schemas: " + getValidatorSchemas() );
 	}
 
 	private CheckingIterable<MetadataFormatType> wrapCheckMetadataFormatPresent( final CheckingIterable<MetadataFormatType> parent ) {
@@ -401,6 +950,8 @@ public class CRISValidator {
 						assertTrue( "The schema file should be " + OPENAIRE_CERIF_SCHEMA_FILENAME + " (2i)", schemaUrl.endsWith( "/" + OPENAIRE_CERIF_SCHEMA_FILENAME ) );
 						final String localSchemaUrl = schemaUrlsByNs.get( metadataNs );
 						assertNotNull( "This validator does not cover the metadata namespace " + metadataNs + " (2g)", localSchemaUrl );
+						startSchemaCompilation( metadataNs );
+						assertTrue( "This validator does not cover the metadata namespace " + metadataNs + " (2g)", getValidatorSchemas().contains( metadataNs ) );
 						if ( !localSchemaUrl.contains( "/current/" ) ) {
 							final Document doc = db.parse( localSchemaUrl );
 							final Element schemaRootEl = doc.getDocumentElement();
@@ -451,11 +1002,12 @@ public class CRISValidator {
 
 	/**
 	 * Ask for ?verb=ListSets and test it for consistence – checks (3).
+	 * When the time of the run is up before the list ends, the check fails as truncated.
 	 * @throws Exception on any unexpected circumstance
 	 */
 	@Test
 	public void check020_Sets() throws Exception {
-		CheckingIterable<SetType> checker = CheckingIterable.over( endpoint.callListSets() );
+		CheckingIterable<SetType> checker = CheckingIterable.over( endpoint.callListSets(), null, budget.timeOnly() );
 		checker = checker.checkUnique( SetType::getSetSpec, "setSpec not unique" );
 		checker = wrapCheckSetPresent( checker, OPENAIRE_CRIS_PUBLICATIONS__SET_SPEC, "OpenAIRE_CRIS_publications" );
 		checker = wrapCheckSetPresent( checker, OPENAIRE_CRIS_PRODUCTS__SET_SPEC, "OpenAIRE_CRIS_products" );
@@ -466,7 +1018,13 @@ public class CRISValidator {
 		checker = wrapCheckSetPresent( checker, OPENAIRE_CRIS_FUNDING__SET_SPEC, "OpenAIRE_CRIS_funding" );
 		checker = wrapCheckSetPresent( checker, OPENAIRE_CRIS_EVENTS__SET_SPEC, "OpenAIRE_CRIS_events" );
 		checker = wrapCheckSetPresent( checker, OPENAIRE_CRIS_EQUIPMENTS__SET_SPEC, "OpenAIRE_CRIS_equipments" );
-		checker.run();
+		try {
+			checker.run();
+		} finally {
+			if ( checker.getTruncation() != null ) {
+				budget.truncated( "Sets: " + checker.getTruncation() );
+			}
+		}
 	}
 
 	private CheckingIterable<SetType> wrapCheckSetPresent( final CheckingIterable<SetType> parent, final String expectedSetSpec, final String expectedSetName ) {
@@ -487,16 +1045,299 @@ public class CRISValidator {
 
 	/**
 	 * Ask for ?verb=ListRecords on the requested set and test it for consistence – checks (5).
+	 * When the <code>harvest.concurrent</code> system property is set to true, the first call starts harvesting all the sets in all the metadata formats at the same time
+	 * and each call just waits for the harvests of its set to finish.
 	 * @param set the set to test
 	 * @param localName the expected local name of the metadata elements
 	 */
 	private void checkSetSpec(String set, String localName) {
 		assertFalse( "No metadata prefix to fetch?", metadataFormatsByPrefix.isEmpty() );
-		for ( final String prefix : metadataFormatsByPrefix.keySet() ) {
-			final Iterable<RecordType> records = endpoint.callListRecords( prefix, set, null, null );
-			final CheckingIterable<RecordType> checker = buildCommonCheckersChain( records, localName );
+		if ( CONCURRENT_HARVEST ) {
+			awaitHarvests( startConcurrentHarvests().get( set ), true );
+		} else {
+			for ( final String prefix : metadataFormatsByPrefix.keySet() ) {
+				harvest( prefix, set, localName );
+			}
+		}
+	}
+
+	/**
+	 * Harvest a set in a metadata format and check the records, saving a checkpoint after a chunk of records from time to time.
+	 * In the incremental mode, just the records changed since the last successful run are harvested.
+	 * With <code>harvest.partitions</code> over 1, the list is harvested in datestamp windows at the same time.
+	 * With <code>validation.workers</code> over 0, the records go through an {@link OrderedPipeline}:
+	 * they are read on a thread of their own, their payloads are checked and their trees built by the validation workers,
+	 * and the checks that keep state (such as the uniqueness of the identifiers) are done here, on the records in the order they were harvested.
+	 * When the harvest fails, its records may be incomplete, so the objects of its type are not required to be there by the check (5a).
+	 * When resuming, the harvest continues from the checkpoint: a complete harvest is not repeated,
+	 * an interrupted one continues with the saved resumption token, or, if that has expired, with the records not older than the latest one harvested.
+	 * When collecting the failures, a failed check of a record does not end the harvest: all the failures are reported, grouped, at its end.
+	 * When checking a sample, the payloads of the records not in it are neither validated nor kept, and the harvest is a stratum of the sample.
+	 * When the budget of the run is used up, the harvest stops and fails as truncated; it is not started at all if the time is up already.
+	 * The checkpoint is kept as for an interrupted harvest, to be resumed.
+	 * @param prefix the metadata format
+	 * @param set the set
+	 * @param localName the expected local name of the metadata elements
+	 */
+	private void harvest( final String prefix, final String set, final String localName ) {
+		try {
+			harvestAndCheck( prefix, set, localName );
+		} catch ( final RuntimeException | Error e ) {
+			harvestFailed = true;
+			incompleteTypes.add( localName );
+			throw e;
+		}
+	}
+
+	private void harvestAndCheck( final String prefix, final String set, final String localName ) {
+		final HarvestCheckpoint checkpoint = openCheckpoint( prefix, set );
+		if ( checkpoint != null && checkpoint.isComplete() ) {
+			System.out.println( "Not harvesting again: " + checkpoint );
+			return;
+		}
+		if ( budget.isOverTime() ) {
+			incompleteTypes.add( localName );
+			budget.truncated( set + " in " + prefix + ": not harvested" );
+			fail( "Not harvested, " + budget.describeOverTime() );
+		}
+		final Set<String> harvestedBefore = ( checkpoint != null ) ? new HashSet<>( checkpoint.getRecordsByOaiIdentifier().keySet() ) : Collections.emptySet();
+		final OrderedPipeline<RecordType, RecordType> pipeline = ( validationExecutor != null ) ? new OrderedPipeline<>( ( record ) -> preparePayload( record, localName ), validationExecutor, VALIDATION_QUEUE ) : null;
+		final Iterable<RecordType> records;
+		if ( HARVEST_PARTITIONS > 1 ) {
+			// no single resumption token to save: an interrupted harvest of the windows starts over
+			records = endpoint.callListRecordsPartitioned( prefix, set, harvestFrom, HARVEST_PARTITIONS, HARVEST_PARTITION_MAX_RECORDS );
+		} else if ( checkpoint == null ) {
+			records = endpoint.callListRecords( prefix, set, harvestFrom, null );
+		} else {
+			records = endpoint.callListRecords( prefix, set, harvestFrom, null, checkpoint.getResumptionToken(), OAIPMHEndpoint.parseDatestamp( checkpoint.getLastDatestamp() ), ( resumptionToken ) -> {
+				final Runnable chunkCompleted = () -> {
+					checkpoint.chunkCompleted( resumptionToken );
+					saveCheckpoint( checkpoint, false );
+				};
+				if ( pipeline != null ) {
+					// only once the records of the chunk have been noted in the checkpoint
+					pipeline.inOrder( chunkCompleted );
+				} else {
+					chunkCompleted.run();
+				}
+			} );
+		}
+		final Iterable<RecordType> unharvested = skipHarvested( records, harvestedBefore );
+		final StratifiedSample.Stratum stratum = ( sample != null ) ? sample.getStratum( set + " in " + prefix ) : null;
+		final CheckingIterable<RecordType> checker = wrapRecordInCheckpoint( checkpoint, buildCommonCheckersChain( ( pipeline != null ) ? pipeline.over( unharvested ) : unharvested, localName, stratum ) );
+		try {
 			checker.run();
+		} finally {
+			if ( checker.getTruncation() != null ) {
+				saveCheckpoint( checkpoint, true );
+				incompleteTypes.add( localName );
+				budget.truncated( set + " in " + prefix + ": " + checker.getTruncation() );
+			}
+		}
+		if ( checkpoint != null ) {
+			checkpoint.completed();
+			saveCheckpoint( checkpoint, true );
+		}
+		if ( pipeline != null ) {
+			System.out.println( "Validation pipeline for set " + set + " in " + prefix + ": " + pipeline );
+		}
+	}
+
+	/**
+	 * Check the payload of a record and build its tree, on a validation worker.
+	 * The tree, or the failure of the check, is kept with the payload element, for the check in the order of the records to pick up.
+	 * @param record the record
+	 * @param localName the expected local name of the metadata element
+	 * @return the record
+	 */
+	private RecordType preparePayload( final RecordType record, final String localName ) {
+		final MetadataType metadata = record.getMetadata();
+		if ( metadata != null && metadata.getAny() instanceof Element && isSampled( record ) ) {
+			final Element el = (Element) metadata.getAny();
+			try {
+				el.setUserData( CERIF_NODE_KEY, checkPayload( el, localName ), null );
+			} catch ( final RuntimeException | AssertionError e ) {
+				el.setUserData( CHECK_FAILURE_KEY, e, null );
+			}
+		}
+		return record;
+	}
+
+	/**
+	 * @param record the record
+	 * @return whether the payload of the record is to be checked
+	 */
+	private static boolean isSampled( final RecordType record ) {
+		return sample == null || sample.isSampled( record.getHeader().getIdentifier() );
+	}
+
+	/**
+	 * The checkpoint to continue the harvest from when resuming, or a new one; none unless resuming or asked for checkpoints.
+	 * @param prefix the metadata format
+	 * @param set the set
+	 * @return the checkpoint; null when no checkpoints are saved
+	 */
+	private static HarvestCheckpoint openCheckpoint( final String prefix, final String set ) {
+		if ( ! CHECKPOINTS && ! resumeHarvests ) {
+			return null;
+		}
+		if ( resumeHarvests ) {
+			final HarvestCheckpoint checkpoint = checkpointStore.load( endpoint.getBaseUrl(), prefix, set );
+			if ( checkpoint != null ) {
+				System.out.println( "Resuming from " + checkpoint );
+				for ( final Map.Entry<String, CERIFNode> entry : checkpoint.getRecordsByOaiIdentifier().entrySet() ) {
+					accumulate( entry.getKey(), entry.getValue() );
+				}
+				return checkpoint;
+			}
+		}
+		return new HarvestCheckpoint( endpoint.getBaseUrl(), prefix, set );
+	}
+
+	private static void saveCheckpoint( final HarvestCheckpoint checkpoint, final boolean now ) {
+		if ( checkpoint == null ) {
+			return;
+		}
+		try {
+			if ( now ) {
+				checkpointStore.save( checkpoint );
+			} else {
+				checkpointStore.saveIfDue( checkpoint );
+			}
+		} catch ( final IOException e ) {
+			System.err.println( "Cannot save " + checkpoint + " in " + checkpointStore.getDirectory() + ": " + e );
+		}
+	}
+
+	private static CheckingIterable<RecordType> wrapRecordInCheckpoint( final HarvestCheckpoint checkpoint, final CheckingIterable<RecordType> checker ) {
+		if ( checkpoint == null ) {
+			return checker;
+		}
+		return checker.checkForAll( ( final RecordType record ) -> {
+			final HeaderType header = record.getHeader();
+			checkpoint.record( header.getIdentifier(), header.getDatestamp(), getCheckedNode( record ) );
+			return true;
+		}, "Cannot note the record in the checkpoint" );
+	}
+
+	/**
+	 * The tree built for this very record when its payload was checked; not looked up by the OAI identifier, which other harvests may share.
+	 * @param record the record
+	 * @return the tree; null if the record is deleted, or if its payload has not been checked or has failed the check
+	 */
+	private static CERIFNode getCheckedNode( final RecordType record ) {
+		final MetadataType metadata = record.getMetadata();
+		if ( metadata != null && metadata.getAny() instanceof Element && ! StatusType.DELETED.equals( record.getHeader().getStatus() ) ) {
+			final Object node = ( (Element) metadata.getAny() ).getUserData( CERIF_NODE_KEY );
+			return ( node instanceof CERIFNode ) ? (CERIFNode) node : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Leave out the records harvested before the list had to be requested again, as the data provider lists them once more.
+	 * @param records the records
+	 * @param harvestedBefore the OAI identifiers of the records harvested before
+	 * @return the records not harvested before
+	 */
+	private static Iterable<RecordType> skipHarvested( final Iterable<RecordType> records, final Set<String> harvestedBefore ) {
+		if ( harvestedBefore.isEmpty() ) {
+			return records;
+		}
+		return () -> new SkippingIterator( records.iterator(), harvestedBefore );
+	}
+
+	/**
+	 * Goes over the records, leaving out the ones with the given OAI identifiers.
+	 * Closing it closes the underlying iterator.
+	 */
+	private static class SkippingIterator implements Iterator<RecordType>, AutoCloseable {
+
+		private final Iterator<RecordType> parentIterator;
+		private final Set<String> identifiersToSkip;
+		private RecordType record = null;
+
+		SkippingIterator( final Iterator<RecordType> parentIterator, final Set<String> identifiersToSkip ) {
+			this.parentIterator = parentIterator;
+			this.identifiersToSkip = identifiersToSkip;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while ( record == null && parentIterator.hasNext() ) {
+				final RecordType candidate = parentIterator.next();
+				if ( ! identifiersToSkip.contains( candidate.getHeader().getIdentifier() ) ) {
+					record = candidate;
+				}
+			}
+			return record != null;
+		}
+
+		@Override
+		public RecordType next() {
+			if ( hasNext() ) {
+				final RecordType result = record;
+				record = null;
+				return result;
+			}
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public void close() throws Exception {
+			if ( parentIterator instanceof AutoCloseable ) {
+				( (AutoCloseable) parentIterator ).close();
+			}
+		}
+
+	}
+
+	private Map<String, List<Future<?>>> startConcurrentHarvests() {
+		synchronized ( harvestsBySetSpec ) {
+			if ( harvestsBySetSpec.isEmpty() ) {
+				for ( final Map.Entry<String, String> entry : localNamesBySetSpec.entrySet() ) {
+					final String set = entry.getKey();
+					final String localName = entry.getValue();
+					final List<Future<?>> harvests = new ArrayList<>();
+					for ( final String prefix : metadataFormatsByPrefix.keySet() ) {
+						harvests.add( harvestExecutor.submit( () -> harvest( prefix, set, localName ) ) );
+					}
+					harvestsBySetSpec.put( set, harvests );
+				}
+			}
+			return harvestsBySetSpec;
+		}
+	}
+
+	/**
+	 * Wait for the given harvests to finish.
+	 * @param harvests the harvests to wait for
+	 * @param rethrow whether to re-throw the first failure (after all the harvests have finished)
+	 * @return the first failure; null if the harvests have all succeeded
+	 */
+	private static Throwable awaitHarvests( final List<Future<?>> harvests, final boolean rethrow ) {
+		Throwable failure = null;
+		for ( final Future<?> harvest : harvests ) {
+			try {
+				harvest.get();
+			} catch ( final ExecutionException e ) {
+				if ( failure == null ) {
+					failure = e.getCause();
+				}
+			} catch ( final InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException( e );
+			}
+		}
+		if ( rethrow && failure != null ) {
+			if ( failure instanceof Error ) {
+				throw (Error) failure;
+			} else if ( failure instanceof RuntimeException ) {
+				throw (RuntimeException) failure;
+			}
+			throw new IllegalStateException( failure );
 		}
+		return failure;
 	}
 
 	/**
@@ -584,18 +1425,30 @@ public class CRISValidator {
 	 * Prepare the checks to run on all CERIF records.
 	 * @param records the iterable containing the records
 	 * @param expectedElementLocalName the expected local name of the metadata elements
+	 * @param stratum where to count the records checked and failed when checking a sample; null when checking all the records
 	 * @return a {@link CheckingIterable} that checks the namespace, the uniqueness of the OAI identifiers of the records and their consistence with the types and IDs of the objects
 	 */
-	protected CheckingIterable<RecordType> buildCommonCheckersChain( final Iterable<RecordType> records, final String expectedElementLocalName ) {
-		return wrapCheckPayloadQNameAndAccummulate( expectedElementLocalName,
+	protected CheckingIterable<RecordType> buildCommonCheckersChain( final Iterable<RecordType> records, final String expectedElementLocalName, final StratifiedSample.Stratum stratum ) {
+		return wrapCheckPayloadQNameAndAccummulate( expectedElementLocalName, stratum,
 				wrapCheckUniqueness(
 						wrapCheckOAIIdentifier(
-								CheckingIterable.over( records )
+								CheckingIterable.over( records, newFailureCollector(), budget )
 						)
 				)
 		);
 	}
 
+	/**
+	 * Where to record the failed checks of a harvest, when collecting the failures.
+	 * @return the collector; null when the first failure ends the harvest
+	 */
+	private static FailureCollector newFailureCollector() {
+		if ( ! COLLECT_FAILURES ) {
+			return null;
+		}
+		return new FailureCollector( FAILURE_GROUPS, FAILURE_SAMPLES, ( final Object obj ) -> ( obj instanceof RecordType ) ? ( (RecordType) obj ).getHeader().getIdentifier() : String.valueOf( obj ) );
+	}
+
 	private CheckingIterable<RecordType> wrapCheckUniqueness( final CheckingIterable<RecordType> checker ) {
 		final Function<RecordType, HeaderType> f1 = RecordType::getHeader;
 		return checker.checkUnique( f1.andThen( HeaderType::getIdentifier ), "record identifier not unique" );
@@ -629,10 +1482,60 @@ public class CRISValidator {
 		}
 	}
 
-	private static Map<String, CERIFNode> recordsByName = new HashMap<>();
-	private static Map<String, CERIFNode> recordsByOaiIdentifier = new HashMap<>();
+	private static Map<String, CERIFNode> recordsByName = new ConcurrentHashMap<>();
+	private static Map<String, CERIFNode> recordsByOaiIdentifier = new ConcurrentHashMap<>();
+
+	/**
+	 * The names of the CERIF objects of the records harvested but not in the sample checked.
+	 */
+	private static final Set<String> unsampledNames = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The types of the CERIF objects (the expected local names of the metadata elements) of the harvests that failed, or were cut short or not started for the budget of the run.
+	 */
+	private static final Set<String> incompleteTypes = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The OAI identifiers of the records harvested in this run.
+	 */
+	private static final Set<String> changedOaiIdentifiers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The names of the CERIF objects harvested or deleted in this run.
+	 */
+	private static final Set<String> changedNames = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Add a harvested record to the internal representation (and to the records kept for the incremental runs).
+	 * @param oaiIdentifier the OAI identifier of the record
+	 * @param node the CERIF tree of the record
+	 */
+	private static void accumulate( final String oaiIdentifier, final CERIFNode node ) {
+		recordsByName.put( node.getName(), node );
+		recordsByOaiIdentifier.put( oaiIdentifier, node );
+		changedOaiIdentifiers.add( oaiIdentifier );
+		changedNames.add( node.getName() );
+		if ( recordStore != null ) {
+			recordStore.put( oaiIdentifier, node, collectReferencedNames( node ) );
+		}
+	}
+
+	/**
+	 * Remove a deleted record from the internal representation (and from the records kept for the incremental runs).
+	 * @param oaiIdentifier the OAI identifier of the record
+	 */
+	private static void forget( final String oaiIdentifier ) {
+		final CERIFNode node = recordsByOaiIdentifier.remove( oaiIdentifier );
+		if ( node != null ) {
+			recordsByName.remove( node.getName(), node );
+			changedNames.add( node.getName() );
+		}
+		if ( recordStore != null ) {
+			recordStore.remove( oaiIdentifier );
+		}
+	}
 
-	private CheckingIterable<RecordType> wrapCheckPayloadQNameAndAccummulate( final String expectedElementLocalName, final CheckingIterable<RecordType> checker ) {
+	private CheckingIterable<RecordType> wrapCheckPayloadQNameAndAccummulate( final String expectedElementLocalName, final StratifiedSample.Stratum stratum, final CheckingIterable<RecordType> checker ) {
 		return checker.checkForAll( new Predicate<RecordType>() {
 
 			@Override
@@ -642,22 +1545,64 @@ public class CRISValidator {
 					final Object obj = recordMetadata.getAny();
 					if ( obj instanceof Element ) {
 						final Element el = (Element) obj;
-						assertTrue( "The payload element not in the right namespace", el.getNamespaceURI().startsWith(OPENAIRE_CERIF_XMLNS_PREFIX) );
-						assertEquals( "The payload element does not have the right local name", expectedElementLocalName, el.getLocalName() );
-						validateMetadataPayload( el );
-						final CERIFNode node = CERIFNode.buildTree( el );
-						recordsByName.put( node.getName(), node );
-						recordsByOaiIdentifier.put( t.getHeader().getIdentifier(), node );
+						if ( ! isSampled( t ) ) {
+							stratum.count( false, false );
+							unsampledNames.add( CERIFNode.nameOf( el ) );
+							return true;
+						}
+						final CERIFNode node;
+						try {
+							final Object failure = el.getUserData( CHECK_FAILURE_KEY );
+							if ( failure instanceof RuntimeException ) {
+								throw (RuntimeException) failure;
+							} else if ( failure instanceof Error ) {
+								throw (Error) failure;
+							}
+							final CERIFNode prepared = (CERIFNode) el.getUserData( CERIF_NODE_KEY );
+							node = ( prepared != null ) ? prepared : checkPayload( el, expectedElementLocalName );
+							if ( prepared == null ) {
+								el.setUserData( CERIF_NODE_KEY, node, null );
+							}
+						} catch ( final AssertionError e ) {
+							if ( stratum != null ) {
+								stratum.count( true, true );
+							}
+							throw e;
+						}
+						if ( stratum != null ) {
+							stratum.count( true, false );
+						}
+						accumulate( t.getHeader().getIdentifier(), node );
 						return true;
 					}
 				}
 				// fail unless the record is deleted
-				return StatusType.DELETED.equals( t.getHeader().getStatus() );
+				if ( StatusType.DELETED.equals( t.getHeader().getStatus() ) ) {
+					forget( t.getHeader().getIdentifier() );
+					return true;
+				}
+				return false;
 			}
 
 		}, "Metadata missing from OAI-PMH record" );
 	}
 
+	/**
+	 * Check the namespace and the local name of a payload element, validate it, and build its tree.
+	 * @param el the payload element
+	 * @param expectedElementLocalName the expected local name
+	 * @return the tree
+	 */
+	private CERIFNode checkPayload( final Element el, final String expectedElementLocalName ) {
+		assertTrue( "The payload element not in the right namespace", el.getNamespaceURI().startsWith(OPENAIRE_CERIF_XMLNS_PREFIX) );
+		assertEquals( "The payload element does not have the right local name", expectedElementLocalName, el.getLocalName() );
+		countVocabularyTerms( el );
+		checkIdentifiers( el );
+		validateMetadataPayload( el );
+		checkSchematronRules( el );
+		return CERIFNode.buildTree( el );
+	}
+
 	private static final String[] types = new String[] { "Publication", "Product", "Patent", "Person", "OrgUnit", "Project", "Funding", "Event", "Equipment" };
 	static {
 		Arrays.sort( types );
@@ -665,28 +1610,115 @@ public class CRISValidator {
 
 	/**
 	 * Test the accummulated data for consistence – checks (5a) and (5b).
+	 * With concurrent harvesting, this waits for all the harvests to finish first, and notes the sets whose harvests have failed
+	 * (each fails its own check too).
+	 * In the incremental mode, just the records harvested in this run and the records that refer to the objects harvested or deleted are checked;
+	 * when all is fine, the records are kept for the next run.
+	 * When a harvest has failed or been truncated, the objects of its type referred to may just not have been harvested, so their absence is not a failure;
+	 * when the time of the run is up, the check stops and fails as truncated.
 	 */
 	@Test
 	public void check990_CheckReferentialIntegrityAndFunctionalDependency() {
-		for ( final Map.Entry<String, CERIFNode> entry : recordsByOaiIdentifier.entrySet() ) {
-			final String oaiIdentifier = entry.getKey();
-			final CERIFNode node = entry.getValue();
-			// for all harvested CERIF data, check the children of the main objects (no need to check the objects themselves, they satisfy all checks trivially)
-			for ( final CERIFNode node3 : node.getChildren( null ) ) {
-				lookForCERIFObjectsAndCheckReferentialIntegrityAndFunctionalDependency( node3, oaiIdentifier );
+		final Map<String, List<Future<?>>> harvests;
+		synchronized ( harvestsBySetSpec ) {
+			harvests = new HashMap<>( harvestsBySetSpec );
+		}
+		for ( final Map.Entry<String, List<Future<?>>> entry : harvests.entrySet() ) {
+			final Throwable failure = awaitHarvests( entry.getValue(), false );
+			if ( failure != null ) {
+				System.out.println( "Harvest of set " + entry.getKey() + " failed, its objects not required by (5a): " + failure );
 			}
 		}
+		final FailureCollector failures = newFailureCollector();
+		final Collection<String> oaiIdentifiers = recordsToCheck();
+		long checked = 0L;
+		for ( final String oaiIdentifier : oaiIdentifiers ) {
+			if ( budget.isOverTime() ) {
+				final String truncation = "checked " + checked + " of " + oaiIdentifiers.size() + " records, " + budget.describeOverTime();
+				budget.truncated( "Referential integrity and functional dependency: " + truncation );
+				fail( "Truncated: " + truncation + ( ( failures != null && failures.getTotal() > 0L ) ? "; " + failures.getReport() : "" ) );
+			}
+			++checked;
+			final CERIFNode node = recordsByOaiIdentifier.get( oaiIdentifier );
+			if ( node != null ) {
+				// for all harvested CERIF data, check the children of the main objects (no need to check the objects themselves, they satisfy all checks trivially)
+				for ( final CERIFNode node3 : node.getChildren( null ) ) {
+					lookForCERIFObjectsAndCheckReferentialIntegrityAndFunctionalDependency( node3, oaiIdentifier, failures );
+				}
+			}
+		}
+		if ( failures != null && failures.getTotal() > 0L ) {
+			fail( failures.getReport() );
+		}
+		if ( incrementalHarvest && ! harvestFailed ) {
+			saveRecordStore();
+		}
+	}
+
+	/**
+	 * @return the OAI identifiers of the records to check for referential integrity and functional dependency
+	 */
+	private static Collection<String> recordsToCheck() {
+		if ( harvestFrom == null || recordStore == null ) {
+			return recordsByOaiIdentifier.keySet();
+		}
+		final Set<String> result = recordStore.getAffected( changedOaiIdentifiers, changedNames );
+		System.out.println( "Checking " + result.size() + " records affected by the changes since " + recordStore.getResponseDate() );
+		return result;
 	}
 
-	private void lookForCERIFObjectsAndCheckReferentialIntegrityAndFunctionalDependency( final CERIFNode node, final String oaiIdentifier ) {
+	private static void saveRecordStore() {
+		final Optional<ZonedDateTime> responseDate = endpoint.getIdentifyResponseDate();
+		if ( ! responseDate.isPresent() ) {
+			System.err.println( "Not keeping the records: the time of the Identify response is not known" );
+			return;
+		}
+		recordStore.setResponseDate( DateTimeFormatter.ISO_INSTANT.format( responseDate.get() ) );
+		try {
+			recordStore.save( recordStoreFile );
+		} catch ( final IOException e ) {
+			System.err.println( "Cannot keep the records in " + recordStoreFile + ": " + e );
+		}
+	}
+
+	/**
+	 * Collect the names of the CERIF objects a record refers to.
+	 * @param node the CERIF tree of the record
+	 * @return the names of the objects referred to
+	 */
+	private static Set<String> collectReferencedNames( final CERIFNode node ) {
+		final Set<String> result = new HashSet<>();
+		for ( final CERIFNode node3 : node.getChildren( null ) ) {
+			collectReferencedNames( node3, result );
+		}
+		return result;
+	}
+
+	private static void collectReferencedNames( final CERIFNode node, final Set<String> result ) {
+		if ( Arrays.binarySearch( types, node.getType() ) >= 0 && node.getName().contains( "[@id=\"" ) ) {
+			result.add( node.getName() );
+		}
+		for ( final CERIFNode node2 : node.getChildren( null ) ) {
+			collectReferencedNames( node2, result );
+		}
+	}
+
+	private void lookForCERIFObjectsAndCheckReferentialIntegrityAndFunctionalDependency( final CERIFNode node, final String oaiIdentifier, final FailureCollector failures ) {
 		// do the checks if this is a CERIF object
 		final String type = node.getType();
 		if ( Arrays.binarySearch( types, type ) >= 0 ) {
-			doCheckFunctionalDependency( node, oaiIdentifier );
+			try {
+				doCheckFunctionalDependency( node, oaiIdentifier );
+			} catch ( final AssertionError e ) {
+				if ( failures == null ) {
+					throw e;
+				}
+				failures.record( e, oaiIdentifier );
+			}
 		}
 		// recurse to children of this node
 		for ( final CERIFNode node2 : node.getChildren( null ) ) {
-			lookForCERIFObjectsAndCheckReferentialIntegrityAndFunctionalDependency( node2, oaiIdentifier );
+			lookForCERIFObjectsAndCheckReferentialIntegrityAndFunctionalDependency( node2, oaiIdentifier, failures );
 		}
 	}
 
@@ -694,6 +1726,10 @@ public class CRISValidator {
 		final String name = node.getName();
 		if ( name.contains( "[@id=\"" ) ) {
 			final CERIFNode baseNode = recordsByName.get( name );
+			if ( baseNode == null && ( unsampledNames.contains( name ) || incompleteTypes.contains( node.getType() ) ) ) {
+				// the record is not in the sample, or may not have been harvested: nothing to compare with
+				return;
+			}
 			assertNotNull( "Record for " + name + " not found, referential integrity violated in " + oaiIdentifier + " (5a)", baseNode );
 			if ( ! node.isSubsetOf( baseNode ) ) {
 				final CERIFNode missingNode = node.reportWhatIMiss( baseNode ).get();
@@ -703,48 +1739,209 @@ public class CRISValidator {
 	}
 
 	/**
-	 * Validate the metadata payload subtree against the XML Schema resulting from {@link #getValidatorSchema()}.
+	 * Report the counts of the terms of the controlled vocabularies used.
+	 */
+	@AfterClass
+	public static void reportVocabularyTerms() {
+		if ( vocabularyIndexes != null ) {
+			for ( final VocabularyIndex index : vocabularyIndexes.values() ) {
+				if ( index.getUses() > 0 ) {
+					System.out.println( index.getReport() );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Report the failure rates estimated from the sample checked, if just a sample was.
+	 */
+	@AfterClass
+	public static void reportSample() {
+		if ( sample != null ) {
+			System.out.println( sample.getReport() );
+		}
+	}
+
+	/**
+	 * Report what has been cut short for the budget of the run, if anything.
+	 */
+	@AfterClass
+	public static void reportTruncations() {
+		if ( budget.isTruncated() ) {
+			System.out.println( budget.getReport() );
+		}
+	}
+
+	/**
+	 * Report the counts of the persistent identifiers checked.
+	 */
+	@AfterClass
+	public static void reportIdentifiers() {
+		if ( identifierChecker.getRecords() > 0 ) {
+			System.out.println( identifierChecker.getReport() );
+		}
+	}
+
+	/**
+	 * Report the time spent in each of the Schematron rules.
+	 */
+	@AfterClass
+	public static void reportSchematronRules() {
+		for ( final SchematronRules rules : schematronRulesByNs.values() ) {
+			if ( rules.getPayloads() > 0 ) {
+				System.out.println( rules.getTimingReport() );
+			}
+		}
+	}
+
+	/**
+	 * How long to wait at the end of the run for the copies of the responses to be written, in seconds.
+	 */
+	private static final long CAPTURE_FLUSH_TIMEOUT_S = 60L;
+
+	/**
+	 * Report how many requests had to be repeated, if any, and where the request limits ended up.
+	 * Also wait for the copies of the responses to be written, and report those that were not.
+	 * @throws InterruptedException when interrupted while waiting for the copies
+	 */
+	@AfterClass
+	public static void reportRequestStatistics() throws InterruptedException {
+		final CaptureWriter writer;
+		synchronized ( CRISValidator.class ) {
+			writer = captureWriter;
+		}
+		if ( writer != null ) {
+			try {
+				if ( ! writer.flush( CAPTURE_FLUSH_TIMEOUT_S, TimeUnit.SECONDS ) ) {
+					System.err.println( "Not all the copies of the responses written after " + CAPTURE_FLUSH_TIMEOUT_S + " s" );
+				}
+			} catch ( final IllegalStateException e ) {
+				System.err.println( "Not all the copies of the responses written: " + e.getMessage() );
+			}
+			if ( writer.getDroppedCaptures() > 0 || writer.getFailedCaptures() > 0 ) {
+				System.out.println( "Copies of the responses: " + writer );
+			}
+		}
+		if ( endpoint != null ) {
+			if ( endpoint.getRetryStatistics().getRetries() > 0 ) {
+				System.out.println( "Requests to " + endpoint.getBaseUrl() + ": " + endpoint.getRetryStatistics() );
+			}
+			if ( endpoint.getRequestLimiter().getDecreases() > 0 ) {
+				System.out.println( "Request limits for " + endpoint.getBaseUrl() + ": " + endpoint.getRequestLimiter() );
+			}
+		}
+	}
+
+	/**
+	 * Count the terms of the controlled vocabularies used in the metadata payload subtree, before the full validation.
+	 * The terms that are not known are marked in the report at the end of the run, but do not fail the check: the validation against the XML Schema does that.
+	 * @param el the metadata payload top element
+	 */
+	protected void countVocabularyTerms( final Element el ) {
+		if ( ! VOCABULARY_STATISTICS ) {
+			return;
+		}
+		final VocabularyIndex index = ( el.getNamespaceURI() != null ) ? getVocabularyIndexes().get( el.getNamespaceURI() ) : null;
+		if ( index != null ) {
+			index.count( el );
+		}
+	}
+
+	/**
+	 * Check the persistent identifiers in the metadata payload subtree, including their check digits, and count them.
+	 * The identifiers that are not valid are counted per type for the report at the end of the run, but do not fail the check,
+	 * as is the case for a mismatch of a pattern of the XML Schema.
+	 * @param el the metadata payload top element
+	 */
+	protected void checkIdentifiers( final Element el ) {
+		if ( ! IDENTIFIER_CHECKS ) {
+			return;
+		}
+		identifierChecker.check( el );
+	}
+
+	/**
+	 * Check the metadata payload subtree against the Schematron rules for its namespace from {@link #getSchematronRules(String)}, if there are any.
+	 * @param el the metadata payload top element
+	 */
+	protected void checkSchematronRules( final Element el ) {
+		if ( ! SCHEMATRON_VALIDATION ) {
+			return;
+		}
+		final SchematronRules rules = getSchematronRules( el.getNamespaceURI() );
+		if ( rules != null ) {
+			final List<SchematronRules.Failure> failures = rules.check( el );
+			if ( ! failures.isEmpty() ) {
+				fail( "While checking element " + el.getLocalName() + "[@id=\"" + el.getAttribute( "id" ) + "\"] against the Schematron rules: " + failures );
+			}
+		}
+	}
+
+	/**
+	 * Validate the metadata payload subtree against the XML Schema for its namespace from {@link #getValidatorSchemas()}.
+	 * The payloads of the responses have been validated while the responses were parsed, and the outcome of that is used;
+	 * any other element is validated with the validator of the current thread from {@link #getPayloadValidators(String)}.
 	 * @param el the metadata payload top element
 	 */
 	protected void validateMetadataPayload( final Element el ) {
 		final String elString = el.getLocalName() + "[@id=\"" + el.getAttribute( "id" ) + "\"]";
-		final Validator validator = getValidatorSchema().newValidator();
+		final PayloadValidatingFilter.Outcome outcome = PayloadValidatingFilter.getOutcome( el );
 		try {
-			final ErrorHandler errorHandler = new ErrorHandler() {
+			if ( outcome == null ) {
+				final ValidatorPool validators = getPayloadValidators( el.getNamespaceURI() );
+				if ( validators == null ) {
+					fail( "No schema to validate element " + elString + " in namespace " + el.getNamespaceURI() );
+				}
+				validators.validate( new DOMSource( el ), elString );
+			} else if ( ! outcome.isValid() ) {
+				throw outcome.getFailure();
+			}
+		} catch ( final SAXException | IOException e ) {
+			fail( "While validating element " + elString + ": " + e );
+		}
+	}
+}
 
-				private boolean patternValidErrorSignalled = false;
+/**
+ * The error handler of the validation of the payloads against the schemas from {@link CRISValidator#getValidatorSchemas()}.
+ * A pattern mismatch is only reported, as is the complex type error that follows from it; the other errors fail the validation.
+ */
+class PayloadErrorHandler implements ValidatorPool.ResettableErrorHandler {
 
-				@Override
-				public void warning( final SAXParseException exception ) throws SAXException {
-					// do nothing
-				}
+	private String subject = null;
 
-				@Override
-				public void fatalError( final SAXParseException exception ) throws SAXException {
-					throw exception;
-				}
+	private boolean patternValidErrorSignalled = false;
 
-				@Override
-				public void error( final SAXParseException exception ) throws SAXException {
-					final String msg = exception.getMessage();
-					if ( msg.startsWith( "cvc-pattern-valid: " ) ) {
-						patternValidErrorSignalled = true;
-						System.err.println( "In " + elString + ": " + msg );
-					} else {
-						if (!( patternValidErrorSignalled && msg.startsWith( "cvc-complex-type.2.2: " ) )) {
-							throw exception;
-						}
-						patternValidErrorSignalled = false;
-					}
-				}
+	@Override
+	public void reset( final String subject ) {
+		this.subject = subject;
+		this.patternValidErrorSignalled = false;
+	}
 
-			};
-			validator.setErrorHandler( errorHandler );
-			validator.validate( new DOMSource( el ) );
-		} catch ( final SAXException | IOException e ) {
-			fail( "While validating element " + elString + ": " + e );
+	@Override
+	public void warning( final SAXParseException exception ) throws SAXException {
+		// do nothing
+	}
+
+	@Override
+	public void fatalError( final SAXParseException exception ) throws SAXException {
+		throw exception;
+	}
+
+	@Override
+	public void error( final SAXParseException exception ) throws SAXException {
+		final String msg = exception.getMessage();
+		if ( msg.startsWith( "cvc-pattern-valid: " ) ) {
+			patternValidErrorSignalled = true;
+			System.err.println( "In " + subject + ": " + msg );
+		} else {
+			if (!( patternValidErrorSignalled && msg.startsWith( "cvc-complex-type.2.2: " ) )) {
+				throw exception;
+			}
+			patternValidErrorSignalled = false;
 		}
 	}
+
 }
 
 /**
@@ -755,14 +1952,20 @@ class FileLoggingConnectionStreamFactory implements OAIPMHEndpoint.ConnectionStr
 
 	private final String logDir;
 
+	private final CaptureWriter captureWriter;
+
 	/**
 	 * The factory with the given directory to place the files in.
 	 * @param logDir the directory for the files
+	 * @param captureWriter the writer of the files
 	 */
-	public FileLoggingConnectionStreamFactory( final String logDir ) {
+	public FileLoggingConnectionStreamFactory( final String logDir, final CaptureWriter captureWriter ) {
 		this.logDir = logDir;
+		this.captureWriter = captureWriter;
 	}
 
+	private final AtomicLong sequence = new AtomicLong();
+
 	private static final Pattern p2 = Pattern.compile( ".*\\W(set=\\w+).*" );
 	private static final Pattern p1 = Pattern.compile( ".*\\W(verb=\\w+).*" );
 
@@ -770,7 +1973,9 @@ class FileLoggingConnectionStreamFactory implements OAIPMHEndpoint.ConnectionStr
 	public InputStream makeInputStream( final URLConnection conn ) throws IOException {
 		InputStream inputStream = conn.getInputStream();
 		String baseURLhostname = conn.getURL().getHost();
-		if ( logDir != null ) {
+		if ( captureWriter.getArchive() != null ) {
+			inputStream = new TeeInputStream( inputStream, captureWriter.open( CaptureArchive.key( conn.getURL().toExternalForm() ) ) );
+		} else if ( logDir != null ) {
 			final Path logDirPath = Paths.get( logDir );
 			Files.createDirectories( logDirPath );
 			final StringBuilder sb = new StringBuilder();
@@ -785,8 +1990,8 @@ class FileLoggingConnectionStreamFactory implements OAIPMHEndpoint.ConnectionStr
  				sb.append( m2.group( 1 ) );
  			}
 			final DateTimeFormatter dtf = DateTimeFormatter.ofPattern( "yyyyMMdd'T'HHmmss.SSS" );
-			final String logFilename = baseURLhostname + "_oai-pmh--" + dtf.format( LocalDateTime.now() ) + "--" + sb.toString() + ".xml";
-			inputStream = new FileSavingInputStream( inputStream, logDirPath.resolve( logFilename ) );
+			final String logFilename = baseURLhostname + "_oai-pmh--" + dtf.format( LocalDateTime.now() ) + "-" + sequence.incrementAndGet() + "--" + sb.toString() + ".xml" + captureWriter.getCompression().getSuffix();
+			inputStream = new TeeInputStream( inputStream, captureWriter.open( logDirPath.resolve( logFilename ) ) );
 		}
 		return inputStream;
 	}
@@ -2,6 +2,7 @@ package org.eurocris.openaire.cris.validator;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -9,24 +10,57 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
-import javax.xml.bind.JAXBContext;
+import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.UnmarshalException;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.UnmarshallerHandler;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.validation.Schema;
 
 import org.eurocris.openaire.cris.validator.http.CompressionHandlingHttpURLConnectionAdapter;
+import org.eurocris.openaire.cris.validator.http.DelegatingURLConnection;
+import org.eurocris.openaire.cris.validator.http.URLConnectionFactory;
+import org.eurocris.openaire.cris.validator.util.CountingInputStream;
+import org.eurocris.openaire.cris.validator.util.RunBudget;
+import org.eurocris.openaire.cris.validator.util.SaxEmittingStreamReader;
+import org.eurocris.openaire.cris.validator.util.Threads;
 import org.openarchives.oai._2.DescriptionType;
+import org.openarchives.oai._2.GranularityType;
 import org.openarchives.oai._2.HeaderType;
 import org.openarchives.oai._2.IdentifyType;
 import org.openarchives.oai._2.ListIdentifiersType;
@@ -40,7 +74,10 @@ import org.openarchives.oai._2.RecordType;
 import org.openarchives.oai._2.ResumptionTokenType;
 import org.openarchives.oai._2.SetType;
 import org.openarchives.oai._2_0.oai_identifier.OaiIdentifierType;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 /**
  * An OAI-PMH 2.0 endpoint client.
@@ -52,6 +89,10 @@ public class OAIPMHEndpoint {
 	private final String baseUrl;
 
 	private final Schema schema;
+
+	private final UnmarshallerPool validatingUnmarshallers;
+
+	private final UnmarshallerPool plainUnmarshallers;
 	
 	private final String userAgent;
 
@@ -75,7 +116,41 @@ public class OAIPMHEndpoint {
 	
 	private Optional<String> repositoryIdentifier = null;
 
+	private GranularityType granularity = GranularityType.YYYY_MM_DD_THH_MM_SS_Z;
+
+	private Optional<ZonedDateTime> identifyResponseDate = Optional.empty();
+
+	private Optional<ZonedDateTime> earliestDatestamp = Optional.empty();
+
 	private static final String URL_ENCODING = "UTF-8";
+
+	private int prefetchPages = 0;
+
+	private long prefetchMaxBytes = Long.MAX_VALUE;
+
+	private static final ExecutorService prefetchExecutor = Threads.newTaskExecutor( "oai-pmh-prefetch" );
+
+	private AdaptiveRequestLimiter requestLimiter = AdaptiveRequestLimiter.fixed( Integer.MAX_VALUE );
+
+	private boolean streaming = false;
+
+	private Function<String, ValidatorPool> payloadValidators = null;
+
+	private Predicate<String> payloadSelection = null;
+
+	private RunBudget runBudget = null;
+
+	private URLConnectionFactory connectionFactory = URLConnectionFactory.DEFAULT;
+
+	private int connectTimeoutMillis = 0;
+
+	private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+	private final RetryStatistics retryStatistics = new RetryStatistics();
+
+	private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+	private static final SAXParserFactory saxParserFactory = createSaxParserFactory();
 	
 	/**
 	 * New endpoint client.
@@ -98,6 +173,8 @@ public class OAIPMHEndpoint {
 		this.baseUrl = endpointBaseUrl.toExternalForm();
 		this.userAgent = userAgent;
 		this.schema = schema;
+		this.validatingUnmarshallers = UnmarshallerPool.forSchema( schema );
+		this.plainUnmarshallers = UnmarshallerPool.forSchema( null );
 		this.connStreamFactory = connStreamFactory;
 	}
 
@@ -109,6 +186,131 @@ public class OAIPMHEndpoint {
 		return baseUrl;
 	}
 	
+	/**
+	 * Let the lists returned by {@link #callListSets()}, {@link #callListRecords(String, String, ZonedDateTime, ZonedDateTime)} and {@link #callListIdentifiers(String, String, ZonedDateTime, ZonedDateTime)}
+	 * fetch and parse the following chunks in the background while the current one is being consumed.
+	 * @param pages how many chunks to fetch ahead; 0 switches prefetching off
+	 * @param maxBytes the cap on the size of the responses fetched ahead and not consumed yet; the next chunk is always fetched when nothing is waiting
+	 */
+	public void setPrefetch( final int pages, final long maxBytes ) {
+		if ( pages < 0 || maxBytes <= 0L ) {
+			throw new IllegalArgumentException( "Invalid prefetch settings: " + pages + " pages, " + maxBytes + " bytes" );
+		}
+		this.prefetchPages = pages;
+		this.prefetchMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Let the lists returned by {@link #callListRecords(String, String, ZonedDateTime, ZonedDateTime)} and {@link #callListIdentifiers(String, String, ZonedDateTime, ZonedDateTime)}
+	 * parse the responses incrementally, one record or header at a time, instead of unmarshalling each chunk as a whole.
+	 * This keeps the memory use flat however large the chunks are; the whole response is still validated against the schema as it is read.
+	 * As the resumption token only becomes known at the end of a streamed chunk, such lists are not prefetched.
+	 * @param streaming true to stream the record lists
+	 */
+	public void setStreaming( final boolean streaming ) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Validate the payloads of the responses (the elements in <code>metadata</code>, <code>description</code> and <code>setDescription</code>) against a schema of their own,
+	 * in the same pass as the responses are parsed and validated against the schema of the endpoint client.
+	 * The outcome is attached to each payload element, see {@link PayloadValidatingFilter#getOutcome(org.w3c.dom.Element)}.
+	 * @param validatorsByNamespace the validators for the payloads in a namespace, null for a namespace not to validate; null switches the payload validation off
+	 */
+	public void setPayloadValidation( final Function<String, ValidatorPool> validatorsByNamespace ) {
+		this.payloadValidators = validatorsByNamespace;
+	}
+
+	/**
+	 * Validate the payloads of just some of the records in the same pass as the responses are parsed, see {@link #setPayloadValidation(Function)}.
+	 * @param recordSelection which records, by OAI identifier, to validate the payload of; null for all
+	 */
+	public void setPayloadSelection( final Predicate<String> recordSelection ) {
+		this.payloadSelection = recordSelection;
+	}
+
+	/**
+	 * End the lists early when the time of a budget is up: no more chunks are requested or prefetched, and the response being read is closed.
+	 * The lists just end, so whoever goes through them is to ask the budget whether they are complete.
+	 * @param runBudget the budget of the run; null for none
+	 */
+	public void setRunBudget( final RunBudget runBudget ) {
+		this.runBudget = runBudget;
+	}
+
+	private boolean isOverTime() {
+		return runBudget != null && runBudget.isOverTime();
+	}
+
+	/**
+	 * Set the transport to send the requests through.
+	 * @param connectionFactory the way to open the connections; {@link URLConnectionFactory#DEFAULT} is used unless set
+	 */
+	public void setConnectionFactory( final URLConnectionFactory connectionFactory ) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	/**
+	 * Set the timeout for making a connection to the endpoint, for the connections that are made by the transport per request.
+	 * A transport with connections of its own, such as {@link org.eurocris.openaire.cris.validator.http.HttpClientURLConnectionFactory}, is given its timeout when it is made.
+	 * @param connectTimeoutMillis the timeout in milliseconds, as {@link URLConnection#setConnectTimeout(int)}; 0 (the default) for none
+	 */
+	public void setConnectTimeout( final int connectTimeoutMillis ) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	/**
+	 * Set when and how to repeat the requests that failed for a transient reason:
+	 * a response code 503 (or 429) with a <code>Retry-After</code> header, another 5xx response code, or a network error that may go away
+	 * (see {@link RetryPolicy#isTransient(Throwable)}).
+	 * The responses are re-requested with the same parameters, including the resumption token.
+	 * The limit on concurrent requests is not held while waiting.
+	 * Requests streamed with {@link #setStreaming(boolean)} are only repeated as long as no item has been read from the response.
+	 * @param retryPolicy the policy; {@link RetryPolicy#NONE} unless set
+	 */
+	public void setRetryPolicy( final RetryPolicy retryPolicy ) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * The statistics of the retries so far.
+	 * @return the statistics
+	 */
+	public RetryStatistics getRetryStatistics() {
+		return retryStatistics;
+	}
+
+	/**
+	 * Limit the number of requests to this endpoint that are in progress at the same time (which includes parsing the responses).
+	 * This is useful when several lists are harvested concurrently.
+	 * @param maxConcurrentRequests the maximum number of requests in progress; 0 for no limit
+	 */
+	public void setMaxConcurrentRequests( final int maxConcurrentRequests ) {
+		if ( maxConcurrentRequests < 0 ) {
+			throw new IllegalArgumentException( "Invalid number of concurrent requests: " + maxConcurrentRequests );
+		}
+		setRequestLimiter( AdaptiveRequestLimiter.fixed( ( maxConcurrentRequests > 0 ) ? maxConcurrentRequests : Integer.MAX_VALUE ) );
+	}
+
+	/**
+	 * Limit the requests to this endpoint with a limiter that adapts the number of requests in progress and the request rate to how the server copes.
+	 * The limiter can be shared by the endpoints on the same host.
+	 * Each request is reported to it as succeeded once the response headers arrive with code 200,
+	 * or as failed on a transient failure (see {@link #setRetryPolicy(RetryPolicy)}).
+	 * @param requestLimiter the limiter
+	 */
+	public void setRequestLimiter( final AdaptiveRequestLimiter requestLimiter ) {
+		this.requestLimiter = requestLimiter;
+	}
+
+	/**
+	 * The limiter of the requests to this endpoint; its getters give the current limits.
+	 * @return the limiter
+	 */
+	public AdaptiveRequestLimiter getRequestLimiter() {
+		return requestLimiter;
+	}
+
 	/**
 	 * Get the repository identifier (after {@link #callIdentify()} had been called).
 	 * @return the repository identifier if one was found in the response to the first Identify request
@@ -129,12 +331,26 @@ public class OAIPMHEndpoint {
 	 * @throws JAXBException on XML processing error
 	 */
 	public IdentifyType callIdentify() throws IOException, SAXException, JAXBException {
-		final IdentifyType identifyResponse = makeConnection( true, "Identify" ).getIdentify();
+		final OAIPMHtype response = makeConnection( true, "Identify" );
+		final IdentifyType identifyResponse = response.getIdentify();
 		supportedCompressions = Optional.of( identifyResponse.getCompression() );
 		repositoryIdentifier = extractRepoIdentifier( identifyResponse );
+		if ( identifyResponse.getGranularity() != null ) {
+			granularity = identifyResponse.getGranularity();
+		}
+		identifyResponseDate = Optional.ofNullable( response.getResponseDate() ).map( ( date ) -> date.toGregorianCalendar().toZonedDateTime() );
+		earliestDatestamp = Optional.ofNullable( parseDatestamp( identifyResponse.getEarliestDatestamp() ) );
 		return identifyResponse;
 	}
 
+	/**
+	 * Get the time of the data provider when it answered the last Identify request: the right <code>from</code> for the next incremental harvest.
+	 * @return the <code>responseDate</code> of the last Identify response; empty before {@link #callIdentify()} had been called
+	 */
+	public Optional<ZonedDateTime> getIdentifyResponseDate() {
+		return identifyResponseDate;
+	}
+
 	/**
 	 * Sends the ListMetadataFormats request and returns the result.
 	 * @return the result of the ListMetadataFormats call
@@ -153,7 +369,7 @@ public class OAIPMHEndpoint {
 	 *         get further elements; iterable just once
 	 */
 	public Iterable<SetType> callListSets() {
-		return new ResumptionTokenIterable<SetType, ListSetsType>( true, "ListSets", new String[0], OAIPMHtype::getListSets, ListSetsType::getSet, ListSetsType::getResumptionToken );
+		return new ResumptionTokenIterable<SetType, ListSetsType>( true, "ListSets", new String[0], parsed( OAIPMHtype::getListSets ), ListSetsType::getSet, ListSetsType::getResumptionToken );
 	}
 
 	/**
@@ -167,8 +383,55 @@ public class OAIPMHEndpoint {
 	 *         get further elements; iterable just once
 	 */
 	public Iterable<RecordType> callListRecords( final String metadataFormatPrefix, final String setSpec, final ZonedDateTime from, final ZonedDateTime until ) {
+		return callListRecords( metadataFormatPrefix, setSpec, from, until, null, null, null );
+	}
+
+	/**
+	 * Sends the ListRecords request, or continues an interrupted one, and returns the result.
+	 * When the data provider no longer accepts the given resumption token (badResumptionToken), the list is requested again, starting from the given <code>restartFrom</code> instead of <code>from</code>.
+	 * @param metadataFormatPrefix only fetch records in this metadata format (mandatory)
+	 * @param setSpec only fetch records from this set (optional)
+	 * @param from only fetch records at least this young (optional)
+	 * @param until only fetch records older than this (optional)
+	 * @param resumptionToken the resumption token to continue the list with; null to start at the beginning
+	 * @param restartFrom the lower bound for requesting the list again when the resumption token has expired; null to use <code>from</code>
+	 * @param chunkListener called after all the records of a chunk have been iterated, with the resumption token for the rest of the list (null at the end); may be null
+	 * @return a virtual collection that will use OAI-PMH resumption tokens to
+	 *         get further elements; iterable just once
+	 */
+	public Iterable<RecordType> callListRecords( final String metadataFormatPrefix, final String setSpec, final ZonedDateTime from, final ZonedDateTime until, final String resumptionToken, final ZonedDateTime restartFrom, final Consumer<String> chunkListener ) {
 		final String[] params = collectHarvestingParameters( metadataFormatPrefix, setSpec, from, until );
-		return new ResumptionTokenIterable<RecordType, ListRecordsType>( false, "ListRecords", params, OAIPMHtype::getListRecords, ListRecordsType::getRecord, ListRecordsType::getResumptionToken );
+		final String[] restartParams = collectHarvestingParameters( metadataFormatPrefix, setSpec, ( restartFrom != null ) ? restartFrom : from, until );
+		if ( streaming ) {
+			return new ResumptionTokenIterable<RecordType, StreamedList<RecordType>>( false, "ListRecords", params, streamed( "record", RecordType.class ), ( list ) -> list, StreamedList::getResumptionToken )
+					.resume( resumptionToken, restartParams, chunkListener );
+		}
+		return new ResumptionTokenIterable<RecordType, ListRecordsType>( false, "ListRecords", params, parsed( OAIPMHtype::getListRecords ), ListRecordsType::getRecord, ListRecordsType::getResumptionToken )
+				.resume( resumptionToken, restartParams, chunkListener );
+	}
+
+	/**
+	 * Sends ListRecords requests for several datestamp windows at the same time, and returns the records of all of them in the order they come.
+	 * The time from <code>from</code> (or the earliest datestamp of the repository) to the time of the Identify response is split into windows of the same length, with the last one open-ended.
+	 * A window whose first chunk reveals it has more than <code>maxWindowSize</code> records (in the <code>completeListSize</code>) is split in two.
+	 * The windows do not overlap in datestamps, but they are listed at different times: a record changed while the windows are harvested
+	 * can be listed in its old window and again, with a datestamp not before the time of the Identify response, in the open-ended last window.
+	 * Such a record is returned just once, as listed first. A record that the data provider lists twice with the same datestamp is returned twice, for the checks to report it.
+	 * Needs {@link #callIdentify()} to have been called; without the earliest datestamp known, this falls back to a single list.
+	 * @param metadataFormatPrefix only fetch records in this metadata format (mandatory)
+	 * @param setSpec only fetch records from this set (optional)
+	 * @param from only fetch records at least this young (optional)
+	 * @param partitions the number of windows to harvest at the same time
+	 * @param maxWindowSize the number of records over which a window gets split
+	 * @return a virtual collection that will harvest the windows when iterated; iterable just once
+	 */
+	public Iterable<RecordType> callListRecordsPartitioned( final String metadataFormatPrefix, final String setSpec, final ZonedDateTime from, final int partitions, final long maxWindowSize ) {
+		final ZonedDateTime start = ( from != null ) ? from : earliestDatestamp.orElse( null );
+		if ( start == null || partitions < 2 ) {
+			return callListRecords( metadataFormatPrefix, setSpec, from, null );
+		}
+		final ZonedDateTime horizon = identifyResponseDate.orElseGet( () -> ZonedDateTime.now( ZoneOffset.UTC ) );
+		return new PartitionedListRecords( metadataFormatPrefix, setSpec, start, horizon, partitions, maxWindowSize );
 	}
 
 	/**
@@ -183,7 +446,10 @@ public class OAIPMHEndpoint {
 	 */
 	public Iterable<HeaderType> callListIdentifiers( final String metadataFormatPrefix, final String setSpec, final ZonedDateTime from, final ZonedDateTime until ) {
 		final String[] params = collectHarvestingParameters( metadataFormatPrefix, setSpec, from, until );
-		return new ResumptionTokenIterable<HeaderType, ListIdentifiersType>( false, "ListIdentifiers", params, OAIPMHtype::getListIdentifiers, ListIdentifiersType::getHeader, ListIdentifiersType::getResumptionToken );
+		if ( streaming ) {
+			return new ResumptionTokenIterable<HeaderType, StreamedList<HeaderType>>( false, "ListIdentifiers", params, streamed( "header", HeaderType.class ), ( list ) -> list, StreamedList::getResumptionToken );
+		}
+		return new ResumptionTokenIterable<HeaderType, ListIdentifiersType>( false, "ListIdentifiers", params, parsed( OAIPMHtype::getListIdentifiers ), ListIdentifiersType::getHeader, ListIdentifiersType::getResumptionToken );
 	}
 
 	/**
@@ -197,36 +463,371 @@ public class OAIPMHEndpoint {
 	 * @throws SAXException on XML parsing error
 	 * @throws JAXBException on XML processing error
 	 */
-	@SuppressWarnings( "unchecked")
 	private OAIPMHtype makeConnection( final boolean repoWideRequest, final String verb, final String... params ) throws IOException, SAXException, JAXBException {
+		return makeConnection( null, repoWideRequest, verb, params );
+	}
+
+	/**
+	 * Contact the data provider with a request and return the parsed response.
+	 * The response must be schema-valid.
+	 * @param sizeConsumer where to report the number of (uncompressed) bytes of the response; may be null
+	 * @param repoWideRequest true for Identify, ListMetadataFormats and ListSets
+	 * @param verb the verb of the request
+	 * @param params parameters of the request: pairs of ( name, value )
+	 * @return the unmarshalled response
+	 * @throws IOException on network error
+	 * @throws SAXException on XML parsing error
+	 * @throws JAXBException on XML processing error
+	 */
+	private OAIPMHtype makeConnection( final LongConsumer sizeConsumer, final boolean repoWideRequest, final String verb, final String... params ) throws IOException, SAXException, JAXBException {
+		return this.<OAIPMHtype, SAXException, JAXBException>withRetries( verb, () -> makeConnectionOnce( sizeConsumer, verb, params ) );
+	}
+
+	/**
+	 * Make a single attempt at a request.
+	 */
+	@SuppressWarnings( "unchecked")
+	private OAIPMHtype makeConnectionOnce( final LongConsumer sizeConsumer, final String verb, final String... params ) throws IOException, JAXBException {
+		final AdaptiveRequestLimiter.Permit permit = acquireRequestPermit();
+		try ( final CountingInputStream inputStream = new CountingInputStream( openResponse( permit, verb, params ) ); final UnmarshallerPool.Lease lease = borrowUnmarshaller( validatingUnmarshallers ) ) {
+			final JAXBElement<OAIPMHtype> x = (JAXBElement<OAIPMHtype>) unmarshal( lease.get(), inputStream );
+			final OAIPMHtype response = x.getValue();
+			checkForErrors( response.getError() );
+			if ( sizeConsumer != null ) {
+				sizeConsumer.accept( inputStream.getCount() );
+			}
+			return response;
+		} finally {
+			permit.release();
+		}
+	}
+
+	/**
+	 * Unmarshal a whole response, validating the payloads on the way if so set.
+	 */
+	private Object unmarshal( final Unmarshaller u, final InputStream inputStream ) throws IOException, JAXBException {
+		if ( payloadValidators == null ) {
+			return u.unmarshal( inputStream );
+		}
+		final PayloadValidatingFilter filter = new PayloadValidatingFilter( newXMLReader(), payloadValidators, payloadSelection );
+		u.setListener( filter.getListener() );
+		final UnmarshallerHandler handler = u.getUnmarshallerHandler();
+		filter.setContentHandler( handler );
+		try {
+			filter.parse( new InputSource( inputStream ) );
+		} catch ( final SAXException e ) {
+			// as the unmarshaller does when it parses on its own
+			if ( e.getException() instanceof JAXBException ) {
+				throw (JAXBException) e.getException();
+			}
+			throw new UnmarshalException( e );
+		}
+		return handler.getResult();
+	}
+
+	/**
+	 * An attempt at a request.
+	 * @param <T> the type of the result
+	 * @param <E1> a type of exceptions thrown
+	 * @param <E2> another type of exceptions thrown
+	 */
+	@FunctionalInterface
+	private static interface Attempt<T, E1 extends Exception, E2 extends Exception> {
+		T run() throws IOException, E1, E2;
+	}
+
+	/**
+	 * Run the attempts at a request until one succeeds, or until the failure is not a transient one, or until the retry policy gives up.
+	 * A transient failure is a response code of 429 or 5xx other than 501 and 505, or a network error.
+	 * @param verb the verb of the request
+	 * @param attempt the attempt to make
+	 * @return the result of the first successful attempt
+	 * @throws IOException on a network error that was not retried
+	 * @throws E1 on a failure that was not retried
+	 * @throws E2 on a failure that was not retried
+	 * @throws IllegalStateException on an unexpected response code
+	 */
+	private <T, E1 extends Exception, E2 extends Exception> T withRetries( final String verb, final Attempt<T, E1, E2> attempt ) throws IOException, E1, E2 {
+		final RetryPolicy policy = retryPolicy;
+		retryStatistics.countRequest();
+		int failedAttempts = 0;
+		while ( true ) {
+			try {
+				return attempt.run();
+			} catch ( final Exception e ) {
+				final int responseCode;
+				final String retryAfter;
+				if ( e instanceof UnexpectedResponseCodeException ) {
+					final UnexpectedResponseCodeException e1 = (UnexpectedResponseCodeException) e;
+					if ( ! e1.isTransient() ) {
+						throw new IllegalStateException( e1.getMessage() );
+					}
+					responseCode = e1.getResponseCode();
+					retryAfter = e1.getRetryAfter();
+				} else if ( RetryPolicy.isTransient( e ) ) {
+					responseCode = -1;
+					retryAfter = null;
+				} else {
+					throw e;
+				}
+				if ( ++failedAttempts >= policy.getMaxAttempts() ) {
+					if ( failedAttempts > 1 ) {
+						retryStatistics.countGiveUp();
+					}
+					if ( e instanceof UnexpectedResponseCodeException ) {
+						throw new IllegalStateException( e.getMessage() );
+					}
+					throw e;
+				}
+				final long delay = policy.getDelayMillis( failedAttempts, retryAfter );
+				retryStatistics.countRetry( responseCode, retryAfter != null, delay );
+				System.err.println( "Retrying " + verb + " in " + delay + " ms (attempt " + ( failedAttempts + 1 ) + " of " + policy.getMaxAttempts() + ") after: " + e.getMessage() );
+				try {
+					Thread.sleep( delay );
+				} catch ( final InterruptedException e1 ) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException( "Interrupted while waiting to retry a request" );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait until the request limiter allows another request.
+	 * @return the permit
+	 * @throws InterruptedIOException when interrupted while waiting
+	 */
+	private AdaptiveRequestLimiter.Permit acquireRequestPermit() throws InterruptedIOException {
+		try {
+			return requestLimiter.acquire();
+		} catch ( final InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting to send a request" );
+		}
+	}
+
+	/**
+	 * Send a request and check the response headers.
+	 * @param permit the permit for the request, to report the outcome to
+	 * @param verb the verb of the request
+	 * @param params parameters of the request: pairs of ( name, value )
+	 * @return the body of the response
+	 * @throws IOException on network error
+	 */
+	private InputStream openResponse( final AdaptiveRequestLimiter.Permit permit, final String verb, final String... params ) throws IOException {
 		final URL url = makeUrl( verb, params );
 		System.out.println( "Fetching and validating " + url.toExternalForm() );
-		final URLConnection conn = handleCompression( url.openConnection() );
+		final URLConnection conn = handleCompression( connectionFactory.openConnection( url ) );
 		conn.setRequestProperty( "User-Agent", userAgent );
 		conn.setRequestProperty( "Accept", "text/xml, application/xml" );
-		conn.connect();
-		checkResponseCode( conn );
+		if ( connectTimeoutMillis > 0 ) {
+			conn.setConnectTimeout( connectTimeoutMillis );
+		}
+		try {
+			conn.connect();
+			checkResponseCode( conn );
+		} catch ( final UnexpectedResponseCodeException e ) {
+			disconnect( conn );
+			if ( e.isTransient() ) {
+				permit.failed( e.isThrottling() );
+			}
+			throw e;
+		} catch ( final IOException e ) {
+			if ( RetryPolicy.isTransient( e ) ) {
+				permit.failed( false );
+			}
+			throw e;
+		}
+		permit.succeeded();
 		checkContentTypeHeader( conn );
 		checkContentEncodingHeader( conn );
-		try ( final InputStream inputStream = connStreamFactory.makeInputStream( conn ) ) {
-			final Unmarshaller u = createUnmarshaller();
-			final JAXBElement<OAIPMHtype> x = (JAXBElement<OAIPMHtype>) u.unmarshal( inputStream );
-			final OAIPMHtype response = x.getValue();
-			checkForErrors( response );
-			return response;
+		return connStreamFactory.makeInputStream( conn );
+	}
+
+	/**
+	 * Contact the data provider with a list request and start reading the list from the response incrementally.
+	 * The response must be schema-valid; it is validated as it is read.
+	 * @param verb the verb of the request
+	 * @param itemElementName the local name of the elements that make the list
+	 * @param itemClass the type to unmarshal the list items to
+	 * @param params parameters of the request: pairs of ( name, value )
+	 * @return the list, or null if the response contains no list (e.g., on noRecordsMatch)
+	 * @throws IOException on network error
+	 * @throws XMLStreamException on XML parsing error, including validation errors
+	 * @throws JAXBException on XML processing error
+	 */
+	private <ItemType> StreamedList<ItemType> openStreamedList( final String verb, final String itemElementName, final Class<ItemType> itemClass, final String... params ) throws IOException, XMLStreamException, JAXBException {
+		return this.<StreamedList<ItemType>, XMLStreamException, JAXBException>withRetries( verb, () -> openStreamedListOnce( verb, itemElementName, itemClass, params ) );
+	}
+
+	/**
+	 * Make a single attempt at a streamed list request.
+	 * The permit and the response are handed over to the list; if there is no list, or the attempt fails at any point, they are released here.
+	 * The unmarshaller is only borrowed to read up to the list, the list borrows one for each item it reads.
+	 */
+	private <ItemType> StreamedList<ItemType> openStreamedListOnce( final String verb, final String itemElementName, final Class<ItemType> itemClass, final String... params ) throws IOException, XMLStreamException, JAXBException {
+		AdaptiveRequestLimiter.Permit permit = acquireRequestPermit();
+		InputStream inputStream = null;
+		XMLStreamReader reader = null;
+		UnmarshallerPool.Lease lease = null;
+		try {
+			inputStream = openResponse( permit, verb, params );
+			reader = xmlInputFactory.createXMLStreamReader( inputStream );
+			ContentHandler handler = ( schema != null ) ? schema.newValidatorHandler() : null;
+			PayloadValidatingFilter filter = null;
+			if ( payloadValidators != null ) {
+				filter = new PayloadValidatingFilter( null, payloadValidators, payloadSelection );
+				filter.setContentHandler( handler );
+				handler = filter;
+			}
+			if ( handler != null ) {
+				reader = new SaxEmittingStreamReader( reader, handler );
+			}
+			lease = borrowUnmarshaller( plainUnmarshallers );
+			final Unmarshaller u = lease.get();
+			final Unmarshaller.Listener listener = ( filter != null ) ? filter.getListener() : null;
+			u.setListener( listener );
+			final List<OAIPMHerrorType> errors = new ArrayList<>();
+			int event = reader.getEventType();
+			while ( event != XMLStreamConstants.END_DOCUMENT ) {
+				if ( event == XMLStreamConstants.START_ELEMENT ) {
+					final String localName = reader.getLocalName();
+					if ( "error".equals( localName ) ) {
+						errors.add( u.unmarshal( reader, OAIPMHerrorType.class ).getValue() );
+						event = reader.getEventType();
+						continue;
+					}
+					if ( verb.equals( localName ) ) {
+						reader.next();
+						final StreamedList<ItemType> list = new StreamedList<>( verb, itemElementName, itemClass, listener, reader, inputStream, permit );
+						reader = null;
+						inputStream = null;
+						permit = null;
+						return list;
+					}
+				}
+				event = reader.next();
+			}
+			checkForErrors( errors );
+			return null;
+		} finally {
+			if ( lease != null ) {
+				lease.close();
+			}
+			if ( reader != null ) {
+				reader.close();
+			}
+			if ( inputStream != null ) {
+				inputStream.close();
+			}
+			if ( permit != null ) {
+				permit.release();
+			}
+		}
+	}
+
+	/**
+	 * Borrow an unmarshaller from a pool.
+	 * @param pool the pool to borrow from
+	 * @return the lease of the unmarshaller
+	 * @throws JAXBException on problems initializing a new unmarshaller
+	 * @throws InterruptedIOException when interrupted while waiting for an unmarshaller
+	 */
+	private static UnmarshallerPool.Lease borrowUnmarshaller( final UnmarshallerPool pool ) throws JAXBException, InterruptedIOException {
+		try {
+			return pool.borrow();
+		} catch ( final InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for an unmarshaller" );
+		}
+	}
+
+	private static synchronized XMLReader newXMLReader() throws IOException {
+		try {
+			return saxParserFactory.newSAXParser().getXMLReader();
+		} catch ( final ParserConfigurationException | SAXException e ) {
+			throw new IOException( "Cannot create an XML parser", e );
 		}
 	}
 
+	private static SAXParserFactory createSaxParserFactory() {
+		final SAXParserFactory spf = SAXParserFactory.newInstance();
+		spf.setNamespaceAware( true );
+		try {
+			spf.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
+		} catch ( final ParserConfigurationException | SAXException e ) {
+			// the defaults then
+		}
+		return spf;
+	}
+
+	private static XMLInputFactory createXmlInputFactory() {
+		final XMLInputFactory xif = XMLInputFactory.newInstance();
+		xif.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, true );
+		xif.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+		xif.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+		return xif;
+	}
+
 	private void checkResponseCode( final URLConnection conn ) throws IOException {
-		if ( conn instanceof HttpURLConnection ) {
-			final HttpURLConnection conn1 = (HttpURLConnection) conn;
+		final URLConnection conn0 = DelegatingURLConnection.unwrap( conn );
+		if ( conn0 instanceof HttpURLConnection ) {
+			final HttpURLConnection conn1 = (HttpURLConnection) conn0;
 			final int responseCode = conn1.getResponseCode();
 			if ( responseCode != HttpURLConnection.HTTP_OK ) {
-				throw new IllegalStateException( "Invalid response code " + responseCode + " " + conn1.getResponseMessage() );
+				throw new UnexpectedResponseCodeException( responseCode, conn1.getResponseMessage(), conn1.getHeaderField( "Retry-After" ) );
 			}
 		}
 	}
 
+	private static void disconnect( final URLConnection conn ) {
+		final URLConnection conn0 = DelegatingURLConnection.unwrap( conn );
+		if ( conn0 instanceof HttpURLConnection ) {
+			( (HttpURLConnection) conn0 ).disconnect();
+		}
+	}
+
+	/**
+	 * A response code other than 200.
+	 */
+	private static class UnexpectedResponseCodeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int responseCode;
+
+		private final String retryAfter;
+
+		UnexpectedResponseCodeException( final int responseCode, final String responseMessage, final String retryAfter ) {
+			super( "Invalid response code " + responseCode + ( ( responseMessage != null && ! responseMessage.isEmpty() ) ? " " + responseMessage : "" ) );
+			this.responseCode = responseCode;
+			this.retryAfter = retryAfter;
+		}
+
+		int getResponseCode() {
+			return responseCode;
+		}
+
+		String getRetryAfter() {
+			return retryAfter;
+		}
+
+		/**
+		 * @return true for 429 Too Many Requests, and for 503 Service Unavailable with Retry-After
+		 */
+		boolean isThrottling() {
+			return responseCode == 429 || ( responseCode == HttpURLConnection.HTTP_UNAVAILABLE && retryAfter != null );
+		}
+
+		/**
+		 * @return true for 429 Too Many Requests and the 5xx codes that may go away (all but 501 Not Implemented and 505 HTTP Version Not Supported)
+		 */
+		boolean isTransient() {
+			return responseCode == 429 || ( responseCode >= 500 && responseCode < 600 && responseCode != HttpURLConnection.HTTP_NOT_IMPLEMENTED && responseCode != HttpURLConnection.HTTP_VERSION );
+		}
+
+	}
+
 	private void checkContentEncodingHeader( final URLConnection conn ) {
 		final String contentEncoding = conn.getContentEncoding();
 		if ( ( contentEncoding != null ) && ! CompressionHandlingHttpURLConnectionAdapter.isIdentity( contentEncoding ) ) {
@@ -243,9 +844,9 @@ public class OAIPMHEndpoint {
 		}
 	}
 
-	private void checkForErrors( final OAIPMHtype response ) {
+	private void checkForErrors( final List<OAIPMHerrorType> errors ) {
 		final StringBuilder sb = new StringBuilder();
-		for ( final OAIPMHerrorType error : response.getError() ) {
+		for ( final OAIPMHerrorType error : errors ) {
 			if (! OAIPMHerrorcodeType.NO_RECORDS_MATCH.equals( error.getCode() ) ) {
 				sb.append( error.getCode().name() );
 				sb.append( ": " );
@@ -254,9 +855,31 @@ public class OAIPMHEndpoint {
 			}
 		}
 		if ( sb.length() > 0 ) {
-			final String errors = sb.substring( 0, sb.length() - 2 );
-			throw new IllegalStateException( errors );
+			final String messages = sb.substring( 0, sb.length() - 2 );
+			throw new ErrorResponseException( messages, errors );
+		}
+	}
+
+	/**
+	 * The data provider responded with an OAI-PMH error.
+	 */
+	private static class ErrorResponseException extends IllegalStateException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<OAIPMHerrorcodeType> codes = new ArrayList<>();
+
+		ErrorResponseException( final String message, final List<OAIPMHerrorType> errors ) {
+			super( message );
+			for ( final OAIPMHerrorType error : errors ) {
+				codes.add( error.getCode() );
+			}
+		}
+
+		boolean hasCode( final OAIPMHerrorcodeType code ) {
+			return codes.contains( code );
 		}
+
 	}
 
 	/**
@@ -280,12 +903,15 @@ public class OAIPMHEndpoint {
 	 * @throws JAXBException on problems initializing the unmarshaller
 	 */
 	protected Unmarshaller createUnmarshaller() throws JAXBException {
-		final JAXBContext jc = JAXBContext.newInstance( OAIPMHtype.class, org.openarchives.oai._2_0.oai_identifier.ObjectFactory.class );
-		final Unmarshaller u = jc.createUnmarshaller();
-		if ( schema != null ) {
-			u.setSchema( schema );
-		}
-		return u;
+		return UnmarshallerPool.createUnmarshaller( schema );
+	}
+
+	/**
+	 * The pool of unmarshallers that validate the whole responses; its counters tell how well it serves the harvests.
+	 * @return the pool
+	 */
+	public UnmarshallerPool getUnmarshallerPool() {
+		return validatingUnmarshallers;
 	}
 
 	/**
@@ -310,6 +936,7 @@ public class OAIPMHEndpoint {
 	
 	/**
 	 * Constructs the parameters array to express the query.
+	 * The <code>from</code> and <code>until</code> are expressed in the granularity the data provider said it supports (in its response to the Identify request).
 	 * 
 	 * @param metadataFormatPrefix only fetch records in this metadata format (mandatory)
 	 * @param setSpec only fetch records from this set (optional)
@@ -329,18 +956,43 @@ public class OAIPMHEndpoint {
 			params.add( "set" );
 			params.add( setSpec );
 		}
-		final DateTimeFormatter formatter = DateTimeFormatter.ISO_INSTANT;
 		if ( from != null ) {
 			params.add( "from" );
-			params.add( from.format( formatter ) );
+			params.add( formatDatestamp( from ) );
 		}
 		if ( until != null ) {
 			params.add( "until" );
-			params.add( until.format( formatter ) );
+			params.add( formatDatestamp( until ) );
 		}
 		return params.toArray( new String[params.size()] );
 	}
 
+	/**
+	 * Express a time in the granularity the data provider said it supports (in its response to the Identify request).
+	 * @param time the time
+	 * @return the datestamp
+	 */
+	protected String formatDatestamp( final ZonedDateTime time ) {
+		final DateTimeFormatter formatter = ( GranularityType.YYYY_MM_DD.equals( granularity ) ) ? DateTimeFormatter.ISO_LOCAL_DATE : DateTimeFormatter.ISO_INSTANT;
+		return time.withZoneSameInstant( ZoneOffset.UTC ).truncatedTo( ChronoUnit.SECONDS ).format( formatter );
+	}
+
+	/**
+	 * Parse an OAI-PMH datestamp, either a day or a UTC time.
+	 * @param datestamp the datestamp; may be null
+	 * @return the time, or null if none or not parseable
+	 */
+	public static ZonedDateTime parseDatestamp( final String datestamp ) {
+		if ( datestamp != null ) {
+			try {
+				return ( datestamp.length() == 10 ) ? LocalDate.parse( datestamp ).atStartOfDay( ZoneOffset.UTC ) : ZonedDateTime.parse( datestamp );
+			} catch ( final DateTimeParseException e ) {
+				System.err.println( "Cannot parse the datestamp " + datestamp + ": " + e.getMessage() );
+			}
+		}
+		return null;
+	}
+
 	private URL makeUrl( final String verb, final String... params ) throws UnsupportedEncodingException, MalformedURLException {
 		final StringBuilder b = new StringBuilder( baseUrl );
 		final boolean local = baseUrl.startsWith( "file:" );
@@ -360,12 +1012,475 @@ public class OAIPMHEndpoint {
 	}
 
 	/**
-	 * The polymorphic Iterable over a cursor using a OAI-PMH resumption token.
-	 * Iterable just once.
-	 * 
-	 * @author jdvorak
-	 *
-	 * @param <ItemType>
+	 * The way to get a chunk of a list.
+	 * @param <ListType> the type that contains the chunk
+	 */
+	@FunctionalInterface
+	private static interface ChunkFetcher<ListType> {
+		/**
+		 * Fetch a chunk.
+		 * @param sizeConsumer where to report the size of the response; may be null
+		 * @param repoWideRequest true for Identify, ListMetadataFormats and ListSets
+		 * @param verb the verb of the request
+		 * @param params parameters of the request: pairs of ( name, value )
+		 * @return the chunk, may be null
+		 * @throws Exception on any problem getting the chunk
+		 */
+		ListType fetch( final LongConsumer sizeConsumer, final boolean repoWideRequest, final String verb, final String... params ) throws Exception;
+		/**
+		 * @return true if the chunks can be fetched ahead
+		 */
+		default boolean isPrefetchable() {
+			return true;
+		}
+	}
+
+	/**
+	 * Fetch the chunks by unmarshalling the whole responses.
+	 * @param funcGetList the function to get the type that contains the chunk from the response
+	 * @return the fetcher
+	 */
+	private <ListType> ChunkFetcher<ListType> parsed( final Function<OAIPMHtype, ListType> funcGetList ) {
+		return ( sizeConsumer, repoWideRequest, verb, params ) -> funcGetList.apply( makeConnection( sizeConsumer, repoWideRequest, verb, params ) );
+	}
+
+	/**
+	 * Fetch the chunks as streamed lists.
+	 * @param itemElementName the local name of the elements that make the list
+	 * @param itemClass the type to unmarshal the list items to
+	 * @return the fetcher
+	 */
+	private <ItemType> ChunkFetcher<StreamedList<ItemType>> streamed( final String itemElementName, final Class<ItemType> itemClass ) {
+		return new ChunkFetcher<StreamedList<ItemType>>() {
+
+			@Override
+			public StreamedList<ItemType> fetch( final LongConsumer sizeConsumer, final boolean repoWideRequest, final String verb, final String... params ) throws Exception {
+				return openStreamedList( verb, itemElementName, itemClass, params );
+			}
+
+			@Override
+			public boolean isPrefetchable() {
+				return false;
+			}
+
+		};
+	}
+
+	/**
+	 * A chunk of a list that is read from the response as it is iterated over.
+	 * The response is closed when the end of the chunk is reached, or on {@link #close()}.
+	 * An unmarshaller is borrowed from the pool just for reading each item, so the size of the pool does not limit how many chunks can be read at the same time.
+	 * Iterable just once.
+	 * @param <ItemType> the type of the items
+	 */
+	private class StreamedList<ItemType> implements Iterable<ItemType>, AutoCloseable {
+
+		private final String listElementName;
+		private final String itemElementName;
+		private final Class<ItemType> itemClass;
+		private final Unmarshaller.Listener listener;
+		private final XMLStreamReader reader;
+		private final InputStream inputStream;
+		private final AdaptiveRequestLimiter.Permit permit;
+
+		private ResumptionTokenType resumptionToken;
+		private boolean closed = false;
+		private final AtomicBoolean iterated = new AtomicBoolean();
+
+		StreamedList( final String listElementName, final String itemElementName, final Class<ItemType> itemClass, final Unmarshaller.Listener listener, final XMLStreamReader reader, final InputStream inputStream, final AdaptiveRequestLimiter.Permit permit ) {
+			this.listElementName = listElementName;
+			this.itemElementName = itemElementName;
+			this.itemClass = itemClass;
+			this.listener = listener;
+			this.reader = reader;
+			this.inputStream = inputStream;
+			this.permit = permit;
+		}
+
+		/**
+		 * The resumption token of the chunk.
+		 * @return the resumption token; only known once all items have been read
+		 */
+		public ResumptionTokenType getResumptionToken() {
+			return resumptionToken;
+		}
+
+		@Override
+		public Iterator<ItemType> iterator() {
+			if ( ! iterated.compareAndSet( false, true ) ) {
+				throw new IllegalStateException( "Iterable just once" );
+			}
+			return new Iterator<ItemType>() {
+
+				private ItemType nextItem;
+
+				@Override
+				public boolean hasNext() {
+					if ( nextItem == null && ! closed ) {
+						try {
+							nextItem = readItem();
+						} catch ( final RuntimeException e ) {
+							close();
+							throw e;
+						} catch ( final Exception e ) {
+							close();
+							throw new IllegalStateException( e );
+						}
+					}
+					return ( nextItem != null );
+				}
+
+				@Override
+				public ItemType next() {
+					if ( hasNext() ) {
+						final ItemType item = nextItem;
+						nextItem = null;
+						return item;
+					}
+					throw new NoSuchElementException();
+				}
+
+			};
+		}
+
+		/**
+		 * Read the next item, the resumption token on the way.
+		 * At the end of the list read the rest of the response (so that it is completely validated) and close it.
+		 * @return the next item; null at the end of the list
+		 */
+		private ItemType readItem() throws XMLStreamException, JAXBException, IOException {
+			int event = reader.getEventType();
+			while ( true ) {
+				if ( event == XMLStreamConstants.START_ELEMENT ) {
+					final String localName = reader.getLocalName();
+					if ( itemElementName.equals( localName ) ) {
+						return unmarshal( itemClass );
+					}
+					if ( "resumptionToken".equals( localName ) ) {
+						resumptionToken = unmarshal( ResumptionTokenType.class );
+						event = reader.getEventType();
+						continue;
+					}
+					throw new XMLStreamException( "Unexpected element " + localName + " in " + listElementName, reader.getLocation() );
+				}
+				if ( event == XMLStreamConstants.END_DOCUMENT || ( event == XMLStreamConstants.END_ELEMENT && listElementName.equals( reader.getLocalName() ) ) ) {
+					while ( reader.hasNext() ) {
+						reader.next();
+					}
+					close();
+					return null;
+				}
+				event = reader.next();
+			}
+		}
+
+		/**
+		 * Read the element at the reader with an unmarshaller borrowed for it.
+		 */
+		private <T> T unmarshal( final Class<T> type ) throws JAXBException, InterruptedIOException {
+			try ( final UnmarshallerPool.Lease lease = borrowUnmarshaller( plainUnmarshallers ) ) {
+				final Unmarshaller u = lease.get();
+				u.setListener( listener );
+				return u.unmarshal( reader, type ).getValue();
+			}
+		}
+
+		@Override
+		public void close() {
+			if ( ! closed ) {
+				closed = true;
+				try ( final InputStream in = inputStream ) {
+					reader.close();
+				} catch ( final XMLStreamException | IOException e ) {
+					// nothing more to read anyway; the response is closed whatever the reader does
+				} finally {
+					permit.release();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The records of a number of ListRecords lists over datestamp windows, harvested at the same time.
+	 * Each window is harvested by one task; a task puts the records in a bounded queue, from which the iterator takes them.
+	 * When a task fails, the others stop after the current chunk, and the failure is thrown at the end of the records already queued.
+	 * When the time of the run budget is up, no further window is taken and no further chunk requested, as with the other lists.
+	 */
+	private class PartitionedListRecords implements Iterable<RecordType> {
+
+		private static final int QUEUE_CAPACITY = 1000;
+
+		private final String metadataFormatPrefix;
+		private final String setSpec;
+		private final ZonedDateTime horizon;
+		private final int partitions;
+		private final long maxWindowSize;
+		private final Duration granule = ( GranularityType.YYYY_MM_DD.equals( granularity ) ) ? Duration.ofDays( 1L ) : Duration.ofSeconds( 1L );
+		private final ChronoUnit granuleUnit = ( GranularityType.YYYY_MM_DD.equals( granularity ) ) ? ChronoUnit.DAYS : ChronoUnit.SECONDS;
+
+		private final Deque<Window> windows = new ArrayDeque<>();
+		private int pendingWindows = 0;
+		private boolean stopped = false;
+
+		private final ZonedDateTime changedSince;
+		private final Map<String, String> listedDatestamps = new ConcurrentHashMap<>();
+		private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>( QUEUE_CAPACITY );
+		private final AtomicInteger runningWorkers = new AtomicInteger();
+		private final AtomicReference<Throwable> failure = new AtomicReference<>();
+		private final AtomicBoolean iterated = new AtomicBoolean();
+		private final Object endOfList = new Object();
+		private ExecutorService executor;
+
+		PartitionedListRecords( final String metadataFormatPrefix, final String setSpec, final ZonedDateTime start, final ZonedDateTime horizon, final int partitions, final long maxWindowSize ) {
+			this.metadataFormatPrefix = metadataFormatPrefix;
+			this.setSpec = setSpec;
+			this.horizon = horizon;
+			this.partitions = partitions;
+			this.maxWindowSize = maxWindowSize;
+			this.changedSince = horizon.withZoneSameInstant( ZoneOffset.UTC ).truncatedTo( granuleUnit );
+			final ZonedDateTime first = start.withZoneSameInstant( ZoneOffset.UTC ).truncatedTo( granuleUnit );
+			final long granules = Math.max( 1L, Duration.between( first, horizon ).dividedBy( granule ) );
+			final int n = (int) Math.min( partitions, granules );
+			ZonedDateTime windowStart = first;
+			for ( int i = 1; i <= n; ++i ) {
+				final ZonedDateTime windowEnd = ( i < n ) ? first.plus( granule.multipliedBy( granules * i / n ) ) : null;
+				addWindow( new Window( windowStart, windowEnd ) );
+				windowStart = windowEnd;
+			}
+		}
+
+		private void addWindow( final Window window ) {
+			synchronized ( windows ) {
+				windows.addLast( window );
+				++pendingWindows;
+				windows.notifyAll();
+			}
+		}
+
+		@Override
+		public Iterator<RecordType> iterator() {
+			if ( ! iterated.compareAndSet( false, true ) ) {
+				throw new IllegalStateException( "Iterable just once" );
+			}
+			executor = Threads.newTaskExecutor( "oai-pmh-window" );
+			runningWorkers.set( partitions );
+			for ( int i = 0; i < partitions; ++i ) {
+				executor.execute( this::work );
+			}
+			return new MergingIterator();
+		}
+
+		/**
+		 * Harvest the windows one after another, until there are none left.
+		 */
+		private void work() {
+			try {
+				Window window;
+				while ( ( window = nextWindow() ) != null ) {
+					harvest( window );
+					synchronized ( windows ) {
+						--pendingWindows;
+						windows.notifyAll();
+					}
+				}
+			} catch ( final InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			} catch ( final Throwable t ) {
+				failure.compareAndSet( null, t );
+				stop();
+			} finally {
+				if ( runningWorkers.decrementAndGet() == 0 ) {
+					try {
+						queue.put( endOfList );
+					} catch ( final InterruptedException e ) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+
+		private Window nextWindow() throws InterruptedException {
+			synchronized ( windows ) {
+				while ( windows.isEmpty() && pendingWindows > 0 && ! stopped && ! isOverTime() ) {
+					windows.wait();
+				}
+				return ( stopped || isOverTime() ) ? null : windows.pollFirst();
+			}
+		}
+
+		private void stop() {
+			synchronized ( windows ) {
+				stopped = true;
+				windows.notifyAll();
+			}
+		}
+
+		private boolean isStopped() {
+			synchronized ( windows ) {
+				return stopped;
+			}
+		}
+
+		/**
+		 * Harvest a window, or split it if it turns out to be dense.
+		 * @param window the window
+		 */
+		private void harvest( final Window window ) throws Exception {
+			if ( isOverTime() ) {
+				return;
+			}
+			final String[] params = collectHarvestingParameters( metadataFormatPrefix, setSpec, window.start, ( window.end != null ) ? window.end.minus( granule ) : null );
+			final ListRecordsType firstChunk = parsed( OAIPMHtype::getListRecords ).fetch( null, false, "ListRecords", params );
+			if ( firstChunk == null ) {
+				return;
+			}
+			final ResumptionTokenType resumptionToken = firstChunk.getResumptionToken();
+			if ( resumptionToken != null && resumptionToken.getCompleteListSize() != null && resumptionToken.getCompleteListSize().longValue() > maxWindowSize ) {
+				final Window[] halves = window.split();
+				if ( halves != null ) {
+					System.out.println( "Splitting the window " + String.join( " ", params ) + " of " + resumptionToken.getCompleteListSize() + " records" );
+					for ( final Window half : halves ) {
+						addWindow( half );
+					}
+					return;
+				}
+			}
+			for ( final RecordType record : firstChunk.getRecord() ) {
+				emit( record );
+			}
+			final String resumptionTokenValue = ( resumptionToken != null ) ? resumptionToken.getValue() : null;
+			if ( resumptionTokenValue != null && ! resumptionTokenValue.isEmpty() && ! isStopped() ) {
+				final Iterator<RecordType> rest = new ResumptionTokenIterable<RecordType, ListRecordsType>( false, "ListRecords", params, parsed( OAIPMHtype::getListRecords ), ListRecordsType::getRecord, ListRecordsType::getResumptionToken )
+						.resume( resumptionTokenValue, params, null ).iterator();
+				try {
+					while ( rest.hasNext() && ! isStopped() ) {
+						emit( rest.next() );
+					}
+				} finally {
+					if ( rest instanceof AutoCloseable ) {
+						( (AutoCloseable) rest ).close();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Queue a record, unless its OAI identifier has been listed already with another datestamp, one of the two not before the start of the harvest:
+		 * then the record has changed while the windows were harvested, and has been listed before and after the change.
+		 * @param record the record
+		 */
+		private void emit( final RecordType record ) throws InterruptedException {
+			final HeaderType header = record.getHeader();
+			if ( header != null && header.getIdentifier() != null ) {
+				final String datestamp = String.valueOf( header.getDatestamp() );
+				final String listed = listedDatestamps.putIfAbsent( header.getIdentifier(), datestamp );
+				if ( listed != null && ! listed.equals( datestamp ) && ( isChangedSinceStart( listed ) || isChangedSinceStart( datestamp ) ) ) {
+					return;
+				}
+			}
+			queue.put( record );
+		}
+
+		private boolean isChangedSinceStart( final String datestamp ) {
+			final ZonedDateTime time = parseDatestamp( datestamp );
+			return time != null && ! time.isBefore( changedSince );
+		}
+
+		/**
+		 * A datestamp window: from the start (inclusive) to the end (exclusive, or open if null).
+		 */
+		private class Window {
+
+			private final ZonedDateTime start;
+			private final ZonedDateTime end;
+
+			Window( final ZonedDateTime start, final ZonedDateTime end ) {
+				this.start = start;
+				this.end = end;
+			}
+
+			/**
+			 * @return the two halves of this window; null if it is too short to split
+			 */
+			Window[] split() {
+				final ZonedDateTime until = ( end != null ) ? end : horizon;
+				final long granules = Duration.between( start, until ).dividedBy( granule );
+				if ( granules < 2L ) {
+					return null;
+				}
+				final ZonedDateTime middle = start.plus( granule.multipliedBy( granules / 2 ) );
+				return new Window[] { new Window( start, middle ), new Window( middle, end ) };
+			}
+
+		}
+
+		/**
+		 * Takes the records from the queue until all the windows have been harvested.
+		 * Closing it stops the harvest.
+		 */
+		private class MergingIterator implements Iterator<RecordType>, AutoCloseable {
+
+			private RecordType nextRecord = null;
+			private boolean finished = false;
+
+			@Override
+			public boolean hasNext() {
+				while ( nextRecord == null && ! finished ) {
+					final Object item;
+					try {
+						item = queue.take();
+					} catch ( final InterruptedException e ) {
+						Thread.currentThread().interrupt();
+						close();
+						throw new IllegalStateException( e );
+					}
+					if ( item == endOfList ) {
+						finished = true;
+						executor.shutdown();
+						final Throwable t = failure.get();
+						if ( t instanceof RuntimeException ) {
+							throw (RuntimeException) t;
+						} else if ( t instanceof Error ) {
+							throw (Error) t;
+						} else if ( t != null ) {
+							throw new IllegalStateException( t );
+						}
+					} else {
+						nextRecord = (RecordType) item;
+					}
+				}
+				return nextRecord != null;
+			}
+
+			@Override
+			public RecordType next() {
+				if ( hasNext() ) {
+					final RecordType result = nextRecord;
+					nextRecord = null;
+					return result;
+				}
+				throw new NoSuchElementException();
+			}
+
+			@Override
+			public void close() {
+				finished = true;
+				stop();
+				executor.shutdownNow();
+			}
+
+		}
+
+	}
+
+	/**
+	 * The polymorphic Iterable over a cursor using a OAI-PMH resumption token.
+	 * Iterable just once.
+	 * 
+	 * @author jdvorak
+	 *
+	 * @param <ItemType>
 	 *            the type of the items
 	 * @param <ListType>
 	 *            the type that contains the chunks
@@ -377,19 +1492,19 @@ public class OAIPMHEndpoint {
 		 *            the OAI-PMH verb
 		 * @param params
 		 *            the parameters of the OAI-PMH verb
-		 * @param funcGetList
-		 *            the function to get the type that contains the chunks
+		 * @param fetcher
+		 *            the way to get the type that contains the chunks
 		 * @param functGetIterable
 		 *            the function to get the iterable collection
 		 * @param funcGetResumptionToken
 		 *            the function to get the resumption token
 		 */
-		private ResumptionTokenIterable( final boolean repoWideRequest, final String verb, final String[] params, final Function<OAIPMHtype, ListType> funcGetList, final Function<ListType, Iterable<ItemType>> functGetIterable,
+		private ResumptionTokenIterable( final boolean repoWideRequest, final String verb, final String[] params, final ChunkFetcher<ListType> fetcher, final Function<ListType, Iterable<ItemType>> functGetIterable,
 				final Function<ListType, ResumptionTokenType> funcGetResumptionToken ) {
 			this.verb = verb;
 			this.params = params;
 			this.repoWideRequest = repoWideRequest;
-			this.funcGetList = funcGetList;
+			this.fetcher = fetcher;
 			this.functGetIterable = functGetIterable;
 			this.funcGetResumptionToken = funcGetResumptionToken;
 		}
@@ -397,70 +1512,312 @@ public class OAIPMHEndpoint {
 		private final String verb;
 		private final String[] params;
 		private boolean repoWideRequest;
-		private final Function<OAIPMHtype, ListType> funcGetList;
+		private final ChunkFetcher<ListType> fetcher;
 		private final Function<ListType, Iterable<ItemType>> functGetIterable;
 		private final Function<ListType, ResumptionTokenType> funcGetResumptionToken;
+		private String startResumptionToken = null;
+		private String[] restartParams = null;
+		private Consumer<String> chunkListener = null;
 
 		private final AtomicReference<Iterator<ItemType>> iterator = new AtomicReference<>();
 
+		/**
+		 * Continue an interrupted list, and follow its progress.
+		 * @param resumptionTokenValue the resumption token to start with; null to start at the beginning
+		 * @param restartParams the parameters to request the list again with when the resumption token is not accepted any more
+		 * @param chunkListener called after all the items of a chunk have been iterated, with the resumption token for the rest of the list (null at the end); may be null
+		 * @return this
+		 */
+		private ResumptionTokenIterable<ItemType, ListType> resume( final String resumptionTokenValue, final String[] restartParams, final Consumer<String> chunkListener ) {
+			this.startResumptionToken = resumptionTokenValue;
+			this.restartParams = restartParams;
+			this.chunkListener = chunkListener;
+			return this;
+		}
+
 		/**
 		 * The cursor-based iterator. Can be called just once, a second attempt
 		 * raises an {@link IllegalStateException}. Any exceptions that arise
 		 * while iterating will be re-thrown; non-RuntimeExceptions are wrapped
 		 * in an {@link IllegalStateException}.
+		 * The iterator is {@link AutoCloseable}: closing it stops any prefetching.
+		 * When the time of the run budget is up, the iteration ends early, as if closed.
 		 */
 		@Override
 		public Iterator<ItemType> iterator() {
 			try {
-				final Iterator<ItemType> i = new Iterator<ItemType>() {
+				final CursorIterator i = ( prefetchPages > 0 && fetcher.isPrefetchable() ) ? new PrefetchingCursorIterator( prefetchPages, prefetchMaxBytes ) : new CursorIterator();
+				if ( iterator.compareAndSet( null, i ) ) {
+					i.start();
+					return i;
+				}
+				throw new IllegalStateException( "Iterable just once" );
+			} catch ( final RuntimeException e ) {
+				throw e;
+			} catch ( final Throwable t ) {
+				throw new IllegalStateException( t );
+			}
+		}
+
+		/**
+		 * Fetch a chunk.
+		 * @param resumptionTokenValue the resumption token to continue with; null for the first chunk
+		 * @param sizeConsumer where to report the size of the response; may be null
+		 * @return the chunk, may be null
+		 */
+		private ListType fetchChunk( final String resumptionTokenValue, final LongConsumer sizeConsumer ) throws Exception {
+			if ( resumptionTokenValue == null && startResumptionToken != null ) {
+				try {
+					return fetcher.fetch( sizeConsumer, repoWideRequest, verb, "resumptionToken", startResumptionToken );
+				} catch ( final ErrorResponseException e ) {
+					if ( ! e.hasCode( OAIPMHerrorcodeType.BAD_RESUMPTION_TOKEN ) ) {
+						throw e;
+					}
+					System.err.println( "The resumption token " + startResumptionToken + " is not accepted any more (" + e.getMessage() + "), requesting the " + verb + " list again with " + String.join( " ", restartParams ) );
+					return fetcher.fetch( sizeConsumer, repoWideRequest, verb, restartParams );
+				}
+			}
+			return ( resumptionTokenValue == null ) 
+					? fetcher.fetch( sizeConsumer, repoWideRequest, verb, params ) 
+					: fetcher.fetch( sizeConsumer, repoWideRequest, verb, "resumptionToken", resumptionTokenValue );
+		}
+
+		/**
+		 * The resumption token to continue after the given chunk with.
+		 * @param chunk the chunk
+		 * @return the resumption token value; null at the end of the list
+		 */
+		private String getNextResumptionTokenValue( final ListType chunk ) {
+			final ResumptionTokenType resumptionToken = funcGetResumptionToken.apply( chunk );
+			if ( resumptionToken != null ) {
+				final String resumptionTokenValue = resumptionToken.getValue();
+				if ( resumptionTokenValue != null && ! resumptionTokenValue.isEmpty() ) {
+					return resumptionTokenValue;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Goes through the chunks, fetching the next one when the current one is exhausted.
+		 */
+		private class CursorIterator implements Iterator<ItemType>, AutoCloseable {
+
+			private ListType currentChunk;
+			private Iterator<ItemType> innerIterator;
+
+			void start() throws Exception {
+				enter( firstChunk() );
+			}
 
-					private ListType currentChunk = funcGetList.apply( makeConnection( repoWideRequest, verb, params ) );
-					private Iterator<ItemType> innerIterator = ( currentChunk != null ) ? functGetIterable.apply( currentChunk ).iterator() : null;
+			private void enter( final ListType chunk ) {
+				currentChunk = chunk;
+				innerIterator = ( chunk != null ) ? functGetIterable.apply( chunk ).iterator() : null;
+			}
+
+			@Override
+			public synchronized ItemType next() {
+				if ( hasNext() ) {
+					return innerIterator.next();
+				}
+				throw new NoSuchElementException();
+			}
+
+			@Override
+			public synchronized boolean hasNext() {
+				while ( innerIterator != null ) {
+					if ( isOverTime() ) {
+						close();
+						return false;
+					}
+					if ( innerIterator.hasNext() ) {
+						return true;
+					}
+					if ( ! advance() ) {
+						return false;
+					}
+				}
+				return false;
+			}
+
+			private boolean advance() {
+				final String resumptionTokenValue = getNextResumptionTokenValue( currentChunk );
+				if ( chunkListener != null ) {
+					chunkListener.accept( resumptionTokenValue );
+				}
+				if ( resumptionTokenValue != null ) {
+					try {
+						enter( nextChunk( resumptionTokenValue ) );
+						return ( innerIterator != null );
+					} catch ( final RuntimeException e ) {
+						throw e;
+					} catch ( final Throwable t ) {
+						throw new IllegalStateException( t );
+					}
+				}
+				innerIterator = null;
+				return false;
+			}
+
+			/**
+			 * @return the first chunk
+			 */
+			protected ListType firstChunk() throws Exception {
+				return fetchChunk( null, null );
+			}
+
+			/**
+			 * @param resumptionTokenValue the resumption token from the previous chunk
+			 * @return the next chunk
+			 */
+			protected ListType nextChunk( final String resumptionTokenValue ) throws Exception {
+				return fetchChunk( resumptionTokenValue, null );
+			}
+
+			@Override
+			public void close() {
+				innerIterator = null;
+				if ( currentChunk instanceof AutoCloseable ) {
+					try {
+						( (AutoCloseable) currentChunk ).close();
+					} catch ( final Exception e ) {
+						// closing just releases the resources
+					}
+				}
+			}
+
+		}
+
+		/**
+		 * Gets the chunks from a background task that fetches them ahead, within the given limits.
+		 */
+		private class PrefetchingCursorIterator extends CursorIterator {
+
+			private final int maxPages;
+			private final long maxBytes;
+
+			private final Deque<PrefetchedChunk> prefetched = new ArrayDeque<>();
+			private long prefetchedBytes = 0L;
+			private boolean finished = false;
+			private boolean closed = false;
+
+			PrefetchingCursorIterator( final int maxPages, final long maxBytes ) {
+				this.maxPages = maxPages;
+				this.maxBytes = maxBytes;
+			}
 
-					@Override
-					public synchronized ItemType next() {
-						if ( hasNext() ) {
-							return innerIterator.next();
+			@Override
+			void start() throws Exception {
+				prefetchExecutor.execute( this::prefetch );
+				super.start();
+			}
+
+			private void prefetch() {
+				try {
+					String resumptionTokenValue = null;
+					do {
+						if ( ! awaitRoom() || isOverTime() ) {
+							return;
 						}
-						throw new NoSuchElementException();
+						final AtomicLong size = new AtomicLong();
+						final ListType chunk = fetchChunk( resumptionTokenValue, size::set );
+						resumptionTokenValue = ( chunk != null ) ? getNextResumptionTokenValue( chunk ) : null;
+						offer( new PrefetchedChunk( chunk, size.get(), null ) );
+					} while ( resumptionTokenValue != null );
+				} catch ( final Throwable t ) {
+					offer( new PrefetchedChunk( null, 0L, t ) );
+				} finally {
+					synchronized ( prefetched ) {
+						finished = true;
+						prefetched.notifyAll();
 					}
+				}
+			}
 
-					@Override
-					public synchronized boolean hasNext() {
-						return ( innerIterator != null ) && ( innerIterator.hasNext() || advance() );
+			private boolean awaitRoom() throws InterruptedException {
+				synchronized ( prefetched ) {
+					while ( ! closed && ! prefetched.isEmpty() && ( prefetched.size() >= maxPages || prefetchedBytes >= maxBytes ) ) {
+						prefetched.wait();
 					}
+					return ! closed;
+				}
+			}
 
-					private boolean advance() {
-						final ResumptionTokenType resumptionToken = funcGetResumptionToken.apply( currentChunk );
-						if ( resumptionToken != null ) {
-							final String resumptionTokenValue = resumptionToken.getValue();
-							if ( ! resumptionTokenValue.isEmpty() ) {
-								try {
-									currentChunk = funcGetList.apply( makeConnection( repoWideRequest, verb, "resumptionToken", resumptionTokenValue ) );
-									innerIterator = ( currentChunk != null ) ? functGetIterable.apply( currentChunk ).iterator() : null;
-									return ( innerIterator != null );
-								} catch ( final RuntimeException e ) {
-									throw e;
-								} catch ( final Throwable t ) {
-									throw new IllegalStateException( t );
-								}
-							}
+			private void offer( final PrefetchedChunk chunk ) {
+				synchronized ( prefetched ) {
+					if ( ! closed ) {
+						prefetched.addLast( chunk );
+						prefetchedBytes += chunk.size;
+						prefetched.notifyAll();
+					}
+				}
+			}
+
+			private ListType take() throws Exception {
+				final PrefetchedChunk chunk;
+				synchronized ( prefetched ) {
+					while ( prefetched.isEmpty() && ! finished ) {
+						prefetched.wait();
+					}
+					chunk = prefetched.pollFirst();
+					if ( chunk == null ) {
+						if ( isOverTime() ) {
+							// the prefetching has stopped for the budget
+							return null;
 						}
-						return false;
+						throw new NoSuchElementException( "No more chunks prefetched" );
 					}
+					prefetchedBytes -= chunk.size;
+					prefetched.notifyAll();
+				}
+				if ( chunk.failure instanceof Exception ) {
+					throw (Exception) chunk.failure;
+				} else if ( chunk.failure instanceof Error ) {
+					throw (Error) chunk.failure;
+				}
+				return chunk.chunk;
+			}
 
-				};
-				if ( iterator.compareAndSet( null, i ) ) {
-					return i;
+			@Override
+			protected ListType firstChunk() throws Exception {
+				return take();
+			}
+
+			@Override
+			protected ListType nextChunk( final String resumptionTokenValue ) throws Exception {
+				return take();
+			}
+
+			@Override
+			public void close() {
+				super.close();
+				synchronized ( prefetched ) {
+					closed = true;
+					prefetched.clear();
+					prefetchedBytes = 0L;
+					prefetched.notifyAll();
 				}
-				throw new IllegalStateException( "Iterable just once" );
-			} catch ( final RuntimeException e ) {
-				throw e;
-			} catch ( final Throwable t ) {
-				throw new IllegalStateException( t );
 			}
+
+			/**
+			 * A chunk fetched ahead, or the failure to fetch it.
+			 */
+			private class PrefetchedChunk {
+
+				private final ListType chunk;
+				private final long size;
+				private final Throwable failure;
+
+				PrefetchedChunk( final ListType chunk, final long size, final Throwable failure ) {
+					this.chunk = chunk;
+					this.size = size;
+					this.failure = failure;
+				}
+
+			}
+
 		}
 
 	}
 
-}
\ No newline at end of file
+}
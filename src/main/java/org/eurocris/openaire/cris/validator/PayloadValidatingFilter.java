@@ -0,0 +1,367 @@
+package org.eurocris.openaire.cris.validator;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.validation.ValidatorHandler;
+
+import org.openarchives.oai._2.DescriptionType;
+import org.openarchives.oai._2.MetadataType;
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.NamespaceSupport;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Validates the payloads of an OAI-PMH 2.0 response in the same pass as the response is parsed.
+ * The SAX events are passed on to the content handler of the filter (e.g., the unmarshaller, or the validator of the whole response) as they come,
+ * and the events of each payload (the element in <code>metadata</code>, <code>description</code> or <code>setDescription</code>) are also sent
+ * to the validator handler of the current thread from the {@link ValidatorPool} for the namespace of the payload, with the namespace declarations in scope replayed at its start.
+ * The outcome of the validation of each payload is attached to its DOM element by the {@link Unmarshaller.Listener} from {@link #getListener()},
+ * where {@link #getOutcome(Element)} finds it.
+ * <p>
+ * An error in a payload ends its validation, but not the parse.
+ * The payloads of the records not selected (by the OAI identifier in their header) are not validated.
+ */
+public class PayloadValidatingFilter extends XMLFilterImpl {
+
+	private static final String OAI_PMH_NS = "http://www.openarchives.org/OAI/2.0/";
+
+	private static final String OUTCOME_KEY = PayloadValidatingFilter.class.getName() + ".outcome";
+
+	/**
+	 * The outcome for a container without a validated payload.
+	 */
+	private static final Outcome NOT_VALIDATED = new Outcome( null );
+
+	private final Function<String, ValidatorPool> validatorsByNamespace;
+
+	private final Predicate<String> recordSelection;
+
+	private final StringBuilder recordIdentifier = new StringBuilder();
+
+	private int headerDepth = 0;
+
+	private boolean inRecordIdentifier = false;
+
+	private boolean metadataContainer = false;
+
+	private final NamespaceSupport namespaces = new NamespaceSupport();
+
+	private boolean namespaceContextPushed = false;
+
+	private final Deque<Outcome> outcomes = new ArrayDeque<>();
+
+	private Locator locator = null;
+
+	private int depth = 0;
+
+	private int containerDepth = 0;
+
+	private int payloadDepth = 0;
+
+	private ValidatorHandler payloadHandler = null;
+
+	private final List<String> replayedPrefixes = new ArrayList<>();
+
+	private Outcome outcome = NOT_VALIDATED;
+
+	/**
+	 * A new filter.
+	 * @param parent the reader to parse with; null when the events are sent to the filter by other means
+	 * @param validatorsByNamespace the validators for the payloads in a namespace; null for a namespace whose payloads are not to be validated
+	 */
+	public PayloadValidatingFilter( final XMLReader parent, final Function<String, ValidatorPool> validatorsByNamespace ) {
+		this( parent, validatorsByNamespace, null );
+	}
+
+	/**
+	 * A new filter that validates the payloads of some of the records only.
+	 * @param parent the reader to parse with; null when the events are sent to the filter by other means
+	 * @param validatorsByNamespace the validators for the payloads in a namespace; null for a namespace whose payloads are not to be validated
+	 * @param recordSelection which records, by OAI identifier, to validate the payload of; null for all
+	 */
+	public PayloadValidatingFilter( final XMLReader parent, final Function<String, ValidatorPool> validatorsByNamespace, final Predicate<String> recordSelection ) {
+		super( parent );
+		this.validatorsByNamespace = validatorsByNamespace;
+		this.recordSelection = recordSelection;
+	}
+
+	/**
+	 * The outcome of the validation of a payload during the parse.
+	 * @param el the payload element
+	 * @return the outcome; null if the element has not been validated that way
+	 */
+	public static Outcome getOutcome( final Element el ) {
+		return (Outcome) el.getUserData( OUTCOME_KEY );
+	}
+
+	/**
+	 * The listener to set on the unmarshaller fed by the filter.
+	 * As the unmarshaller finishes each payload container, the outcome of the payload's validation is attached to the payload element.
+	 * @return the listener
+	 */
+	public Unmarshaller.Listener getListener() {
+		return new Unmarshaller.Listener() {
+
+			@Override
+			public void afterUnmarshal( final Object target, final Object parent ) {
+				if ( target instanceof MetadataType ) {
+					attachOutcome( ( (MetadataType) target ).getAny() );
+				} else if ( target instanceof DescriptionType ) {
+					attachOutcome( ( (DescriptionType) target ).getAny() );
+				}
+			}
+
+		};
+	}
+
+	private void attachOutcome( final Object payload ) {
+		final Outcome outcome = outcomes.poll();
+		if ( outcome != null && outcome != NOT_VALIDATED && payload instanceof Element ) {
+			( (Element) payload ).setUserData( OUTCOME_KEY, outcome, null );
+		}
+	}
+
+	@Override
+	public void parse( final InputSource input ) throws SAXException, IOException {
+		outcomes.clear();
+		super.parse( input );
+	}
+
+	@Override
+	public void setDocumentLocator( final Locator locator ) {
+		this.locator = locator;
+		super.setDocumentLocator( locator );
+	}
+
+	@Override
+	public void startPrefixMapping( final String prefix, final String uri ) throws SAXException {
+		if ( ! namespaceContextPushed ) {
+			namespaces.pushContext();
+			namespaceContextPushed = true;
+		}
+		namespaces.declarePrefix( prefix, uri );
+		super.startPrefixMapping( prefix, uri );
+		if ( payloadHandler != null ) {
+			try {
+				payloadHandler.startPrefixMapping( prefix, uri );
+			} catch ( final SAXException e ) {
+				payloadFailed( e );
+			}
+		}
+	}
+
+	@Override
+	public void endPrefixMapping( final String prefix ) throws SAXException {
+		super.endPrefixMapping( prefix );
+		if ( payloadHandler != null ) {
+			try {
+				payloadHandler.endPrefixMapping( prefix );
+			} catch ( final SAXException e ) {
+				payloadFailed( e );
+			}
+		}
+	}
+
+	@Override
+	public void startElement( final String uri, final String localName, final String qName, final Attributes atts ) throws SAXException {
+		if ( ! namespaceContextPushed ) {
+			namespaces.pushContext();
+		}
+		namespaceContextPushed = false;
+		++depth;
+		super.startElement( uri, localName, qName, atts );
+		if ( containerDepth == 0 ) {
+			if ( OAI_PMH_NS.equals( uri ) && ( "metadata".equals( localName ) || "description".equals( localName ) || "setDescription".equals( localName ) ) ) {
+				containerDepth = depth;
+				metadataContainer = "metadata".equals( localName );
+				outcome = NOT_VALIDATED;
+			} else if ( recordSelection != null && OAI_PMH_NS.equals( uri ) ) {
+				if ( "header".equals( localName ) ) {
+					headerDepth = depth;
+					recordIdentifier.setLength( 0 );
+				} else if ( "identifier".equals( localName ) && depth == headerDepth + 1 ) {
+					inRecordIdentifier = true;
+				}
+			}
+		} else if ( payloadDepth == 0 ) {
+			if ( depth == containerDepth + 1 && outcome == NOT_VALIDATED && isSelected() ) {
+				final ValidatorPool validators = validatorsByNamespace.apply( uri );
+				if ( validators != null ) {
+					startPayload( validators, uri, localName, qName, atts );
+				}
+			}
+		} else if ( payloadHandler != null ) {
+			try {
+				payloadHandler.startElement( uri, localName, qName, atts );
+			} catch ( final SAXException e ) {
+				payloadFailed( e );
+			}
+		}
+	}
+
+	@Override
+	public void endElement( final String uri, final String localName, final String qName ) throws SAXException {
+		// the outcome has to be queued before the unmarshaller finishes the container
+		if ( depth == payloadDepth ) {
+			endPayload( uri, localName, qName );
+		} else if ( depth == containerDepth ) {
+			outcomes.add( outcome );
+			outcome = NOT_VALIDATED;
+			containerDepth = 0;
+		} else if ( containerDepth == 0 && depth <= headerDepth + 1 ) {
+			inRecordIdentifier = false;
+			if ( depth == headerDepth ) {
+				headerDepth = 0;
+			}
+		} else if ( payloadHandler != null ) {
+			try {
+				payloadHandler.endElement( uri, localName, qName );
+			} catch ( final SAXException e ) {
+				payloadFailed( e );
+			}
+		}
+		super.endElement( uri, localName, qName );
+		namespaces.popContext();
+		--depth;
+	}
+
+	@Override
+	public void characters( final char[] ch, final int start, final int length ) throws SAXException {
+		super.characters( ch, start, length );
+		if ( inRecordIdentifier ) {
+			recordIdentifier.append( ch, start, length );
+		} else if ( payloadHandler != null ) {
+			try {
+				payloadHandler.characters( ch, start, length );
+			} catch ( final SAXException e ) {
+				payloadFailed( e );
+			}
+		}
+	}
+
+	@Override
+	public void ignorableWhitespace( final char[] ch, final int start, final int length ) throws SAXException {
+		super.ignorableWhitespace( ch, start, length );
+		if ( payloadHandler != null ) {
+			try {
+				payloadHandler.ignorableWhitespace( ch, start, length );
+			} catch ( final SAXException e ) {
+				payloadFailed( e );
+			}
+		}
+	}
+
+	@Override
+	public void processingInstruction( final String target, final String data ) throws SAXException {
+		super.processingInstruction( target, data );
+		if ( payloadHandler != null ) {
+			try {
+				payloadHandler.processingInstruction( target, data );
+			} catch ( final SAXException e ) {
+				payloadFailed( e );
+			}
+		}
+	}
+
+	/**
+	 * Whether to validate the payload of the current container: the payloads of the records not selected are left out.
+	 */
+	private boolean isSelected() {
+		return recordSelection == null || ! metadataContainer || recordSelection.test( recordIdentifier.toString().trim() );
+	}
+
+	/**
+	 * Start validating a payload as a document of its own, declaring all the namespaces in scope at its root element.
+	 */
+	private void startPayload( final ValidatorPool validators, final String uri, final String localName, final String qName, final Attributes atts ) {
+		payloadDepth = depth;
+		final String id = atts.getValue( "", "id" );
+		payloadHandler = validators.startValidation( localName + "[@id=\"" + ( ( id != null ) ? id : "" ) + "\"]" );
+		replayedPrefixes.clear();
+		try {
+			if ( locator != null ) {
+				payloadHandler.setDocumentLocator( locator );
+			}
+			payloadHandler.startDocument();
+			for ( final Enumeration<?> e = namespaces.getPrefixes(); e.hasMoreElements(); ) {
+				final String prefix = (String) e.nextElement();
+				if ( ! XMLConstants.XML_NS_PREFIX.equals( prefix ) ) {
+					payloadHandler.startPrefixMapping( prefix, namespaces.getURI( prefix ) );
+					replayedPrefixes.add( prefix );
+				}
+			}
+			final String defaultNamespace = namespaces.getURI( "" );
+			if ( defaultNamespace != null && ! defaultNamespace.isEmpty() ) {
+				payloadHandler.startPrefixMapping( "", defaultNamespace );
+				replayedPrefixes.add( "" );
+			}
+			payloadHandler.startElement( uri, localName, qName, atts );
+		} catch ( final SAXException e ) {
+			payloadFailed( e );
+		}
+	}
+
+	private void endPayload( final String uri, final String localName, final String qName ) {
+		if ( payloadHandler != null ) {
+			try {
+				payloadHandler.endElement( uri, localName, qName );
+				for ( final String prefix : replayedPrefixes ) {
+					payloadHandler.endPrefixMapping( prefix );
+				}
+				payloadHandler.endDocument();
+				outcome = new Outcome( null );
+			} catch ( final SAXException e ) {
+				payloadFailed( e );
+			}
+			payloadHandler = null;
+		}
+		payloadDepth = 0;
+	}
+
+	private void payloadFailed( final SAXException e ) {
+		outcome = new Outcome( e );
+		payloadHandler = null;
+	}
+
+	/**
+	 * The outcome of the validation of a payload.
+	 */
+	public static class Outcome {
+
+		private final SAXException failure;
+
+		Outcome( final SAXException failure ) {
+			this.failure = failure;
+		}
+
+		/**
+		 * @return whether the payload is valid
+		 */
+		public boolean isValid() {
+			return failure == null;
+		}
+
+		/**
+		 * @return the exception that ended the validation; null if the payload is valid
+		 */
+		public SAXException getFailure() {
+			return failure;
+		}
+
+	}
+
+}
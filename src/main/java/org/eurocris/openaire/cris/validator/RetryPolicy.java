@@ -0,0 +1,129 @@
+package org.eurocris.openaire.cris.validator;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * When and how long to wait before repeating a failed request.
+ * The delays grow exponentially from the initial delay up to the maximum delay, with a random jitter
+ * so that concurrent harvests do not come back all at once.
+ * A delay asked for by the server in a <code>Retry-After</code> header is honoured instead, within the maximum delay.
+ */
+public class RetryPolicy {
+
+	/**
+	 * Never repeat a request.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy( 1, 0L, 0L );
+
+	private final int maxAttempts;
+
+	private final long initialDelayMillis;
+
+	private final long maxDelayMillis;
+
+	/**
+	 * A new policy.
+	 * @param maxAttempts how many times to try a request at most (1 for no retries)
+	 * @param initialDelayMillis the delay before the first retry, in milliseconds
+	 * @param maxDelayMillis the cap on any delay, in milliseconds
+	 */
+	public RetryPolicy( final int maxAttempts, final long initialDelayMillis, final long maxDelayMillis ) {
+		if ( maxAttempts < 1 || initialDelayMillis < 0L || maxDelayMillis < initialDelayMillis ) {
+			throw new IllegalArgumentException( "Invalid retry policy: " + maxAttempts + " attempts, delays " + initialDelayMillis + " to " + maxDelayMillis + " ms" );
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * @return how many times to try a request at most
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * The delay before the next attempt.
+	 * @param failedAttempts how many attempts have failed so far (1 or more)
+	 * @param retryAfter the value of the <code>Retry-After</code> header of the last response; may be null
+	 * @return the delay in milliseconds
+	 */
+	public long getDelayMillis( final int failedAttempts, final String retryAfter ) {
+		final Duration requested = parseRetryAfter( retryAfter );
+		if ( requested != null ) {
+			return Math.min( Math.max( requested.toMillis(), 0L ), maxDelayMillis );
+		}
+		final long ceiling = Math.min( maxDelayMillis, initialDelayMillis << Math.min( failedAttempts - 1, 30 ) );
+		final long half = ceiling / 2;
+		return half + ThreadLocalRandom.current().nextLong( ceiling - half + 1 );
+	}
+
+	/**
+	 * Whether a failure of a request was caused by a network problem that may go away, such as a refused or reset connection or a timeout.
+	 * A failure caused, anywhere down its chain of causes, by a problem that does not go away by itself is not transient:
+	 * a host name that does not resolve, a failed TLS handshake or an untrusted certificate, a malformed URL, a missing file, or an interruption.
+	 * @param failure the failure
+	 * @return true if it makes sense to try again
+	 */
+	public static boolean isTransient( final Throwable failure ) {
+		boolean io = false;
+		Throwable cause = failure;
+		for ( int depth = 0; cause != null && depth < 16; ++depth ) {
+			if ( cause instanceof InterruptedIOException && !( cause instanceof SocketTimeoutException ) ) {
+				return false;
+			}
+			if ( cause instanceof UnknownHostException || cause instanceof UnresolvedAddressException
+					|| cause instanceof SSLHandshakeException || cause instanceof SSLPeerUnverifiedException
+					|| cause instanceof MalformedURLException || cause instanceof URISyntaxException || cause instanceof FileNotFoundException ) {
+				return false;
+			}
+			io |= ( cause instanceof IOException );
+			cause = cause.getCause();
+		}
+		return io;
+	}
+
+	/**
+	 * Parse the value of a <code>Retry-After</code> header: either a number of seconds, or an HTTP date.
+	 * @param retryAfter the header value; may be null
+	 * @return the delay asked for, or null if none or unparseable
+	 */
+	static Duration parseRetryAfter( final String retryAfter ) {
+		if ( retryAfter == null ) {
+			return null;
+		}
+		final String value = retryAfter.trim();
+		try {
+			return Duration.ofSeconds( Long.parseLong( value ) );
+		} catch ( final NumberFormatException e ) {
+			// maybe a date then
+		}
+		try {
+			return Duration.between( ZonedDateTime.now(), ZonedDateTime.parse( value, DateTimeFormatter.RFC_1123_DATE_TIME ) );
+		} catch ( final DateTimeParseException e ) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy[maxAttempts=" + maxAttempts + ", initialDelay=" + initialDelayMillis + " ms, maxDelay=" + maxDelayMillis + " ms]";
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.eurocris.openaire.cris.validator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counts of the requests to an endpoint that had to be repeated.
+ */
+public class RetryStatistics {
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong throttledRetries = new AtomicLong();
+	private final AtomicLong serverErrorRetries = new AtomicLong();
+	private final AtomicLong ioErrorRetries = new AtomicLong();
+	private final AtomicLong giveUps = new AtomicLong();
+	private final AtomicLong backoffMillis = new AtomicLong();
+
+	void countRequest() {
+		requests.incrementAndGet();
+	}
+
+	void countRetry( final int responseCode, final boolean retryAfterGiven, final long delayMillis ) {
+		if ( responseCode < 0 ) {
+			ioErrorRetries.incrementAndGet();
+		} else if ( retryAfterGiven ) {
+			throttledRetries.incrementAndGet();
+		} else {
+			serverErrorRetries.incrementAndGet();
+		}
+		backoffMillis.addAndGet( delayMillis );
+	}
+
+	void countGiveUp() {
+		giveUps.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of requests (not counting the repeated attempts)
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of retries after the server asked to wait (a response with a <code>Retry-After</code> header)
+	 */
+	public long getThrottledRetries() {
+		return throttledRetries.get();
+	}
+
+	/**
+	 * @return the number of retries after a transient server error without <code>Retry-After</code>
+	 */
+	public long getServerErrorRetries() {
+		return serverErrorRetries.get();
+	}
+
+	/**
+	 * @return the number of retries after a network error
+	 */
+	public long getIoErrorRetries() {
+		return ioErrorRetries.get();
+	}
+
+	/**
+	 * @return the total number of retries
+	 */
+	public long getRetries() {
+		return getThrottledRetries() + getServerErrorRetries() + getIoErrorRetries();
+	}
+
+	/**
+	 * @return the number of requests that failed even after all the attempts
+	 */
+	public long getGiveUps() {
+		return giveUps.get();
+	}
+
+	/**
+	 * @return the total time spent waiting before the retries, in milliseconds
+	 */
+	public long getBackoffMillis() {
+		return backoffMillis.get();
+	}
+
+	@Override
+	public String toString() {
+		return "RetryStatistics[requests=" + getRequests() + ", throttledRetries=" + getThrottledRetries() + ", serverErrorRetries=" + getServerErrorRetries()
+				+ ", ioErrorRetries=" + getIoErrorRetries() + ", giveUps=" + getGiveUps() + ", backoff=" + getBackoffMillis() + " ms]";
+	}
+
+}
@@ -0,0 +1,196 @@
+package org.eurocris.openaire.cris.validator;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.validation.Schema;
+
+import org.openarchives.oai._2.OAIPMHtype;
+
+/**
+ * A bounded pool of {@link Unmarshaller}s for the OAI-PMH 2.0 responses, all set up to validate against the same schema.
+ * The {@link JAXBContext} is built once per process and shared by all the pools.
+ * Safe to use from concurrent harvests: when all the unmarshallers are lent out, the borrower waits for one to be returned.
+ */
+public class UnmarshallerPool {
+
+	private static final int DEFAULT_CAPACITY = Math.max( 4, 2 * Runtime.getRuntime().availableProcessors() );
+
+	private static final Map<Schema, UnmarshallerPool> poolsBySchema = new WeakHashMap<>();
+
+	private static JAXBContext jaxbContext;
+
+	private final Schema schema;
+	private final int capacity;
+
+	private final Deque<Unmarshaller> idle = new ArrayDeque<>();
+	private int created = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+
+	/**
+	 * A new pool.
+	 * @param schema the schema to validate against; null for no validation
+	 * @param capacity the maximum number of unmarshallers to create
+	 */
+	public UnmarshallerPool( final Schema schema, final int capacity ) {
+		if ( capacity <= 0 ) {
+			throw new IllegalArgumentException( "Invalid pool capacity: " + capacity );
+		}
+		this.schema = schema;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * The process-wide pool for the given schema.
+	 * @param schema the schema to validate against; null for no validation
+	 * @return the pool
+	 */
+	public static synchronized UnmarshallerPool forSchema( final Schema schema ) {
+		return poolsBySchema.computeIfAbsent( schema, ( s ) -> new UnmarshallerPool( s, DEFAULT_CAPACITY ) );
+	}
+
+	/**
+	 * The JAXB context for the OAI-PMH 2.0 responses, built on the first call.
+	 * @return the shared context
+	 * @throws JAXBException on problems initializing the context
+	 */
+	public static synchronized JAXBContext getJAXBContext() throws JAXBException {
+		if ( jaxbContext == null ) {
+			jaxbContext = JAXBContext.newInstance( OAIPMHtype.class, org.openarchives.oai._2_0.oai_identifier.ObjectFactory.class );
+		}
+		return jaxbContext;
+	}
+
+	/**
+	 * Creates a new unmarshaller from the shared context.
+	 * @param schema the schema to validate against; null for no validation
+	 * @return the unmarshaller
+	 * @throws JAXBException on problems initializing the unmarshaller
+	 */
+	public static Unmarshaller createUnmarshaller( final Schema schema ) throws JAXBException {
+		final Unmarshaller u = getJAXBContext().createUnmarshaller();
+		if ( schema != null ) {
+			u.setSchema( schema );
+		}
+		return u;
+	}
+
+	/**
+	 * Borrow an unmarshaller; to be returned by closing the lease.
+	 * @return the lease of the unmarshaller
+	 * @throws JAXBException on problems initializing a new unmarshaller
+	 * @throws InterruptedException when interrupted while waiting for an unmarshaller to be returned
+	 */
+	public Lease borrow() throws JAXBException, InterruptedException {
+		synchronized ( idle ) {
+			if ( idle.isEmpty() && created >= capacity ) {
+				waits.incrementAndGet();
+				do {
+					idle.wait();
+				} while ( idle.isEmpty() && created >= capacity );
+			}
+			final Unmarshaller u = idle.pollFirst();
+			if ( u != null ) {
+				hits.incrementAndGet();
+				return new Lease( u );
+			}
+			++created;
+		}
+		misses.incrementAndGet();
+		try {
+			return new Lease( createUnmarshaller( schema ) );
+		} catch ( final JAXBException | RuntimeException e ) {
+			synchronized ( idle ) {
+				--created;
+				idle.notify();
+			}
+			throw e;
+		}
+	}
+
+	private void giveBack( final Unmarshaller u ) {
+		try {
+			u.setListener( null );
+			u.setEventHandler( null );
+		} catch ( final JAXBException e ) {
+			synchronized ( idle ) {
+				--created;
+				idle.notify();
+			}
+			return;
+		}
+		synchronized ( idle ) {
+			idle.addFirst( u );
+			idle.notify();
+		}
+	}
+
+	/**
+	 * @return the number of borrowings served by an idle unmarshaller
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of borrowings that needed a new unmarshaller
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of borrowings that had to wait for an unmarshaller to be returned
+	 */
+	public long getWaits() {
+		return waits.get();
+	}
+
+	@Override
+	public String toString() {
+		return "UnmarshallerPool[capacity=" + capacity + ", hits=" + getHits() + ", misses=" + getMisses() + ", waits=" + getWaits() + "]";
+	}
+
+	/**
+	 * An unmarshaller lent out from the pool.
+	 * Closing the lease returns the unmarshaller.
+	 */
+	public class Lease implements AutoCloseable {
+
+		private Unmarshaller unmarshaller;
+
+		private Lease( final Unmarshaller unmarshaller ) {
+			this.unmarshaller = unmarshaller;
+		}
+
+		/**
+		 * @return the unmarshaller
+		 * @throws IllegalStateException if the lease has been closed
+		 */
+		public Unmarshaller get() {
+			if ( unmarshaller == null ) {
+				throw new IllegalStateException( "The unmarshaller has been returned to the pool" );
+			}
+			return unmarshaller;
+		}
+
+		@Override
+		public void close() {
+			if ( unmarshaller != null ) {
+				giveBack( unmarshaller );
+				unmarshaller = null;
+			}
+		}
+
+	}
+
+}
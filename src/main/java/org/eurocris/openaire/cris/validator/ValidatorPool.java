@@ -0,0 +1,138 @@
+package org.eurocris.openaire.cris.validator;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.xml.transform.Source;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * The {@link Validator}s for a schema, one per thread, each with an error handler of its own that is reset before every validation.
+ * A validator is only ever used by the thread it was made for, so no locking is needed, and any number of threads can validate at the same time.
+ * Each thread also has a {@link ValidatorHandler} for validating the SAX events of a document while it is being parsed.
+ */
+public class ValidatorPool {
+
+	/**
+	 * An {@link ErrorHandler} that keeps state while validating one document, and can be reset for the next one.
+	 */
+	public interface ResettableErrorHandler extends ErrorHandler {
+
+		/**
+		 * Get ready for validating the next document.
+		 * @param subject what is validated, for the messages
+		 */
+		void reset( final String subject );
+
+	}
+
+	private final Schema schema;
+
+	private final Supplier<? extends ResettableErrorHandler> errorHandlerFactory;
+
+	private final ThreadLocal<PooledValidator> validators = ThreadLocal.withInitial( this::newValidator );
+
+	private final AtomicLong created = new AtomicLong();
+
+	private final AtomicLong validations = new AtomicLong();
+
+	/**
+	 * A new pool.
+	 * @param schema the schema to validate against
+	 * @param errorHandlerFactory makes the error handler for each validator
+	 */
+	public ValidatorPool( final Schema schema, final Supplier<? extends ResettableErrorHandler> errorHandlerFactory ) {
+		this.schema = schema;
+		this.errorHandlerFactory = errorHandlerFactory;
+	}
+
+	/**
+	 * Validate with the validator of the current thread.
+	 * @param source the document or element to validate
+	 * @param subject what is validated, for the messages
+	 * @throws SAXException when the error handler reports an error by throwing it
+	 * @throws IOException on a problem reading the source
+	 */
+	public void validate( final Source source, final String subject ) throws SAXException, IOException {
+		validations.incrementAndGet();
+		final PooledValidator pooled = validators.get();
+		pooled.errorHandler.reset( subject );
+		try {
+			pooled.validator.validate( source );
+		} catch ( final SAXException | IOException | RuntimeException e ) {
+			// start the next validation from a clean state
+			pooled.validator.reset();
+			pooled.validator.setErrorHandler( pooled.errorHandler );
+			throw e;
+		}
+	}
+
+	/**
+	 * Start a validation with the validator handler of the current thread.
+	 * The handler is to be sent the events of one document, from {@link ValidatorHandler#startDocument()} to {@link ValidatorHandler#endDocument()}, by the current thread;
+	 * an error is reported by the event method throwing the exception of the error handler.
+	 * A validation that ends with an exception leaves the handler ready for the next one, as each validation starts with {@link ValidatorHandler#startDocument()}.
+	 * @param subject what is validated, for the messages
+	 * @return the handler
+	 */
+	public ValidatorHandler startValidation( final String subject ) {
+		validations.incrementAndGet();
+		final PooledValidator pooled = validators.get();
+		pooled.errorHandler.reset( subject );
+		if ( pooled.handler == null ) {
+			pooled.handler = schema.newValidatorHandler();
+			pooled.handler.setErrorHandler( pooled.errorHandler );
+		}
+		return pooled.handler;
+	}
+
+	private PooledValidator newValidator() {
+		created.incrementAndGet();
+		final Validator validator = schema.newValidator();
+		final ResettableErrorHandler errorHandler = errorHandlerFactory.get();
+		validator.setErrorHandler( errorHandler );
+		return new PooledValidator( validator, errorHandler );
+	}
+
+	/**
+	 * @return the number of validators made, i.e., the number of threads that have validated
+	 */
+	public long getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * @return the number of validations
+	 */
+	public long getValidations() {
+		return validations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ValidatorPool[created=" + getCreated() + ", validations=" + getValidations() + "]";
+	}
+
+	/**
+	 * A validator with its error handler, and the validator handler sharing the error handler once needed.
+	 */
+	private static class PooledValidator {
+
+		private final Validator validator;
+		private final ResettableErrorHandler errorHandler;
+		private ValidatorHandler handler = null;
+
+		PooledValidator( final Validator validator, final ResettableErrorHandler errorHandler ) {
+			this.validator = validator;
+			this.errorHandler = errorHandler;
+		}
+
+	}
+
+}
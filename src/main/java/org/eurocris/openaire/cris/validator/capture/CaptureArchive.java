@@ -0,0 +1,380 @@
+package org.eurocris.openaire.cris.validator.capture;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An append-only archive of captured responses: large segment files that the responses are appended to, and an index from the request to where its response is.
+ * Each record in a segment starts with a header line <code>CAPTURE &lt;key&gt; &lt;length&gt; &lt;gzip|plain&gt;</code>, followed by the data and a newline, so a segment can be read on its own.
+ * The index file has a line <code>&lt;segment&gt; TAB &lt;offset&gt; TAB &lt;length&gt; TAB &lt;gzip|plain&gt; TAB &lt;key&gt;</code> per record; when a request has been captured more times, the last capture counts.
+ * The records are read through memory-mapped segments.
+ * <p>
+ * The number of segments can be bounded: when a new segment would make too many, the oldest ones are deleted, with their records, and the index is rewritten without them.
+ */
+public class CaptureArchive implements Closeable {
+
+	private static final String INDEX_FILENAME = "capture.idx";
+
+	private static final String GZIP = "gzip";
+
+	private static final String PLAIN = "plain";
+
+	private final Path directory;
+
+	private final long segmentBytes;
+
+	private final int maxSegments;
+
+	private final Map<String, Entry> entriesByKey = new LinkedHashMap<>();
+
+	private final Map<Integer, MappedByteBuffer> mappedSegments = new HashMap<>();
+
+	private int segment = 0;
+
+	private FileChannel segmentChannel = null;
+
+	private FileChannel indexChannel = null;
+
+	/**
+	 * Open the archive in a directory, reading its index if there is one; the number of segments is not bounded.
+	 * @param directory the directory of the archive; created when the first record is appended
+	 * @param segmentBytes the size after which a new segment is started
+	 * @throws IOException on a problem reading the index
+	 */
+	public CaptureArchive( final Path directory, final long segmentBytes ) throws IOException {
+		this( directory, segmentBytes, 0 );
+	}
+
+	/**
+	 * Open the archive in a directory, reading its index if there is one.
+	 * @param directory the directory of the archive; created when the first record is appended
+	 * @param segmentBytes the size after which a new segment is started
+	 * @param maxSegments how many segments to keep at most, the newest ones; 0 for no bound
+	 * @throws IOException on a problem reading the index
+	 */
+	public CaptureArchive( final Path directory, final long segmentBytes, final int maxSegments ) throws IOException {
+		if ( maxSegments < 0 ) {
+			throw new IllegalArgumentException( "Invalid maximum number of segments: " + maxSegments );
+		}
+		this.directory = directory;
+		this.segmentBytes = Math.min( segmentBytes, Integer.MAX_VALUE );
+		this.maxSegments = maxSegments;
+		readIndex();
+	}
+
+	/**
+	 * The key of a request URL: the URL with its query parameters in a canonical order.
+	 * @param url the request URL
+	 * @return the key
+	 */
+	public static String key( final String url ) {
+		final int i = url.indexOf( '?' );
+		if ( i < 0 ) {
+			return url;
+		}
+		final String[] params = url.substring( i + 1 ).split( "&" );
+		Arrays.sort( params );
+		return url.substring( 0, i + 1 ) + String.join( "&", params );
+	}
+
+	/**
+	 * @return the directory of the archive
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the keys of the captured requests, in the order they were first captured
+	 */
+	public synchronized Set<String> getKeys() {
+		return Collections.unmodifiableSet( new LinkedHashSet<>( entriesByKey.keySet() ) );
+	}
+
+	/**
+	 * @param key the key of a request
+	 * @return whether the response to the request has been captured
+	 */
+	public synchronized boolean contains( final String key ) {
+		return entriesByKey.containsKey( key );
+	}
+
+	/**
+	 * @return the number of requests captured
+	 */
+	public synchronized int size() {
+		return entriesByKey.size();
+	}
+
+	/**
+	 * Append a record.
+	 * @param key the key of the request
+	 * @param data the captured response
+	 * @param length the number of bytes of the response
+	 * @param gzipped whether the data is gzipped
+	 * @throws IOException on a problem writing
+	 */
+	public synchronized void append( final String key, final byte[] data, final int length, final boolean gzipped ) throws IOException {
+		if ( key.indexOf( '\t' ) >= 0 || key.indexOf( '\n' ) >= 0 || key.indexOf( ' ' ) >= 0 ) {
+			throw new IllegalArgumentException( "Not a valid key: " + key );
+		}
+		final String flag = ( gzipped ) ? GZIP : PLAIN;
+		final byte[] header = ( "CAPTURE " + key + " " + length + " " + flag + "\n" ).getBytes( StandardCharsets.UTF_8 );
+		if ( segmentChannel == null || ( segmentChannel.size() > 0 && segmentChannel.size() + header.length + length + 1 > segmentBytes ) ) {
+			startSegment();
+		}
+		final long offset = segmentChannel.size() + header.length;
+		writeFully( segmentChannel, ByteBuffer.wrap( header ) );
+		writeFully( segmentChannel, ByteBuffer.wrap( data, 0, length ) );
+		writeFully( segmentChannel, ByteBuffer.wrap( new byte[] { '\n' } ) );
+		final Entry entry = new Entry( segment, offset, length, gzipped );
+		writeFully( indexChannel, ByteBuffer.wrap( ( segment + "\t" + offset + "\t" + length + "\t" + flag + "\t" + key + "\n" ).getBytes( StandardCharsets.UTF_8 ) ) );
+		entriesByKey.put( key, entry );
+	}
+
+	/**
+	 * Make sure all that has been appended is on the disk.
+	 * @throws IOException on a problem syncing
+	 */
+	public synchronized void force() throws IOException {
+		if ( segmentChannel != null ) {
+			segmentChannel.force( false );
+			indexChannel.force( false );
+		}
+	}
+
+	/**
+	 * Read a record.
+	 * @param key the key of the request
+	 * @return the captured response as stored (gzipped or not), as a read-only buffer over the mapped segment; null if the request has not been captured
+	 * @throws IOException on a problem mapping the segment
+	 */
+	public synchronized ByteBuffer read( final String key ) throws IOException {
+		final Entry entry = entriesByKey.get( key );
+		if ( entry == null ) {
+			return null;
+		}
+		MappedByteBuffer mapped = mappedSegments.get( entry.segment );
+		if ( mapped == null || mapped.capacity() < entry.offset + entry.length ) {
+			try ( final FileChannel channel = FileChannel.open( segmentPath( entry.segment ), StandardOpenOption.READ ) ) {
+				mapped = channel.map( FileChannel.MapMode.READ_ONLY, 0L, channel.size() );
+			}
+			mappedSegments.put( entry.segment, mapped );
+		}
+		final ByteBuffer buffer = mapped.duplicate();
+		buffer.position( (int) entry.offset );
+		buffer.limit( (int) entry.offset + entry.length );
+		return buffer.slice();
+	}
+
+	/**
+	 * Open a record for reading.
+	 * @param key the key of the request
+	 * @return the captured response, uncompressed; null if the request has not been captured
+	 * @throws IOException on a problem reading
+	 */
+	public synchronized InputStream openStream( final String key ) throws IOException {
+		final Entry entry = entriesByKey.get( key );
+		if ( entry == null ) {
+			return null;
+		}
+		final InputStream in = new ByteBufferInputStream( read( key ) );
+		return ( entry.gzipped ) ? new GZIPInputStream( in ) : in;
+	}
+
+	/**
+	 * Close the files written to; the archive stays readable.
+	 * @throws IOException on a problem closing
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if ( segmentChannel != null ) {
+			force();
+			segmentChannel.close();
+			indexChannel.close();
+			segmentChannel = null;
+			indexChannel = null;
+		}
+	}
+
+	private void startSegment() throws IOException {
+		if ( segmentChannel != null ) {
+			segmentChannel.force( false );
+			segmentChannel.close();
+		}
+		if ( indexChannel == null ) {
+			Files.createDirectories( directory );
+			indexChannel = FileChannel.open( directory.resolve( INDEX_FILENAME ), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+		}
+		segment++;
+		segmentChannel = FileChannel.open( segmentPath( segment ), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+		if ( maxSegments > 0 ) {
+			deleteSegmentsUpTo( segment - maxSegments );
+		}
+	}
+
+	/**
+	 * Delete the old segments, with their records, and rewrite the index without them.
+	 * @param lastDeleted the newest segment to delete
+	 */
+	private void deleteSegmentsUpTo( final int lastDeleted ) throws IOException {
+		boolean deleted = false;
+		for ( int s = lastDeleted; s > 0 && Files.deleteIfExists( segmentPath( s ) ); --s ) {
+			mappedSegments.remove( s );
+			deleted = true;
+		}
+		if ( deleted || entriesByKey.values().stream().anyMatch( ( entry ) -> entry.segment <= lastDeleted ) ) {
+			entriesByKey.values().removeIf( ( entry ) -> entry.segment <= lastDeleted );
+			rewriteIndex();
+		}
+	}
+
+	/**
+	 * Write the index anew, a line per record kept, through a temporary file that is moved over the previous one.
+	 */
+	private void rewriteIndex() throws IOException {
+		final Path tempFile = Files.createTempFile( directory, INDEX_FILENAME, ".tmp" );
+		try {
+			try ( final BufferedWriter writer = Files.newBufferedWriter( tempFile, StandardCharsets.UTF_8 ) ) {
+				for ( final Map.Entry<String, Entry> e : entriesByKey.entrySet() ) {
+					final Entry entry = e.getValue();
+					writer.write( entry.segment + "\t" + entry.offset + "\t" + entry.length + "\t" + ( ( entry.gzipped ) ? GZIP : PLAIN ) + "\t" + e.getKey() + "\n" );
+				}
+			}
+			indexChannel.close();
+			Files.move( tempFile, directory.resolve( INDEX_FILENAME ), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			Files.deleteIfExists( tempFile );
+			if ( ! indexChannel.isOpen() ) {
+				indexChannel = FileChannel.open( directory.resolve( INDEX_FILENAME ), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+			}
+		}
+	}
+
+	private Path segmentPath( final int segment ) {
+		return directory.resolve( String.format( "capture-%05d.seg", segment ) );
+	}
+
+	/**
+	 * Read the index, skipping the entries for the data that did not make it to the disk.
+	 */
+	private void readIndex() throws IOException {
+		final Map<Integer, Long> segmentSizes = new HashMap<>();
+		try ( final BufferedReader reader = Files.newBufferedReader( directory.resolve( INDEX_FILENAME ), StandardCharsets.UTF_8 ) ) {
+			String line;
+			while ( ( line = reader.readLine() ) != null ) {
+				final String[] fields = line.split( "\t", 5 );
+				if ( fields.length < 5 ) {
+					continue;
+				}
+				try {
+					final Entry entry = new Entry( Integer.parseInt( fields[0] ), Long.parseLong( fields[1] ), Integer.parseInt( fields[2] ), GZIP.equals( fields[3] ) );
+					final long segmentSize = segmentSizes.computeIfAbsent( entry.segment, this::segmentSize );
+					if ( entry.offset + entry.length <= segmentSize ) {
+						entriesByKey.put( fields[4], entry );
+					}
+					segment = Math.max( segment, entry.segment );
+				} catch ( final NumberFormatException e ) {
+					// a partly written line
+				}
+			}
+		} catch ( final NoSuchFileException e ) {
+			// a new archive
+		}
+	}
+
+	private long segmentSize( final int segment ) {
+		try {
+			return Files.size( segmentPath( segment ) );
+		} catch ( final IOException e ) {
+			return 0L;
+		}
+	}
+
+	private static void writeFully( final FileChannel channel, final ByteBuffer buffer ) throws IOException {
+		while ( buffer.hasRemaining() ) {
+			channel.write( buffer );
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CaptureArchive[" + directory + ", " + size() + " requests]";
+	}
+
+	/**
+	 * Where a record is.
+	 */
+	private static class Entry {
+
+		private final int segment;
+		private final long offset;
+		private final int length;
+		private final boolean gzipped;
+
+		Entry( final int segment, final long offset, final int length, final boolean gzipped ) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.gzipped = gzipped;
+		}
+
+	}
+
+	/**
+	 * An {@link InputStream} over a {@link ByteBuffer}.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream( final ByteBuffer buffer ) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return ( buffer.hasRemaining() ) ? ( buffer.get() & 0xFF ) : -1;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len ) {
+			if ( len == 0 ) {
+				return 0;
+			}
+			if ( ! buffer.hasRemaining() ) {
+				return -1;
+			}
+			final int n = Math.min( len, buffer.remaining() );
+			buffer.get( b, off, n );
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+	}
+
+}
@@ -0,0 +1,528 @@
+package org.eurocris.openaire.cris.validator.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.eurocris.openaire.cris.validator.util.Threads;
+
+/**
+ * Writes the captured responses in a background thread, so that the disk is kept off the path of parsing.
+ * The responses go either to a file each, or as records to a {@link CaptureArchive}.
+ * The data is handed over in buffers through a bounded queue; when the queue is full, the capture either waits or is dropped, as chosen.
+ * The responses can be compressed on the fly, and they are synced to the disk in batches.
+ */
+public class CaptureWriter implements AutoCloseable {
+
+	/**
+	 * The compression of the files written.
+	 */
+	public enum Compression {
+
+		/**
+		 * Plain files.
+		 */
+		NONE( "" ),
+
+		/**
+		 * Gzipped files.
+		 */
+		GZIP( ".gz" );
+
+		private final String suffix;
+
+		private Compression( final String suffix ) {
+			this.suffix = suffix;
+		}
+
+		/**
+		 * @return the suffix to add to the file names
+		 */
+		public String getSuffix() {
+			return suffix;
+		}
+
+	}
+
+	/**
+	 * What to do with a capture when the queue is full.
+	 */
+	public enum OverflowPolicy {
+
+		/**
+		 * Wait for room in the queue (slows the reading of the response down to the speed of the disk).
+		 */
+		BLOCK,
+
+		/**
+		 * Give the capture up and delete what was written of it (the reading of the response goes on at full speed).
+		 */
+		DROP
+
+	}
+
+	private static final int BUFFER_SIZE = 64 << 10;
+
+	private static final long LIVENESS_CHECK_MILLIS = 1000L;
+
+	private final CaptureArchive archive;
+	private final Compression compression;
+	private final OverflowPolicy overflowPolicy;
+	private final long syncBytes;
+	private final BlockingQueue<Chunk> queue;
+	private final Thread thread;
+
+	private final AtomicLong captures = new AtomicLong();
+	private final AtomicLong droppedCaptures = new AtomicLong();
+	private final AtomicLong failedCaptures = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	// the state of the writer thread
+	private final Set<Capture> unsynced = new LinkedHashSet<>();
+	private boolean archiveUnsynced = false;
+	private long bytesSinceSync = 0L;
+	private volatile boolean closed = false;
+
+	/**
+	 * A new writer of a file per response, with its thread started.
+	 * @param compression the compression of the files
+	 * @param overflowPolicy what to do when the queue is full
+	 * @param queueBytes the capacity of the queue in bytes (rounded to buffers of 64 KiB)
+	 * @param syncBytes the number of bytes after which the files written are synced to the disk
+	 */
+	public CaptureWriter( final Compression compression, final OverflowPolicy overflowPolicy, final long queueBytes, final long syncBytes ) {
+		this( null, compression, overflowPolicy, queueBytes, syncBytes );
+	}
+
+	/**
+	 * A new writer to an archive, with its thread started.
+	 * Each response is collected in memory, compressed, and appended to the archive in one piece when complete.
+	 * @param archive the archive to append to; null to write a file per response
+	 * @param compression the compression of the records
+	 * @param overflowPolicy what to do when the queue is full
+	 * @param queueBytes the capacity of the queue in bytes (rounded to buffers of 64 KiB)
+	 * @param syncBytes the number of bytes after which the records appended are synced to the disk
+	 */
+	public CaptureWriter( final CaptureArchive archive, final Compression compression, final OverflowPolicy overflowPolicy, final long queueBytes, final long syncBytes ) {
+		this.archive = archive;
+		this.compression = compression;
+		this.overflowPolicy = overflowPolicy;
+		this.syncBytes = syncBytes;
+		this.queue = new ArrayBlockingQueue<>( (int) Math.max( 2L, queueBytes / BUFFER_SIZE ) );
+		this.thread = Threads.daemonThreadFactory( "capture-writer" ).newThread( this::run );
+		thread.start();
+	}
+
+	/**
+	 * @return the compression of the files
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return the archive appended to; null if a file is written per response
+	 */
+	public CaptureArchive getArchive() {
+		return archive;
+	}
+
+	/**
+	 * Start a capture to a file.
+	 * @param path the file to write to (the compression suffix is not added); should not exist yet
+	 * @return the stream to write the captured data to; closing it finishes the capture
+	 */
+	public OutputStream open( final Path path ) {
+		if ( archive != null ) {
+			throw new IllegalStateException( "The capture writer appends to " + archive );
+		}
+		return open( new Capture( path, null ) );
+	}
+
+	/**
+	 * Start a capture to the archive.
+	 * @param key the key of the request, see {@link CaptureArchive#key(String)}
+	 * @return the stream to write the captured data to; closing it finishes the capture
+	 */
+	public OutputStream open( final String key ) {
+		if ( archive == null ) {
+			throw new IllegalStateException( "The capture writer writes a file per response" );
+		}
+		return open( new Capture( null, key ) );
+	}
+
+	private OutputStream open( final Capture capture ) {
+		if ( closed ) {
+			throw new IllegalStateException( "The capture writer has been closed" );
+		}
+		captures.incrementAndGet();
+		return new CaptureOutputStream( capture );
+	}
+
+	/**
+	 * Wait until everything handed over so far has been written and synced.
+	 * @throws InterruptedException when interrupted while waiting
+	 * @throws IllegalStateException when the writer thread has stopped
+	 */
+	public void flush() throws InterruptedException {
+		flush( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+	}
+
+	/**
+	 * Wait, for a limited time, until everything handed over so far has been written and synced.
+	 * @param timeout how long to wait at most
+	 * @param unit the unit of the timeout
+	 * @return whether everything has been written in time
+	 * @throws InterruptedException when interrupted while waiting
+	 * @throws IllegalStateException when the writer thread has stopped
+	 */
+	public boolean flush( final long timeout, final TimeUnit unit ) throws InterruptedException {
+		final long startNanos = System.nanoTime();
+		final long timeoutNanos = unit.toNanos( timeout );
+		final CountDownLatch latch = new CountDownLatch( 1 );
+		final Chunk marker = new Chunk( null, null, 0, false, latch );
+		while ( ! queue.offer( marker, nextWaitNanos( startNanos, timeoutNanos ), TimeUnit.NANOSECONDS ) ) {
+			if ( nextWaitNanos( startNanos, timeoutNanos ) == 0L ) {
+				return false;
+			}
+		}
+		while ( ! latch.await( nextWaitNanos( startNanos, timeoutNanos ), TimeUnit.NANOSECONDS ) ) {
+			if ( nextWaitNanos( startNanos, timeoutNanos ) == 0L ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * How long to wait before looking again whether the writer thread is still there.
+	 * @return the time to wait in nanoseconds; 0 when the timeout is up
+	 * @throws IllegalStateException when the writer thread has stopped
+	 */
+	private long nextWaitNanos( final long startNanos, final long timeoutNanos ) {
+		if ( ! thread.isAlive() ) {
+			throw new IllegalStateException( "The capture writer thread has stopped" );
+		}
+		final long remainingNanos = timeoutNanos - ( System.nanoTime() - startNanos );
+		return Math.max( 0L, Math.min( remainingNanos, TimeUnit.MILLISECONDS.toNanos( LIVENESS_CHECK_MILLIS ) ) );
+	}
+
+	/**
+	 * Write and sync everything handed over so far, and stop the thread.
+	 * @throws InterruptedException when interrupted while waiting
+	 * @throws IllegalStateException when the writer thread has stopped before writing everything
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		if ( ! closed ) {
+			try {
+				flush();
+			} finally {
+				closed = true;
+				thread.interrupt();
+				thread.join();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of captures started
+	 */
+	public long getCaptures() {
+		return captures.get();
+	}
+
+	/**
+	 * @return the number of captures given up because the queue was full
+	 */
+	public long getDroppedCaptures() {
+		return droppedCaptures.get();
+	}
+
+	/**
+	 * @return the number of captures that could not be written
+	 */
+	public long getFailedCaptures() {
+		return failedCaptures.get();
+	}
+
+	/**
+	 * @return the number of bytes captured (before compression)
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CaptureWriter[compression=" + compression + ", overflow=" + overflowPolicy + ", captures=" + captures + ", dropped=" + droppedCaptures + ", failed=" + failedCaptures + ", bytes=" + bytes + "]";
+	}
+
+	private void run() {
+		while ( ! closed ) {
+			try {
+				final Chunk chunk = queue.poll( 1L, TimeUnit.SECONDS );
+				if ( chunk == null ) {
+					sync();
+				} else if ( chunk.latch != null ) {
+					sync();
+					chunk.latch.countDown();
+				} else {
+					write( chunk );
+				}
+			} catch ( final InterruptedException e ) {
+				// closed
+			}
+		}
+		sync();
+	}
+
+	private void write( final Chunk chunk ) {
+		final Capture capture = chunk.capture;
+		if ( capture.dropped || capture.failed ) {
+			if ( chunk.last ) {
+				discard( capture );
+			}
+			return;
+		}
+		try {
+			if ( capture.out == null ) {
+				final OutputStream out;
+				if ( archive != null ) {
+					capture.memory = new ByteArrayOutputStream();
+					out = capture.memory;
+				} else {
+					capture.channel = FileChannel.open( capture.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+					out = new BufferedOutputStream( Channels.newOutputStream( capture.channel ), BUFFER_SIZE );
+				}
+				capture.out = ( compression == Compression.GZIP ) ? new GZIPOutputStream( out, BUFFER_SIZE ) : out;
+			}
+			capture.out.write( chunk.data, 0, chunk.length );
+			bytesSinceSync += chunk.length;
+			if ( archive == null ) {
+				unsynced.add( capture );
+			}
+			if ( chunk.last ) {
+				if ( capture.out instanceof GZIPOutputStream ) {
+					( (GZIPOutputStream) capture.out ).finish();
+				}
+				capture.out.flush();
+				capture.finished = true;
+				if ( archive != null ) {
+					archive.append( capture.key, capture.memory.toByteArray(), capture.memory.size(), compression == Compression.GZIP );
+					capture.memory = null;
+					archiveUnsynced = true;
+				}
+			}
+		} catch ( final IOException e ) {
+			System.err.println( "Cannot write the capture " + capture + ": " + e );
+			capture.failed = true;
+			failedCaptures.incrementAndGet();
+			if ( chunk.last ) {
+				discard( capture );
+			}
+			return;
+		}
+		if ( bytesSinceSync >= syncBytes ) {
+			sync();
+		}
+	}
+
+	/**
+	 * Sync the files written since the last sync, and close the finished ones.
+	 */
+	private void sync() {
+		final List<Capture> done = new ArrayList<>();
+		for ( final Capture capture : unsynced ) {
+			try {
+				capture.out.flush();
+				capture.channel.force( false );
+			} catch ( final IOException e ) {
+				System.err.println( "Cannot sync the capture " + capture + ": " + e );
+			}
+			if ( capture.finished ) {
+				done.add( capture );
+			}
+		}
+		unsynced.clear();
+		for ( final Capture capture : done ) {
+			closeQuietly( capture );
+		}
+		if ( archiveUnsynced ) {
+			try {
+				archive.force();
+			} catch ( final IOException e ) {
+				System.err.println( "Cannot sync " + archive + ": " + e );
+			}
+			archiveUnsynced = false;
+		}
+		bytesSinceSync = 0L;
+	}
+
+	private void discard( final Capture capture ) {
+		unsynced.remove( capture );
+		closeQuietly( capture );
+		capture.memory = null;
+		if ( capture.path != null ) {
+			try {
+				Files.deleteIfExists( capture.path );
+			} catch ( final IOException e ) {
+				System.err.println( "Cannot delete the incomplete capture " + capture.path + ": " + e );
+			}
+		}
+	}
+
+	private static void closeQuietly( final Capture capture ) {
+		if ( capture.channel != null ) {
+			try {
+				capture.channel.close();
+			} catch ( final IOException e ) {
+				// nothing more to do
+			}
+		}
+	}
+
+	/**
+	 * One response being captured: to a file, or to a record of the archive.
+	 */
+	private static class Capture {
+
+		private final Path path;
+		private final String key;
+
+		/**
+		 * Set by the reading thread when a buffer could not be queued.
+		 */
+		private volatile boolean dropped = false;
+
+		// the state of the writer thread
+		private FileChannel channel = null;
+		private ByteArrayOutputStream memory = null;
+		private OutputStream out = null;
+		private boolean finished = false;
+		private boolean failed = false;
+
+		Capture( final Path path, final String key ) {
+			this.path = path;
+			this.key = key;
+		}
+
+		@Override
+		public String toString() {
+			return ( path != null ) ? path.toString() : key;
+		}
+
+	}
+
+	/**
+	 * A buffer of data of a capture; or, with a latch, a request to report when all before it has been written.
+	 */
+	private static class Chunk {
+
+		private final Capture capture;
+		private final byte[] data;
+		private final int length;
+		private final boolean last;
+		private final CountDownLatch latch;
+
+		Chunk( final Capture capture, final byte[] data, final int length, final boolean last, final CountDownLatch latch ) {
+			this.capture = capture;
+			this.data = data;
+			this.length = length;
+			this.last = last;
+			this.latch = latch;
+		}
+
+	}
+
+	/**
+	 * Collects the written bytes in a buffer and hands the full buffers over to the writer thread.
+	 */
+	private class CaptureOutputStream extends OutputStream {
+
+		private final Capture capture;
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int count = 0;
+		private boolean closed = false;
+
+		CaptureOutputStream( final Capture capture ) {
+			this.capture = capture;
+		}
+
+		@Override
+		public void write( final int b ) throws IOException {
+			if ( count == buffer.length ) {
+				handOver( false );
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write( final byte[] b, final int off, final int len ) throws IOException {
+			int offset = off;
+			int remaining = len;
+			while ( remaining > 0 ) {
+				if ( count == buffer.length ) {
+					handOver( false );
+				}
+				final int n = Math.min( remaining, buffer.length - count );
+				System.arraycopy( b, offset, buffer, count, n );
+				count += n;
+				offset += n;
+				remaining -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if ( ! closed ) {
+				closed = true;
+				handOver( true );
+			}
+		}
+
+		private void handOver( final boolean last ) throws IOException {
+			bytes.addAndGet( count );
+			if ( capture.dropped ) {
+				count = 0;
+				if ( ! last ) {
+					return;
+				}
+			}
+			final Chunk chunk = new Chunk( capture, buffer, count, last, null );
+			try {
+				if ( last || overflowPolicy == OverflowPolicy.BLOCK ) {
+					// the last chunk is always queued, so that the writer thread finishes the capture
+					queue.put( chunk );
+				} else if ( ! queue.offer( chunk ) ) {
+					capture.dropped = true;
+					droppedCaptures.incrementAndGet();
+				}
+			} catch ( final InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted while handing over the capture " + capture );
+			}
+			buffer = ( last ) ? null : new byte[BUFFER_SIZE];
+			count = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.eurocris.openaire.cris.validator.capture;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eurocris.openaire.cris.validator.http.URLConnectionFactory;
+
+/**
+ * The transport that serves the responses from a {@link CaptureArchive} instead of the network.
+ * A request is answered with the response captured for the same URL, so a whole harvest can be run again, resumption tokens and all, at the speed of the disk.
+ * A request that has not been captured is answered with 404.
+ */
+public class ReplayURLConnectionFactory implements URLConnectionFactory {
+
+	private final CaptureArchive archive;
+
+	/**
+	 * A factory over the given archive.
+	 * @param archive the archive of the captured responses
+	 */
+	public ReplayURLConnectionFactory( final CaptureArchive archive ) {
+		this.archive = archive;
+	}
+
+	/**
+	 * @return the archive of the captured responses
+	 */
+	public CaptureArchive getArchive() {
+		return archive;
+	}
+
+	@Override
+	public URLConnection openConnection( final URL url ) throws IOException {
+		return new ReplayURLConnection( archive, url );
+	}
+
+}
+
+/**
+ * An {@link HttpURLConnection} that reads the response from a {@link CaptureArchive}.
+ */
+class ReplayURLConnection extends HttpURLConnection {
+
+	private static final String CONTENT_TYPE = "text/xml; charset=UTF-8";
+
+	private final CaptureArchive archive;
+
+	private InputStream body;
+
+	/**
+	 * A connection to the given URL in the given archive.
+	 * @param archive the archive
+	 * @param url the URL
+	 */
+	ReplayURLConnection( final CaptureArchive archive, final URL url ) {
+		super( url );
+		this.archive = archive;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		if ( connected ) {
+			return;
+		}
+		body = archive.openStream( CaptureArchive.key( getURL().toExternalForm() ) );
+		responseCode = ( body != null ) ? HTTP_OK : HTTP_NOT_FOUND;
+		responseMessage = ( body != null ) ? "OK" : "Not Captured";
+		connected = true;
+	}
+
+	@Override
+	public int getResponseCode() throws IOException {
+		connect();
+		return responseCode;
+	}
+
+	@Override
+	public String getResponseMessage() throws IOException {
+		connect();
+		return responseMessage;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		connect();
+		if ( body == null ) {
+			throw new FileNotFoundException( "Not captured: " + getURL() );
+		}
+		return body;
+	}
+
+	@Override
+	public String getHeaderField( final String name ) {
+		return ( "Content-Type".equalsIgnoreCase( name ) && body != null ) ? CONTENT_TYPE : null;
+	}
+
+	@Override
+	public Map<String, List<String>> getHeaderFields() {
+		final Map<String, List<String>> result = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+		if ( body != null ) {
+			result.put( "Content-Type", Collections.singletonList( CONTENT_TYPE ) );
+		}
+		return result;
+	}
+
+	@Override
+	public String getHeaderFieldKey( final int n ) {
+		return ( n == 1 && body != null ) ? "Content-Type" : null;
+	}
+
+	/**
+	 * As with {@link HttpURLConnection}, field 0 is the status line.
+	 */
+	@Override
+	public String getHeaderField( final int n ) {
+		if ( n == 0 ) {
+			return ( connected ) ? "HTTP/1.1 " + responseCode + " " + responseMessage : null;
+		}
+		return ( n == 1 && body != null ) ? CONTENT_TYPE : null;
+	}
+
+	@Override
+	public void disconnect() {
+		if ( body != null ) {
+			try {
+				body.close();
+			} catch ( final IOException e ) {
+				// closing anyway
+			}
+		}
+	}
+
+	@Override
+	public boolean usingProxy() {
+		return false;
+	}
+
+}
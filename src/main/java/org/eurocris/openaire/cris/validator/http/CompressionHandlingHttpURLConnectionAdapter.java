@@ -159,9 +159,9 @@ public class CompressionHandlingHttpURLConnectionAdapter extends DelegatingURLCo
 	@Override
 	public String getHeaderField( final String name ) {
 		if ( isResponseCompressed() ) {
-			if ( CONTENT_ENCODING.equals( name ) ) {
+			if ( CONTENT_ENCODING.equalsIgnoreCase( name ) ) {
 				return IDENTITY;
-			} else if ( CONTENT_LENGTH.equals( name ) ) {
+			} else if ( CONTENT_LENGTH.equalsIgnoreCase( name ) ) {
 				return null;
 			}
 		}
@@ -177,9 +177,9 @@ public class CompressionHandlingHttpURLConnectionAdapter extends DelegatingURLCo
 			final List<String> value1 = e.getValue();
 			List<String> value2 = value1;
 			if ( compressed ) {
-				if ( CONTENT_ENCODING.equals( key ) ) {
+				if ( CONTENT_ENCODING.equalsIgnoreCase( key ) ) {
 					value2 = Collections.singletonList( IDENTITY );
-				} else if ( CONTENT_LENGTH.equals( key ) ) {
+				} else if ( CONTENT_LENGTH.equalsIgnoreCase( key ) ) {
 					continue;
 				}	
 			}
@@ -190,12 +190,12 @@ public class CompressionHandlingHttpURLConnectionAdapter extends DelegatingURLCo
 
 	@Override
 	public int getHeaderFieldInt( final String name, final int Default ) {
-		return ( CONTENT_LENGTH.equals( name ) && isResponseCompressed() ) ? Default : super.getHeaderFieldInt( name, Default );
+		return ( CONTENT_LENGTH.equalsIgnoreCase( name ) && isResponseCompressed() ) ? Default : super.getHeaderFieldInt( name, Default );
 	}
 
 	@Override
 	public long getHeaderFieldLong( final String name, final long Default ) {
-		return ( CONTENT_LENGTH.equals( name ) && isResponseCompressed() ) ? Default : super.getHeaderFieldLong( name, Default );
+		return ( CONTENT_LENGTH.equalsIgnoreCase( name ) && isResponseCompressed() ) ? Default : super.getHeaderFieldLong( name, Default );
 	}
 
 	@Override
@@ -214,7 +214,7 @@ public class CompressionHandlingHttpURLConnectionAdapter extends DelegatingURLCo
 		final Integer nn = convertFieldIndex( n );
 		return ( nn != null ) 
 			? (
-				( isResponseCompressed() && CONTENT_ENCODING.equals( super.getHeaderFieldKey( nn ) ) ) ? IDENTITY : super.getHeaderField( nn ) 
+				( isResponseCompressed() && CONTENT_ENCODING.equalsIgnoreCase( super.getHeaderFieldKey( nn ) ) ) ? IDENTITY : super.getHeaderField( nn ) 
 			  ) : null;
 	}
 
@@ -231,7 +231,7 @@ public class CompressionHandlingHttpURLConnectionAdapter extends DelegatingURLCo
 			int i = 0;
 			String key;
 			while ( ( key = super.getHeaderFieldKey( i ) ) != null ) {
-				if (!( CONTENT_LENGTH.equals( key ) && isResponseCompressed() )) {
+				if (!( CONTENT_LENGTH.equalsIgnoreCase( key ) && isResponseCompressed() )) {
 					fieldKeys.add( fieldKeys.size(), i );					
 				}
 				++i;
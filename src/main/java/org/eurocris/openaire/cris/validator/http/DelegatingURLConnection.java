@@ -29,6 +29,19 @@ public class DelegatingURLConnection extends URLConnection {
 	 */
 	protected final URLConnection base;
 
+	/**
+	 * Find the innermost connection that the given one delegates to.
+	 * @param conn the connection, possibly delegating
+	 * @return the connection that does not delegate any further
+	 */
+	public static URLConnection unwrap( final URLConnection conn ) {
+		URLConnection c = conn;
+		while ( c instanceof DelegatingURLConnection ) {
+			c = ( (DelegatingURLConnection) c ).base;
+		}
+		return c;
+	}
+
 	public void connect() throws IOException {
 		base.connect();
 	}
@@ -0,0 +1,241 @@
+package org.eurocris.openaire.cris.validator.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The transport over a shared {@link HttpClient}.
+ * All the connections made by one factory share the client's connection pool, so the connections and TLS sessions are kept alive and reused,
+ * and concurrent requests to the same host are multiplexed over one connection where the server speaks HTTP/2.
+ * The response bodies are streamed as they arrive.
+ * URLs other than http: and https: ones are opened the default way.
+ */
+public class HttpClientURLConnectionFactory implements URLConnectionFactory {
+
+	private final HttpClient client;
+
+	/**
+	 * A factory with a client of its own, preferring HTTP/2 and following redirects, with no connect timeout.
+	 */
+	public HttpClientURLConnectionFactory() {
+		this( (Duration) null );
+	}
+
+	/**
+	 * A factory with a client of its own, preferring HTTP/2 and following redirects.
+	 * @param connectTimeout the timeout for making a connection, as {@link URLConnection#setConnectTimeout(int)}; null for none
+	 */
+	public HttpClientURLConnectionFactory( final Duration connectTimeout ) {
+		this( newClient( connectTimeout ) );
+	}
+
+	/**
+	 * A factory with a given client.
+	 * @param client the client to send the requests through
+	 */
+	public HttpClientURLConnectionFactory( final HttpClient client ) {
+		this.client = client;
+	}
+
+	private static HttpClient newClient( final Duration connectTimeout ) {
+		final HttpClient.Builder builder = HttpClient.newBuilder().version( HttpClient.Version.HTTP_2 ).followRedirects( HttpClient.Redirect.NORMAL );
+		if ( connectTimeout != null ) {
+			builder.connectTimeout( connectTimeout );
+		}
+		return builder.build();
+	}
+
+	@Override
+	public URLConnection openConnection( final URL url ) throws IOException {
+		final String protocol = url.getProtocol();
+		if ( "http".equals( protocol ) || "https".equals( protocol ) ) {
+			return new HttpClientURLConnection( client, url );
+		}
+		return url.openConnection();
+	}
+
+}
+
+/**
+ * An {@link HttpURLConnection} that sends a GET request through an {@link HttpClient}.
+ */
+class HttpClientURLConnection extends HttpURLConnection {
+
+	/**
+	 * The headers the {@link HttpClient} sets by itself and does not let us set.
+	 */
+	private static final Set<String> RESTRICTED_HEADERS = new HashSet<>( Arrays.asList( "connection", "content-length", "expect", "host", "upgrade" ) );
+
+	private final HttpClient client;
+
+	private HttpResponse<InputStream> response;
+
+	private List<String[]> headerFields;
+
+	/**
+	 * A connection to the given URL through the given client.
+	 * @param client the client
+	 * @param url the URL
+	 */
+	HttpClientURLConnection( final HttpClient client, final URL url ) {
+		super( url );
+		this.client = client;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		if ( connected ) {
+			return;
+		}
+		final HttpRequest.Builder rb;
+		try {
+			rb = HttpRequest.newBuilder( getURL().toURI() ).GET();
+		} catch ( final URISyntaxException | IllegalArgumentException e ) {
+			throw new IOException( "Cannot make a request to " + getURL(), e );
+		}
+		if ( getReadTimeout() > 0 ) {
+			rb.timeout( Duration.ofMillis( getReadTimeout() ) );
+		}
+		for ( final Map.Entry<String, List<String>> e : getRequestProperties().entrySet() ) {
+			final String key = e.getKey();
+			if ( key != null && ! RESTRICTED_HEADERS.contains( key.toLowerCase() ) ) {
+				for ( final String value : e.getValue() ) {
+					rb.header( key, value );
+				}
+			}
+		}
+		try {
+			response = client.send( rb.build(), HttpResponse.BodyHandlers.ofInputStream() );
+		} catch ( final InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for the response from " + getURL() );
+		}
+		responseCode = response.statusCode();
+		connected = true;
+	}
+
+	private HttpResponse<InputStream> getResponse() throws IOException {
+		connect();
+		return response;
+	}
+
+	@Override
+	public int getResponseCode() throws IOException {
+		return getResponse().statusCode();
+	}
+
+	/**
+	 * The {@link HttpClient} does not keep the reason phrase (and HTTP/2 has none).
+	 * @return an empty string
+	 */
+	@Override
+	public String getResponseMessage() throws IOException {
+		getResponse();
+		return "";
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		final HttpResponse<InputStream> r = getResponse();
+		if ( r.statusCode() >= HTTP_BAD_REQUEST ) {
+			throw new IOException( "Server returned HTTP response code: " + r.statusCode() + " for URL: " + getURL() );
+		}
+		return r.body();
+	}
+
+	@Override
+	public InputStream getErrorStream() {
+		return ( response != null && response.statusCode() >= HTTP_BAD_REQUEST ) ? response.body() : null;
+	}
+
+	@Override
+	public String getHeaderField( final String name ) {
+		try {
+			return ( name != null ) ? getResponse().headers().firstValue( name ).orElse( null ) : null;
+		} catch ( final IOException e ) {
+			return null;
+		}
+	}
+
+	@Override
+	public Map<String, List<String>> getHeaderFields() {
+		final Map<String, List<String>> result = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+		try {
+			result.putAll( getResponse().headers().map() );
+		} catch ( final IOException e ) {
+			// no headers then
+		}
+		return result;
+	}
+
+	/**
+	 * As with {@link HttpURLConnection}, field 0 is the status line.
+	 */
+	@Override
+	public String getHeaderFieldKey( final int n ) {
+		final String[] field = getHeaderFieldAt( n );
+		return ( field != null ) ? field[0] : null;
+	}
+
+	/**
+	 * As with {@link HttpURLConnection}, field 0 is the status line.
+	 */
+	@Override
+	public String getHeaderField( final int n ) {
+		final String[] field = getHeaderFieldAt( n );
+		return ( field != null ) ? field[1] : null;
+	}
+
+	private String[] getHeaderFieldAt( final int n ) {
+		if ( headerFields == null ) {
+			final HttpResponse<InputStream> r;
+			try {
+				r = getResponse();
+			} catch ( final IOException e ) {
+				return null;
+			}
+			final List<String[]> fields = new ArrayList<>();
+			fields.add( new String[] { null, ( r.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 " ) + r.statusCode() } );
+			for ( final Map.Entry<String, List<String>> e : r.headers().map().entrySet() ) {
+				for ( final String value : e.getValue() ) {
+					fields.add( new String[] { e.getKey(), value } );
+				}
+			}
+			headerFields = fields;
+		}
+		return ( n >= 0 && n < headerFields.size() ) ? headerFields.get( n ) : null;
+	}
+
+	@Override
+	public void disconnect() {
+		if ( response != null ) {
+			try {
+				response.body().close();
+			} catch ( final IOException e ) {
+				// closing anyway
+			}
+		}
+	}
+
+	@Override
+	public boolean usingProxy() {
+		return false;
+	}
+
+}
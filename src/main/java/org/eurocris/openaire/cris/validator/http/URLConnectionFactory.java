@@ -0,0 +1,27 @@
+package org.eurocris.openaire.cris.validator.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * The transport: the way to open a {@link URLConnection} to a URL.
+ * The connection returned is not connected yet, so that the request headers can still be set.
+ */
+@FunctionalInterface
+public interface URLConnectionFactory {
+
+	/**
+	 * The transport of the JDK's URL handlers, i.e., {@link URL#openConnection()}.
+	 */
+	URLConnectionFactory DEFAULT = URL::openConnection;
+
+	/**
+	 * Open a connection.
+	 * @param url the URL to connect to
+	 * @return the connection, not connected yet
+	 * @throws IOException if the connection cannot be made
+	 */
+	URLConnection openConnection( final URL url ) throws IOException;
+
+}
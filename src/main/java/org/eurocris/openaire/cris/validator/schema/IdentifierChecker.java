@@ -0,0 +1,570 @@
+package org.eurocris.openaire.cris.validator.schema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The checks of the persistent identifiers in the payloads (DOI, ORCID, ISSN, ISBN, ROR): of their syntax, and of their check digits,
+ * which the patterns of the XML Schemas of the profile cannot verify.
+ * The checks go over the characters of the value once and allocate nothing.
+ * The counts of the identifiers checked are kept per type, and can be updated from several threads at the same time.
+ * <p>
+ * The identifiers are taken from the elements of the payload namespace that are dedicated to them (e.g., <code>ISSN</code>, <code>ORCID</code>),
+ * and from the generic <code>Identifier</code> elements with a <code>type</code> of the CERIF identifier types vocabulary (e.g., <code>...IdentifierTypes#ROR</code>).
+ */
+public class IdentifierChecker {
+
+	/**
+	 * The prefix of the terms of the CERIF identifier types vocabulary.
+	 */
+	public static final String IDENTIFIER_TYPES_PREFIX = "https://w3id.org/cerif/vocab/IdentifierTypes#";
+
+	/**
+	 * The outcome of a check of an identifier.
+	 */
+	public enum Verdict {
+		/** The identifier is fine. */
+		VALID,
+		/** The identifier does not have the right syntax. */
+		MALFORMED,
+		/** The syntax is right, but the check digit is wrong. */
+		WRONG_CHECK_DIGIT
+	}
+
+	/**
+	 * The types of the identifiers checked, with their checks.
+	 */
+	public enum Type {
+
+		/** A Digital Object Identifier, such as <code>10.1007/978-3-642-35233-1</code>. */
+		DOI {
+			@Override
+			public Verdict check( final String value ) {
+				return checkDoi( value );
+			}
+		},
+
+		/** An ORCID iD, such as <code>https://orcid.org/0000-0002-1825-0097</code>; its check digit is computed by ISO/IEC 7064 MOD 11-2. */
+		ORCID {
+			@Override
+			public Verdict check( final String value ) {
+				return checkOrcid( value );
+			}
+		},
+
+		/** An International Standard Serial Number, such as <code>1746-8256</code>; its check digit is computed modulo 11. */
+		ISSN {
+			@Override
+			public Verdict check( final String value ) {
+				return checkIssn( value );
+			}
+		},
+
+		/** An International Standard Book Number, either of 10 digits (check digit modulo 11) or of 13 digits (check digit modulo 10). */
+		ISBN {
+			@Override
+			public Verdict check( final String value ) {
+				return checkIsbn( value );
+			}
+		},
+
+		/** A Research Organization Registry identifier, such as <code>https://ror.org/052gg0110</code>; its check digits are computed modulo 97. */
+		ROR {
+			@Override
+			public Verdict check( final String value ) {
+				return checkRor( value );
+			}
+		};
+
+		/**
+		 * Check an identifier of this type.
+		 * @param value the identifier
+		 * @return the verdict
+		 */
+		public abstract Verdict check( final String value );
+
+	}
+
+	private final Map<Type, Counts> countsByType = new EnumMap<>( Type.class );
+
+	private final LongAdder records = new LongAdder();
+
+	private final LongAdder recordsWithInvalid = new LongAdder();
+
+	/**
+	 * A new checker, with zero counts.
+	 */
+	public IdentifierChecker() {
+		for ( final Type type : Type.values() ) {
+			countsByType.put( type, new Counts() );
+		}
+	}
+
+	/**
+	 * The type of the identifier in an element.
+	 * @param el the element
+	 * @param namespace the namespace of the payload
+	 * @return the type; null if the element does not take an identifier of one of the types
+	 */
+	static Type typeOf( final Element el, final String namespace ) {
+		if ( namespace == null || ! namespace.equals( el.getNamespaceURI() ) ) {
+			return null;
+		}
+		switch ( el.getLocalName() ) {
+		case "DOI":
+			return Type.DOI;
+		case "ORCID":
+		case "AlternativeORCID":
+			return Type.ORCID;
+		case "ISSN":
+			return Type.ISSN;
+		case "ISBN":
+			return Type.ISBN;
+		case "Identifier":
+			final String type = el.getAttribute( "type" );
+			if ( type.startsWith( IDENTIFIER_TYPES_PREFIX ) ) {
+				switch ( type.substring( IDENTIFIER_TYPES_PREFIX.length() ) ) {
+				case "DOI":
+					return Type.DOI;
+				case "ORCID":
+					return Type.ORCID;
+				case "ISSN":
+					return Type.ISSN;
+				case "ISBN":
+					return Type.ISBN;
+				case "ROR":
+					return Type.ROR;
+				default:
+					return null;
+				}
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Check the identifiers in a payload, and count them.
+	 * @param payload the payload element
+	 * @return the identifiers of the record, by type, and those that are not valid
+	 */
+	public Result check( final Element payload ) {
+		final Result result = new Result();
+		check( payload, payload.getNamespaceURI(), result );
+		records.increment();
+		if ( ! result.invalid.isEmpty() ) {
+			recordsWithInvalid.increment();
+		}
+		return result;
+	}
+
+	private void check( final Element el, final String namespace, final Result result ) {
+		final Type type = typeOf( el, namespace );
+		if ( type != null ) {
+			final String value = el.getTextContent().trim();
+			final Verdict verdict = type.check( value );
+			countsByType.get( type ).count( verdict );
+			result.count( type );
+			if ( verdict != Verdict.VALID ) {
+				result.invalid.add( new Invalid( type, value, verdict ) );
+			}
+			return;
+		}
+		for ( Node n = el.getFirstChild(); n != null; n = n.getNextSibling() ) {
+			if ( n instanceof Element ) {
+				check( (Element) n, namespace, result );
+			}
+		}
+	}
+
+	/**
+	 * @param type the type of identifiers
+	 * @return how many identifiers of the type have been checked
+	 */
+	public long getChecked( final Type type ) {
+		return countsByType.get( type ).checked.sum();
+	}
+
+	/**
+	 * @param type the type of identifiers
+	 * @param verdict the verdict
+	 * @return how many identifiers of the type have been checked with the verdict
+	 */
+	public long getCount( final Type type, final Verdict verdict ) {
+		final Counts counts = countsByType.get( type );
+		switch ( verdict ) {
+		case MALFORMED:
+			return counts.malformed.sum();
+		case WRONG_CHECK_DIGIT:
+			return counts.wrongCheckDigit.sum();
+		default:
+			return counts.checked.sum() - counts.malformed.sum() - counts.wrongCheckDigit.sum();
+		}
+	}
+
+	/**
+	 * @return how many payloads have been checked
+	 */
+	public long getRecords() {
+		return records.sum();
+	}
+
+	/**
+	 * @return how many payloads have had an identifier that is not valid
+	 */
+	public long getRecordsWithInvalid() {
+		return recordsWithInvalid.sum();
+	}
+
+	/**
+	 * The counts of the identifiers checked, per type.
+	 * @return the report, a line per type of identifiers seen
+	 */
+	public String getReport() {
+		long checked = 0L;
+		for ( final Counts counts : countsByType.values() ) {
+			checked += counts.checked.sum();
+		}
+		final StringBuilder sb = new StringBuilder( "Identifiers: " + checked + " in " + getRecords() + " records, " + getRecordsWithInvalid() + " records with invalid ones" );
+		for ( final Map.Entry<Type, Counts> e : countsByType.entrySet() ) {
+			final Counts counts = e.getValue();
+			if ( counts.checked.sum() > 0L ) {
+				sb.append( "\n  " ).append( e.getKey() ).append( ": " ).append( counts.checked.sum() ).append( " checked, " ).append( counts.malformed.sum() ).append( " malformed, " ).append( counts.wrongCheckDigit.sum() ).append( " with a wrong check digit" );
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "IdentifierChecker[" + getRecords() + " records]";
+	}
+
+	private static final String[] DOI_PREFIXES = { "https://doi.org/", "http://doi.org/", "https://dx.doi.org/", "http://dx.doi.org/" };
+
+	private static final String[] ORCID_PREFIXES = { "https://orcid.org/", "http://orcid.org/" };
+
+	private static final String[] ROR_PREFIXES = { "https://ror.org/", "http://ror.org/" };
+
+	private static int skipPrefix( final String value, final String[] prefixes ) {
+		for ( final String prefix : prefixes ) {
+			if ( value.startsWith( prefix ) ) {
+				return prefix.length();
+			}
+		}
+		return 0;
+	}
+
+	private static boolean isDigit( final char c ) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Check a DOI: <code>10.</code>, a registrant code of at least four digits, maybe with subdivisions, a slash and a suffix without whitespace.
+	 * The DOI may be given as a <code>doi.org</code> URL.
+	 * @param value the DOI
+	 * @return the verdict
+	 */
+	public static Verdict checkDoi( final String value ) {
+		int i = skipPrefix( value, DOI_PREFIXES );
+		final int n = value.length();
+		if ( ! value.startsWith( "10.", i ) ) {
+			return Verdict.MALFORMED;
+		}
+		i += 3;
+		int digits = 0;
+		while ( i < n && isDigit( value.charAt( i ) ) ) {
+			++i;
+			++digits;
+		}
+		if ( digits < 4 ) {
+			return Verdict.MALFORMED;
+		}
+		while ( i < n && value.charAt( i ) == '.' ) {
+			++i;
+			digits = 0;
+			while ( i < n && isDigit( value.charAt( i ) ) ) {
+				++i;
+				++digits;
+			}
+			if ( digits == 0 ) {
+				return Verdict.MALFORMED;
+			}
+		}
+		if ( i >= n || value.charAt( i ) != '/' || i + 1 == n ) {
+			return Verdict.MALFORMED;
+		}
+		for ( ++i; i < n; ++i ) {
+			if ( Character.isWhitespace( value.charAt( i ) ) ) {
+				return Verdict.MALFORMED;
+			}
+		}
+		return Verdict.VALID;
+	}
+
+	/**
+	 * Check an ORCID iD: four groups of four digits separated by hyphens, the last character being the check digit (or <code>X</code>).
+	 * The iD may be given as an <code>orcid.org</code> URL.
+	 * @param value the ORCID iD
+	 * @return the verdict
+	 */
+	public static Verdict checkOrcid( final String value ) {
+		final int start = skipPrefix( value, ORCID_PREFIXES );
+		if ( value.length() - start != 19 ) {
+			return Verdict.MALFORMED;
+		}
+		int total = 0;
+		for ( int j = 0; j < 18; ++j ) {
+			final char c = value.charAt( start + j );
+			if ( j % 5 == 4 ) {
+				if ( c != '-' ) {
+					return Verdict.MALFORMED;
+				}
+			} else if ( isDigit( c ) ) {
+				total = ( total + ( c - '0' ) ) * 2;
+			} else {
+				return Verdict.MALFORMED;
+			}
+		}
+		final char last = value.charAt( start + 18 );
+		if ( ! isDigit( last ) && last != 'X' ) {
+			return Verdict.MALFORMED;
+		}
+		final int result = ( 12 - total % 11 ) % 11;
+		return ( last == ( ( result == 10 ) ? 'X' : (char) ( '0' + result ) ) ) ? Verdict.VALID : Verdict.WRONG_CHECK_DIGIT;
+	}
+
+	/**
+	 * Check an ISSN: eight digits, maybe with a hyphen after the fourth, the last being the check digit (or <code>X</code>).
+	 * @param value the ISSN
+	 * @return the verdict
+	 */
+	public static Verdict checkIssn( final String value ) {
+		final int n = value.length();
+		if ( n != 8 && ( n != 9 || value.charAt( 4 ) != '-' ) ) {
+			return Verdict.MALFORMED;
+		}
+		int sum = 0;
+		int weight = 8;
+		for ( int i = 0; i < n - 1; ++i ) {
+			if ( i == 4 && n == 9 ) {
+				continue;
+			}
+			final char c = value.charAt( i );
+			if ( ! isDigit( c ) ) {
+				return Verdict.MALFORMED;
+			}
+			sum += ( c - '0' ) * weight--;
+		}
+		final char last = value.charAt( n - 1 );
+		if ( ! isDigit( last ) && last != 'X' ) {
+			return Verdict.MALFORMED;
+		}
+		final int check = ( 11 - sum % 11 ) % 11;
+		return ( last == ( ( check == 10 ) ? 'X' : (char) ( '0' + check ) ) ) ? Verdict.VALID : Verdict.WRONG_CHECK_DIGIT;
+	}
+
+	/**
+	 * Check an ISBN: either 10 characters (the last being the check digit or <code>X</code>) or 13 digits starting with 978 or 979,
+	 * without separators or with all the groups (four for an ISBN-10, five for an ISBN-13) separated by hyphens or by spaces.
+	 * @param value the ISBN
+	 * @return the verdict
+	 */
+	public static Verdict checkIsbn( final String value ) {
+		final int n = value.length();
+		char separator = 0;
+		int separators = 0;
+		int digits = 0;
+		int sum10 = 0;
+		int sum13 = 0;
+		int prefix = 0;
+		boolean checkDigitX = false;
+		for ( int i = 0; i < n; ++i ) {
+			final char c = value.charAt( i );
+			if ( isDigit( c ) ) {
+				final int d = c - '0';
+				++digits;
+				sum10 += d * ( 11 - digits );
+				sum13 += ( digits % 2 == 1 ) ? d : 3 * d;
+				if ( digits <= 3 ) {
+					prefix = prefix * 10 + d;
+				}
+			} else if ( c == 'X' && i == n - 1 ) {
+				++digits;
+				sum10 += 10 * ( 11 - digits );
+				checkDigitX = true;
+			} else if ( ( c == '-' || c == ' ' ) && ( separator == 0 || separator == c ) && i > 0 && i < n - 1 && isDigit( value.charAt( i - 1 ) ) ) {
+				separator = c;
+				++separators;
+			} else {
+				return Verdict.MALFORMED;
+			}
+		}
+		if ( digits == 10 && ( separators == 0 || separators == 3 ) ) {
+			return ( sum10 % 11 == 0 ) ? Verdict.VALID : Verdict.WRONG_CHECK_DIGIT;
+		}
+		if ( digits == 13 && ! checkDigitX && ( separators == 0 || separators == 4 ) && ( prefix == 978 || prefix == 979 ) ) {
+			return ( sum13 % 10 == 0 ) ? Verdict.VALID : Verdict.WRONG_CHECK_DIGIT;
+		}
+		return Verdict.MALFORMED;
+	}
+
+	/**
+	 * The digits of the Crockford Base32 encoding of the ROR identifiers, by character; -1 for the characters that are not digits.
+	 */
+	private static final byte[] BASE32_DIGITS = new byte[128];
+	static {
+		Arrays.fill( BASE32_DIGITS, (byte) -1 );
+		final String alphabet = "0123456789abcdefghjkmnpqrstvwxyz";
+		for ( int i = 0; i < alphabet.length(); ++i ) {
+			BASE32_DIGITS[alphabet.charAt( i )] = (byte) i;
+			BASE32_DIGITS[Character.toUpperCase( alphabet.charAt( i ) )] = (byte) i;
+		}
+	}
+
+	/**
+	 * Check a ROR identifier: <code>0</code>, six Crockford Base32 characters and two check digits computed modulo 97 (ISO/IEC 7064 MOD 97-10).
+	 * The identifier may be given as a <code>ror.org</code> URL.
+	 * @param value the ROR identifier
+	 * @return the verdict
+	 */
+	public static Verdict checkRor( final String value ) {
+		final int start = skipPrefix( value, ROR_PREFIXES );
+		if ( value.length() - start != 9 || value.charAt( start ) != '0' ) {
+			return Verdict.MALFORMED;
+		}
+		long number = 0L;
+		for ( int i = start + 1; i < start + 7; ++i ) {
+			final char c = value.charAt( i );
+			final int d = ( c < 128 ) ? BASE32_DIGITS[c] : -1;
+			if ( d < 0 ) {
+				return Verdict.MALFORMED;
+			}
+			number = number * 32 + d;
+		}
+		final char c1 = value.charAt( start + 7 );
+		final char c2 = value.charAt( start + 8 );
+		if ( ! isDigit( c1 ) || ! isDigit( c2 ) ) {
+			return Verdict.MALFORMED;
+		}
+		final long check = 98L - ( number * 100L ) % 97L;
+		return ( check == ( c1 - '0' ) * 10 + ( c2 - '0' ) ) ? Verdict.VALID : Verdict.WRONG_CHECK_DIGIT;
+	}
+
+	/**
+	 * The identifiers of a record: how many of each type, and those that are not valid.
+	 */
+	public static class Result {
+
+		private final int[] counts = new int[Type.values().length];
+
+		private final List<Invalid> invalid = new ArrayList<>( 0 );
+
+		void count( final Type type ) {
+			++counts[type.ordinal()];
+		}
+
+		/**
+		 * @param type the type of identifiers
+		 * @return how many identifiers of the type the record has
+		 */
+		public int getCount( final Type type ) {
+			return counts[type.ordinal()];
+		}
+
+		/**
+		 * @return the identifiers that are not valid; empty if there are none
+		 */
+		public List<Invalid> getInvalid() {
+			return invalid;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			for ( final Type type : Type.values() ) {
+				if ( counts[type.ordinal()] > 0 ) {
+					sb.append( ( sb.length() > 0 ) ? ", " : "" ).append( type ).append( ": " ).append( counts[type.ordinal()] );
+				}
+			}
+			return "{" + sb + ( invalid.isEmpty() ? "" : "; invalid: " + invalid ) + "}";
+		}
+
+	}
+
+	/**
+	 * An identifier that is not valid.
+	 */
+	public static class Invalid {
+
+		private final Type type;
+
+		private final String value;
+
+		private final Verdict verdict;
+
+		Invalid( final Type type, final String value, final Verdict verdict ) {
+			this.type = type;
+			this.value = value;
+			this.verdict = verdict;
+		}
+
+		/**
+		 * @return the type of the identifier
+		 */
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * @return the identifier
+		 */
+		public String getValue() {
+			return value;
+		}
+
+		/**
+		 * @return why the identifier is not valid
+		 */
+		public Verdict getVerdict() {
+			return verdict;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + value + " (" + ( ( verdict == Verdict.MALFORMED ) ? "malformed" : "wrong check digit" ) + ")";
+		}
+
+	}
+
+	/**
+	 * The counts of the identifiers of a type.
+	 */
+	private static class Counts {
+
+		private final LongAdder checked = new LongAdder();
+
+		private final LongAdder malformed = new LongAdder();
+
+		private final LongAdder wrongCheckDigit = new LongAdder();
+
+		void count( final Verdict verdict ) {
+			checked.increment();
+			if ( verdict == Verdict.MALFORMED ) {
+				malformed.increment();
+			} else if ( verdict == Verdict.WRONG_CHECK_DIGIT ) {
+				wrongCheckDigit.increment();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,163 @@
+package org.eurocris.openaire.cris.validator.schema;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.xml.validation.Schema;
+
+import org.xml.sax.SAXException;
+
+/**
+ * The schemas for the payloads, one per target namespace, each compiled when it is first asked for.
+ * A payload is validated against the grammar of its own namespace only, and the grammars of the namespaces an endpoint does not use are not compiled at all.
+ * Different namespaces can be compiled at the same time; each is compiled just once.
+ * The time each compilation took is kept.
+ */
+public class SchemaRegistry {
+
+	/**
+	 * The way to compile the schema for a namespace.
+	 */
+	@FunctionalInterface
+	public interface Compiler {
+
+		/**
+		 * Compile the schema.
+		 * @return the schema
+		 * @throws SAXException on a problem in the schema
+		 * @throws IOException on a problem reading the schema
+		 */
+		Schema compile() throws SAXException, IOException;
+
+	}
+
+	private final Map<String, Entry> entriesByNamespace = new LinkedHashMap<>();
+
+	/**
+	 * Register the schema for a namespace.
+	 * @param namespace the target namespace
+	 * @param compiler the way to compile the schema
+	 */
+	public synchronized void register( final String namespace, final Compiler compiler ) {
+		entriesByNamespace.put( namespace, new Entry( compiler ) );
+	}
+
+	/**
+	 * @return the namespaces registered, in the order they were registered
+	 */
+	public synchronized Set<String> getNamespaces() {
+		return Collections.unmodifiableSet( new LinkedHashSet<>( entriesByNamespace.keySet() ) );
+	}
+
+	/**
+	 * @param namespace the namespace
+	 * @return whether a schema is registered for the namespace
+	 */
+	public synchronized boolean contains( final String namespace ) {
+		return entriesByNamespace.containsKey( namespace );
+	}
+
+	/**
+	 * @param namespace the namespace
+	 * @return whether the schema for the namespace has been compiled
+	 */
+	public boolean isCompiled( final String namespace ) {
+		final Entry entry = entry( namespace );
+		return entry != null && entry.isCompiled();
+	}
+
+	/**
+	 * Get the schema for a namespace, compiling it on the first call.
+	 * The callers for the same namespace wait for the one compiling it.
+	 * @param namespace the namespace
+	 * @return the schema; null if none is registered for the namespace
+	 * @throws IllegalStateException when the schema cannot be compiled
+	 */
+	public Schema get( final String namespace ) {
+		final Entry entry = entry( namespace );
+		return ( entry != null ) ? entry.get( namespace ) : null;
+	}
+
+	/**
+	 * Start compiling the schema for a namespace, unless it has been compiled already, as a task of its own.
+	 * A caller of {@link #get(String)} for the namespace while it is being compiled waits for the task; a task that fails leaves the schema to be compiled (and the failure reported) on the next call.
+	 * @param namespace the namespace
+	 * @param executor where to compile the schema
+	 * @return the compilation started; null if the schema has been compiled already or none is registered for the namespace
+	 */
+	public Future<Schema> compile( final String namespace, final ExecutorService executor ) {
+		return ( contains( namespace ) && ! isCompiled( namespace ) ) ? executor.submit( () -> get( namespace ) ) : null;
+	}
+
+	/**
+	 * @param namespace the namespace
+	 * @return how long compiling the schema for the namespace took, in milliseconds; -1 if it has not been compiled
+	 */
+	public long getCompileMillis( final String namespace ) {
+		final Entry entry = entry( namespace );
+		return ( entry != null && entry.isCompiled() ) ? entry.compileNanos / 1000000L : -1L;
+	}
+
+	private synchronized Entry entry( final String namespace ) {
+		return entriesByNamespace.get( namespace );
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder( "SchemaRegistry[" );
+		String sep = "";
+		for ( final Map.Entry<String, Entry> e : entriesByNamespace.entrySet() ) {
+			sb.append( sep ).append( e.getKey() ).append( ( e.getValue().isCompiled() ) ? " (compiled in " + e.getValue().compileNanos / 1000000L + " ms)" : "" );
+			sep = ", ";
+		}
+		return sb.append( "]" ).toString();
+	}
+
+	/**
+	 * The schema for a namespace, compiled once.
+	 */
+	private static class Entry {
+
+		private final Compiler compiler;
+
+		private volatile Schema schema = null;
+
+		private volatile long compileNanos = 0L;
+
+		Entry( final Compiler compiler ) {
+			this.compiler = compiler;
+		}
+
+		boolean isCompiled() {
+			return schema != null;
+		}
+
+		Schema get( final String namespace ) {
+			Schema result = schema;
+			if ( result == null ) {
+				synchronized ( this ) {
+					result = schema;
+					if ( result == null ) {
+						final long startNanos = System.nanoTime();
+						try {
+							result = compiler.compile();
+						} catch ( final SAXException | IOException e ) {
+							throw new IllegalStateException( "While compiling the schema for " + namespace, e );
+						}
+						compileNanos = System.nanoTime() - startNanos;
+						schema = result;
+					}
+				}
+			}
+			return result;
+		}
+
+	}
+
+}
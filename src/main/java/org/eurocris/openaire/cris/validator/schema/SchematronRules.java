@@ -0,0 +1,475 @@
+package org.eurocris.openaire.cris.validator.schema;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.dom.DOMSource;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+
+/**
+ * The rules of an ISO Schematron schema, compiled once and then applied to any number of payloads, also on several threads at the same time.
+ * The contexts of the rules are compiled as XSLT patterns and the tests as XPath expressions (with Saxon, as the schemas of the profile use the <code>xslt2</code> query binding),
+ * so no stylesheet is generated and nothing gets compiled per payload; the document builders for the payloads are kept one per thread.
+ * <p>
+ * As in Schematron, each element of a payload is tested by the first rule of each pattern whose context it matches;
+ * a failed <code>assert</code> and a successful <code>report</code> are both failures.
+ * The time spent in each rule is kept, to find the expensive ones.
+ * <p>
+ * The subset of Schematron that the profile uses is supported: <code>ns</code>, <code>pattern</code>, <code>title</code>, <code>rule</code>, <code>assert</code>, <code>report</code>,
+ * with <code>value-of</code> and <code>name</code> in the messages.
+ */
+public class SchematronRules {
+
+	/**
+	 * The namespace of ISO Schematron.
+	 */
+	public static final String SCHEMATRON_NS = "http://purl.oclc.org/dsdl/schematron";
+
+	private final String name;
+
+	private final Processor processor;
+
+	private final ThreadLocal<DocumentBuilder> documentBuilders;
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	private final LongAdder payloads = new LongAdder();
+
+	/**
+	 * Compile the rules of a Schematron schema.
+	 * @param name the name of the schema, for the messages
+	 * @param in the schema
+	 * @return the compiled rules
+	 * @throws SAXException on a problem reading the schema, or an expression that cannot be compiled
+	 * @throws IOException on a problem reading the schema
+	 */
+	public static SchematronRules compile( final String name, final InputStream in ) throws SAXException, IOException {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware( true );
+		final Document doc;
+		try {
+			dbf.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
+			final InputSource source = new InputSource( in );
+			source.setSystemId( name );
+			doc = dbf.newDocumentBuilder().parse( source );
+		} catch ( final ParserConfigurationException e ) {
+			throw new IllegalStateException( "Cannot create a parser for " + name, e );
+		}
+		return new SchematronRules( name, doc.getDocumentElement() );
+	}
+
+	private SchematronRules( final String name, final Element schemaEl ) throws SAXException {
+		this.name = name;
+		if ( ! SCHEMATRON_NS.equals( schemaEl.getNamespaceURI() ) || ! "schema".equals( schemaEl.getLocalName() ) ) {
+			throw new SAXException( name + " is not an ISO Schematron schema" );
+		}
+		this.processor = new Processor( false );
+		this.documentBuilders = ThreadLocal.withInitial( processor::newDocumentBuilder );
+		final XPathCompiler compiler = processor.newXPathCompiler();
+		declareNamespaces( compiler, schemaEl );
+		for ( final Element nsEl : children( schemaEl, "ns" ) ) {
+			compiler.declareNamespace( nsEl.getAttribute( "prefix" ), nsEl.getAttribute( "uri" ) );
+		}
+		int patternIndex = 0;
+		for ( final Element patternEl : children( schemaEl, "pattern" ) ) {
+			++patternIndex;
+			final List<Element> titleEls = children( patternEl, "title" );
+			final String patternTitle = ( titleEls.isEmpty() ) ? "pattern " + patternIndex : normalize( titleEls.get( 0 ).getTextContent() );
+			int ruleIndex = 0;
+			for ( final Element ruleEl : children( patternEl, "rule" ) ) {
+				++ruleIndex;
+				rules.add( new Rule( compiler, patternIndex, patternTitle + " (rule " + ruleIndex + ")", ruleEl ) );
+			}
+		}
+	}
+
+	/**
+	 * Check a payload against the rules.
+	 * @param payload the payload element
+	 * @return the failures, in the document order of the elements; empty if there are none
+	 */
+	public List<Failure> check( final Element payload ) {
+		payloads.increment();
+		final XdmNode doc;
+		try {
+			doc = documentBuilders.get().build( new DOMSource( asDocument( payload ) ) );
+		} catch ( final SaxonApiException e ) {
+			return Collections.singletonList( new Failure( null, "/", "Cannot read the payload: " + e.getMessage() ) );
+		}
+		List<Failure> failures = Collections.emptyList();
+		for ( final Iterator<XdmNode> it = doc.axisIterator( Axis.DESCENDANT ); it.hasNext(); ) {
+			final XdmNode node = it.next();
+			if ( node.getNodeKind() != XdmNodeKind.ELEMENT ) {
+				continue;
+			}
+			int firedPattern = 0;
+			for ( final Rule rule : rules ) {
+				if ( rule.patternIndex != firedPattern ) {
+					final List<Failure> ruleFailures = rule.apply( node );
+					if ( ruleFailures != null ) {
+						firedPattern = rule.patternIndex;
+						if ( ! ruleFailures.isEmpty() ) {
+							if ( failures.isEmpty() ) {
+								failures = new ArrayList<>();
+							}
+							failures.addAll( ruleFailures );
+						}
+					}
+				}
+			}
+		}
+		return failures;
+	}
+
+	private static final ThreadLocal<javax.xml.parsers.DocumentBuilder> domBuilders = ThreadLocal.withInitial( () -> {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware( true );
+		try {
+			return dbf.newDocumentBuilder();
+		} catch ( final ParserConfigurationException e ) {
+			throw new IllegalStateException( "Cannot create a DOM document builder", e );
+		}
+	} );
+
+	/**
+	 * The document of a payload: the one it is the root of (as the payloads unmarshalled by JAXB are), or else a copy.
+	 */
+	private static Document asDocument( final Element payload ) {
+		final Document owner = payload.getOwnerDocument();
+		if ( owner.getDocumentElement() == payload ) {
+			return owner;
+		}
+		final Document doc = domBuilders.get().newDocument();
+		doc.appendChild( doc.importNode( payload, true ) );
+		return doc;
+	}
+
+	/**
+	 * @return the rules, in the order of the schema
+	 */
+	public List<Rule> getRules() {
+		return Collections.unmodifiableList( rules );
+	}
+
+	/**
+	 * @return the number of payloads checked
+	 */
+	public long getPayloads() {
+		return payloads.sum();
+	}
+
+	/**
+	 * The time spent in each rule, the most expensive first.
+	 * @return the report, a line per rule
+	 */
+	public String getTimingReport() {
+		final List<Rule> sorted = new ArrayList<>( rules );
+		sorted.sort( ( a, b ) -> Long.compare( b.getNanos(), a.getNanos() ) );
+		final StringBuilder sb = new StringBuilder( "Schematron rules of " + name + " on " + getPayloads() + " payloads:" );
+		for ( final Rule rule : sorted ) {
+			sb.append( "\n  " ).append( rule );
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "SchematronRules[" + name + ", " + rules.size() + " rules]";
+	}
+
+	private static void declareNamespaces( final XPathCompiler compiler, final Element el ) {
+		final NamedNodeMap attrs = el.getAttributes();
+		for ( int i = 0; i < attrs.getLength(); ++i ) {
+			final Attr attr = (Attr) attrs.item( i );
+			if ( XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals( attr.getNamespaceURI() ) && XMLConstants.XMLNS_ATTRIBUTE.equals( attr.getPrefix() ) && ! SCHEMATRON_NS.equals( attr.getValue() ) ) {
+				compiler.declareNamespace( attr.getLocalName(), attr.getValue() );
+			}
+		}
+	}
+
+	private static List<Element> children( final Element parent, final String localName ) {
+		final List<Element> result = new ArrayList<>();
+		for ( Node n = parent.getFirstChild(); n != null; n = n.getNextSibling() ) {
+			if ( n instanceof Element && SCHEMATRON_NS.equals( n.getNamespaceURI() ) && localName.equals( n.getLocalName() ) ) {
+				result.add( (Element) n );
+			}
+		}
+		return result;
+	}
+
+	private static String normalize( final String s ) {
+		return s.trim().replaceAll( "\\s+", " " );
+	}
+
+	private static SAXException compileFailure( final String what, final String expr, final SaxonApiException e ) {
+		return new SAXException( "Cannot compile the " + what + " " + expr + ": " + e.getMessage(), e );
+	}
+
+	/**
+	 * The path of an element in the payload, for the messages.
+	 */
+	private static String path( final XdmNode node ) {
+		final StringBuilder sb = new StringBuilder();
+		for ( XdmNode n = node; n != null && n.getNodeKind() == XdmNodeKind.ELEMENT; n = n.getParent() ) {
+			int position = 1;
+			for ( final Iterator<XdmNode> it = n.axisIterator( Axis.PRECEDING_SIBLING, n.getNodeName() ); it.hasNext(); it.next() ) {
+				++position;
+			}
+			sb.insert( 0, "/" + n.getNodeName().getLocalName() + ( ( position > 1 ) ? "[" + position + "]" : "" ) );
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A rule: its context, and its assertions and reports.
+	 */
+	public static class Rule {
+
+		private final int patternIndex;
+
+		private final String title;
+
+		private final XPathExecutable context;
+
+		private final List<Test> tests = new ArrayList<>();
+
+		private final LongAdder nodes = new LongAdder();
+
+		private final LongAdder fired = new LongAdder();
+
+		private final LongAdder failures = new LongAdder();
+
+		private final LongAdder nanos = new LongAdder();
+
+		Rule( final XPathCompiler compiler, final int patternIndex, final String title, final Element ruleEl ) throws SAXException {
+			this.patternIndex = patternIndex;
+			this.title = title;
+			final String contextExpr = ruleEl.getAttribute( "context" );
+			try {
+				this.context = compiler.compilePattern( contextExpr );
+			} catch ( final SaxonApiException e ) {
+				throw compileFailure( "rule context", contextExpr, e );
+			}
+			for ( Node n = ruleEl.getFirstChild(); n != null; n = n.getNextSibling() ) {
+				if ( n instanceof Element && SCHEMATRON_NS.equals( n.getNamespaceURI() ) ) {
+					final String kind = n.getLocalName();
+					if ( "assert".equals( kind ) || "report".equals( kind ) ) {
+						tests.add( new Test( compiler, "report".equals( kind ), (Element) n ) );
+					} else {
+						throw new SAXException( "Unsupported Schematron element " + kind + " in rule " + title );
+					}
+				}
+			}
+		}
+
+		/**
+		 * Apply the rule to an element.
+		 * @return the failures; null if the element does not match the context of the rule
+		 */
+		List<Failure> apply( final XdmNode node ) {
+			final long t0 = System.nanoTime();
+			try {
+				nodes.increment();
+				if ( ! evaluateBoolean( context, node ) ) {
+					return null;
+				}
+				fired.increment();
+				List<Failure> result = Collections.emptyList();
+				for ( final Test test : tests ) {
+					final String message = test.apply( node );
+					if ( message != null ) {
+						if ( result.isEmpty() ) {
+							result = new ArrayList<>();
+						}
+						result.add( new Failure( this, path( node ), message ) );
+						failures.increment();
+					}
+				}
+				return result;
+			} catch ( final SaxonApiException e ) {
+				failures.increment();
+				return Collections.singletonList( new Failure( this, path( node ), "Cannot evaluate the rule: " + e.getMessage() ) );
+			} finally {
+				nanos.add( System.nanoTime() - t0 );
+			}
+		}
+
+		/**
+		 * @return the title of the pattern and the number of the rule in it
+		 */
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * @return the number of elements the context of the rule has been tried on
+		 */
+		public long getNodes() {
+			return nodes.sum();
+		}
+
+		/**
+		 * @return the number of elements the rule has been applied to
+		 */
+		public long getFired() {
+			return fired.sum();
+		}
+
+		/**
+		 * @return the number of failures found by the rule
+		 */
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		/**
+		 * @return the time spent in the rule, matching its context and evaluating its tests, in nanoseconds
+		 */
+		public long getNanos() {
+			return nanos.sum();
+		}
+
+		@Override
+		public String toString() {
+			return title + ": " + ( getNanos() / 1000000L ) + " ms, tried on " + getNodes() + " elements, fired on " + getFired() + ", " + getFailures() + " failures";
+		}
+
+	}
+
+	/**
+	 * An assertion or a report, with its message.
+	 */
+	private static class Test {
+
+		private final boolean report;
+
+		private final XPathExecutable test;
+
+		private final List<Object> message = new ArrayList<>();
+
+		Test( final XPathCompiler compiler, final boolean report, final Element el ) throws SAXException {
+			this.report = report;
+			final String testExpr = el.getAttribute( "test" );
+			this.test = compile( compiler, "test", testExpr );
+			for ( Node n = el.getFirstChild(); n != null; n = n.getNextSibling() ) {
+				if ( n instanceof Element && SCHEMATRON_NS.equals( n.getNamespaceURI() ) && "value-of".equals( n.getLocalName() ) ) {
+					message.add( compile( compiler, "value", ( (Element) n ).getAttribute( "select" ) ) );
+				} else if ( n instanceof Element && SCHEMATRON_NS.equals( n.getNamespaceURI() ) && "name".equals( n.getLocalName() ) ) {
+					final String path = ( (Element) n ).getAttribute( "path" );
+					message.add( compile( compiler, "name", "name(" + ( ( path.isEmpty() ) ? "." : path ) + ")" ) );
+				} else if ( n.getNodeType() == Node.TEXT_NODE || n.getNodeType() == Node.CDATA_SECTION_NODE ) {
+					message.add( n.getNodeValue() );
+				}
+			}
+		}
+
+		private static XPathExecutable compile( final XPathCompiler compiler, final String what, final String expr ) throws SAXException {
+			try {
+				return compiler.compile( expr );
+			} catch ( final SaxonApiException e ) {
+				throw compileFailure( what, expr, e );
+			}
+		}
+
+		/**
+		 * @return the message if the test fails; null if it passes
+		 */
+		String apply( final XdmNode node ) throws SaxonApiException {
+			if ( evaluateBoolean( test, node ) != report ) {
+				return null;
+			}
+			final StringBuilder sb = new StringBuilder();
+			for ( final Object part : message ) {
+				if ( part instanceof XPathExecutable ) {
+					final XPathSelector selector = ( (XPathExecutable) part ).load();
+					selector.setContextItem( node );
+					for ( final XdmItem item : selector.evaluate() ) {
+						sb.append( item.getStringValue() );
+					}
+				} else {
+					sb.append( part );
+				}
+			}
+			return normalize( sb.toString() );
+		}
+
+	}
+
+	private static boolean evaluateBoolean( final XPathExecutable exec, final XdmNode node ) throws SaxonApiException {
+		final XPathSelector selector = exec.load();
+		selector.setContextItem( node );
+		return selector.effectiveBooleanValue();
+	}
+
+	/**
+	 * A failure of a payload: a failed assertion or a successful report.
+	 */
+	public static class Failure {
+
+		private final Rule rule;
+
+		private final String path;
+
+		private final String message;
+
+		Failure( final Rule rule, final String path, final String message ) {
+			this.rule = rule;
+			this.path = path;
+			this.message = message;
+		}
+
+		/**
+		 * @return the rule; null for a payload that could not be read
+		 */
+		public Rule getRule() {
+			return rule;
+		}
+
+		/**
+		 * @return the path of the element in the payload
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return the message of the assertion or report
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return message + " (at " + path + ")";
+		}
+
+	}
+
+}
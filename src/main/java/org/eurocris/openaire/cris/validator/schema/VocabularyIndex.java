@@ -0,0 +1,286 @@
+package org.eurocris.openaire.cris.validator.schema;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.eurocris.openaire.cris.validator.util.XmlUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * The controlled vocabularies of a version of the CERIF profile (the COAR and OpenAIRE terms), extracted from the enumerations of their XML Schemas,
+ * for a cheap check of the terms used in the payloads and statistics of them for a whole harvest.
+ * The terms are kept in immutable hash sets; the counts of the terms used are kept per term, and can be updated from several threads at the same time.
+ * <p>
+ * A term is known if the vocabulary of this version has it; it is deprecated if just the vocabulary of an older version has it (see {@link #withDeprecatedFrom(Collection)}),
+ * and unknown otherwise.
+ */
+public class VocabularyIndex {
+
+	private static final String XS_NS = XMLConstants.W3C_XML_SCHEMA_NS_URI;
+
+	/**
+	 * The status of a term in a vocabulary.
+	 */
+	public enum Status {
+		/** In the vocabulary. */
+		KNOWN,
+		/** Only in the vocabulary of an older version of the profile. */
+		DEPRECATED,
+		/** In no version of the vocabulary. */
+		UNKNOWN
+	}
+
+	private final String name;
+
+	private final Map<String, Vocabulary> vocabulariesByNamespace;
+
+	private VocabularyIndex( final String name, final Map<String, Vocabulary> vocabulariesByNamespace ) {
+		this.name = name;
+		this.vocabulariesByNamespace = vocabulariesByNamespace;
+	}
+
+	/**
+	 * Extract the vocabularies from the XML Schemas imported or included (directly or not) by the schema of a version of the profile:
+	 * those in a <code>vocabularies</code> directory.
+	 * @param name the name of the index, for the report (e.g., the namespace of the profile)
+	 * @param profileSchemaUrl the XML Schema of the profile
+	 * @return the index
+	 * @throws SAXException on a problem reading a schema
+	 * @throws IOException on a problem accessing a schema
+	 */
+	public static VocabularyIndex load( final String name, final URL profileSchemaUrl ) throws SAXException, IOException {
+		final Map<String, Vocabulary> vocabularies = new LinkedHashMap<>();
+		collect( profileSchemaUrl, new HashSet<>(), vocabularies );
+		return new VocabularyIndex( name, vocabularies );
+	}
+
+	private static void collect( final URL url, final Set<String> visited, final Map<String, Vocabulary> vocabularies ) throws SAXException, IOException {
+		if ( ! visited.add( url.toExternalForm() ) ) {
+			return;
+		}
+		final Element schemaEl = parse( url ).getDocumentElement();
+		if ( url.getPath().contains( "/vocabularies/" ) ) {
+			final Vocabulary vocabulary = Vocabulary.extract( schemaEl );
+			if ( vocabulary != null ) {
+				vocabularies.put( vocabulary.namespace, vocabulary );
+			}
+		}
+		for ( Node n = schemaEl.getFirstChild(); n != null; n = n.getNextSibling() ) {
+			if ( n instanceof Element && XS_NS.equals( n.getNamespaceURI() ) && ( "import".equals( n.getLocalName() ) || "include".equals( n.getLocalName() ) ) ) {
+				final String schemaLocation = ( (Element) n ).getAttribute( "schemaLocation" );
+				if ( ! schemaLocation.isEmpty() && ! schemaLocation.contains( "://" ) ) {
+					collect( new URL( url, schemaLocation ), visited, vocabularies );
+				}
+			}
+		}
+	}
+
+	private static Document parse( final URL url ) throws SAXException, IOException {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware( true );
+		try ( final InputStream in = url.openStream() ) {
+			dbf.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
+			final InputSource source = new InputSource( in );
+			source.setSystemId( url.toExternalForm() );
+			return dbf.newDocumentBuilder().parse( source );
+		} catch ( final ParserConfigurationException e ) {
+			throw new IllegalStateException( "Cannot create a parser for " + url, e );
+		}
+	}
+
+	/**
+	 * A copy of this index where the terms that only the older versions of the vocabularies have are deprecated.
+	 * The counts are not copied.
+	 * @param olderVersions the indexes of the older versions of the profile
+	 * @return the new index
+	 */
+	public VocabularyIndex withDeprecatedFrom( final Collection<VocabularyIndex> olderVersions ) {
+		final Map<String, Vocabulary> vocabularies = new LinkedHashMap<>();
+		for ( final Vocabulary vocabulary : vocabulariesByNamespace.values() ) {
+			final Set<String> deprecated = new HashSet<>();
+			for ( final VocabularyIndex other : olderVersions ) {
+				final Vocabulary otherVocabulary = other.vocabulariesByNamespace.get( vocabulary.namespace );
+				if ( other != this && otherVocabulary != null ) {
+					deprecated.addAll( otherVocabulary.terms );
+				}
+			}
+			deprecated.removeAll( vocabulary.terms );
+			vocabularies.put( vocabulary.namespace, new Vocabulary( vocabulary.namespace, vocabulary.elementNames, vocabulary.terms, deprecated ) );
+		}
+		return new VocabularyIndex( name, vocabularies );
+	}
+
+	/**
+	 * @return the namespaces of the vocabularies
+	 */
+	public Set<String> getNamespaces() {
+		return vocabulariesByNamespace.keySet();
+	}
+
+	/**
+	 * Look up a term.
+	 * @param namespace the namespace of the element with the term
+	 * @param localName the local name of the element with the term
+	 * @param term the term
+	 * @return the status of the term; null if the element is not one of a vocabulary
+	 */
+	public Status lookup( final String namespace, final String localName, final String term ) {
+		final Vocabulary vocabulary = ( namespace != null ) ? vocabulariesByNamespace.get( namespace ) : null;
+		return ( vocabulary != null && vocabulary.elementNames.contains( localName ) ) ? vocabulary.status( term ) : null;
+	}
+
+	/**
+	 * Count the terms used in a payload.
+	 * @param payload the payload element
+	 * @return the terms of the payload that are not known, as <code>namespace term</code>; empty if there are none
+	 */
+	public List<String> count( final Element payload ) {
+		final List<String> notKnown = new ArrayList<>( 0 );
+		count( payload, notKnown );
+		return notKnown;
+	}
+
+	private void count( final Element el, final List<String> notKnown ) {
+		final String namespace = el.getNamespaceURI();
+		final Vocabulary vocabulary = ( namespace != null ) ? vocabulariesByNamespace.get( namespace ) : null;
+		if ( vocabulary != null && vocabulary.elementNames.contains( el.getLocalName() ) ) {
+			final String term = el.getTextContent();
+			if ( vocabulary.count( term ) != Status.KNOWN ) {
+				notKnown.add( namespace + " " + term );
+			}
+			return;
+		}
+		for ( Node n = el.getFirstChild(); n != null; n = n.getNextSibling() ) {
+			if ( n instanceof Element ) {
+				count( (Element) n, notKnown );
+			}
+		}
+	}
+
+	/**
+	 * @param namespace the namespace of the vocabulary
+	 * @param term the term
+	 * @return how many times the term has been counted
+	 */
+	public long getCount( final String namespace, final String term ) {
+		final Vocabulary vocabulary = vocabulariesByNamespace.get( namespace );
+		final LongAdder count = ( vocabulary != null ) ? vocabulary.counts.get( term ) : null;
+		return ( count != null ) ? count.sum() : 0L;
+	}
+
+	/**
+	 * @return the total number of terms counted
+	 */
+	public long getUses() {
+		long uses = 0L;
+		for ( final Vocabulary vocabulary : vocabulariesByNamespace.values() ) {
+			uses += vocabulary.uses.sum();
+		}
+		return uses;
+	}
+
+	/**
+	 * The counts of the terms used, per vocabulary, the most used first; the terms not known are marked so.
+	 * @return the report, a line per term
+	 */
+	public String getReport() {
+		final StringBuilder sb = new StringBuilder( "Vocabulary terms in " + name + ": " + getUses() + " uses" );
+		for ( final Vocabulary vocabulary : vocabulariesByNamespace.values() ) {
+			if ( vocabulary.uses.sum() == 0L ) {
+				continue;
+			}
+			sb.append( "\n  " ).append( vocabulary.namespace ).append( ": " ).append( vocabulary.uses.sum() ).append( " uses of " ).append( vocabulary.counts.size() ).append( " terms (out of " ).append( vocabulary.terms.size() ).append( ")" );
+			final List<Map.Entry<String, LongAdder>> entries = new ArrayList<>( vocabulary.counts.entrySet() );
+			entries.sort( ( a, b ) -> Long.compare( b.getValue().sum(), a.getValue().sum() ) );
+			for ( final Map.Entry<String, LongAdder> e : entries ) {
+				final Status status = vocabulary.status( e.getKey() );
+				sb.append( "\n    " ).append( ( status != Status.KNOWN ) ? status.toString().toLowerCase() + " " : "" ).append( e.getKey() ).append( ": " ).append( e.getValue().sum() );
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "VocabularyIndex[" + name + ", " + vocabulariesByNamespace.keySet() + "]";
+	}
+
+	/**
+	 * A vocabulary: the elements that take its terms, the terms, and the counts of the terms used.
+	 */
+	private static class Vocabulary {
+
+		private final String namespace;
+
+		private final Set<String> elementNames;
+
+		private final Set<String> terms;
+
+		private final Set<String> deprecatedTerms;
+
+		private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+		private final LongAdder uses = new LongAdder();
+
+		Vocabulary( final String namespace, final Set<String> elementNames, final Set<String> terms, final Set<String> deprecatedTerms ) {
+			this.namespace = namespace;
+			this.elementNames = Set.copyOf( elementNames );
+			this.terms = Set.copyOf( terms );
+			this.deprecatedTerms = Set.copyOf( deprecatedTerms );
+		}
+
+		/**
+		 * The vocabulary of an XML Schema: the enumerated values of its simple types, taken by its global elements.
+		 * @return the vocabulary; null if the schema has no enumerations
+		 */
+		static Vocabulary extract( final Element schemaEl ) {
+			final Set<String> elementNames = new HashSet<>();
+			for ( Node n = schemaEl.getFirstChild(); n != null; n = n.getNextSibling() ) {
+				if ( n instanceof Element && XS_NS.equals( n.getNamespaceURI() ) && "element".equals( n.getLocalName() ) ) {
+					elementNames.add( ( (Element) n ).getAttribute( "name" ) );
+				}
+			}
+			final Set<String> terms = new HashSet<>();
+			for ( final Element enumerationEl : XmlUtils.nodeListToIterableOfElements( schemaEl.getElementsByTagNameNS( XS_NS, "enumeration" ) ) ) {
+				terms.add( enumerationEl.getAttribute( "value" ) );
+			}
+			if ( elementNames.isEmpty() || terms.isEmpty() ) {
+				return null;
+			}
+			return new Vocabulary( schemaEl.getAttribute( "targetNamespace" ), elementNames, terms, Set.of() );
+		}
+
+		Status status( final String term ) {
+			if ( terms.contains( term ) ) {
+				return Status.KNOWN;
+			}
+			return ( deprecatedTerms.contains( term ) ) ? Status.DEPRECATED : Status.UNKNOWN;
+		}
+
+		Status count( final String term ) {
+			uses.increment();
+			counts.computeIfAbsent( term, ( t ) -> new LongAdder() ).increment();
+			return status( term );
+		}
+
+	}
+
+}
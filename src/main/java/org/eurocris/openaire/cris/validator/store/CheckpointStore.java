@@ -0,0 +1,203 @@
+package org.eurocris.openaire.cris.validator.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the {@link HarvestCheckpoint}s in a local directory, one file per set and metadata format.
+ * A file is a log of segments, each with the records noted since the segment before it and the resumption token after them,
+ * so that a save appends just what has changed, and its cost does not grow with the harvest.
+ * The first save of a checkpoint in a run, and the save of a complete checkpoint, write the whole checkpoint as one segment instead,
+ * to a temporary file first that is then moved over the previous one, so that a crash while saving leaves the previous checkpoint in place.
+ * A segment cut short by a crash while appending it is left out when the checkpoint is loaded.
+ */
+public class CheckpointStore {
+
+	private static final String SUFFIX = ".checkpoint";
+
+	private final Path directory;
+
+	private final long intervalMillis;
+
+	private final Map<String, Long> lastSavedMillisByName = new ConcurrentHashMap<>();
+
+	private final Set<String> startedNames = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * A store in the given directory.
+	 * @param directory the directory to keep the checkpoints in; created when the first checkpoint is saved
+	 * @param intervalMillis the minimum time between two periodic saves of the same checkpoint, in milliseconds
+	 */
+	public CheckpointStore( final Path directory, final long intervalMillis ) {
+		this.directory = directory;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * @return the directory the checkpoints are kept in
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Load the checkpoint of the harvest of a set in a metadata format from an endpoint.
+	 * @param baseUrl the URL of the endpoint
+	 * @param metadataPrefix the metadata format
+	 * @param setSpec the set
+	 * @return the checkpoint; null if there is none for the endpoint, or if it cannot be read
+	 */
+	public HarvestCheckpoint load( final String baseUrl, final String metadataPrefix, final String setSpec ) {
+		final Path file = directory.resolve( fileName( metadataPrefix, setSpec ) );
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( file ) ) ) ) {
+			HarvestCheckpoint checkpoint = null;
+			HarvestCheckpoint.Segment segment;
+			while ( ( segment = readSegment( in, file ) ) != null ) {
+				if ( ! baseUrl.equals( segment.getBaseUrl() ) ) {
+					System.err.println( "Ignoring the checkpoint in " + file + ": it is for " + segment.getBaseUrl() );
+					return null;
+				}
+				if ( checkpoint == null ) {
+					checkpoint = new HarvestCheckpoint( baseUrl, metadataPrefix, setSpec );
+				}
+				checkpoint.apply( segment );
+			}
+			return checkpoint;
+		} catch ( final NoSuchFileException e ) {
+			return null;
+		} catch ( final IOException | ClassNotFoundException | ClassCastException e ) {
+			System.err.println( "Ignoring the checkpoint in " + file + ": " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * Save the checkpoint if it has not been saved within the interval.
+	 * @param checkpoint the checkpoint to save
+	 * @return whether the checkpoint has been saved
+	 * @throws IOException on a problem writing the checkpoint
+	 */
+	public boolean saveIfDue( final HarvestCheckpoint checkpoint ) throws IOException {
+		final Long lastSavedMillis = lastSavedMillisByName.get( fileName( checkpoint.getMetadataPrefix(), checkpoint.getSetSpec() ) );
+		if ( lastSavedMillis != null && System.currentTimeMillis() - lastSavedMillis < intervalMillis ) {
+			return false;
+		}
+		save( checkpoint );
+		return true;
+	}
+
+	/**
+	 * Save the checkpoint now: append what has changed since the last save, or write it whole if it has not been saved in this run yet, or if it is complete.
+	 * @param checkpoint the checkpoint to save
+	 * @throws IOException on a problem writing the checkpoint
+	 */
+	public void save( final HarvestCheckpoint checkpoint ) throws IOException {
+		final String name = fileName( checkpoint.getMetadataPrefix(), checkpoint.getSetSpec() );
+		if ( ! startedNames.contains( name ) || checkpoint.isComplete() ) {
+			final HarvestCheckpoint.Segment segment = checkpoint.getWholeSegment();
+			Files.createDirectories( directory );
+			final Path tempFile = Files.createTempFile( directory, name, ".tmp" );
+			try {
+				Files.write( tempFile, toBytes( segment ) );
+				Files.move( tempFile, directory.resolve( name ), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			} finally {
+				Files.deleteIfExists( tempFile );
+			}
+			checkpoint.saved( segment );
+			startedNames.add( name );
+		} else if ( checkpoint.hasUnsavedChanges() ) {
+			final HarvestCheckpoint.Segment segment = checkpoint.getUnsavedSegment();
+			try ( final OutputStream out = Files.newOutputStream( directory.resolve( name ), StandardOpenOption.WRITE, StandardOpenOption.APPEND ) ) {
+				out.write( toBytes( segment ) );
+			}
+			checkpoint.saved( segment );
+		}
+		lastSavedMillisByName.put( name, System.currentTimeMillis() );
+	}
+
+	/**
+	 * @param segment a segment of a checkpoint
+	 * @return the segment as it is written to the file: its length, then the segment serialized
+	 * @throws IOException on a problem serializing the segment
+	 */
+	private static byte[] toBytes( final HarvestCheckpoint.Segment segment ) throws IOException {
+		final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		try ( final ObjectOutputStream oos = new ObjectOutputStream( serialized ) ) {
+			oos.writeObject( segment );
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( Integer.BYTES + serialized.size() );
+		try ( final DataOutputStream out = new DataOutputStream( bytes ) ) {
+			out.writeInt( serialized.size() );
+			serialized.writeTo( out );
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param in the file being read
+	 * @param file the file, for the messages
+	 * @return the next segment; null at the end of the file, or at a segment cut short
+	 * @throws IOException on a problem reading the file
+	 * @throws ClassNotFoundException when a segment cannot be deserialized
+	 */
+	private static HarvestCheckpoint.Segment readSegment( final DataInputStream in, final Path file ) throws IOException, ClassNotFoundException {
+		final int first = in.read();
+		if ( first < 0 ) {
+			return null;
+		}
+		final byte[] bytes;
+		try {
+			final int length = ( first << 24 ) | ( in.readUnsignedByte() << 16 ) | ( in.readUnsignedByte() << 8 ) | in.readUnsignedByte();
+			if ( length < 0 ) {
+				throw new EOFException();
+			}
+			bytes = new byte[length];
+			in.readFully( bytes );
+		} catch ( final EOFException e ) {
+			System.err.println( "Ignoring the end of the checkpoint in " + file + ": cut short" );
+			return null;
+		}
+		try ( final ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( bytes ) ) ) {
+			return (HarvestCheckpoint.Segment) ois.readObject();
+		}
+	}
+
+	/**
+	 * Delete all the checkpoints, for a harvest that starts afresh.
+	 * @throws IOException on a problem deleting a checkpoint
+	 */
+	public void clear() throws IOException {
+		lastSavedMillisByName.clear();
+		startedNames.clear();
+		if ( Files.isDirectory( directory ) ) {
+			try ( final DirectoryStream<Path> files = Files.newDirectoryStream( directory, "*" + SUFFIX ) ) {
+				for ( final Path file : files ) {
+					Files.delete( file );
+				}
+			}
+		}
+	}
+
+	private static String fileName( final String metadataPrefix, final String setSpec ) {
+		final String name = metadataPrefix + "__" + ( ( setSpec != null ) ? setSpec : "" );
+		return name.replaceAll( "[^A-Za-z0-9._-]", "_" ) + SUFFIX;
+	}
+
+}
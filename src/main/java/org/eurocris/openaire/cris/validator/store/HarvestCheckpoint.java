@@ -0,0 +1,248 @@
+package org.eurocris.openaire.cris.validator.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.eurocris.openaire.cris.validator.tree.CERIFNode;
+
+/**
+ * How far the harvest of one set in one metadata format got: the resumption token to continue with, the records harvested so far and their CERIF trees.
+ * The state only moves forward at the chunk boundaries, so that the token always matches the records.
+ * What has changed since the last save is kept apart, for the {@link CheckpointStore} to append just that to the saved checkpoint.
+ */
+public class HarvestCheckpoint {
+
+	private final String baseUrl;
+	private final String metadataPrefix;
+	private final String setSpec;
+
+	private String resumptionToken = null;
+	private String lastDatestamp = null;
+	private long recordCount = 0L;
+	private boolean complete = false;
+	private final LinkedHashMap<String, CERIFNode> recordsByOaiIdentifier = new LinkedHashMap<>();
+
+	private long unsavedRecordCount = 0L;
+	private final LinkedHashMap<String, CERIFNode> unsavedRecords = new LinkedHashMap<>();
+	private final Set<String> unsavedDeletions = new LinkedHashSet<>();
+	private String savedResumptionToken = null;
+	private boolean savedComplete = false;
+
+	/**
+	 * A checkpoint at the start of a harvest.
+	 * @param baseUrl the URL of the endpoint harvested
+	 * @param metadataPrefix the metadata format harvested
+	 * @param setSpec the set harvested
+	 */
+	public HarvestCheckpoint( final String baseUrl, final String metadataPrefix, final String setSpec ) {
+		this.baseUrl = baseUrl;
+		this.metadataPrefix = metadataPrefix;
+		this.setSpec = setSpec;
+	}
+
+	/**
+	 * Note a record harvested.
+	 * @param oaiIdentifier the OAI identifier of the record
+	 * @param datestamp the datestamp of the record
+	 * @param node the CERIF tree of the record; null for a record without one (such as a deleted record), which is then dropped from the checkpoint
+	 */
+	public synchronized void record( final String oaiIdentifier, final String datestamp, final CERIFNode node ) {
+		++recordCount;
+		++unsavedRecordCount;
+		if ( node != null ) {
+			recordsByOaiIdentifier.put( oaiIdentifier, node );
+			unsavedRecords.put( oaiIdentifier, node );
+			unsavedDeletions.remove( oaiIdentifier );
+		} else if ( recordsByOaiIdentifier.remove( oaiIdentifier ) != null ) {
+			unsavedRecords.remove( oaiIdentifier );
+			unsavedDeletions.add( oaiIdentifier );
+		}
+		if ( datestamp != null && ( lastDatestamp == null || datestamp.compareTo( lastDatestamp ) > 0 ) ) {
+			lastDatestamp = datestamp;
+		}
+	}
+
+	/**
+	 * Note that all the records before the given resumption token have been harvested.
+	 * @param resumptionToken the resumption token for the rest of the list; null at the end of the list
+	 */
+	public synchronized void chunkCompleted( final String resumptionToken ) {
+		this.resumptionToken = resumptionToken;
+	}
+
+	/**
+	 * Note that the whole list has been harvested.
+	 */
+	public synchronized void completed() {
+		resumptionToken = null;
+		complete = true;
+	}
+
+	/**
+	 * @return the URL of the endpoint harvested
+	 */
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	/**
+	 * @return the metadata format harvested
+	 */
+	public String getMetadataPrefix() {
+		return metadataPrefix;
+	}
+
+	/**
+	 * @return the set harvested
+	 */
+	public String getSetSpec() {
+		return setSpec;
+	}
+
+	/**
+	 * @return the resumption token to continue the harvest with; null to start from the beginning (or when complete)
+	 */
+	public synchronized String getResumptionToken() {
+		return resumptionToken;
+	}
+
+	/**
+	 * @return the latest datestamp of the records harvested; null if none
+	 */
+	public synchronized String getLastDatestamp() {
+		return lastDatestamp;
+	}
+
+	/**
+	 * @return the number of records harvested (including the deleted ones)
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return whether the whole list has been harvested
+	 */
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @param oaiIdentifier the OAI identifier of a record
+	 * @return whether the record has been harvested already
+	 */
+	public synchronized boolean contains( final String oaiIdentifier ) {
+		return recordsByOaiIdentifier.containsKey( oaiIdentifier );
+	}
+
+	/**
+	 * @return the CERIF trees of the records harvested, by the OAI identifiers of the records
+	 */
+	public synchronized Map<String, CERIFNode> getRecordsByOaiIdentifier() {
+		return Collections.unmodifiableMap( new LinkedHashMap<>( recordsByOaiIdentifier ) );
+	}
+
+	/**
+	 * @return whether anything has changed since the last save
+	 */
+	synchronized boolean hasUnsavedChanges() {
+		return unsavedRecordCount > 0L || ! unsavedDeletions.isEmpty() || complete != savedComplete || ! Objects.equals( resumptionToken, savedResumptionToken );
+	}
+
+	/**
+	 * @return what has changed since the last save
+	 */
+	synchronized Segment getUnsavedSegment() {
+		return new Segment( this, unsavedRecordCount, unsavedRecords, new ArrayList<>( unsavedDeletions ) );
+	}
+
+	/**
+	 * @return the whole checkpoint, as one segment
+	 */
+	synchronized Segment getWholeSegment() {
+		return new Segment( this, recordCount, recordsByOaiIdentifier, new ArrayList<>( unsavedDeletions ) );
+	}
+
+	/**
+	 * Note that a segment has been saved; what has changed since it was taken stays unsaved.
+	 * @param segment the segment saved
+	 */
+	synchronized void saved( final Segment segment ) {
+		unsavedRecordCount -= segment.unsavedRecordCount;
+		for ( final Map.Entry<String, CERIFNode> entry : segment.records.entrySet() ) {
+			unsavedRecords.remove( entry.getKey(), entry.getValue() );
+		}
+		unsavedDeletions.removeAll( segment.deletions );
+		savedResumptionToken = segment.resumptionToken;
+		savedComplete = segment.complete;
+	}
+
+	/**
+	 * Bring in a segment read back from a saved checkpoint, on top of the segments before it.
+	 * @param segment the segment
+	 */
+	synchronized void apply( final Segment segment ) {
+		recordCount += segment.recordCount;
+		recordsByOaiIdentifier.putAll( segment.records );
+		for ( final String oaiIdentifier : segment.deletions ) {
+			recordsByOaiIdentifier.remove( oaiIdentifier );
+		}
+		if ( segment.lastDatestamp != null && ( lastDatestamp == null || segment.lastDatestamp.compareTo( lastDatestamp ) > 0 ) ) {
+			lastDatestamp = segment.lastDatestamp;
+		}
+		resumptionToken = segment.resumptionToken;
+		complete = segment.complete;
+		savedResumptionToken = resumptionToken;
+		savedComplete = complete;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "HarvestCheckpoint[" + metadataPrefix + "/" + setSpec + ": " + recordCount + " records" + ( ( complete ) ? ", complete" : ( resumptionToken != null ) ? ", resumptionToken=" + resumptionToken : "" ) + "]";
+	}
+
+	/**
+	 * A piece of a saved checkpoint: the records noted (and dropped) since the previous segment, and the state of the harvest after them.
+	 */
+	static class Segment implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String baseUrl;
+		private final long recordCount;
+		private final String lastDatestamp;
+		private final LinkedHashMap<String, CERIFNode> records;
+		private final ArrayList<String> deletions;
+		private final String resumptionToken;
+		private final boolean complete;
+
+		private final transient long unsavedRecordCount;
+
+		private Segment( final HarvestCheckpoint checkpoint, final long recordCount, final Map<String, CERIFNode> records, final List<String> deletions ) {
+			this.baseUrl = checkpoint.baseUrl;
+			this.recordCount = recordCount;
+			this.lastDatestamp = checkpoint.lastDatestamp;
+			this.records = new LinkedHashMap<>( records );
+			this.deletions = new ArrayList<>( deletions );
+			this.resumptionToken = checkpoint.resumptionToken;
+			this.complete = checkpoint.complete;
+			this.unsavedRecordCount = checkpoint.unsavedRecordCount;
+		}
+
+		/**
+		 * @return the URL of the endpoint harvested
+		 */
+		String getBaseUrl() {
+			return baseUrl;
+		}
+
+	}
+
+}
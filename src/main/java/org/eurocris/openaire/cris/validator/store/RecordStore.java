@@ -0,0 +1,197 @@
+package org.eurocris.openaire.cris.validator.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eurocris.openaire.cris.validator.tree.CERIFNode;
+
+/**
+ * The CERIF trees of all the records of an endpoint as of the last successful run, for validating just the changes since then.
+ * Besides the trees, it keeps which records refer to which CERIF objects, so that the records affected by a change can be found without going through all of them.
+ */
+public class RecordStore implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String baseUrl;
+
+	private String responseDate = null;
+
+	private final HashMap<String, CERIFNode> recordsByOaiIdentifier = new HashMap<>();
+
+	private final HashMap<String, Set<String>> referencesByOaiIdentifier = new HashMap<>();
+
+	private final HashMap<String, Set<String>> referrersByName = new HashMap<>();
+
+	/**
+	 * An empty store.
+	 * @param baseUrl the URL of the endpoint
+	 */
+	public RecordStore( final String baseUrl ) {
+		this.baseUrl = baseUrl;
+	}
+
+	/**
+	 * Load the store from a file.
+	 * @param file the file
+	 * @param baseUrl the URL of the endpoint
+	 * @return the store; an empty one if there is none for the endpoint, or if it cannot be read
+	 */
+	public static RecordStore load( final Path file, final String baseUrl ) {
+		try ( final InputStream in = new BufferedInputStream( Files.newInputStream( file ) ); final ObjectInputStream ois = new ObjectInputStream( in ) ) {
+			final RecordStore store = (RecordStore) ois.readObject();
+			if ( baseUrl.equals( store.baseUrl ) ) {
+				return store;
+			}
+			System.err.println( "Ignoring the record store in " + file + ": it is for " + store.baseUrl );
+		} catch ( final NoSuchFileException e ) {
+			// nothing stored yet
+		} catch ( final IOException | ClassNotFoundException | ClassCastException e ) {
+			System.err.println( "Ignoring the record store in " + file + ": " + e );
+		}
+		return new RecordStore( baseUrl );
+	}
+
+	/**
+	 * Save the store to a file, through a temporary file that is moved over the previous one.
+	 * @param file the file
+	 * @throws IOException on a problem writing the file
+	 */
+	public synchronized void save( final Path file ) throws IOException {
+		final Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories( directory );
+		final Path tempFile = Files.createTempFile( directory, file.getFileName().toString(), ".tmp" );
+		try {
+			try ( final OutputStream out = new BufferedOutputStream( Files.newOutputStream( tempFile ) ); final ObjectOutputStream oos = new ObjectOutputStream( out ) ) {
+				oos.writeObject( this );
+			}
+			Files.move( tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			Files.deleteIfExists( tempFile );
+		}
+	}
+
+	/**
+	 * @return the URL of the endpoint
+	 */
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	/**
+	 * @return the <code>responseDate</code> of the Identify response of the last successful run; null if there was none
+	 */
+	public synchronized String getResponseDate() {
+		return responseDate;
+	}
+
+	/**
+	 * @param responseDate the <code>responseDate</code> of the Identify response of the run that has just succeeded
+	 */
+	public synchronized void setResponseDate( final String responseDate ) {
+		this.responseDate = responseDate;
+	}
+
+	/**
+	 * Add or replace a record.
+	 * @param oaiIdentifier the OAI identifier of the record
+	 * @param node the CERIF tree of the record
+	 * @param referencedNames the names of the CERIF objects the record refers to
+	 */
+	public synchronized void put( final String oaiIdentifier, final CERIFNode node, final Collection<String> referencedNames ) {
+		forgetReferences( oaiIdentifier );
+		recordsByOaiIdentifier.put( oaiIdentifier, node );
+		final Set<String> references = new HashSet<>( referencedNames );
+		referencesByOaiIdentifier.put( oaiIdentifier, references );
+		for ( final String name : references ) {
+			referrersByName.computeIfAbsent( name, ( x ) -> new HashSet<>() ).add( oaiIdentifier );
+		}
+	}
+
+	/**
+	 * Remove a deleted record.
+	 * @param oaiIdentifier the OAI identifier of the record
+	 * @return the CERIF tree of the record; null if it was not stored
+	 */
+	public synchronized CERIFNode remove( final String oaiIdentifier ) {
+		forgetReferences( oaiIdentifier );
+		return recordsByOaiIdentifier.remove( oaiIdentifier );
+	}
+
+	private void forgetReferences( final String oaiIdentifier ) {
+		final Set<String> references = referencesByOaiIdentifier.remove( oaiIdentifier );
+		if ( references != null ) {
+			for ( final String name : references ) {
+				final Set<String> referrers = referrersByName.get( name );
+				if ( referrers != null ) {
+					referrers.remove( oaiIdentifier );
+					if ( referrers.isEmpty() ) {
+						referrersByName.remove( name );
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the CERIF trees of the records, by their OAI identifiers
+	 */
+	public synchronized Map<String, CERIFNode> getRecordsByOaiIdentifier() {
+		return Collections.unmodifiableMap( new HashMap<>( recordsByOaiIdentifier ) );
+	}
+
+	/**
+	 * @param name the name of a CERIF object
+	 * @return the OAI identifiers of the records that refer to the object
+	 */
+	public synchronized Set<String> getReferrers( final String name ) {
+		final Set<String> referrers = referrersByName.get( name );
+		return ( referrers != null ) ? new HashSet<>( referrers ) : Collections.emptySet();
+	}
+
+	/**
+	 * The records affected by the changes of a run: those harvested, and those that refer to an object harvested or deleted,
+	 * whose references are to be checked again (a reference to a deleted object is then a violation of the referential integrity).
+	 * @param changedOaiIdentifiers the OAI identifiers of the records harvested in the run
+	 * @param changedNames the names of the CERIF objects harvested or deleted in the run
+	 * @return the OAI identifiers of the records affected
+	 */
+	public synchronized Set<String> getAffected( final Collection<String> changedOaiIdentifiers, final Collection<String> changedNames ) {
+		final Set<String> result = new HashSet<>( changedOaiIdentifiers );
+		for ( final String name : changedNames ) {
+			final Set<String> referrers = referrersByName.get( name );
+			if ( referrers != null ) {
+				result.addAll( referrers );
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of records
+	 */
+	public synchronized int size() {
+		return recordsByOaiIdentifier.size();
+	}
+
+	private synchronized void writeObject( final ObjectOutputStream out ) throws IOException {
+		out.defaultWriteObject();
+	}
+
+}
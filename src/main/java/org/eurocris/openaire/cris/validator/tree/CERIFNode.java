@@ -1,5 +1,6 @@
 package org.eurocris.openaire.cris.validator.tree;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -20,9 +21,12 @@ import org.w3c.dom.Node;
 
 /**
  * A node to represent an element of CERIF XML.
+ * The nodes are {@link Serializable}, so that the trees built so far can be saved with a harvest checkpoint.
  * @author jdvorak
  */
-public class CERIFNode {
+public class CERIFNode implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 	
 	private final String type;
 	
@@ -37,8 +41,18 @@ public class CERIFNode {
 	 * @param el the element to extract
 	 */
 	public CERIFNode( final Element el ) {
+		this.type = el.getLocalName().intern();
+		this.name = nameOf( el ).intern();
+		this.value = el.getTextContent().trim();
+	}
+
+	/**
+	 * The complete name of the node for an element, without building the node: its local name with its attributes.
+	 * @param el the element
+	 * @return the name
+	 */
+	public static String nameOf( final Element el ) {
 		final StringBuilder sb = new StringBuilder( el.getLocalName() );
-		this.type = sb.toString().intern();
 		final NamedNodeMap attributes = el.getAttributes();
 		if ( attributes != null ) {
 			final int n = attributes.getLength();
@@ -64,8 +78,7 @@ public class CERIFNode {
 				}
 			}
 		}
-		this.name = sb.toString().intern();
-		this.value = el.getTextContent().trim();
+		return sb.toString();
 	}
 
 	/**
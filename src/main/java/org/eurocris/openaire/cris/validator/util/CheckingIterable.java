@@ -5,7 +5,9 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -14,24 +16,141 @@ import junit.framework.AssertionFailedError;
 /**
  * An {@link Iterable} collection that will check certain facts either upon returning every object or after all objects have been iterated.
  * Add more checks by wrapping.
+ * A failed check ends the iteration, unless the chain was started with a {@link FailureCollector}:
+ * then the failures are recorded in it, the iteration goes on to the end, and they are all reported together by {@link #run()}.
+ * A chain started with a {@link RunBudget} stops taking elements when the budget is used up, and {@link #run()} reports it as truncated,
+ * without the checks of the whole collection, which make no sense on a part of it.
  * @author jdvorak
  *
  * @param <T> the type of the elements of the collection
  */
 public abstract class CheckingIterable<T> implements Iterable<T> {
 
+	private final CheckingIterable<?> parent;
+
+	private final FailureCollector failureCollector;
+
+	private final RunBudget budget;
+
+	/**
+	 * Why the chain has stopped before the end of the collection, shared by the whole chain; null if there is no budget.
+	 */
+	private final AtomicReference<String> truncation;
+
+	/**
+	 * A CheckingIterable at the start of a chain.
+	 */
+	protected CheckingIterable() {
+		this( null, null, null, null );
+	}
+
+	/**
+	 * A CheckingIterable at the start of a chain that collects the failures.
+	 * @param failureCollector where to record the failed checks; null to end the iteration on the first one
+	 */
+	protected CheckingIterable( final FailureCollector failureCollector ) {
+		this( failureCollector, null );
+	}
+
+	/**
+	 * A CheckingIterable at the start of a chain that collects the failures and keeps within a budget.
+	 * @param failureCollector where to record the failed checks; null to end the iteration on the first one
+	 * @param budget the bounds of the iteration; null for none
+	 */
+	protected CheckingIterable( final FailureCollector failureCollector, final RunBudget budget ) {
+		this( null, failureCollector, budget, ( budget != null ) ? new AtomicReference<>() : null );
+	}
+
+	/**
+	 * A CheckingIterable that wraps another one.
+	 * @param parent the wrapped CheckingIterable
+	 */
+	protected CheckingIterable( final CheckingIterable<?> parent ) {
+		this( parent, ( parent != null ) ? parent.failureCollector : null, ( parent != null ) ? parent.budget : null, ( parent != null ) ? parent.truncation : null );
+	}
+
+	private CheckingIterable( final CheckingIterable<?> parent, final FailureCollector failureCollector, final RunBudget budget, final AtomicReference<String> truncation ) {
+		this.parent = parent;
+		this.failureCollector = failureCollector;
+		this.budget = budget;
+		this.truncation = truncation;
+	}
+
+	/**
+	 * @return where the failed checks are recorded; null if the first one ends the iteration
+	 */
+	public FailureCollector getFailureCollector() {
+		return failureCollector;
+	}
+
+	/**
+	 * @return the bounds of the iteration; null if there are none
+	 */
+	public RunBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return why the iteration has stopped before the end of the collection; null if it has not
+	 */
+	public String getTruncation() {
+		return ( truncation != null ) ? truncation.get() : null;
+	}
+
+	/**
+	 * Stop the iteration before the next element, as the budget is used up.
+	 * @param reason why
+	 */
+	protected void truncate( final String reason ) {
+		if ( truncation != null ) {
+			truncation.compareAndSet( null, reason );
+		}
+	}
+
+	/**
+	 * Signal a failed check: throw the failure, or record it when collecting the failures.
+	 * When the check has failed as many times as the budget allows, the iteration stops.
+	 * @param failure the failure
+	 * @param obj the element that failed the check; null for a check of the whole collection
+	 */
+	protected void failed( final Error failure, final Object obj ) {
+		if ( failureCollector == null ) {
+			throw failure;
+		}
+		final long failures = failureCollector.record( failure, obj );
+		if ( budget != null && ! budget.allowsFailures( failures ) ) {
+			truncate( budget.describeOverFailures( FailureCollector.checkOf( String.valueOf( failure.getMessage() ) ) ) );
+		}
+	}
+
 	/**
 	 * Iterate through the elements and call {@link #close()} at the end.
+	 * If a check fails while iterating, the chain is {@link #abandon()}ed before the failure is propagated.
+	 * When collecting the failures, they are reported after {@link #close()}, grouped, in a single failure.
+	 * When the budget has been used up, the chain is {@link #abandon()}ed instead of closed, and the failure reports it as truncated, with the failures collected so far.
 	 * @return the number of elements iterated
 	 */
 	public long run() {
 		long n = 0;
 		final Iterator<T> it = iterator();
-		while ( it.hasNext() ) {
-			it.next();
-			++n;
+		try {
+			while ( it.hasNext() ) {
+				it.next();
+				++n;
+			}
+		} catch ( final RuntimeException | Error e ) {
+			abandon();
+			throw e;
+		}
+		final String truncated = getTruncation();
+		if ( truncated != null ) {
+			abandon();
+			throw new AssertionFailedError( "Truncated after " + n + " elements, " + truncated + ( ( failureCollector != null && failureCollector.getTotal() > 0L ) ? "; " + failureCollector.getReport() : "" ) );
 		}
 		close();
+		if ( failureCollector != null && failureCollector.getTotal() > 0L ) {
+			throw new AssertionFailedError( failureCollector.getReport() );
+		}
 		return n;
 	}
 
@@ -40,6 +159,16 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 	 */
 	protected abstract void close();
 
+	/**
+	 * Release whatever the iteration holds (such as background fetching) without doing the final checks.
+	 * Called when the iteration ends prematurely.
+	 */
+	protected void abandon() {
+		if ( parent != null ) {
+			parent.abandon();
+		}
+	}
+
 	/**
 	 * A simple CheckingIterable that in fact doesn't check anything yet.
 	 * Wrap it to do the checks.
@@ -47,18 +176,96 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 	 * @return a CheckingIterable
 	 */
 	public static <T> CheckingIterable<T> over( final Iterable<T> list ) {
-		return new CheckingIterable<T>() {
+		return over( list, null );
+	}
+
+	/**
+	 * A simple CheckingIterable that in fact doesn't check anything yet, at the start of a chain that collects the failures.
+	 * Wrap it to do the checks.
+	 * @param list the elements to iterate over
+	 * @param failureCollector where to record the failed checks; null to end the iteration on the first one
+	 * @return a CheckingIterable
+	 */
+	public static <T> CheckingIterable<T> over( final Iterable<T> list, final FailureCollector failureCollector ) {
+		return over( list, failureCollector, null );
+	}
+
+	/**
+	 * A simple CheckingIterable that in fact doesn't check anything yet, at the start of a chain that collects the failures and keeps within a budget.
+	 * Before taking each element, it stops if the time of the budget is up, if it has taken as many elements as the budget allows,
+	 * or if a check has failed as many times as the budget allows.
+	 * It also notes as truncated a collection whose iterator has ended when the time was up, as it may have stopped for the same budget.
+	 * Wrap it to do the checks.
+	 * @param list the elements to iterate over
+	 * @param failureCollector where to record the failed checks; null to end the iteration on the first one
+	 * @param budget the bounds of the iteration; null for none
+	 * @return a CheckingIterable
+	 */
+	public static <T> CheckingIterable<T> over( final Iterable<T> list, final FailureCollector failureCollector, final RunBudget budget ) {
+		return new CheckingIterable<T>( failureCollector, budget ) {
+
+			private Iterator<T> it;
 
 			@Override
 			public Iterator<T> iterator() {
-				return list.iterator();
+				it = list.iterator();
+				if ( budget == null ) {
+					return it;
+				}
+				return new Iterator<T>() {
+
+					private long count = 0L;
+
+					@Override
+					public boolean hasNext() {
+						if ( getTruncation() == null ) {
+							if ( budget.isOverTime() ) {
+								truncate( budget.describeOverTime() );
+							} else if ( ! budget.allowsRecords( count ) ) {
+								if ( ! it.hasNext() ) {
+									return false;
+								}
+								truncate( budget.describeOverRecords() );
+							} else if ( ! it.hasNext() ) {
+								if ( budget.isOverTime() ) {
+									truncate( budget.describeOverTime() );
+								}
+								return false;
+							} else {
+								return true;
+							}
+						}
+						return false;
+					}
+
+					@Override
+					public T next() {
+						if ( ! hasNext() ) {
+							throw new NoSuchElementException();
+						}
+						++count;
+						return it.next();
+					}
+
+				};
 			}
 
 			@Override
 			protected void close() {
 				// no-op
 			}
-			
+
+			@Override
+			protected void abandon() {
+				if ( it instanceof AutoCloseable ) {
+					try {
+						( (AutoCloseable) it ).close();
+					} catch ( final Exception e ) {
+						// o.k., we tried
+					}
+				}
+			}
+
 		};
 	}
 	
@@ -71,7 +278,7 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 	 */
 	public <U> CheckingIterable<U> map( final Function<T,U> f ) {
 		final CheckingIterable<T> parentChecker = this;
-		return new CheckingIterable<U>() {
+		return new CheckingIterable<U>( parentChecker ) {
 
 			@Override
 			public Iterator<U> iterator() {
@@ -118,7 +325,7 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 	 */
 	public CheckingIterable<T> checkContains( final Predicate<T> predicate, final Error error ) {
 		final CheckingIterable<T> parentChecker = this;
-		return new CheckingIterable<T>() {
+		return new CheckingIterable<T>( parentChecker ) {
 
 			MatchCountingIterator<T> mci;
 
@@ -131,7 +338,7 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 			protected void close() {
 				parentChecker.close();
 				if ( mci.getCount() == 0L ) {
-					throw error;
+					failed( error, null );
 				}
 			}
 
@@ -147,7 +354,7 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 	 */
 	public CheckingIterable<T> checkContainsOne( final Predicate<T> predicate, final String collectionSpec, final String matchingObjectSpec ) {
 		final CheckingIterable<T> parentChecker = this;
-		return new CheckingIterable<T>() {
+		return new CheckingIterable<T>( parentChecker ) {
 
 			MatchCountingIterator<T> mci;
 
@@ -161,10 +368,10 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 				parentChecker.close();
 				final long cnt = mci.getCount();
 				if ( cnt == 0L ) {
-					throw new AssertionError( collectionSpec + " does not contain " + matchingObjectSpec );
+					failed( new AssertionError( collectionSpec + " does not contain " + matchingObjectSpec ), null );
 				}
 				if ( cnt > 1L ) {
-					throw new AssertionError( collectionSpec + " contains " + cnt + " instances of " + matchingObjectSpec );
+					failed( new AssertionError( collectionSpec + " contains " + cnt + " instances of " + matchingObjectSpec ), null );
 				}
 			}
 
@@ -209,7 +416,7 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 	 */
 	public CheckingIterable<T> checkForAll( final Predicate<T> predicate, final String message ) {
 		final CheckingIterable<T> parentChecker = this;
-		return new CheckingIterable<T>() {
+		return new CheckingIterable<T>( parentChecker ) {
 
 			@Override
 			public Iterator<T> iterator() {
@@ -224,9 +431,13 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 					@Override
 					public T next() {
 						final T obj = parentIterator.next();
-						final boolean match = predicate.test( obj );
-						if ( ! match ) {
-							throw new AssertionFailedError( message + "; object: " + obj );
+						try {
+							final boolean match = predicate.test( obj );
+							if ( ! match ) {
+								throw new AssertionFailedError( message + "; object: " + obj );
+							}
+						} catch ( final AssertionError e ) {
+							failed( e, obj );
 						}
 						return obj;
 					}
@@ -295,7 +506,7 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 	public <U> CheckingIterable<T> checkUnique( final Function<T, U> function, final String message ) {
 		final CheckingIterable<T> parentChecker = this;
 		final Set<U> seenValues = new HashSet<>();
-		return new CheckingIterable<T>() {
+		return new CheckingIterable<T>( parentChecker ) {
 
 			@Override
 			public Iterator<T> iterator() {
@@ -312,7 +523,7 @@ public abstract class CheckingIterable<T> implements Iterable<T> {
 						final T obj = parentIterator.next();
 						final U val = function.apply( obj );
 						if ( val != null && !seenValues.add( val ) ) {
-							throw new AssertionFailedError( message + "; value: " + val );
+							failed( new AssertionFailedError( message + "; value: " + val ), obj );
 						}
 						return obj;
 					}
@@ -0,0 +1,86 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link FilterInputStream} that counts the bytes read through it.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+	private long count = 0L;
+
+	/**
+	 * A new CountingInputStream.
+	 * @param in the stream to read
+	 */
+	public CountingInputStream( final InputStream in ) {
+		super( in );
+	}
+
+	/**
+	 * @return the number of bytes read so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final int b = super.read();
+		if ( b != -1 ) {
+			++count;
+		}
+		return b;
+	}
+
+	@Override
+	public int read( byte[] b ) throws IOException {
+		return read( b, 0, b.length );
+	}
+
+	@Override
+	public int read( byte[] b, int off, int len ) throws IOException {
+		final int r = super.read( b, off, len );
+		if ( r > 0 ) {
+			count += r;
+		}
+		return r;
+	}
+
+	@Override
+	public long skip( long n ) throws IOException {
+		final long r = super.skip( n );
+		if ( r > 0 ) {
+			count += r;
+		}
+		return r;
+	}
+
+	/**
+	 * @return false
+	 */
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Not supported: does nothing, as the contract of {@link InputStream#mark(int)} allows.
+	 */
+	@Override
+	public void mark( final int readlimit ) {
+		// not supported
+	}
+
+	/**
+	 * Not supported.
+	 * @throws IOException always
+	 */
+	@Override
+	public void reset() throws IOException {
+		throw new IOException( "mark/reset not supported" );
+	}
+
+}
@@ -0,0 +1,258 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the failed checks instead of letting the first one end the run, so that all the problems of a harvest can be reported at its end.
+ * The failures are grouped by the code of the check (such as the <code>(2k)</code> in the message) and by the message
+ * with the quoted values and the OAI identifiers left out; for each group, the count is kept, and the identifiers of the first few objects that failed it.
+ * The number of groups is bounded as well: the failures that do not fit are just counted.
+ * The failures of each check are counted too, whether they fit in a group or not, for a {@link RunBudget} to bound them.
+ * Failures can be recorded from several threads at the same time.
+ */
+public class FailureCollector {
+
+	private static final Pattern CHECK_CODE = Pattern.compile( "\\(([0-9][0-9a-z]*)\\)" );
+
+	private static final Pattern VARIABLE_PARTS = Pattern.compile( "\"[^\"]*\"|'[^']*'|\\boai:\\S+|lineNumber: \\d+; columnNumber: \\d+; | expected:<.*> but was:<.*>" );
+
+	/**
+	 * What the failure messages of {@link CheckingIterable} put between the message and the details of the object, and the start of a multi-line description.
+	 */
+	private static final String[] DETAILS_SEPARATORS = { "; object: ", "; value: ", "\n" };
+
+	private final int maxGroups;
+
+	private final int maxSamples;
+
+	private final Function<Object, String> identify;
+
+	private final Map<String, Group> groups = new ConcurrentHashMap<>();
+
+	private final AtomicInteger reservedGroups = new AtomicInteger();
+
+	private final LongAdder total = new LongAdder();
+
+	private final LongAdder ungrouped = new LongAdder();
+
+	private final Map<String, LongAdder> countsByCheck = new ConcurrentHashMap<>();
+
+	/**
+	 * A new collector.
+	 * @param maxGroups the maximum number of groups of failures
+	 * @param maxSamples the maximum number of identifiers of the failed objects kept per group
+	 * @param identify how to identify a failed object in the report
+	 */
+	public FailureCollector( final int maxGroups, final int maxSamples, final Function<Object, String> identify ) {
+		this.maxGroups = maxGroups;
+		this.maxSamples = maxSamples;
+		this.identify = identify;
+	}
+
+	/**
+	 * Record a failed check.
+	 * @param failure the failure
+	 * @param obj the object that failed the check; null if the check is not of one object
+	 * @return the number of failures of the same check recorded so far (see {@link #checkOf(String)}), whether in a group or not
+	 */
+	public long record( final Throwable failure, final Object obj ) {
+		total.increment();
+		final String message = String.valueOf( failure.getMessage() );
+		final String key = template( message );
+		final String code = checkCode( message );
+		Group group = groups.get( key );
+		if ( group == null ) {
+			group = groups.computeIfAbsent( key, ( k ) -> reserveGroup() ? new Group( code, k ) : null );
+		}
+		if ( group != null ) {
+			group.add( ( obj != null ) ? identify.apply( obj ) : null, maxSamples );
+		} else {
+			ungrouped.increment();
+		}
+		final LongAdder count = countsByCheck.computeIfAbsent( checkOf( code, key ), ( k ) -> new LongAdder() );
+		count.increment();
+		return count.sum();
+	}
+
+	/**
+	 * Take one of the places for the groups, if there are any left.
+	 * Called at most once per group created, as {@link ConcurrentHashMap#computeIfAbsent(Object, Function)} runs the function once for an absent key.
+	 * @return whether a place was taken
+	 */
+	private boolean reserveGroup() {
+		int reserved;
+		do {
+			reserved = reservedGroups.get();
+			if ( reserved >= maxGroups ) {
+				return false;
+			}
+		} while ( ! reservedGroups.compareAndSet( reserved, reserved + 1 ) );
+		return true;
+	}
+
+	/**
+	 * The check a failure message is of: its code in parentheses, such as <code>(5b)</code>; its template if it has no code.
+	 * @param message the failure message
+	 * @return the check
+	 */
+	public static String checkOf( final String message ) {
+		return checkOf( checkCode( message ), template( message ) );
+	}
+
+	private static String checkOf( final String checkCode, final String template ) {
+		return checkCode.isEmpty() ? template : "(" + checkCode + ")";
+	}
+
+	/**
+	 * The code of the check in a failure message: the last one in parentheses before the details of the object, as in <code>Violation of (5b) in ...</code>.
+	 * @param message the failure message
+	 * @return the code; empty if there is none
+	 */
+	static String checkCode( final String message ) {
+		final Matcher m = CHECK_CODE.matcher( firstPart( message ) );
+		String code = "";
+		while ( m.find() ) {
+			code = m.group( 1 );
+		}
+		return code;
+	}
+
+	/**
+	 * The template of a failure message: the part before the details of the object, with the quoted values and the OAI identifiers replaced by <code>*</code>,
+	 * and without the position of a parse error or the values compared.
+	 * @param message the failure message
+	 * @return the template
+	 */
+	static String template( final String message ) {
+		return VARIABLE_PARTS.matcher( firstPart( message ) ).replaceAll( ( m ) -> {
+			final char c = m.group().charAt( 0 );
+			if ( c == '"' || c == '\'' ) {
+				return c + "*" + c;
+			}
+			return m.group().startsWith( "oai:" ) ? "oai:*" : "";
+		} );
+	}
+
+	private static String firstPart( final String message ) {
+		int end = message.length();
+		for ( final String separator : DETAILS_SEPARATORS ) {
+			final int i = message.indexOf( separator );
+			if ( i >= 0 && i < end ) {
+				end = i;
+			}
+		}
+		return message.substring( 0, end );
+	}
+
+	/**
+	 * @return the number of failures recorded
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * @return the groups of the failures, the largest first
+	 */
+	public List<Group> getGroups() {
+		final List<Group> result = new ArrayList<>( groups.values() );
+		result.sort( ( a, b ) -> Long.compare( b.getCount(), a.getCount() ) );
+		return result;
+	}
+
+	/**
+	 * The failures by group, the largest group first.
+	 * @return the report, a line per group
+	 */
+	public String getReport() {
+		final StringBuilder sb = new StringBuilder( getTotal() + " failed checks in " + groups.size() + " groups" );
+		for ( final Group group : getGroups() ) {
+			sb.append( "\n  " ).append( group );
+		}
+		if ( ungrouped.sum() > 0L ) {
+			sb.append( "\n  " ).append( ungrouped.sum() ).append( " more in other groups" );
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "FailureCollector[" + getTotal() + " failures]";
+	}
+
+	/**
+	 * The failures of a check with the same message template.
+	 */
+	public static class Group {
+
+		private final String checkCode;
+
+		private final String template;
+
+		private final LongAdder count = new LongAdder();
+
+		private final List<String> samples = new ArrayList<>();
+
+		Group( final String checkCode, final String template ) {
+			this.checkCode = checkCode;
+			this.template = template;
+		}
+
+		void add( final String sample, final int maxSamples ) {
+			count.increment();
+			if ( sample != null ) {
+				synchronized ( samples ) {
+					if ( samples.size() < maxSamples ) {
+						samples.add( sample );
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the code of the check, such as <code>5b</code>; empty if the message does not give one
+		 */
+		public String getCheckCode() {
+			return checkCode;
+		}
+
+		/**
+		 * @return the message template
+		 */
+		public String getTemplate() {
+			return template;
+		}
+
+		/**
+		 * @return the number of failures in the group
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * @return the identifiers of the first objects that failed the check
+		 */
+		public List<String> getSamples() {
+			synchronized ( samples ) {
+				return new ArrayList<>( samples );
+			}
+		}
+
+		@Override
+		public String toString() {
+			final List<String> samples = getSamples();
+			return ( checkCode.isEmpty() || template.contains( "(" + checkCode + ")" ) ? "" : "(" + checkCode + ") " ) + template + ": " + getCount() + ( samples.isEmpty() ? "" : " " + samples + ( getCount() > samples.size() ? " ..." : "" ) );
+		}
+
+	}
+
+}
@@ -0,0 +1,369 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A staged pipeline over the elements of a source: a harvest stage reads the source on a thread of its own,
+ * a pool of workers applies a function to the elements, and the sink (whoever iterates the pipeline) gets the results in the order of the source.
+ * <p>
+ * At most <code>capacity</code> elements wait between the harvest stage and the sink (besides the one the sink is getting the result for); when the sink falls behind, the harvest stage waits.
+ * A failure is reported to the sink where it happened in the order of the source: an exception of the function when the sink gets to the result for its element,
+ * an exception of the source after the results for all the elements read before it.
+ * <p>
+ * The harvest stage can also put an action in the pipeline, to be run by the sink once it has got all the results before it (see {@link #inOrder(Runnable)}).
+ * @param <T> the type of the elements of the source
+ * @param <U> the type of the results
+ */
+public class OrderedPipeline<T, U> {
+
+	private static final ExecutorService harvestExecutor = Threads.newTaskExecutor( "pipeline-harvest" );
+
+	private final Function<T, U> function;
+
+	private final ExecutorService workers;
+
+	private final BlockingQueue<Slot<U>> slots;
+
+	private final int capacity;
+
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	private volatile Thread harvestThread = null;
+
+	private volatile boolean closed = false;
+
+	private final AtomicLong elements = new AtomicLong();
+
+	private final AtomicLong harvestWaits = new AtomicLong();
+
+	private final AtomicLong harvestWaitNanos = new AtomicLong();
+
+	private final AtomicLong sinkWaits = new AtomicLong();
+
+	private final AtomicLong sinkWaitNanos = new AtomicLong();
+
+	private final Depth workQueueDepth = new Depth();
+
+	private final Depth sinkQueueDepth = new Depth();
+
+	/**
+	 * A new pipeline.
+	 * @param function the function to apply to the elements; it is called on the worker threads, for several elements at the same time
+	 * @param workers the workers to apply the function on; may be shared with other pipelines
+	 * @param capacity the maximum number of elements waiting between the harvest stage and the sink
+	 */
+	public OrderedPipeline( final Function<T, U> function, final ExecutorService workers, final int capacity ) {
+		if ( capacity <= 0 ) {
+			throw new IllegalArgumentException( "Invalid pipeline capacity: " + capacity );
+		}
+		this.function = function;
+		this.workers = workers;
+		this.capacity = capacity;
+		this.slots = new ArrayBlockingQueue<>( capacity );
+	}
+
+	/**
+	 * The results for the elements of a source.
+	 * The harvest stage starts reading the source when the first iterator is asked for; the pipeline can be iterated just once.
+	 * Closing the iterator stops the harvest stage and closes the iterator of the source (if it is {@link AutoCloseable}).
+	 * @param source the elements
+	 * @return the results, in the order of the elements
+	 */
+	public Iterable<U> over( final Iterable<T> source ) {
+		return () -> {
+			if ( ! started.compareAndSet( false, true ) ) {
+				throw new IllegalStateException( "Iterable just once" );
+			}
+			try {
+				harvestExecutor.execute( () -> harvest( source ) );
+			} catch ( final RejectedExecutionException e ) {
+				throw new IllegalStateException( "Cannot start the harvest stage", e );
+			}
+			return new SinkIterator();
+		};
+	}
+
+	/**
+	 * Have the sink run an action after it has got the results for all the elements read so far.
+	 * Called on the thread of the harvest stage (e.g., by the source at the end of a chunk); on any other thread the action is run right away.
+	 * @param action the action
+	 */
+	public void inOrder( final Runnable action ) {
+		if ( Thread.currentThread() != harvestThread ) {
+			action.run();
+			return;
+		}
+		final CompletableFuture<U> done = new CompletableFuture<>();
+		done.complete( null );
+		put( new Slot<U>( done, action ) );
+	}
+
+	private void harvest( final Iterable<T> source ) {
+		harvestThread = Thread.currentThread();
+		Iterator<T> it = null;
+		try {
+			it = source.iterator();
+			while ( ! closed && it.hasNext() ) {
+				final T element = it.next();
+				elements.incrementAndGet();
+				final CompletableFuture<U> result = new CompletableFuture<>();
+				if ( ! put( new Slot<U>( result, null ) ) ) {
+					break;
+				}
+				workQueueDepth.increment();
+				try {
+					workers.execute( () -> work( element, result ) );
+				} catch ( final RejectedExecutionException e ) {
+					work( element, result );
+				}
+			}
+			final CompletableFuture<U> end = new CompletableFuture<>();
+			end.complete( null );
+			put( new Slot<U>( end, null, true ) );
+		} catch ( final RuntimeException | Error e ) {
+			final CompletableFuture<U> failure = new CompletableFuture<>();
+			failure.completeExceptionally( e );
+			sinkQueueDepth.increment();
+			put( new Slot<U>( failure, null, true ) );
+		} finally {
+			if ( it instanceof AutoCloseable ) {
+				try {
+					( (AutoCloseable) it ).close();
+				} catch ( final Exception e ) {
+					// o.k., we tried
+				}
+			}
+			harvestThread = null;
+		}
+	}
+
+	private void work( final T element, final CompletableFuture<U> result ) {
+		workQueueDepth.decrement();
+		try {
+			if ( ! closed ) {
+				result.complete( function.apply( element ) );
+			} else {
+				result.cancel( false );
+			}
+		} catch ( final RuntimeException | Error e ) {
+			result.completeExceptionally( e );
+		}
+		sinkQueueDepth.increment();
+	}
+
+	/**
+	 * Put a slot in the pipeline, waiting while it is full.
+	 * @return false when the pipeline has been closed
+	 */
+	private boolean put( final Slot<U> slot ) {
+		if ( closed ) {
+			return false;
+		}
+		if ( slots.offer( slot ) ) {
+			return true;
+		}
+		harvestWaits.incrementAndGet();
+		final long t0 = System.nanoTime();
+		try {
+			slots.put( slot );
+			return true;
+		} catch ( final InterruptedException e ) {
+			// closed by the sink
+			return false;
+		} finally {
+			harvestWaitNanos.addAndGet( System.nanoTime() - t0 );
+		}
+	}
+
+	/**
+	 * @return the number of elements read from the source
+	 */
+	public long getElements() {
+		return elements.get();
+	}
+
+	/**
+	 * @return the number of times the harvest stage had to wait for the sink
+	 */
+	public long getHarvestWaits() {
+		return harvestWaits.get();
+	}
+
+	/**
+	 * @return the number of times the sink had to wait for a result
+	 */
+	public long getSinkWaits() {
+		return sinkWaits.get();
+	}
+
+	/**
+	 * @return the maximum number of elements waiting for a worker
+	 */
+	public int getMaxWorkQueueDepth() {
+		return workQueueDepth.getMax();
+	}
+
+	/**
+	 * @return the maximum number of results waiting for the sink
+	 */
+	public int getMaxSinkQueueDepth() {
+		return sinkQueueDepth.getMax();
+	}
+
+	@Override
+	public String toString() {
+		return "OrderedPipeline[" + getElements() + " elements, capacity " + capacity
+				+ "; harvest waited " + getHarvestWaits() + " times (" + ( harvestWaitNanos.get() / 1000000L ) + " ms)"
+				+ "; work queue depth " + workQueueDepth
+				+ "; sink queue depth " + sinkQueueDepth
+				+ "; sink waited " + getSinkWaits() + " times (" + ( sinkWaitNanos.get() / 1000000L ) + " ms)]";
+	}
+
+	/**
+	 * The iterator of the sink.
+	 */
+	private class SinkIterator implements Iterator<U>, AutoCloseable {
+
+		private Slot<U> slot = null;
+
+		private boolean ended = false;
+
+		@Override
+		public boolean hasNext() {
+			while ( ! ended && slot == null ) {
+				final Slot<U> next = take();
+				if ( next.action != null ) {
+					next.action.run();
+				} else if ( next.last ) {
+					ended = true;
+					get( next );
+				} else {
+					slot = next;
+				}
+			}
+			return slot != null;
+		}
+
+		@Override
+		public U next() {
+			if ( ! hasNext() ) {
+				throw new NoSuchElementException();
+			}
+			final Slot<U> current = slot;
+			slot = null;
+			return get( current );
+		}
+
+		private Slot<U> take() {
+			try {
+				return slots.take();
+			} catch ( final InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException( "Interrupted while waiting for the harvest", e );
+			}
+		}
+
+		private U get( final Slot<U> current ) {
+			if ( ! current.result.isDone() ) {
+				sinkWaits.incrementAndGet();
+			}
+			final long t0 = System.nanoTime();
+			try {
+				final U result = current.result.get();
+				if ( current.action == null && ! current.last ) {
+					sinkQueueDepth.decrement();
+				}
+				return result;
+			} catch ( final ExecutionException e ) {
+				sinkQueueDepth.decrement();
+				final Throwable cause = e.getCause();
+				if ( cause instanceof Error ) {
+					throw (Error) cause;
+				} else if ( cause instanceof RuntimeException ) {
+					throw (RuntimeException) cause;
+				}
+				throw new IllegalStateException( cause );
+			} catch ( final CancellationException e ) {
+				throw new IllegalStateException( "The pipeline has been closed", e );
+			} catch ( final InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException( "Interrupted while waiting for a worker", e );
+			} finally {
+				sinkWaitNanos.addAndGet( System.nanoTime() - t0 );
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			final Thread t = harvestThread;
+			if ( t != null ) {
+				t.interrupt();
+			}
+			slots.clear();
+		}
+
+	}
+
+	/**
+	 * A place in the pipeline: the result for an element, an action for the sink, or the end.
+	 */
+	private static class Slot<U> {
+
+		private final CompletableFuture<U> result;
+		private final Runnable action;
+		private final boolean last;
+
+		Slot( final CompletableFuture<U> result, final Runnable action ) {
+			this( result, action, false );
+		}
+
+		Slot( final CompletableFuture<U> result, final Runnable action, final boolean last ) {
+			this.result = result;
+			this.action = action;
+			this.last = last;
+		}
+
+	}
+
+	/**
+	 * The depth of a queue, with its maximum.
+	 */
+	private static class Depth {
+
+		private final AtomicInteger current = new AtomicInteger();
+		private final AtomicInteger max = new AtomicInteger();
+
+		void increment() {
+			final int n = current.incrementAndGet();
+			max.accumulateAndGet( n, Math::max );
+		}
+
+		void decrement() {
+			current.decrementAndGet();
+		}
+
+		int getMax() {
+			return max.get();
+		}
+
+		@Override
+		public String toString() {
+			return current.get() + " (max " + max.get() + ")";
+		}
+
+	}
+
+}
@@ -0,0 +1,170 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The bounds of a validation run, for it to end in a predictable time: the wall time of the whole run,
+ * the failures of each check in a harvest, and the records of a harvest.
+ * The bounds are kept cooperatively: whatever goes through the records asks the budget before taking the next one, and stops cleanly when it is used up.
+ * What has been cut short is noted here, for the report of the run to be marked as truncated.
+ * A bound of 0 means no bound. The budget can be asked from several threads at the same time.
+ */
+public class RunBudget {
+
+	private final long maxMillis;
+
+	private final long maxFailuresPerCheck;
+
+	private final long maxRecordsPerHarvest;
+
+	private final long startNanos;
+
+	private final List<String> truncations;
+
+	/**
+	 * A new budget; the time is counted from now.
+	 * @param maxMillis the maximum wall time of the run, in milliseconds; 0 for no bound
+	 * @param maxFailuresPerCheck the maximum number of failures of a check in a harvest; 0 for no bound
+	 * @param maxRecordsPerHarvest the maximum number of records of a harvest; 0 for no bound
+	 */
+	public RunBudget( final long maxMillis, final long maxFailuresPerCheck, final long maxRecordsPerHarvest ) {
+		if ( maxMillis < 0L || maxFailuresPerCheck < 0L || maxRecordsPerHarvest < 0L ) {
+			throw new IllegalArgumentException( "Invalid budget: " + maxMillis + " ms, " + maxFailuresPerCheck + " failures per check, " + maxRecordsPerHarvest + " records per harvest" );
+		}
+		this.maxMillis = maxMillis;
+		this.maxFailuresPerCheck = maxFailuresPerCheck;
+		this.maxRecordsPerHarvest = maxRecordsPerHarvest;
+		this.startNanos = System.nanoTime();
+		this.truncations = new ArrayList<>();
+	}
+
+	private RunBudget( final RunBudget budget ) {
+		this.maxMillis = budget.maxMillis;
+		this.maxFailuresPerCheck = 0L;
+		this.maxRecordsPerHarvest = 0L;
+		this.startNanos = budget.startNanos;
+		this.truncations = budget.truncations;
+	}
+
+	/**
+	 * The time of this budget only, for the lists that are not harvests (such as the list of sets); what is cut short is noted in this budget.
+	 * @return the budget with the same time and no other bounds
+	 */
+	public RunBudget timeOnly() {
+		return new RunBudget( this );
+	}
+
+	/**
+	 * @return the maximum wall time of the run, in milliseconds; 0 for no bound
+	 */
+	public long getMaxMillis() {
+		return maxMillis;
+	}
+
+	/**
+	 * @return the maximum number of failures of a check in a harvest; 0 for no bound
+	 */
+	public long getMaxFailuresPerCheck() {
+		return maxFailuresPerCheck;
+	}
+
+	/**
+	 * @return the maximum number of records of a harvest; 0 for no bound
+	 */
+	public long getMaxRecordsPerHarvest() {
+		return maxRecordsPerHarvest;
+	}
+
+	/**
+	 * @return whether the wall time of the run is used up
+	 */
+	public boolean isOverTime() {
+		return maxMillis > 0L && System.nanoTime() - startNanos >= maxMillis * 1000000L;
+	}
+
+	/**
+	 * @param records the number of records of a harvest taken so far
+	 * @return whether another record may be taken
+	 */
+	public boolean allowsRecords( final long records ) {
+		return maxRecordsPerHarvest == 0L || records < maxRecordsPerHarvest;
+	}
+
+	/**
+	 * @param failures the number of failures of a check in a harvest so far
+	 * @return whether the harvest may go on
+	 */
+	public boolean allowsFailures( final long failures ) {
+		return maxFailuresPerCheck == 0L || failures < maxFailuresPerCheck;
+	}
+
+	/**
+	 * @return why the run is cut short when its time is up
+	 */
+	public String describeOverTime() {
+		return String.format( Locale.ROOT, "the time budget of %.1f s used up", maxMillis / 1000.0 );
+	}
+
+	/**
+	 * @return why a harvest is cut short when it has had the maximum number of records
+	 */
+	public String describeOverRecords() {
+		return "the budget of " + maxRecordsPerHarvest + " records per harvest used up";
+	}
+
+	/**
+	 * @param check the check that has failed too many times
+	 * @return why a harvest is cut short when a check has failed the maximum number of times
+	 */
+	public String describeOverFailures( final String check ) {
+		return "the budget of " + maxFailuresPerCheck + " failures of " + check + " used up";
+	}
+
+	/**
+	 * Note that something has been cut short.
+	 * @param what what, how far it got and why
+	 */
+	public void truncated( final String what ) {
+		synchronized ( truncations ) {
+			truncations.add( what );
+		}
+	}
+
+	/**
+	 * @return whether anything has been cut short
+	 */
+	public boolean isTruncated() {
+		synchronized ( truncations ) {
+			return ! truncations.isEmpty();
+		}
+	}
+
+	/**
+	 * @return what has been cut short, in the order noted
+	 */
+	public List<String> getTruncations() {
+		synchronized ( truncations ) {
+			return new ArrayList<>( truncations );
+		}
+	}
+
+	/**
+	 * What has been cut short.
+	 * @return the report, a line per thing cut short
+	 */
+	public String getReport() {
+		final StringBuilder sb = new StringBuilder( String.format( Locale.ROOT, "Truncated run after %.1f s", ( System.nanoTime() - startNanos ) / 1.0e9 ) );
+		for ( final String truncation : getTruncations() ) {
+			sb.append( "\n  " ).append( truncation );
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "RunBudget[" + maxMillis + " ms, " + maxFailuresPerCheck + " failures per check, " + maxRecordsPerHarvest + " records per harvest]";
+	}
+
+}
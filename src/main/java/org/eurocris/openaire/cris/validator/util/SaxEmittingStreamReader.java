@@ -0,0 +1,131 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * An {@link XMLStreamReader} that reports every event it is advanced over to a SAX {@link ContentHandler}.
+ * Whoever pulls the events (e.g., a JAXB unmarshaller working on a fragment) thus also feeds the handler (e.g., a validator of the whole document).
+ */
+public class SaxEmittingStreamReader extends StreamReaderDelegate {
+
+	private final ContentHandler handler;
+
+	/**
+	 * Wrap a stream reader positioned at the start of the document.
+	 * @param reader the reader to wrap
+	 * @param handler the handler to report the events to
+	 * @throws XMLStreamException if the handler refuses the start of the document
+	 */
+	public SaxEmittingStreamReader( final XMLStreamReader reader, final ContentHandler handler ) throws XMLStreamException {
+		super( reader );
+		this.handler = handler;
+		emit( XMLStreamConstants.START_DOCUMENT );
+	}
+
+	@Override
+	public int next() throws XMLStreamException {
+		final int event = super.next();
+		emit( event );
+		return event;
+	}
+
+	@Override
+	public int nextTag() throws XMLStreamException {
+		int event = next();
+		while ( ( event == XMLStreamConstants.CHARACTERS && isWhiteSpace() ) || event == XMLStreamConstants.SPACE || event == XMLStreamConstants.COMMENT || event == XMLStreamConstants.PROCESSING_INSTRUCTION ) {
+			event = next();
+		}
+		if ( event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT ) {
+			throw new XMLStreamException( "Expected start or end tag", getLocation() );
+		}
+		return event;
+	}
+
+	@Override
+	public String getElementText() throws XMLStreamException {
+		if ( getEventType() != XMLStreamConstants.START_ELEMENT ) {
+			throw new XMLStreamException( "Not at a start tag", getLocation() );
+		}
+		final StringBuilder sb = new StringBuilder();
+		int event = next();
+		while ( event != XMLStreamConstants.END_ELEMENT ) {
+			switch ( event ) {
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+			case XMLStreamConstants.ENTITY_REFERENCE:
+				sb.append( getText() );
+				break;
+			case XMLStreamConstants.COMMENT:
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				break;
+			default:
+				throw new XMLStreamException( "Element text expected", getLocation() );
+			}
+			event = next();
+		}
+		return sb.toString();
+	}
+
+	private void emit( final int event ) throws XMLStreamException {
+		try {
+			switch ( event ) {
+			case XMLStreamConstants.START_DOCUMENT:
+				handler.startDocument();
+				break;
+			case XMLStreamConstants.END_DOCUMENT:
+				handler.endDocument();
+				break;
+			case XMLStreamConstants.START_ELEMENT:
+				final int nsCount = getNamespaceCount();
+				for ( int i = 0; i < nsCount; ++i ) {
+					handler.startPrefixMapping( nonNull( getNamespacePrefix( i ) ), nonNull( getNamespaceURI( i ) ) );
+				}
+				final AttributesImpl atts = new AttributesImpl();
+				final int attCount = getAttributeCount();
+				for ( int i = 0; i < attCount; ++i ) {
+					atts.addAttribute( nonNull( getAttributeNamespace( i ) ), getAttributeLocalName( i ), qName( getAttributePrefix( i ), getAttributeLocalName( i ) ), nonNull( getAttributeType( i ) ), getAttributeValue( i ) );
+				}
+				handler.startElement( nonNull( getNamespaceURI() ), getLocalName(), qName( getPrefix(), getLocalName() ), atts );
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				handler.endElement( nonNull( getNamespaceURI() ), getLocalName(), qName( getPrefix(), getLocalName() ) );
+				final int nsCount1 = getNamespaceCount();
+				for ( int i = 0; i < nsCount1; ++i ) {
+					handler.endPrefixMapping( nonNull( getNamespacePrefix( i ) ) );
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+				handler.characters( getTextCharacters(), getTextStart(), getTextLength() );
+				break;
+			case XMLStreamConstants.SPACE:
+				handler.ignorableWhitespace( getTextCharacters(), getTextStart(), getTextLength() );
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				handler.processingInstruction( getPITarget(), getPIData() );
+				break;
+			default:
+				// comments, DTD and the like are of no interest
+			}
+		} catch ( final SAXException e ) {
+			throw new XMLStreamException( e.getMessage(), getLocation(), e );
+		}
+	}
+
+	private static String nonNull( final String s ) {
+		return ( s != null ) ? s : "";
+	}
+
+	private static String qName( final String prefix, final String localName ) {
+		return ( prefix == null || prefix.isEmpty() ) ? localName : prefix + ":" + localName;
+	}
+
+}
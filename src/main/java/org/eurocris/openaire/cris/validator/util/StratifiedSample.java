@@ -0,0 +1,289 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A sample of the records of the harvests, to check just a part of them and estimate the failure rates of the whole.
+ * Whether a record is in the sample depends on its OAI identifier and the seed only, so the same records are picked on every run with the same seed,
+ * whatever the order they come in, and the same decision can be taken while parsing and while checking.
+ * The records of each harvest (a stratum, e.g., a set in a metadata format) are sampled at the same rate,
+ * and the failure rate of each stratum is estimated on its own, with a Wilson score interval;
+ * the failure rate of all the records is the mean of these weighted by the sizes of the strata.
+ * The counts can be updated from several threads at the same time.
+ */
+public class StratifiedSample {
+
+	/**
+	 * The quantile of the standard normal distribution for the 95% confidence intervals.
+	 */
+	private static final double Z = 1.959964;
+
+	private final double rate;
+
+	private final long seed;
+
+	private final Map<String, Stratum> strata = new ConcurrentHashMap<>();
+
+	/**
+	 * A new sample.
+	 * @param rate the part of the records to pick, between 0 and 1
+	 * @param seed the seed to pick the records by
+	 */
+	public StratifiedSample( final double rate, final long seed ) {
+		if ( ! ( rate >= 0.0 && rate <= 1.0 ) ) {
+			throw new IllegalArgumentException( "The sampling rate is to be between 0 and 1, not " + rate );
+		}
+		this.rate = rate;
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the part of the records picked
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Whether a record is in the sample: a hash of its identifier and the seed, mapped to [0, 1), is below the rate.
+	 * @param identifier the identifier of the record
+	 * @return true if the record is to be checked
+	 */
+	public boolean isSampled( final String identifier ) {
+		if ( rate >= 1.0 ) {
+			return true;
+		}
+		long h = seed ^ 0xcbf29ce484222325L;
+		for ( int i = 0; i < identifier.length(); ++i ) {
+			h = ( h ^ identifier.charAt( i ) ) * 0x100000001b3L;
+		}
+		// the finalizer of SplitMix64 spreads the bits
+		h = ( h ^ ( h >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+		h = ( h ^ ( h >>> 27 ) ) * 0x94d049bb133111ebL;
+		h = h ^ ( h >>> 31 );
+		return ( h >>> 11 ) * 0x1.0p-53 < rate;
+	}
+
+	/**
+	 * The stratum of the given name, created when first asked for.
+	 * @param name the name of the stratum
+	 * @return the stratum
+	 */
+	public Stratum getStratum( final String name ) {
+		return strata.computeIfAbsent( name, Stratum::new );
+	}
+
+	/**
+	 * @return the strata, in the order of their names
+	 */
+	public List<Stratum> getStrata() {
+		final List<Stratum> result = new ArrayList<>( strata.values() );
+		result.sort( ( a, b ) -> a.name.compareTo( b.name ) );
+		return result;
+	}
+
+	/**
+	 * The failure rate of all the records, estimated from the strata that have records checked:
+	 * the mean of their failure rates weighted by their sizes, with a normal approximation of the interval (corrected for the finite strata).
+	 * @return the estimate; null if no records have been checked
+	 */
+	public Estimate estimateFailureRate() {
+		long population = 0L;
+		for ( final Stratum stratum : strata.values() ) {
+			if ( stratum.getChecked() > 0L ) {
+				population += stratum.getRecords();
+			}
+		}
+		if ( population == 0L ) {
+			return null;
+		}
+		double p = 0.0;
+		double variance = 0.0;
+		for ( final Stratum stratum : strata.values() ) {
+			final long n = stratum.getChecked();
+			if ( n == 0L ) {
+				continue;
+			}
+			final long size = stratum.getRecords();
+			final double w = (double) size / population;
+			final double ph = (double) stratum.getFailed() / n;
+			p += w * ph;
+			if ( n < size ) {
+				// adjusted as by Agresti and Coull, so that a stratum without failures still adds to the width of the interval
+				final double nh = n + Z * Z;
+				final double adjusted = ( stratum.getFailed() + Z * Z / 2.0 ) / nh;
+				variance += w * w * ( 1.0 - (double) n / size ) * adjusted * ( 1.0 - adjusted ) / nh;
+			}
+		}
+		final double half = Z * Math.sqrt( variance );
+		return new Estimate( p, Math.max( 0.0, p - half ), Math.min( 1.0, p + half ) );
+	}
+
+	/**
+	 * The counts and the estimated failure rate of each stratum and of all of them.
+	 * @return the report, a line per stratum
+	 */
+	public String getReport() {
+		long records = 0L;
+		long checked = 0L;
+		long failed = 0L;
+		final StringBuilder sb = new StringBuilder();
+		for ( final Stratum stratum : getStrata() ) {
+			records += stratum.getRecords();
+			checked += stratum.getChecked();
+			failed += stratum.getFailed();
+			sb.append( "\n  " ).append( stratum );
+		}
+		final Estimate estimate = estimateFailureRate();
+		return "Sample of " + format( rate ) + " (seed " + seed + "): " + checked + " of " + records + " records checked, " + failed + " failed"
+				+ ( ( estimate != null ) ? "; estimated failure rate " + estimate : "" ) + sb;
+	}
+
+	@Override
+	public String toString() {
+		return "StratifiedSample[" + format( rate ) + ", seed " + seed + "]";
+	}
+
+	private static String format( final double rate ) {
+		return String.format( Locale.ROOT, "%.2f%%", 100.0 * rate );
+	}
+
+	/**
+	 * The records of a harvest: how many have been seen, how many of them checked, and how many of these failed.
+	 */
+	public static class Stratum {
+
+		private final String name;
+
+		private final LongAdder records = new LongAdder();
+
+		private final LongAdder checked = new LongAdder();
+
+		private final LongAdder failed = new LongAdder();
+
+		Stratum( final String name ) {
+			this.name = name;
+		}
+
+		/**
+		 * Count a record seen.
+		 * @param isChecked whether the record is in the sample and has been checked
+		 * @param hasFailed whether the check has failed
+		 */
+		public void count( final boolean isChecked, final boolean hasFailed ) {
+			records.increment();
+			if ( isChecked ) {
+				checked.increment();
+				if ( hasFailed ) {
+					failed.increment();
+				}
+			}
+		}
+
+		/**
+		 * @return the name of the stratum
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return how many records have been seen
+		 */
+		public long getRecords() {
+			return records.sum();
+		}
+
+		/**
+		 * @return how many records have been checked
+		 */
+		public long getChecked() {
+			return checked.sum();
+		}
+
+		/**
+		 * @return how many of the records checked have failed
+		 */
+		public long getFailed() {
+			return failed.sum();
+		}
+
+		/**
+		 * The failure rate of the records of the stratum, estimated from those checked, with a Wilson score interval.
+		 * When all the records have been checked, the rate is exact.
+		 * @return the estimate; null if no records have been checked
+		 */
+		public Estimate estimateFailureRate() {
+			final long n = getChecked();
+			if ( n == 0L ) {
+				return null;
+			}
+			final double p = (double) getFailed() / n;
+			if ( n >= getRecords() ) {
+				return new Estimate( p, p, p );
+			}
+			final double z2n = Z * Z / n;
+			final double center = ( p + z2n / 2.0 ) / ( 1.0 + z2n );
+			final double half = Z * Math.sqrt( p * ( 1.0 - p ) / n + z2n / ( 4.0 * n ) ) / ( 1.0 + z2n );
+			return new Estimate( p, Math.max( 0.0, center - half ), Math.min( 1.0, center + half ) );
+		}
+
+		@Override
+		public String toString() {
+			final Estimate estimate = estimateFailureRate();
+			return name + ": " + getChecked() + " of " + getRecords() + " checked, " + getFailed() + " failed" + ( ( estimate != null ) ? "; failure rate " + estimate : "" );
+		}
+
+	}
+
+	/**
+	 * An estimated rate with its 95% confidence interval.
+	 */
+	public static class Estimate {
+
+		private final double rate;
+
+		private final double low;
+
+		private final double high;
+
+		Estimate( final double rate, final double low, final double high ) {
+			this.rate = rate;
+			this.low = low;
+			this.high = high;
+		}
+
+		/**
+		 * @return the estimated rate
+		 */
+		public double getRate() {
+			return rate;
+		}
+
+		/**
+		 * @return the lower bound of the confidence interval
+		 */
+		public double getLow() {
+			return low;
+		}
+
+		/**
+		 * @return the upper bound of the confidence interval
+		 */
+		public double getHigh() {
+			return high;
+		}
+
+		@Override
+		public String toString() {
+			return format( rate ) + ( ( low < high ) ? " (95% CI " + format( low ) + " to " + format( high ) + ")" : "" );
+		}
+
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Making the threads for background work.
+ */
+public class Threads {
+
+	/**
+	 * An executor that runs every task at once, on a pool of daemon threads that grows as needed and keeps the idle threads for a while.
+	 * @param name the name prefix for the threads
+	 * @return the executor
+	 */
+	public static ExecutorService newTaskExecutor( final String name ) {
+		return Executors.newCachedThreadPool( daemonThreadFactory( name ) );
+	}
+
+	/**
+	 * A factory of daemon threads with numbered names.
+	 * @param name the name prefix for the threads
+	 * @return the thread factory
+	 */
+	public static ThreadFactory daemonThreadFactory( final String name ) {
+		final AtomicInteger counter = new AtomicInteger();
+		return ( final Runnable r ) -> {
+			final Thread t = new Thread( r, name + "-" + counter.incrementAndGet() );
+			t.setDaemon( true );
+			return t;
+		};
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.eurocris.openaire.cris.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AdaptiveRequestLimiter}.
+ */
+public class AdaptiveRequestLimiterTest {
+
+	/**
+	 * Test that a failure halves the concurrency limit and successes raise it back.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testConcurrencyAimd() throws Exception {
+		final AdaptiveRequestLimiter limiter = new AdaptiveRequestLimiter( 1, 8, 1.0, Double.POSITIVE_INFINITY );
+		assertEquals( 8, limiter.getConcurrencyLimit() );
+		fail( limiter, false );
+		assertEquals( 4, limiter.getConcurrencyLimit() );
+		assertTrue( Double.isInfinite( limiter.getRateLimit() ) );
+		for ( int i = 0; i < 60; ++i ) {
+			final AdaptiveRequestLimiter.Permit permit = limiter.acquire();
+			permit.succeeded();
+			permit.release();
+		}
+		assertEquals( 8, limiter.getConcurrencyLimit() );
+		assertEquals( 0, limiter.getInFlight() );
+	}
+
+	/**
+	 * Test that the limits do not go under the floors.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testFloors() throws Exception {
+		final AdaptiveRequestLimiter limiter = new AdaptiveRequestLimiter( 2, 4, 5.0, 40.0 );
+		for ( int i = 0; i < 5; ++i ) {
+			fail( limiter, true );
+		}
+		assertEquals( 2, limiter.getConcurrencyLimit() );
+		assertEquals( 5.0, limiter.getRateLimit(), 1e-9 );
+	}
+
+	/**
+	 * Test that being throttled starts limiting the request rate.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testThrottling() throws Exception {
+		final AdaptiveRequestLimiter limiter = new AdaptiveRequestLimiter( 1, 4, 0.1, Double.POSITIVE_INFINITY );
+		fail( limiter, true );
+		assertFalse( Double.isInfinite( limiter.getRateLimit() ) );
+		assertTrue( limiter.getRateLimit() >= 0.1 );
+		assertEquals( 1L, limiter.getDecreases() );
+	}
+
+	/**
+	 * Test that a request waits while the concurrency limit is reached.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testWaitForPermit() throws Exception {
+		final AdaptiveRequestLimiter limiter = AdaptiveRequestLimiter.fixed( 1 );
+		final AdaptiveRequestLimiter.Permit permit = limiter.acquire();
+		final CompletableFuture<Void> waiting = CompletableFuture.runAsync( () -> {
+			try {
+				limiter.acquire().release();
+			} catch ( final InterruptedException e ) {
+				throw new IllegalStateException( e );
+			}
+		} );
+		Thread.sleep( 50L );
+		assertFalse( waiting.isDone() );
+		permit.release();
+		waiting.get( 10L, TimeUnit.SECONDS );
+		fail( limiter, true );
+		assertEquals( 1, limiter.getConcurrencyLimit() );
+		assertTrue( Double.isInfinite( limiter.getRateLimit() ) );
+	}
+
+	private static void fail( final AdaptiveRequestLimiter limiter, final boolean throttled ) throws InterruptedException {
+		final AdaptiveRequestLimiter.Permit permit = limiter.acquire();
+		permit.failed( throttled );
+		permit.release();
+	}
+
+}
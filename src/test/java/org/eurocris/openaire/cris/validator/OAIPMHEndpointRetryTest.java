@@ -0,0 +1,222 @@
+package org.eurocris.openaire.cris.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openarchives.oai._2.SetType;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of repeating the requests to {@link OAIPMHEndpoint} on transient failures, against a local server.
+ */
+public class OAIPMHEndpointRetryTest {
+
+	private HttpServer server;
+
+	private final AtomicInteger failuresToServe = new AtomicInteger();
+
+	private volatile int failureCode = 503;
+
+	private volatile String retryAfter = "0";
+
+	/**
+	 * Start the server: it answers with the paging examples, but fails the first {@link #failuresToServe} requests.
+	 * @throws IOException if the server cannot be started
+	 */
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+		server.createContext( "/oai", this::serve );
+		server.start();
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	@After
+	public void stopServer() {
+		server.stop( 0 );
+	}
+
+	private void serve( final HttpExchange exchange ) throws IOException {
+		if ( failuresToServe.getAndDecrement() > 0 ) {
+			if ( retryAfter != null ) {
+				exchange.getResponseHeaders().set( "Retry-After", retryAfter );
+			}
+			exchange.sendResponseHeaders( failureCode, -1 );
+			exchange.close();
+			return;
+		}
+		try ( final InputStream in = getClass().getResourceAsStream( "paging/_" + exchange.getRequestURI().getRawQuery().replace( '&', '+' ) + ".xml" ) ) {
+			if ( in == null ) {
+				exchange.sendResponseHeaders( HttpURLConnection.HTTP_NOT_FOUND, -1 );
+				exchange.close();
+				return;
+			}
+			final byte[] body = in.readAllBytes();
+			exchange.getResponseHeaders().set( "Content-Type", "text/xml" );
+			exchange.sendResponseHeaders( HttpURLConnection.HTTP_OK, body.length );
+			try ( final OutputStream out = exchange.getResponseBody() ) {
+				out.write( body );
+			}
+		}
+	}
+
+	private OAIPMHEndpoint endpoint( final int maxAttempts ) throws IOException {
+		final OAIPMHEndpoint endpoint = new OAIPMHEndpoint( URI.create( "http://localhost:" + server.getAddress().getPort() + "/oai" ).toURL(), null, ( conn ) -> conn.getInputStream() );
+		endpoint.setRetryPolicy( new RetryPolicy( maxAttempts, 1L, 10L ) );
+		return endpoint;
+	}
+
+	private static List<String> listSetSpecs( final OAIPMHEndpoint endpoint ) {
+		final List<String> result = new ArrayList<>();
+		for ( final SetType set : endpoint.callListSets() ) {
+			result.add( set.getSetSpec() );
+		}
+		return result;
+	}
+
+	/**
+	 * Test that 503 with Retry-After is waited out.
+	 * @throws IOException on a network problem
+	 */
+	@Test
+	public void testRetryAfter() throws IOException {
+		failuresToServe.set( 2 );
+		final OAIPMHEndpoint endpoint = endpoint( 3 );
+		assertEquals( Arrays.asList( "set1", "set2", "set3", "set4", "set5" ), listSetSpecs( endpoint ) );
+		assertEquals( 2L, endpoint.getRetryStatistics().getThrottledRetries() );
+		assertEquals( 0L, endpoint.getRetryStatistics().getGiveUps() );
+	}
+
+	/**
+	 * Test that a transient server error without Retry-After is retried with a backoff.
+	 * @throws IOException on a network problem
+	 */
+	@Test
+	public void testServerError() throws IOException {
+		failuresToServe.set( 1 );
+		failureCode = 502;
+		retryAfter = null;
+		final OAIPMHEndpoint endpoint = endpoint( 3 );
+		assertEquals( 5, listSetSpecs( endpoint ).size() );
+		assertEquals( 1L, endpoint.getRetryStatistics().getServerErrorRetries() );
+	}
+
+	/**
+	 * Test that the endpoint gives up after the maximum number of attempts.
+	 * @throws IOException on a network problem
+	 */
+	@Test
+	public void testGiveUp() throws IOException {
+		failuresToServe.set( 10 );
+		final OAIPMHEndpoint endpoint = endpoint( 2 );
+		try {
+			listSetSpecs( endpoint );
+			fail( "The endpoint should give up" );
+		} catch ( final IllegalStateException e ) {
+			assertTrue( e.getMessage().contains( "503" ) );
+		}
+		assertEquals( 1L, endpoint.getRetryStatistics().getThrottledRetries() );
+		assertEquals( 1L, endpoint.getRetryStatistics().getGiveUps() );
+	}
+
+	/**
+	 * Test that other response codes are not retried.
+	 * @throws IOException on a network problem
+	 */
+	@Test
+	public void testNoRetryOnNotFound() throws IOException {
+		final OAIPMHEndpoint endpoint = endpoint( 3 );
+		try {
+			endpoint.callListIdentifiers( "oai_dc", "unknown", null, null ).iterator();
+			fail( "The request should fail" );
+		} catch ( final IllegalStateException e ) {
+			assertTrue( e.getMessage().contains( "404" ) );
+		}
+		assertEquals( 0L, endpoint.getRetryStatistics().getRetries() );
+	}
+
+	/**
+	 * Test that a streamed request whose response cannot be opened gives its permit back, so that the next requests do not wait for it forever.
+	 * @throws IOException on a network problem
+	 */
+	@Test( timeout = 10000L )
+	public void testFailedOpenReleasesPermit() throws IOException {
+		final OAIPMHEndpoint endpoint = endpoint( 1 );
+		final AdaptiveRequestLimiter limiter = AdaptiveRequestLimiter.fixed( 1 );
+		endpoint.setRequestLimiter( limiter );
+		endpoint.setStreaming( true );
+		for ( int i = 0; i < 3; ++i ) {
+			try {
+				endpoint.callListIdentifiers( "oai_dc", "unknown", null, null ).iterator();
+				fail( "The request should fail" );
+			} catch ( final IllegalStateException e ) {
+				assertTrue( e.getMessage().contains( "404" ) );
+			}
+			assertEquals( 0, limiter.getInFlight() );
+		}
+	}
+
+	/**
+	 * Test the delays of the retry policy.
+	 */
+	@Test
+	public void testDelays() {
+		final RetryPolicy policy = new RetryPolicy( 10, 100L, 1000L );
+		for ( int i = 0; i < 20; ++i ) {
+			final long d1 = policy.getDelayMillis( 1, null );
+			assertTrue( d1 >= 50L && d1 <= 100L );
+			final long d3 = policy.getDelayMillis( 3, null );
+			assertTrue( d3 >= 200L && d3 <= 400L );
+			final long d9 = policy.getDelayMillis( 9, null );
+			assertTrue( d9 >= 500L && d9 <= 1000L );
+		}
+		assertEquals( 0L, policy.getDelayMillis( 5, "0" ) );
+		assertEquals( 1000L, policy.getDelayMillis( 1, "3600" ) );
+		assertEquals( 1000L, policy.getDelayMillis( 1, "Fri, 31 Dec 2100 23:59:59 GMT" ) );
+	}
+
+	/**
+	 * Test which network failures are retried: those that may go away, and not those caused, however deep down, by a problem that does not.
+	 */
+	@Test
+	public void testTransientFailures() {
+		assertTrue( RetryPolicy.isTransient( new ConnectException( "Connection refused" ) ) );
+		assertTrue( RetryPolicy.isTransient( new SocketTimeoutException( "Read timed out" ) ) );
+		assertTrue( RetryPolicy.isTransient( new IOException( "Connection reset", new IOException( "Broken pipe" ) ) ) );
+		assertFalse( RetryPolicy.isTransient( new UnknownHostException( "oai.example.org" ) ) );
+		assertFalse( RetryPolicy.isTransient( new ConnectException( "oai.example.org" ).initCause( new UnresolvedAddressException() ) ) );
+		assertFalse( RetryPolicy.isTransient( new IOException( "Handshake failed", new SSLHandshakeException( "PKIX path building failed" ) ) ) );
+		assertFalse( RetryPolicy.isTransient( new IOException( "Cannot make a request", new URISyntaxException( "http://oai example.org/", "Illegal character" ) ) ) );
+		assertFalse( RetryPolicy.isTransient( new InterruptedIOException() ) );
+		assertFalse( RetryPolicy.isTransient( new IllegalStateException( "not a network problem" ) ) );
+	}
+
+}
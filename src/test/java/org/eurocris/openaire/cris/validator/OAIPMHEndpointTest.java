@@ -0,0 +1,285 @@
+package org.eurocris.openaire.cris.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.eurocris.openaire.cris.validator.util.CheckingIterable;
+import org.eurocris.openaire.cris.validator.util.RunBudget;
+import org.junit.Test;
+import org.openarchives.oai._2.HeaderType;
+import org.openarchives.oai._2.RecordType;
+import org.openarchives.oai._2.SetType;
+import org.xml.sax.SAXException;
+
+/**
+ * Unit tests for {@link OAIPMHEndpoint}, working over local files.
+ */
+public class OAIPMHEndpointTest {
+
+	private static final List<String> EXPECTED_SET_SPECS = Arrays.asList( "set1", "set2", "set3", "set4", "set5" );
+
+	private static final List<String> EXPECTED_IDENTIFIERS = Arrays.asList( "oai:cris.example.org:1", "oai:cris.example.org:2", "oai:cris.example.org:3", "oai:cris.example.org:4", "oai:cris.example.org:5" );
+
+	/**
+	 * Create an endpoint over the three-chunk list of sets.
+	 * @return the endpoint
+	 */
+	protected static OAIPMHEndpoint pagingEndpoint() {
+		final URL url = OAIPMHEndpointTest.class.getResource( "paging/" );
+		return new OAIPMHEndpoint( url, null, ( conn ) -> conn.getInputStream() );
+	}
+
+	/**
+	 * Create an endpoint over the paging examples that validates the responses against the OAI-PMH schema.
+	 * @return the endpoint
+	 * @throws SAXException if the schema cannot be loaded
+	 */
+	protected static OAIPMHEndpoint validatingPagingEndpoint() throws SAXException {
+		final URL url = OAIPMHEndpointTest.class.getResource( "paging/" );
+		final Schema schema = SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( OAIPMHEndpointTest.class.getResource( "/schemas/cached/OAI-PMH.xsd" ) );
+		return new OAIPMHEndpoint( url, schema, ( conn ) -> conn.getInputStream() );
+	}
+
+	/**
+	 * Collect the identifiers of the headers in a set.
+	 * @param endpoint the endpoint to ask
+	 * @param setSpec the set; null for all
+	 * @return the identifiers in the order they were listed
+	 */
+	protected static List<String> listIdentifiers( final OAIPMHEndpoint endpoint, final String setSpec ) {
+		final List<String> result = new ArrayList<>();
+		for ( final HeaderType header : endpoint.callListIdentifiers( "oai_dc", setSpec, null, null ) ) {
+			result.add( header.getIdentifier() );
+		}
+		return result;
+	}
+
+	/**
+	 * Collect the set specs of the list of sets.
+	 * @param endpoint the endpoint to ask
+	 * @return the set specs in the order they were listed
+	 */
+	protected static List<String> listSetSpecs( final OAIPMHEndpoint endpoint ) {
+		final List<String> result = new ArrayList<>();
+		for ( final SetType set : endpoint.callListSets() ) {
+			result.add( set.getSetSpec() );
+		}
+		return result;
+	}
+
+	/**
+	 * Test that the resumption tokens are followed to the end of the list.
+	 */
+	@Test
+	public void testResumptionTokens() {
+		final OAIPMHEndpoint endpoint = pagingEndpoint();
+		endpoint.setPrefetch( 0, Long.MAX_VALUE );
+		assertEquals( EXPECTED_SET_SPECS, listSetSpecs( endpoint ) );
+	}
+
+	/**
+	 * Test that prefetching the chunks yields the same list.
+	 */
+	@Test
+	public void testPrefetch() {
+		final OAIPMHEndpoint endpoint = pagingEndpoint();
+		endpoint.setPrefetch( 2, Long.MAX_VALUE );
+		assertEquals( EXPECTED_SET_SPECS, listSetSpecs( endpoint ) );
+	}
+
+	/**
+	 * Test that a tiny memory budget still lets the prefetch go through the list one chunk at a time.
+	 */
+	@Test
+	public void testPrefetchWithinBudget() {
+		final OAIPMHEndpoint endpoint = pagingEndpoint();
+		endpoint.setPrefetch( 3, 1L );
+		assertEquals( EXPECTED_SET_SPECS, listSetSpecs( endpoint ) );
+	}
+
+	/**
+	 * Test that the lists end early, with or without prefetching, when the time of the run budget is up.
+	 * @throws InterruptedException when interrupted while waiting for the time to run out
+	 */
+	@Test
+	public void testRunBudget() throws InterruptedException {
+		final RunBudget budget = new RunBudget( 1L, 0L, 0L );
+		final OAIPMHEndpoint endpoint = pagingEndpoint();
+		endpoint.setRunBudget( budget );
+		Thread.sleep( 5L );
+		endpoint.setPrefetch( 0, Long.MAX_VALUE );
+		assertEquals( Collections.emptyList(), listSetSpecs( endpoint ) );
+		endpoint.setPrefetch( 2, Long.MAX_VALUE );
+		assertEquals( Collections.emptyList(), listSetSpecs( endpoint ) );
+	}
+
+	/**
+	 * Test that the streamed list of identifiers equals the parsed one.
+	 * @throws SAXException if the schema cannot be loaded
+	 */
+	@Test
+	public void testStreaming() throws SAXException {
+		final OAIPMHEndpoint endpoint = validatingPagingEndpoint();
+		assertEquals( EXPECTED_IDENTIFIERS, listIdentifiers( endpoint, null ) );
+		endpoint.setStreaming( true );
+		assertEquals( EXPECTED_IDENTIFIERS, listIdentifiers( endpoint, null ) );
+	}
+
+	/**
+	 * Test that a noRecordsMatch error gives an empty streamed list.
+	 */
+	@Test
+	public void testStreamingNoRecordsMatch() {
+		final OAIPMHEndpoint endpoint = pagingEndpoint();
+		endpoint.setStreaming( true );
+		assertTrue( listIdentifiers( endpoint, "empty" ).isEmpty() );
+	}
+
+	/**
+	 * Test that the streamed response is validated against the schema.
+	 * @throws SAXException if the schema cannot be loaded
+	 */
+	@Test( expected = IllegalStateException.class )
+	public void testStreamingValidation() throws SAXException {
+		final OAIPMHEndpoint endpoint = validatingPagingEndpoint();
+		endpoint.setStreaming( true );
+		listIdentifiers( endpoint, "invalid" );
+	}
+
+	/**
+	 * Resume a list of records and collect the identifiers and the resumption tokens reported after each chunk.
+	 * @param endpoint the endpoint to ask
+	 * @param resumptionToken the resumption token to start with
+	 * @param tokens where to collect the resumption tokens reported
+	 * @return the identifiers in the order they were listed
+	 */
+	protected static List<String> resumeListRecords( final OAIPMHEndpoint endpoint, final String resumptionToken, final List<String> tokens ) {
+		final List<String> result = new ArrayList<>();
+		for ( final RecordType record : endpoint.callListRecords( "oai_dc", null, null, null, resumptionToken, null, tokens::add ) ) {
+			result.add( record.getHeader().getIdentifier() );
+		}
+		return result;
+	}
+
+	/**
+	 * Test that a list continues from the given resumption token, and that the progress is reported after each chunk.
+	 * @throws SAXException if the schema cannot be loaded
+	 */
+	@Test
+	public void testResume() throws SAXException {
+		final List<String> tokens = new ArrayList<>();
+		assertEquals( EXPECTED_IDENTIFIERS, resumeListRecords( validatingPagingEndpoint(), null, tokens ) );
+		assertEquals( Arrays.asList( "recs2", null ), tokens );
+		tokens.clear();
+		assertEquals( EXPECTED_IDENTIFIERS.subList( 3, 5 ), resumeListRecords( validatingPagingEndpoint(), "recs2", tokens ) );
+		assertEquals( Arrays.asList( (String) null ), tokens );
+	}
+
+	/**
+	 * Test that the list is requested again when the resumption token has expired.
+	 */
+	@Test
+	public void testResumeExpired() {
+		final OAIPMHEndpoint endpoint = pagingEndpoint();
+		assertEquals( EXPECTED_IDENTIFIERS, resumeListRecords( endpoint, "expired", new ArrayList<>() ) );
+		endpoint.setStreaming( true );
+		assertEquals( EXPECTED_IDENTIFIERS, resumeListRecords( endpoint, "expired", new ArrayList<>() ) );
+	}
+
+	/**
+	 * Harvest the records in datestamp windows and collect their identifiers in order.
+	 * @param maxWindowSize the number of records over which a window gets split
+	 * @return the sorted identifiers
+	 * @throws Exception on any problem
+	 */
+	protected static List<String> listRecordsPartitioned( final long maxWindowSize ) throws Exception {
+		return listRecordsPartitioned( validatingPagingEndpoint(), maxWindowSize );
+	}
+
+	/**
+	 * Collect the identifiers of the records listed in two windows.
+	 * @param endpoint the endpoint to ask
+	 * @param maxWindowSize the number of records over which a window gets split
+	 * @return the identifiers, sorted
+	 * @throws Exception on any problem
+	 */
+	protected static List<String> listRecordsPartitioned( final OAIPMHEndpoint endpoint, final long maxWindowSize ) throws Exception {
+		endpoint.callIdentify();
+		final List<String> result = new ArrayList<>();
+		for ( final RecordType record : endpoint.callListRecordsPartitioned( "oai_dc", null, null, 2, maxWindowSize ) ) {
+			result.add( record.getHeader().getIdentifier() );
+		}
+		Collections.sort( result );
+		return result;
+	}
+
+	/**
+	 * Test that the windows are harvested and merged.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testPartitioned() throws Exception {
+		assertEquals( EXPECTED_IDENTIFIERS, listRecordsPartitioned( 100L ) );
+	}
+
+	/**
+	 * Test that no window is harvested when the time of the run budget is up.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testPartitionedRunBudget() throws Exception {
+		final OAIPMHEndpoint endpoint = validatingPagingEndpoint();
+		endpoint.setRunBudget( new RunBudget( 1L, 0L, 0L ) );
+		Thread.sleep( 5L );
+		assertEquals( Collections.emptyList(), listRecordsPartitioned( endpoint, 100L ) );
+	}
+
+	/**
+	 * Test that a dense window is split.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testPartitionedSplit() throws Exception {
+		assertEquals( EXPECTED_IDENTIFIERS, listRecordsPartitioned( 2L ) );
+	}
+
+	/**
+	 * Test that a record changed while the windows are harvested, and so listed in its old window and again in the last one, is returned just once.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testPartitionedUpdated() throws Exception {
+		final OAIPMHEndpoint endpoint = new OAIPMHEndpoint( OAIPMHEndpointTest.class.getResource( "updated/" ), null, ( conn ) -> conn.getInputStream() );
+		assertEquals( Arrays.asList( "oai:cris.example.org:1", "oai:cris.example.org:2", "oai:cris.example.org:3" ), listRecordsPartitioned( endpoint, 100L ) );
+	}
+
+	/**
+	 * Test that a record the data provider lists in two windows with the same datestamp is returned twice, and so reported as not unique.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testPartitionedDuplicate() throws Exception {
+		final OAIPMHEndpoint endpoint = new OAIPMHEndpoint( OAIPMHEndpointTest.class.getResource( "duplicates/" ), null, ( conn ) -> conn.getInputStream() );
+		final List<String> identifiers = listRecordsPartitioned( endpoint, 100L );
+		assertEquals( Arrays.asList( "oai:cris.example.org:1", "oai:cris.example.org:2", "oai:cris.example.org:2", "oai:cris.example.org:3" ), identifiers );
+		try {
+			CheckingIterable.over( identifiers ).checkUnique( Function.identity(), "record identifier not unique" ).run();
+			fail( "The duplicate not reported" );
+		} catch ( final AssertionError e ) {
+			assertEquals( "record identifier not unique; value: oai:cris.example.org:2", e.getMessage() );
+		}
+	}
+
+}
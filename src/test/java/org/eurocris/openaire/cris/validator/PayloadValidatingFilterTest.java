@@ -0,0 +1,142 @@
+package org.eurocris.openaire.cris.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.UnmarshallerHandler;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.eurocris.openaire.cris.validator.util.SaxEmittingStreamReader;
+import org.junit.Test;
+import org.openarchives.oai._2.OAIPMHtype;
+import org.openarchives.oai._2.RecordType;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Unit tests for {@link PayloadValidatingFilter}.
+ */
+public class PayloadValidatingFilterTest {
+
+	private static final String XSD = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:t='urn:test' targetNamespace='urn:test' elementFormDefault='qualified'>"
+			+ "<xs:simpleType name='digits'><xs:restriction base='xs:string'><xs:pattern value='[0-9]+'/></xs:restriction></xs:simpleType>"
+			+ "<xs:element name='Person'><xs:complexType><xs:sequence>"
+			+ "<xs:element name='Code'><xs:complexType><xs:simpleContent><xs:extension base='t:digits'><xs:attribute name='scheme'/></xs:extension></xs:simpleContent></xs:complexType></xs:element>"
+			+ "</xs:sequence><xs:attribute name='id'/></xs:complexType></xs:element>"
+			+ "</xs:schema>";
+
+	private static final String RESPONSE = "<OAI-PMH xmlns='http://www.openarchives.org/OAI/2.0/' xmlns:t='urn:test'>"
+			+ "<responseDate>2024-01-05T00:00:00Z</responseDate>"
+			+ "<request verb='ListRecords' metadataPrefix='test'>http://cris.example.org/oai</request>"
+			+ "<ListRecords>"
+			+ record( 1, "<t:Person id='p1'><t:Code>123</t:Code></t:Person>" )
+			+ record( 2, "<t:Person id='p2'><t:Code scheme='x'>12a</t:Code></t:Person>" )
+			+ record( 3, "<Person xmlns='urn:test' id='p3'><Code>1</Code><Name/></Person>" )
+			+ record( 4, "<Other xmlns='urn:other' id='o4'/>" )
+			+ "<record><header status='deleted'><identifier>oai:x:5</identifier><datestamp>2024-01-01</datestamp></header></record>"
+			+ record( 6, "<t:Person id='p6'><t:Code>456</t:Code></t:Person>" )
+			+ "</ListRecords>"
+			+ "</OAI-PMH>";
+
+	private static String record( final int n, final String payload ) {
+		return "<record><header><identifier>oai:x:" + n + "</identifier><datestamp>2024-01-01</datestamp></header><metadata>" + payload + "</metadata></record>";
+	}
+
+	private static ValidatorPool validators() throws SAXException {
+		final Schema schema = SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( new StreamSource( new StringReader( XSD ) ) );
+		return new ValidatorPool( schema, PayloadErrorHandler::new );
+	}
+
+	private static Function<String, ValidatorPool> byNamespace( final ValidatorPool validators ) {
+		return ( ns ) -> ( "urn:test".equals( ns ) ) ? validators : null;
+	}
+
+	/**
+	 * Test the validation of the payloads of a response parsed as a whole through the filter.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testParse() throws Exception {
+		final SAXParserFactory spf = SAXParserFactory.newInstance();
+		spf.setNamespaceAware( true );
+		final ValidatorPool validators = validators();
+		final PayloadValidatingFilter filter = new PayloadValidatingFilter( spf.newSAXParser().getXMLReader(), byNamespace( validators ) );
+		final Unmarshaller u = UnmarshallerPool.createUnmarshaller( null );
+		u.setListener( filter.getListener() );
+		final UnmarshallerHandler handler = u.getUnmarshallerHandler();
+		filter.setContentHandler( handler );
+		filter.parse( new InputSource( new StringReader( RESPONSE ) ) );
+		checkOutcomes( ( (JAXBElement<?>) handler.getResult() ).getValue() );
+		assertEquals( "Validations", 4L, validators.getValidations() );
+	}
+
+	/**
+	 * Test the validation of the payloads of a response read through a stream reader, as the streamed lists do.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testStream() throws Exception {
+		final PayloadValidatingFilter filter = new PayloadValidatingFilter( null, byNamespace( validators() ) );
+		final XMLInputFactory xif = XMLInputFactory.newInstance();
+		xif.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, true );
+		final XMLStreamReader reader = new SaxEmittingStreamReader( xif.createXMLStreamReader( new StringReader( RESPONSE ) ), filter );
+		final Unmarshaller u = UnmarshallerPool.createUnmarshaller( null );
+		u.setListener( filter.getListener() );
+		checkOutcomes( u.unmarshal( reader, OAIPMHtype.class ).getValue() );
+	}
+
+	/**
+	 * Test that the payloads of the records not selected are not validated.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testSelection() throws Exception {
+		final SAXParserFactory spf = SAXParserFactory.newInstance();
+		spf.setNamespaceAware( true );
+		final ValidatorPool validators = validators();
+		final PayloadValidatingFilter filter = new PayloadValidatingFilter( spf.newSAXParser().getXMLReader(), byNamespace( validators ), ( oaiIdentifier ) -> ! "oai:x:3".equals( oaiIdentifier ) );
+		final Unmarshaller u = UnmarshallerPool.createUnmarshaller( null );
+		u.setListener( filter.getListener() );
+		final UnmarshallerHandler handler = u.getUnmarshallerHandler();
+		filter.setContentHandler( handler );
+		filter.parse( new InputSource( new StringReader( RESPONSE ) ) );
+		final List<RecordType> records = ( (OAIPMHtype) ( (JAXBElement<?>) handler.getResult() ).getValue() ).getListRecords().getRecord();
+		assertTrue( "Selected payload", outcome( records.get( 0 ) ).isValid() );
+		assertNull( "Payload not selected", outcome( records.get( 2 ) ) );
+		assertTrue( "Selected payload after one not selected", outcome( records.get( 5 ) ).isValid() );
+		assertEquals( "Validations", 3L, validators.getValidations() );
+	}
+
+	private static void checkOutcomes( final Object response ) {
+		final List<RecordType> records = ( (OAIPMHtype) response ).getListRecords().getRecord();
+		assertEquals( "Records", 6, records.size() );
+		assertTrue( "Valid payload", outcome( records.get( 0 ) ).isValid() );
+		assertTrue( "Payload with a tolerated pattern mismatch", outcome( records.get( 1 ) ).isValid() );
+		final PayloadValidatingFilter.Outcome invalid = outcome( records.get( 2 ) );
+		assertFalse( "Invalid payload", invalid.isValid() );
+		assertTrue( "Failure: " + invalid.getFailure(), invalid.getFailure().getMessage().startsWith( "cvc-complex-type.2.4" ) );
+		assertNull( "Payload in another namespace", outcome( records.get( 3 ) ) );
+		assertNull( "Deleted record", records.get( 4 ).getMetadata() );
+		assertTrue( "Valid payload after an invalid one", outcome( records.get( 5 ) ).isValid() );
+	}
+
+	private static PayloadValidatingFilter.Outcome outcome( final RecordType record ) {
+		return PayloadValidatingFilter.getOutcome( (Element) record.getMetadata().getAny() );
+	}
+
+}
@@ -0,0 +1,61 @@
+package org.eurocris.openaire.cris.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.Unmarshaller;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link UnmarshallerPool}.
+ */
+public class UnmarshallerPoolTest {
+
+	/**
+	 * Test that a returned unmarshaller is lent out again.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testReuse() throws Exception {
+		final UnmarshallerPool pool = new UnmarshallerPool( null, 2 );
+		final Unmarshaller u;
+		try ( final UnmarshallerPool.Lease lease = pool.borrow() ) {
+			u = lease.get();
+		}
+		try ( final UnmarshallerPool.Lease lease = pool.borrow() ) {
+			assertSame( u, lease.get() );
+		}
+		assertEquals( 1L, pool.getMisses() );
+		assertEquals( 1L, pool.getHits() );
+		assertEquals( 0L, pool.getWaits() );
+	}
+
+	/**
+	 * Test that a borrower waits when all the unmarshallers are lent out.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testWaitWhenExhausted() throws Exception {
+		final UnmarshallerPool pool = new UnmarshallerPool( null, 1 );
+		final UnmarshallerPool.Lease lease = pool.borrow();
+		final CompletableFuture<Unmarshaller> waiting = CompletableFuture.supplyAsync( () -> {
+			try ( final UnmarshallerPool.Lease lease1 = pool.borrow() ) {
+				return lease1.get();
+			} catch ( final Exception e ) {
+				throw new IllegalStateException( e );
+			}
+		} );
+		while ( pool.getWaits() == 0L ) {
+			Thread.sleep( 10L );
+		}
+		final Unmarshaller u = lease.get();
+		lease.close();
+		assertSame( u, waiting.get( 10L, TimeUnit.SECONDS ) );
+		assertEquals( 1L, pool.getMisses() );
+	}
+
+}
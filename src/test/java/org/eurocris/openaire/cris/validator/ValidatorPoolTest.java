@@ -0,0 +1,118 @@
+package org.eurocris.openaire.cris.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Unit tests for {@link ValidatorPool}.
+ */
+public class ValidatorPoolTest {
+
+	private static final String XSD = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+			+ "<xs:element name='a'><xs:simpleType><xs:restriction base='xs:string'><xs:pattern value='[0-9]+'/></xs:restriction></xs:simpleType></xs:element>"
+			+ "</xs:schema>";
+
+	/**
+	 * Counts the errors of each validation separately, and tolerates two (a pattern mismatch makes two errors).
+	 */
+	private static class CountingErrorHandler implements ValidatorPool.ResettableErrorHandler {
+
+		private final List<String> subjects = new ArrayList<>();
+
+		private int errors = 0;
+
+		@Override
+		public void reset( final String subject ) {
+			subjects.add( subject );
+			errors = 0;
+		}
+
+		@Override
+		public void warning( final SAXParseException exception ) {
+			// ignore
+		}
+
+		@Override
+		public void error( final SAXParseException exception ) throws SAXException {
+			if ( ++errors > 2 ) {
+				throw exception;
+			}
+		}
+
+		@Override
+		public void fatalError( final SAXParseException exception ) throws SAXException {
+			throw exception;
+		}
+
+	}
+
+	private static Schema schema() throws SAXException {
+		return SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( new StreamSource( new StringReader( XSD ) ) );
+	}
+
+	private static StreamSource doc( final String xml ) {
+		return new StreamSource( new StringReader( xml ) );
+	}
+
+	/**
+	 * Test that a thread keeps using its validator, with the error handler reset for each document, also after a failed validation.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testReuse() throws Exception {
+		final List<CountingErrorHandler> handlers = new ArrayList<>();
+		final ValidatorPool pool = new ValidatorPool( schema(), () -> {
+			final CountingErrorHandler handler = new CountingErrorHandler();
+			handlers.add( handler );
+			return handler;
+		} );
+		pool.validate( doc( "<a>x</a>" ), "a pattern mismatch, tolerated" );
+		pool.validate( doc( "<a>y</a>" ), "a pattern mismatch again, tolerated as the count has been reset" );
+		try {
+			pool.validate( doc( "<a>1" ), "not well-formed" );
+			fail( "The fatal error should be thrown" );
+		} catch ( final SAXException e ) {
+			// expected
+		}
+		pool.validate( doc( "<a>1</a>" ), "valid" );
+		assertEquals( 1L, pool.getCreated() );
+		assertEquals( 1, handlers.size() );
+		assertEquals( "valid", handlers.get( 0 ).subjects.get( handlers.get( 0 ).subjects.size() - 1 ) );
+	}
+
+	/**
+	 * Test that each thread gets a validator of its own.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testThreadConfinement() throws Exception {
+		final ValidatorPool pool = new ValidatorPool( schema(), CountingErrorHandler::new );
+		pool.validate( doc( "<a>1</a>" ), "main" );
+		CompletableFuture.runAsync( () -> {
+			try {
+				pool.validate( doc( "<a>2</a>" ), "other" );
+			} catch ( final Exception e ) {
+				throw new IllegalStateException( e );
+			}
+		} ).get( 10L, TimeUnit.SECONDS );
+		pool.validate( doc( "<a>3</a>" ), "main" );
+		assertEquals( 2L, pool.getCreated() );
+		assertEquals( 3L, pool.getValidations() );
+	}
+
+}
@@ -0,0 +1,192 @@
+package org.eurocris.openaire.cris.validator.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.eurocris.openaire.cris.validator.ValidatorPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Validations per second of the metadata payloads of the <code>samples/</code> against the original schemas: with a new validator and error handler per record (as it used to be)
+ * versus with the validator of the thread from a {@link ValidatorPool}.
+ * Run from the project directory, after <code>mvn test-compile dependency:build-classpath -Dmdep.includeScope=test -Dmdep.outputFile=target/test-classpath.txt</code>,
+ * with <code>java -cp target/test-classes:target/classes:$(cat target/test-classpath.txt) org.eurocris.openaire.cris.validator.benchmarks.PayloadValidationBenchmark</code>
+ * (JMH forks the JVMs of the benchmarks with the class path it is run with), or from the IDE.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@Threads( 4 )
+public class PayloadValidationBenchmark {
+
+	private static final String OAI_PMH_NS = "http://www.openarchives.org/OAI/2.0/";
+
+	private static final String[] SCHEMAS = {
+		"/schemas/cached/xml.xsd",
+		"/schemas/original/current/openaire-cerif-profile.xsd",
+		"/schemas/original/cerif_profile_1_1/openaire-cerif-profile.xsd",
+	};
+
+	private Schema schema;
+
+	private ValidatorPool pool;
+
+	/**
+	 * The payloads of a thread, parsed by the thread itself as a DOM is not safe to read from more threads, and which one it validates next.
+	 */
+	@State( Scope.Thread )
+	public static class Cursor {
+
+		private final List<Element> payloads = new ArrayList<>();
+
+		private int next = 0;
+
+		/**
+		 * Load the payloads of the ListRecords samples.
+		 * @throws Exception on any problem
+		 */
+		@Setup
+		public void setUp() throws Exception {
+			final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware( true );
+			try ( final DirectoryStream<Path> files = Files.newDirectoryStream( Paths.get( "samples" ), "_verb=ListRecords*.xml" ) ) {
+				for ( final Path file : files ) {
+					final NodeList metadatas = dbf.newDocumentBuilder().parse( file.toFile() ).getElementsByTagNameNS( OAI_PMH_NS, "metadata" );
+					for ( int i = 0; i < metadatas.getLength(); i++ ) {
+						for ( Node n = metadatas.item( i ).getFirstChild(); n != null; n = n.getNextSibling() ) {
+							if ( n instanceof Element ) {
+								payloads.add( (Element) n );
+							}
+						}
+					}
+				}
+			}
+			if ( payloads.isEmpty() ) {
+				throw new IllegalStateException( "No payloads found; please run from the project directory" );
+			}
+		}
+
+		private Element next() {
+			final Element el = payloads.get( next );
+			next = ( next + 1 ) % payloads.size();
+			return el;
+		}
+
+	}
+
+	/**
+	 * Counts the errors, without failing the validation.
+	 */
+	private static class CountingErrorHandler implements ValidatorPool.ResettableErrorHandler {
+
+		private int errors = 0;
+
+		@Override
+		public void reset( final String subject ) {
+			errors = 0;
+		}
+
+		@Override
+		public void warning( final SAXParseException exception ) {
+			// ignore
+		}
+
+		@Override
+		public void error( final SAXParseException exception ) {
+			++errors;
+		}
+
+		@Override
+		public void fatalError( final SAXParseException exception ) throws SAXException {
+			throw exception;
+		}
+
+	}
+
+	/**
+	 * Compile the schema.
+	 * @throws Exception on any problem
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		final List<Source> sources = new ArrayList<>();
+		for ( final String path : SCHEMAS ) {
+			sources.add( new StreamSource( PayloadValidationBenchmark.class.getResource( path ).toExternalForm() ) );
+		}
+		schema = SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( sources.toArray( new Source[0] ) );
+		pool = new ValidatorPool( schema, CountingErrorHandler::new );
+	}
+
+	/**
+	 * Validate a payload with a new validator and error handler.
+	 * @param cursor the payload to validate
+	 * @return the validator used
+	 * @throws SAXException on a fatal error
+	 * @throws IOException on a problem reading
+	 */
+	@Benchmark
+	public Object newValidatorPerRecord( final Cursor cursor ) throws SAXException, IOException {
+		final Validator validator = schema.newValidator();
+		validator.setErrorHandler( new CountingErrorHandler() );
+		validator.validate( new DOMSource( cursor.next() ) );
+		return validator;
+	}
+
+	/**
+	 * Validate a payload with the validator of the thread.
+	 * @param cursor the payload to validate
+	 * @return the pool used
+	 * @throws SAXException on a fatal error
+	 * @throws IOException on a problem reading
+	 */
+	@Benchmark
+	public Object pooledValidator( final Cursor cursor ) throws SAXException, IOException {
+		pool.validate( new DOMSource( cursor.next() ), "payload" );
+		return pool;
+	}
+
+	/**
+	 * Run the benchmark.
+	 * @param args ignored
+	 * @throws Exception on any problem
+	 */
+	public static void main( final String[] args ) throws Exception {
+		new Runner( new OptionsBuilder().include( PayloadValidationBenchmark.class.getSimpleName() ).build() ).run();
+	}
+
+}
@@ -0,0 +1,131 @@
+package org.eurocris.openaire.cris.validator.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.SchemaFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The startup cost of the parser schema: finding the target namespaces of its documents by parsing them into DOM trees (as it used to be) versus reading them only up to their root elements,
+ * next to the cost of compiling the schema itself.
+ * Measured as single shots in fresh JVMs, as a validator run starts.
+ * Run from the project directory, after <code>mvn test-compile dependency:build-classpath -Dmdep.includeScope=test -Dmdep.outputFile=target/test-classpath.txt</code>,
+ * with <code>java -cp target/test-classes:target/classes:$(cat target/test-classpath.txt) org.eurocris.openaire.cris.validator.benchmarks.SchemaStartupBenchmark</code>
+ * (JMH forks the JVMs of the benchmarks with the class path it is run with), or from the IDE.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 0 )
+@Measurement( iterations = 1 )
+@Fork( 10 )
+public class SchemaStartupBenchmark {
+
+	private static final String[] DOCUMENTS = {
+		"/schemas/cached/xml.xsd",
+		"/schemas/cached/oai-identifier.xsd",
+		"/schemas/cached/simpledc20021212.xsd",
+		"/schemas/cached/oai_dc.xsd",
+		"/schemas/cached/provenance.xsd",
+		"/schemas/cached/OAI-PMH.xsd",
+		"/schemas/relaxed/current/openaire-cerif-profile.xsd",
+		"/schemas/relaxed/cerif_profile_1_1/openaire-cerif-profile.xsd",
+	};
+
+	private final List<byte[]> documents = new ArrayList<>();
+
+	/**
+	 * Load the documents.
+	 * @throws Exception on any problem
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		for ( final String path : DOCUMENTS ) {
+			try ( final InputStream in = SchemaStartupBenchmark.class.getResourceAsStream( path ) ) {
+				documents.add( in.readAllBytes() );
+			}
+		}
+	}
+
+	/**
+	 * Parse each document into a DOM to read its target namespace.
+	 * @return the target namespaces
+	 * @throws Exception on any problem
+	 */
+	@Benchmark
+	public List<String> parsedTargetNamespaces() throws Exception {
+		final List<String> result = new ArrayList<>();
+		for ( final byte[] xsd : documents ) {
+			final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware( true );
+			result.add( dbf.newDocumentBuilder().parse( new ByteArrayInputStream( xsd ) ).getDocumentElement().getAttribute( "targetNamespace" ) );
+		}
+		return result;
+	}
+
+	/**
+	 * Read each document with StAX only up to its root element.
+	 * @return the target namespaces
+	 * @throws Exception on any problem
+	 */
+	@Benchmark
+	public List<String> streamedTargetNamespaces() throws Exception {
+		final List<String> result = new ArrayList<>();
+		for ( final byte[] xsd : documents ) {
+			final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader( new ByteArrayInputStream( xsd ) );
+			while ( reader.next() != XMLStreamConstants.START_ELEMENT ) {
+				// skip the prolog
+			}
+			result.add( reader.getAttributeValue( null, "targetNamespace" ) );
+			reader.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Compile the schema.
+	 * @return the schema
+	 * @throws Exception on any problem
+	 */
+	@Benchmark
+	public Object compileSchema() throws Exception {
+		final List<Source> sources = new ArrayList<>();
+		for ( int i = 0; i < DOCUMENTS.length; i++ ) {
+			sources.add( new StreamSource( new ByteArrayInputStream( documents.get( i ) ), SchemaStartupBenchmark.class.getResource( DOCUMENTS[i] ).toExternalForm() ) );
+		}
+		return SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( sources.toArray( new Source[0] ) );
+	}
+
+	/**
+	 * Run the benchmark.
+	 * @param args ignored
+	 * @throws Exception on any problem
+	 */
+	public static void main( final String[] args ) throws Exception {
+		new Runner( new OptionsBuilder().include( SchemaStartupBenchmark.class.getSimpleName() ).build() ).run();
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.eurocris.openaire.cris.validator.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.eurocris.openaire.cris.validator.UnmarshallerPool;
+import org.openarchives.oai._2.OAIPMHtype;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The cost of unmarshalling one small response page: with a new JAXB context per page (as it used to be) versus with a pooled unmarshaller.
+ * Run from the project directory, after <code>mvn test-compile dependency:build-classpath -Dmdep.includeScope=test -Dmdep.outputFile=target/test-classpath.txt</code>,
+ * with <code>java -cp target/test-classes:target/classes:$(cat target/test-classpath.txt) org.eurocris.openaire.cris.validator.benchmarks.UnmarshalBenchmark</code>
+ * (JMH forks the JVMs of the benchmarks with the class path it is run with), or from the IDE.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class UnmarshalBenchmark {
+
+	private static final String PAGE = "/org/eurocris/openaire/cris/validator/paging/_verb=ListIdentifiers+metadataPrefix=oai_dc.xml";
+
+	/**
+	 * Whether to validate the page against the OAI-PMH schema while unmarshalling.
+	 */
+	@Param( { "false", "true" } )
+	public boolean validate;
+
+	private byte[] page;
+
+	private Schema schema;
+
+	private UnmarshallerPool pool;
+
+	/**
+	 * Load the page and the schema.
+	 * @throws Exception on any problem
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		try ( final InputStream in = UnmarshalBenchmark.class.getResourceAsStream( PAGE ) ) {
+			page = in.readAllBytes();
+		}
+		schema = ( validate ) ? SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( UnmarshalBenchmark.class.getResource( "/schemas/cached/OAI-PMH.xsd" ) ) : null;
+		pool = new UnmarshallerPool( schema, 4 );
+	}
+
+	/**
+	 * Build the JAXB context and the unmarshaller for the page.
+	 * @return the unmarshalled page
+	 * @throws Exception on any problem
+	 */
+	@Benchmark
+	public Object newContextPerPage() throws Exception {
+		final JAXBContext jc = JAXBContext.newInstance( OAIPMHtype.class, org.openarchives.oai._2_0.oai_identifier.ObjectFactory.class );
+		final Unmarshaller u = jc.createUnmarshaller();
+		if ( schema != null ) {
+			u.setSchema( schema );
+		}
+		return u.unmarshal( new ByteArrayInputStream( page ) );
+	}
+
+	/**
+	 * Borrow an unmarshaller from the pool for the page.
+	 * @return the unmarshalled page
+	 * @throws Exception on any problem
+	 */
+	@Benchmark
+	public Object pooledUnmarshaller() throws Exception {
+		try ( final UnmarshallerPool.Lease lease = pool.borrow() ) {
+			return lease.get().unmarshal( new ByteArrayInputStream( page ) );
+		}
+	}
+
+	/**
+	 * Run the benchmark.
+	 * @param args ignored
+	 * @throws Exception on any problem
+	 */
+	public static void main( final String[] args ) throws Exception {
+		new Runner( new OptionsBuilder().include( UnmarshalBenchmark.class.getSimpleName() ).build() ).run();
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.eurocris.openaire.cris.validator.capture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link CaptureArchive}.
+ */
+public class CaptureArchiveTest {
+
+	/**
+	 * The directory for the archive.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] bytes( final String s ) {
+		return s.getBytes( StandardCharsets.UTF_8 );
+	}
+
+	private static byte[] gzip( final byte[] data ) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try ( final GZIPOutputStream gz = new GZIPOutputStream( out ) ) {
+			gz.write( data );
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Test that the query parameters are put in a canonical order.
+	 */
+	@Test
+	public void testKey() {
+		assertEquals( "http://x/oai?metadataPrefix=oai_dc&set=s&verb=ListRecords", CaptureArchive.key( "http://x/oai?verb=ListRecords&set=s&metadataPrefix=oai_dc" ) );
+		assertEquals( "http://x/oai", CaptureArchive.key( "http://x/oai" ) );
+	}
+
+	/**
+	 * Test that the records are read back, over several segments and after reopening, with the last capture of a request counting.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testAppendAndRead() throws Exception {
+		final Path dir = folder.getRoot().toPath();
+		final byte[] big = new byte[3900];
+		try ( final CaptureArchive archive = new CaptureArchive( dir, 4000L ) ) {
+			archive.append( "a", bytes( "first" ), 5, false );
+			archive.append( "b", big, big.length, false );
+			final byte[] gz = gzip( bytes( "<OAI-PMH/>" ) );
+			archive.append( "c", gz, gz.length, true );
+			archive.append( "a", bytes( "second!" ), 7, false );
+			assertEquals( 3, archive.size() );
+			try ( final InputStream in = archive.openStream( "c" ) ) {
+				assertArrayEquals( bytes( "<OAI-PMH/>" ), in.readAllBytes() );
+			}
+		}
+		assertTrue( Files.exists( dir.resolve( "capture-00002.seg" ) ) );
+
+		final CaptureArchive reopened = new CaptureArchive( dir, 4000L );
+		assertEquals( 3, reopened.size() );
+		final ByteBuffer a = reopened.read( "a" );
+		final byte[] aBytes = new byte[a.remaining()];
+		a.get( aBytes );
+		assertArrayEquals( bytes( "second!" ), aBytes );
+		assertEquals( big.length, reopened.read( "b" ).remaining() );
+		try ( final InputStream in = reopened.openStream( "c" ) ) {
+			assertArrayEquals( bytes( "<OAI-PMH/>" ), in.readAllBytes() );
+		}
+		assertNull( reopened.read( "d" ) );
+		assertNull( reopened.openStream( "d" ) );
+	}
+
+	/**
+	 * Test that the oldest segments are deleted, with their records, when there would be too many, also for the index read after reopening.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testMaxSegments() throws Exception {
+		final Path dir = folder.getRoot().toPath();
+		try ( final CaptureArchive archive = new CaptureArchive( dir, 100L, 2 ) ) {
+			archive.append( "a", new byte[50], 50, false );
+			archive.append( "b", new byte[80], 80, false );
+			assertEquals( 2, archive.size() );
+			archive.append( "c", new byte[80], 80, false );
+			assertEquals( 2, archive.size() );
+			assertFalse( archive.contains( "a" ) );
+			assertEquals( 80, archive.read( "b" ).remaining() );
+		}
+		assertFalse( Files.exists( dir.resolve( "capture-00001.seg" ) ) );
+		assertTrue( Files.exists( dir.resolve( "capture-00003.seg" ) ) );
+
+		try ( final CaptureArchive reopened = new CaptureArchive( dir, 100L, 2 ) ) {
+			assertEquals( 2, reopened.size() );
+			reopened.append( "d", new byte[10], 10, false );
+			assertEquals( 2, reopened.size() );
+			assertFalse( reopened.contains( "b" ) );
+			assertEquals( 80, reopened.read( "c" ).remaining() );
+		}
+		assertEquals( 2L, Files.readAllLines( dir.resolve( "capture.idx" ) ).size() );
+	}
+
+}
@@ -0,0 +1,218 @@
+package org.eurocris.openaire.cris.validator.capture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.eurocris.openaire.cris.validator.util.TeeInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link CaptureWriter}.
+ */
+public class CaptureWriterTest {
+
+	/**
+	 * The directory for the captures.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] data( final int length ) {
+		final byte[] data = new byte[length];
+		new Random( length ).nextBytes( data );
+		return data;
+	}
+
+	/**
+	 * Test that a gzipped capture, spanning several buffers, reads back as the original data.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testGzip() throws Exception {
+		final byte[] data = data( 200000 );
+		final Path file = folder.getRoot().toPath().resolve( "response.xml.gz" );
+		try ( final CaptureWriter writer = new CaptureWriter( CaptureWriter.Compression.GZIP, CaptureWriter.OverflowPolicy.BLOCK, 1L << 20, 1L << 20 ) ) {
+			try ( final InputStream in = new TeeInputStream( new ByteArrayInputStream( data ), writer.open( file ) ) ) {
+				// read just a part; closing drains the rest into the capture
+				in.read( new byte[1000] );
+				in.read();
+			}
+			writer.flush();
+			assertEquals( 1L, writer.getCaptures() );
+			assertEquals( (long) data.length, writer.getBytes() );
+		}
+		try ( final InputStream in = new GZIPInputStream( Files.newInputStream( file ) ) ) {
+			assertArrayEquals( data, in.readAllBytes() );
+		}
+	}
+
+	/**
+	 * Test that plain captures are written as they are, also several at the same time.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testPlain() throws Exception {
+		final Path file1 = folder.getRoot().toPath().resolve( "1.xml" );
+		final Path file2 = folder.getRoot().toPath().resolve( "2.xml" );
+		try ( final CaptureWriter writer = new CaptureWriter( CaptureWriter.Compression.NONE, CaptureWriter.OverflowPolicy.BLOCK, 1L << 20, 0L ) ) {
+			final OutputStream out1 = writer.open( file1 );
+			final OutputStream out2 = writer.open( file2 );
+			out1.write( data( 100000 ) );
+			out2.write( data( 10 ) );
+			out2.close();
+			out1.close();
+			writer.flush();
+			assertEquals( 0L, writer.getFailedCaptures() );
+			assertEquals( 0L, writer.getDroppedCaptures() );
+			assertArrayEquals( data( 100000 ), Files.readAllBytes( file1 ) );
+			assertArrayEquals( data( 10 ), Files.readAllBytes( file2 ) );
+		}
+	}
+
+	/**
+	 * An archive that holds the writer thread in {@link #append(String, byte[], int, boolean)} until the gate is opened.
+	 */
+	private static class GatedArchive extends CaptureArchive {
+
+		private final CountDownLatch entered = new CountDownLatch( 1 );
+
+		private final CountDownLatch gate = new CountDownLatch( 1 );
+
+		GatedArchive( final Path directory ) throws IOException {
+			super( directory, 1L << 20 );
+		}
+
+		@Override
+		public void append( final String key, final byte[] data, final int length, final boolean gzipped ) throws IOException {
+			entered.countDown();
+			try {
+				gate.await();
+			} catch ( final InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			super.append( key, data, length, gzipped );
+		}
+
+	}
+
+	/**
+	 * Test that a capture is dropped, and not written at all, when the queue is full and the writer is busy.
+	 * @throws Exception on any problem
+	 */
+	@Test( timeout = 10000L )
+	public void testDrop() throws Exception {
+		final GatedArchive archive = new GatedArchive( folder.getRoot().toPath() );
+		// the queue holds the minimum of two buffers of 64 KiB
+		try ( final CaptureWriter writer = new CaptureWriter( archive, CaptureWriter.Compression.NONE, CaptureWriter.OverflowPolicy.DROP, 1L, 1L << 20 ) ) {
+			try ( final OutputStream out1 = writer.open( "http://x/oai?verb=Identify" ) ) {
+				out1.write( data( 10 ) );
+			}
+			archive.entered.await();
+			final OutputStream out2 = writer.open( "http://x/oai?verb=ListSets" );
+			// three full buffers: two fill the queue, the third does not fit
+			out2.write( data( 200000 ) );
+			assertEquals( 1L, writer.getDroppedCaptures() );
+			archive.gate.countDown();
+			out2.close();
+			writer.flush();
+			assertEquals( 0L, writer.getFailedCaptures() );
+		}
+		assertTrue( archive.contains( "http://x/oai?verb=Identify" ) );
+		assertFalse( archive.contains( "http://x/oai?verb=ListSets" ) );
+		archive.close();
+	}
+
+	/**
+	 * Test that a flush with a timeout gives up while the writer is busy, and succeeds once it is not.
+	 * @throws Exception on any problem
+	 */
+	@Test( timeout = 10000L )
+	public void testFlushTimeout() throws Exception {
+		final GatedArchive archive = new GatedArchive( folder.getRoot().toPath() );
+		try ( final CaptureWriter writer = new CaptureWriter( archive, CaptureWriter.Compression.NONE, CaptureWriter.OverflowPolicy.BLOCK, 1L << 20, 1L << 20 ) ) {
+			try ( final OutputStream out = writer.open( "http://x/oai?verb=Identify" ) ) {
+				out.write( data( 10 ) );
+			}
+			archive.entered.await();
+			assertFalse( writer.flush( 10L, TimeUnit.MILLISECONDS ) );
+			archive.gate.countDown();
+			assertTrue( writer.flush( 5L, TimeUnit.SECONDS ) );
+		}
+		assertTrue( archive.contains( "http://x/oai?verb=Identify" ) );
+		archive.close();
+	}
+
+	/**
+	 * Test that a flush does not wait for a writer thread that has stopped.
+	 * @throws Exception on any problem
+	 */
+	@Test( timeout = 10000L )
+	public void testWriterStopped() throws Exception {
+		final CaptureArchive archive = new CaptureArchive( folder.getRoot().toPath(), 1L << 20 ) {
+
+			@Override
+			public void append( final String key, final byte[] data, final int length, final boolean gzipped ) {
+				throw new IllegalStateException( "Broken archive" );
+			}
+
+		};
+		final CaptureWriter writer = new CaptureWriter( archive, CaptureWriter.Compression.NONE, CaptureWriter.OverflowPolicy.BLOCK, 1L << 20, 1L << 20 );
+		try ( final OutputStream out = writer.open( "http://x/oai?verb=Identify" ) ) {
+			out.write( data( 10 ) );
+		}
+		try {
+			writer.flush();
+			fail( "The stopped writer thread not noticed" );
+		} catch ( final IllegalStateException e ) {
+			assertEquals( "The capture writer thread has stopped", e.getMessage() );
+		}
+		archive.close();
+	}
+
+	/**
+	 * Test that interleaved captures end up as whole records in the archive.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testArchive() throws Exception {
+		final CaptureArchive archive = new CaptureArchive( folder.getRoot().toPath(), 1L << 20 );
+		try ( final CaptureWriter writer = new CaptureWriter( archive, CaptureWriter.Compression.GZIP, CaptureWriter.OverflowPolicy.BLOCK, 1L << 20, 1L << 20 ) ) {
+			final OutputStream out1 = writer.open( "http://x/oai?verb=ListSets" );
+			final OutputStream out2 = writer.open( "http://x/oai?verb=Identify" );
+			final byte[] data = data( 200000 );
+			out1.write( data, 0, 100000 );
+			out2.write( data( 10 ) );
+			out1.write( data, 100000, 100000 );
+			out2.close();
+			out1.close();
+			writer.flush();
+		}
+		assertEquals( 2, archive.size() );
+		try ( final InputStream in = archive.openStream( "http://x/oai?verb=ListSets" ) ) {
+			assertArrayEquals( data( 200000 ), in.readAllBytes() );
+		}
+		try ( final InputStream in = archive.openStream( "http://x/oai?verb=Identify" ) ) {
+			assertArrayEquals( data( 10 ), in.readAllBytes() );
+		}
+		archive.close();
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.eurocris.openaire.cris.validator.capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eurocris.openaire.cris.validator.OAIPMHEndpoint;
+import org.eurocris.openaire.cris.validator.RetryPolicy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openarchives.oai._2.SetType;
+
+/**
+ * Unit tests for {@link ReplayURLConnectionFactory}.
+ */
+public class ReplayURLConnectionFactoryTest {
+
+	private static final String BASE_URL = "http://cris.example.org/oai";
+
+	/**
+	 * The directory for the archive.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static void capture( final CaptureArchive archive, final String query ) throws IOException {
+		try ( final InputStream in = OAIPMHEndpoint.class.getResourceAsStream( "paging/_" + query.replace( '&', '+' ) + ".xml" ) ) {
+			final byte[] data = in.readAllBytes();
+			archive.append( CaptureArchive.key( BASE_URL + "?" + query ), data, data.length, false );
+		}
+	}
+
+	/**
+	 * Test that a list is replayed over its resumption tokens, and that a request not captured fails.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		try ( final CaptureArchive archive = new CaptureArchive( folder.getRoot().toPath(), 1L << 20 ) ) {
+			capture( archive, "verb=Identify" );
+			capture( archive, "verb=ListSets" );
+			capture( archive, "verb=ListSets&resumptionToken=page2" );
+			capture( archive, "verb=ListSets&resumptionToken=page3" );
+		}
+
+		final OAIPMHEndpoint endpoint = new OAIPMHEndpoint( URI.create( BASE_URL ).toURL(), null, ( conn ) -> conn.getInputStream() );
+		endpoint.setRetryPolicy( new RetryPolicy( 1, 1L, 1L ) );
+		endpoint.setConnectionFactory( new ReplayURLConnectionFactory( new CaptureArchive( folder.getRoot().toPath(), 1L << 20 ) ) );
+		final List<String> setSpecs = new ArrayList<>();
+		for ( final SetType set : endpoint.callListSets() ) {
+			setSpecs.add( set.getSetSpec() );
+		}
+		assertEquals( 5, setSpecs.size() );
+		try {
+			endpoint.callListMetadataFormats();
+			fail( "ListMetadataFormats has not been captured" );
+		} catch ( final IOException | IllegalStateException e ) {
+			assertEquals( "Invalid response code 404 Not Captured", e.getMessage() );
+		}
+	}
+
+}
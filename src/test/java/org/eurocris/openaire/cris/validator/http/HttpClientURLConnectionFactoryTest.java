@@ -0,0 +1,150 @@
+package org.eurocris.openaire.cris.validator.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.eurocris.openaire.cris.validator.OAIPMHEndpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openarchives.oai._2.SetType;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of {@link HttpClientURLConnectionFactory} against a local server that serves the paging examples.
+ */
+public class HttpClientURLConnectionFactoryTest {
+
+	private static final String PAGING = "/org/eurocris/openaire/cris/validator/paging/";
+
+	private HttpServer server;
+
+	private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+	private final List<String> acceptEncodings = new ArrayList<>();
+
+	/**
+	 * Start the server: it answers a request like <code>?verb=ListSets&amp;resumptionToken=page2</code> with the file <code>_verb=ListSets+resumptionToken=page2.xml</code>,
+	 * gzipped if the client accepts it.
+	 * @throws IOException if the server cannot be started
+	 */
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+		server.createContext( "/oai", this::serve );
+		server.start();
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	@After
+	public void stopServer() {
+		server.stop( 0 );
+	}
+
+	private void serve( final HttpExchange exchange ) throws IOException {
+		clientPorts.add( exchange.getRemoteAddress().getPort() );
+		final String acceptEncoding = exchange.getRequestHeaders().getFirst( "Accept-Encoding" );
+		synchronized ( acceptEncodings ) {
+			acceptEncodings.add( acceptEncoding );
+		}
+		final byte[] body;
+		try ( final InputStream in = getClass().getResourceAsStream( PAGING + "_" + exchange.getRequestURI().getRawQuery().replace( '&', '+' ) + ".xml" ) ) {
+			if ( in == null ) {
+				exchange.sendResponseHeaders( HttpURLConnection.HTTP_NOT_FOUND, -1 );
+				exchange.close();
+				return;
+			}
+			body = in.readAllBytes();
+		}
+		exchange.getResponseHeaders().set( "Content-Type", "text/xml" );
+		final boolean gzip = ( acceptEncoding != null && acceptEncoding.contains( "gzip" ) );
+		if ( gzip ) {
+			exchange.getResponseHeaders().set( "Content-Encoding", "gzip" );
+		}
+		exchange.sendResponseHeaders( HttpURLConnection.HTTP_OK, 0 );
+		try ( final OutputStream out = ( gzip ) ? new GZIPOutputStream( exchange.getResponseBody() ) : exchange.getResponseBody() ) {
+			out.write( body );
+		}
+	}
+
+	private URL baseUrl() throws IOException {
+		return URI.create( "http://localhost:" + server.getAddress().getPort() + "/oai" ).toURL();
+	}
+
+	/**
+	 * Test that the endpoint follows the resumption tokens over the transport, on one kept-alive connection.
+	 * @throws IOException on a network problem
+	 */
+	@Test
+	public void testListSets() throws IOException {
+		final OAIPMHEndpoint endpoint = new OAIPMHEndpoint( baseUrl(), null, ( conn ) -> conn.getInputStream() );
+		endpoint.setConnectionFactory( new HttpClientURLConnectionFactory() );
+		endpoint.setPrefetch( 0, Long.MAX_VALUE );
+		final List<String> setSpecs = new ArrayList<>();
+		for ( final SetType set : endpoint.callListSets() ) {
+			setSpecs.add( set.getSetSpec() );
+		}
+		assertEquals( Arrays.asList( "set1", "set2", "set3", "set4", "set5" ), setSpecs );
+		assertEquals( 1, clientPorts.size() );
+	}
+
+	/**
+	 * Test that the compression is negotiated and the response transparently uncompressed.
+	 * @throws IOException on a network problem
+	 */
+	@Test
+	public void testCompression() throws IOException {
+		final URL url = URI.create( baseUrl() + "?verb=ListSets" ).toURL();
+		final CompressionHandlingHttpURLConnectionAdapter conn = CompressionHandlingHttpURLConnectionAdapter.adapt( new HttpClientURLConnectionFactory().openConnection( url ) );
+		conn.askForSupportedCompression( "gzip" );
+		conn.connect();
+		final byte[] body;
+		try ( final InputStream in = conn.getInputStream() ) {
+			body = in.readAllBytes();
+		}
+		final byte[] expected;
+		try ( final InputStream in = getClass().getResourceAsStream( PAGING + "_verb=ListSets.xml" ) ) {
+			expected = in.readAllBytes();
+		}
+		assertEquals( Arrays.asList( "gzip" ), acceptEncodings );
+		assertEquals( "identity", conn.getContentEncoding() );
+		assertArrayEquals( expected, body );
+	}
+
+	/**
+	 * Test that a failed request is reported by its response code alone, as the client has no reason phrase.
+	 * @throws Exception on a problem other than the failed request
+	 */
+	@Test
+	public void testResponseCode() throws Exception {
+		final OAIPMHEndpoint endpoint = new OAIPMHEndpoint( URI.create( "http://localhost:" + server.getAddress().getPort() + "/missing" ).toURL(), null, ( conn ) -> conn.getInputStream() );
+		endpoint.setConnectionFactory( new HttpClientURLConnectionFactory( Duration.ofSeconds( 10 ) ) );
+		try {
+			endpoint.callIdentify();
+			fail( "The request should have failed" );
+		} catch ( final IllegalStateException e ) {
+			assertEquals( "Invalid response code 404", e.getMessage() );
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.eurocris.openaire.cris.validator.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.eurocris.openaire.cris.validator.schema.IdentifierChecker.Invalid;
+import org.eurocris.openaire.cris.validator.schema.IdentifierChecker.Type;
+import org.eurocris.openaire.cris.validator.schema.IdentifierChecker.Verdict;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit tests for {@link IdentifierChecker}.
+ */
+public class IdentifierCheckerTest {
+
+	/**
+	 * Test the checks of the DOIs.
+	 */
+	@Test
+	public void testDoi() {
+		assertEquals( Verdict.VALID, IdentifierChecker.checkDoi( "10.1007/978-3-642-35233-1_18" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkDoi( "10.1000.10/abc" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkDoi( "https://doi.org/10.5061/DRYAD.4GH6HF5G" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkDoi( "10.123/abc" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkDoi( "10.1234/" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkDoi( "10.1234./abc" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkDoi( "10.1234/a b" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkDoi( "doi:10.1234/abc" ) );
+	}
+
+	/**
+	 * Test the checks of the ORCID iDs.
+	 */
+	@Test
+	public void testOrcid() {
+		assertEquals( Verdict.VALID, IdentifierChecker.checkOrcid( "https://orcid.org/0000-0002-1825-0097" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkOrcid( "https://orcid.org/0000-0002-5277-285X" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkOrcid( "0000-0001-7291-3210" ) );
+		assertEquals( Verdict.WRONG_CHECK_DIGIT, IdentifierChecker.checkOrcid( "https://orcid.org/0000-0002-1825-0098" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkOrcid( "https://orcid.org/0000-0002-18250-097" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkOrcid( "https://orcid.org/0000-0002-1825-009x" ) );
+	}
+
+	/**
+	 * Test the checks of the ISSNs.
+	 */
+	@Test
+	public void testIssn() {
+		assertEquals( Verdict.VALID, IdentifierChecker.checkIssn( "1746-8256" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkIssn( "15585646" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkIssn( "2434-561X" ) );
+		assertEquals( Verdict.WRONG_CHECK_DIGIT, IdentifierChecker.checkIssn( "1746-8257" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkIssn( "174-68256" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkIssn( "1746-825" ) );
+	}
+
+	/**
+	 * Test the checks of the ISBNs.
+	 */
+	@Test
+	public void testIsbn() {
+		assertEquals( Verdict.VALID, IdentifierChecker.checkIsbn( "978-3-642-35232-4" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkIsbn( "978 3 642 35233 1" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkIsbn( "9783642352331" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkIsbn( "0-306-40615-2" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkIsbn( "080442957X" ) );
+		assertEquals( Verdict.WRONG_CHECK_DIGIT, IdentifierChecker.checkIsbn( "978-3-642-35232-5" ) );
+		assertEquals( Verdict.WRONG_CHECK_DIGIT, IdentifierChecker.checkIsbn( "0-306-40615-3" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkIsbn( "978-3-642 35232-4" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkIsbn( "978-3642-35232-4" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkIsbn( "977-3-642-35232-4" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkIsbn( "-0-306-40615-2" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkIsbn( "0--306-40615-2" ) );
+	}
+
+	/**
+	 * Test the checks of the ROR identifiers.
+	 */
+	@Test
+	public void testRor() {
+		assertEquals( Verdict.VALID, IdentifierChecker.checkRor( "https://ror.org/052gg0110" ) );
+		assertEquals( Verdict.VALID, IdentifierChecker.checkRor( "02mhbdp94" ) );
+		assertEquals( Verdict.WRONG_CHECK_DIGIT, IdentifierChecker.checkRor( "https://ror.org/052gg0111" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkRor( "https://ror.org/152gg0110" ) );
+		assertEquals( Verdict.MALFORMED, IdentifierChecker.checkRor( "https://ror.org/052gu0110" ) );
+	}
+
+	/**
+	 * Test the counts of the identifiers of the payloads, per record and per type.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testCheck() throws Exception {
+		final String ns = "https://www.openaire.eu/cerif-profile/1.2/";
+		final String payload = "<Publication xmlns='" + ns + "' id='p1'>"
+				+ "<DOI>10.1007/978-3-642-35233-1</DOI>"
+				+ "<ISSN> 1746-8256 </ISSN><ISSN>1746-8257</ISSN>"
+				+ "<Authors><Author><Person><ORCID>https://orcid.org/0000-0002-1825-0097</ORCID></Person>"
+				+ "<Affiliation><OrgUnit><Identifier type='" + IdentifierChecker.IDENTIFIER_TYPES_PREFIX + "ROR'>https://ror.org/052gg0110</Identifier>"
+				+ "<Identifier type='local'>052gg0111</Identifier></OrgUnit></Affiliation></Author></Authors>"
+				+ "<ISBN xmlns='urn:other'>123</ISBN>"
+				+ "</Publication>";
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware( true );
+		final Element el = dbf.newDocumentBuilder().parse( new InputSource( new StringReader( payload ) ) ).getDocumentElement();
+		final IdentifierChecker checker = new IdentifierChecker();
+		for ( int i = 0; i < 2; ++i ) {
+			final IdentifierChecker.Result result = checker.check( el );
+			assertEquals( 2, result.getCount( Type.ISSN ) );
+			assertEquals( 1, result.getCount( Type.ROR ) );
+			assertEquals( 0, result.getCount( Type.ISBN ) );
+			final List<Invalid> invalid = result.getInvalid();
+			assertEquals( "Invalid: " + invalid, 1, invalid.size() );
+			assertEquals( "ISSN 1746-8257 (wrong check digit)", invalid.get( 0 ).toString() );
+		}
+		assertEquals( 2L, checker.getRecords() );
+		assertEquals( 2L, checker.getRecordsWithInvalid() );
+		assertEquals( 4L, checker.getChecked( Type.ISSN ) );
+		assertEquals( 2L, checker.getCount( Type.ISSN, Verdict.VALID ) );
+		assertEquals( 2L, checker.getCount( Type.ISSN, Verdict.WRONG_CHECK_DIGIT ) );
+		assertEquals( 2L, checker.getChecked( Type.ORCID ) );
+		assertTrue( checker.getReport(), checker.getReport().contains( "ISSN: 4 checked, 0 malformed, 2 with a wrong check digit" ) );
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.eurocris.openaire.cris.validator.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * Unit tests for {@link SchemaRegistry}.
+ */
+public class SchemaRegistryTest {
+
+	private static Schema compile( final String ns ) throws SAXException {
+		final String xsd = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='" + ns + "'><xs:element name='a'/></xs:schema>";
+		return SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( new StreamSource( new StringReader( xsd ) ) );
+	}
+
+	/**
+	 * Test that a schema is compiled only when asked for, and just once.
+	 */
+	@Test
+	public void testLazyCompilation() {
+		final SchemaRegistry registry = new SchemaRegistry();
+		final AtomicInteger compilations1 = new AtomicInteger();
+		final AtomicInteger compilations2 = new AtomicInteger();
+		registry.register( "urn:v2", () -> {
+			compilations2.incrementAndGet();
+			return compile( "urn:v2" );
+		} );
+		registry.register( "urn:v1", () -> {
+			compilations1.incrementAndGet();
+			return compile( "urn:v1" );
+		} );
+		assertEquals( "Namespaces", Arrays.asList( "urn:v2", "urn:v1" ), registry.getNamespaces().stream().toList() );
+		assertTrue( registry.contains( "urn:v1" ) );
+		assertFalse( registry.contains( "urn:v3" ) );
+		assertFalse( registry.isCompiled( "urn:v2" ) );
+
+		final Schema schema = registry.get( "urn:v2" );
+		assertSame( schema, registry.get( "urn:v2" ) );
+		assertTrue( registry.isCompiled( "urn:v2" ) );
+		assertFalse( registry.isCompiled( "urn:v1" ) );
+		assertEquals( 1, compilations2.get() );
+		assertEquals( 0, compilations1.get() );
+		assertNull( registry.get( "urn:v3" ) );
+	}
+
+	/**
+	 * Test that only the schema asked for is compiled in the background, not again when compiled already, and that its compile time is kept.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testCompileInBackground() throws Exception {
+		final SchemaRegistry registry = new SchemaRegistry();
+		final AtomicInteger compilations = new AtomicInteger();
+		for ( final String ns : Arrays.asList( "urn:v1", "urn:v2", "urn:v3" ) ) {
+			registry.register( ns, () -> {
+				compilations.incrementAndGet();
+				return compile( ns );
+			} );
+		}
+		registry.get( "urn:v1" );
+		final ExecutorService executor = Executors.newFixedThreadPool( 2 );
+		try {
+			assertNull( "Compiled already", registry.compile( "urn:v1", executor ) );
+			assertNull( "Not registered", registry.compile( "urn:v4", executor ) );
+			final Future<Schema> started = registry.compile( "urn:v3", executor );
+			assertNotNull( registry.get( "urn:v3" ) );
+			assertNotNull( started.get() );
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals( "Compilations", 2, compilations.get() );
+		assertFalse( registry.isCompiled( "urn:v2" ) );
+		assertTrue( "Compile time of urn:v3", registry.getCompileMillis( "urn:v3" ) >= 0L );
+		assertEquals( -1L, registry.getCompileMillis( "urn:v4" ) );
+	}
+
+	/**
+	 * Test that a schema that cannot be compiled is reported with its namespace.
+	 */
+	@Test
+	public void testCompilationFailure() {
+		final SchemaRegistry registry = new SchemaRegistry();
+		registry.register( "urn:broken", () -> SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( new StreamSource( new StringReader( "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'><xs:element/></xs:schema>" ) ) ) );
+		try {
+			registry.get( "urn:broken" );
+			fail( "The failure not reported" );
+		} catch ( final IllegalStateException e ) {
+			assertEquals( "While compiling the schema for urn:broken", e.getMessage() );
+		}
+		assertFalse( registry.isCompiled( "urn:broken" ) );
+	}
+
+}
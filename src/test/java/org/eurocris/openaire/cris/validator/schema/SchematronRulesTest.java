@@ -0,0 +1,97 @@
+package org.eurocris.openaire.cris.validator.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit tests for {@link SchematronRules}.
+ */
+public class SchematronRulesTest {
+
+	private static final String SCH = "<sch:schema xmlns:sch='http://purl.oclc.org/dsdl/schematron' xmlns:xs='http://www.w3.org/2001/XMLSchema' queryBinding='xslt2'>"
+			+ "<sch:ns prefix='t' uri='urn:test'/>"
+			+ "<sch:pattern><sch:title>Sizes</sch:title>"
+			+ "<sch:rule context='t:Item[@kind = \"big\"]'><sch:assert test='xs:integer( @size ) ge 10'>A big <sch:name/> has a size of at least 10, not <sch:value-of select='@size'/></sch:assert></sch:rule>"
+			+ "<sch:rule context='t:Item'><sch:report test='xs:integer( @size ) gt 100'>Only a big item can be larger than 100</sch:report></sch:rule>"
+			+ "</sch:pattern>"
+			+ "</sch:schema>";
+
+	private static SchematronRules rules( final String sch ) throws Exception {
+		return SchematronRules.compile( "test.sch", new ByteArrayInputStream( sch.getBytes( StandardCharsets.UTF_8 ) ) );
+	}
+
+	private static Element parse( final String xml ) throws Exception {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware( true );
+		final Document doc = dbf.newDocumentBuilder().parse( new InputSource( new StringReader( xml ) ) );
+		return doc.getDocumentElement();
+	}
+
+	/**
+	 * Test the assertions and reports, and that just the first matching rule of a pattern is applied.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testRules() throws Exception {
+		final SchematronRules rules = rules( SCH );
+		assertEquals( "Rules", 2, rules.getRules().size() );
+		final Element payload = parse( "<List xmlns='urn:test'><Item kind='big' size='5'/><Item kind='big' size='500'/><Item size='7'/><Item size='700'/></List>" );
+		final List<SchematronRules.Failure> failures = rules.check( payload );
+		assertEquals( "Failures: " + failures, 2, failures.size() );
+		assertEquals( "A big Item has a size of at least 10, not 5", failures.get( 0 ).getMessage() );
+		assertEquals( "/List/Item", failures.get( 0 ).getPath() );
+		assertEquals( "Only a big item can be larger than 100", failures.get( 1 ).getMessage() );
+		assertEquals( "/List/Item[4]", failures.get( 1 ).getPath() );
+		assertEquals( "Big items", 2L, rules.getRules().get( 0 ).getFired() );
+		assertEquals( "Other items", 2L, rules.getRules().get( 1 ).getFired() );
+		assertEquals( "Elements tried", 5L, rules.getRules().get( 0 ).getNodes() );
+		assertEquals( "Payloads", 1L, rules.getPayloads() );
+	}
+
+	/**
+	 * Test a payload that is not the root of its document.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testNestedPayload() throws Exception {
+		final Element wrapper = parse( "<metadata><List xmlns='urn:test'><Item size='700'/></List></metadata>" );
+		final List<SchematronRules.Failure> failures = rules( SCH ).check( (Element) wrapper.getFirstChild() );
+		assertEquals( "Failures: " + failures, 1, failures.size() );
+		assertEquals( "/List/Item", failures.get( 0 ).getPath() );
+	}
+
+	/**
+	 * Test the co-occurrence constraints of the rules of the profile.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testProfileRules() throws Exception {
+		final SchematronRules rules;
+		try ( final InputStream in = SchematronRulesTest.class.getResourceAsStream( "/schemas/original/cerif_profile_1_1/openaire-cerif-profile.sch" ) ) {
+			rules = SchematronRules.compile( "openaire-cerif-profile.sch", in );
+		}
+		final Element payload = parse( "<Publication xmlns='https://www.openaire.eu/cerif-profile/1.1/' id='p1'>"
+				+ "<Access xmlns='http://purl.org/coar/access_right' endDate='2020-01-01'>http://purl.org/coar/access_right/c_abf2</Access>"
+				+ "<Funded><Funding startDate='2021-05-01' endDate='2020'/></Funded>"
+				+ "</Publication>" );
+		final List<SchematronRules.Failure> failures = rules.check( payload );
+		assertEquals( "Failures: " + failures, 2, failures.size() );
+		assertTrue( failures.get( 0 ).getMessage(), failures.get( 0 ).getMessage().startsWith( "No \"endDate\" may be specified" ) );
+		assertTrue( failures.get( 1 ).getMessage(), failures.get( 1 ).getMessage().startsWith( "The \"startDate\" (2021-05-01) must not be later" ) );
+		assertTrue( rules.getTimingReport(), rules.getTimingReport().contains( "\"startDate\" precedes the corresponding \"endDate\" (rule 1)" ) );
+	}
+
+}
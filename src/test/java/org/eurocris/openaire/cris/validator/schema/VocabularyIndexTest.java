@@ -0,0 +1,83 @@
+package org.eurocris.openaire.cris.validator.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit tests for {@link VocabularyIndex}.
+ */
+public class VocabularyIndexTest {
+
+	private static final String PUBLICATION_TYPES = "https://www.openaire.eu/cerif-profile/vocab/COAR_Publication_Types";
+
+	private static final String COMPATIBILITY = "https://www.openaire.eu/cerif-profile/vocab/OpenAIRE_Service_Compatibility";
+
+	private static VocabularyIndex load( final String dir ) throws Exception {
+		return VocabularyIndex.load( dir, VocabularyIndexTest.class.getResource( "/schemas/original/" + dir + "/openaire-cerif-profile.xsd" ) );
+	}
+
+	/**
+	 * Test the extraction of the vocabularies from the XML Schema of the profile and the lookup of the terms.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testLookup() throws Exception {
+		final VocabularyIndex index = load( "current" );
+		assertTrue( "Vocabularies: " + index, index.getNamespaces().containsAll( Arrays.asList( PUBLICATION_TYPES, COMPATIBILITY, "http://purl.org/coar/access_right" ) ) );
+		assertEquals( VocabularyIndex.Status.KNOWN, index.lookup( PUBLICATION_TYPES, "Type", "http://purl.org/coar/resource_type/c_2f33" ) );
+		assertEquals( VocabularyIndex.Status.UNKNOWN, index.lookup( PUBLICATION_TYPES, "Type", "http://purl.org/coar/resource_type/c_xxxx" ) );
+		assertNull( "Not an element of the vocabulary", index.lookup( PUBLICATION_TYPES, "Title", "x" ) );
+		assertNull( "Not a vocabulary", index.lookup( "urn:other", "Type", "x" ) );
+	}
+
+	/**
+	 * Test that a term of an older version only is deprecated, and a term of a newer version only is unknown.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testVersions() throws Exception {
+		final VocabularyIndex v11 = load( "cerif_profile_1_1" );
+		final VocabularyIndex v12 = load( "current" ).withDeprecatedFrom( Collections.singletonList( v11 ) );
+		final VocabularyIndex v11WithOlder = v11.withDeprecatedFrom( Collections.emptyList() );
+		assertEquals( VocabularyIndex.Status.UNKNOWN, v11WithOlder.lookup( COMPATIBILITY, "Compatibility", COMPATIBILITY + "#1.2" ) );
+		assertEquals( VocabularyIndex.Status.KNOWN, v12.lookup( COMPATIBILITY, "Compatibility", COMPATIBILITY + "#1.2" ) );
+		final VocabularyIndex asIfNewer = v11.withDeprecatedFrom( Collections.singletonList( load( "current" ) ) );
+		assertEquals( "A term of the older version that the newer one has dropped", VocabularyIndex.Status.DEPRECATED, asIfNewer.lookup( COMPATIBILITY, "Compatibility", COMPATIBILITY + "#1.2" ) );
+	}
+
+	/**
+	 * Test the counts of the terms used in the payloads.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testCount() throws Exception {
+		final VocabularyIndex index = load( "current" );
+		final String payload = "<Publication xmlns='https://www.openaire.eu/cerif-profile/1.2/' id='p1'>"
+				+ "<Type xmlns='" + PUBLICATION_TYPES + "'>http://purl.org/coar/resource_type/c_2f33</Type>"
+				+ "<PublishedIn><Publication><Type xmlns='" + PUBLICATION_TYPES + "'>http://purl.org/coar/resource_type/c_0640</Type></Publication></PublishedIn>"
+				+ "<Access xmlns='http://purl.org/coar/access_right'>http://purl.org/coar/access_right/c_nope</Access>"
+				+ "</Publication>";
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware( true );
+		for ( int i = 0; i < 3; ++i ) {
+			final List<String> notKnown = index.count( dbf.newDocumentBuilder().parse( new InputSource( new StringReader( payload ) ) ).getDocumentElement() );
+			assertEquals( Collections.singletonList( "http://purl.org/coar/access_right http://purl.org/coar/access_right/c_nope" ), notKnown );
+		}
+		assertEquals( 3L, index.getCount( PUBLICATION_TYPES, "http://purl.org/coar/resource_type/c_2f33" ) );
+		assertEquals( 3L, index.getCount( PUBLICATION_TYPES, "http://purl.org/coar/resource_type/c_0640" ) );
+		assertEquals( 9L, index.getUses() );
+		assertTrue( index.getReport(), index.getReport().contains( "unknown http://purl.org/coar/access_right/c_nope: 3" ) );
+	}
+
+}
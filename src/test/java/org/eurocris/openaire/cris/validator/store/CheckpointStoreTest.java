@@ -0,0 +1,172 @@
+package org.eurocris.openaire.cris.validator.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.eurocris.openaire.cris.validator.tree.CERIFNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit tests for {@link CheckpointStore}.
+ */
+public class CheckpointStoreTest {
+
+	private static final String BASE_URL = "http://cris.example.org/oai";
+
+	/**
+	 * The directory for the checkpoints.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static CERIFNode parse( final String xml ) throws Exception {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware( true );
+		final Element el = dbf.newDocumentBuilder().parse( new InputSource( new StringReader( xml ) ) ).getDocumentElement();
+		return CERIFNode.buildTree( el );
+	}
+
+	/**
+	 * Test that a checkpoint is read back as it was saved, CERIF trees included.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		final CheckpointStore store = new CheckpointStore( folder.getRoot().toPath(), 0L );
+		final HarvestCheckpoint checkpoint = new HarvestCheckpoint( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		checkpoint.record( "oai:cris.example.org:Persons/1", "2024-01-02", parse( "<Person xmlns='https://www.openaire.eu/cerif-profile/1.2/' id='1'><PersonName><FamilyNames>Doe</FamilyNames></PersonName></Person>" ) );
+		checkpoint.record( "oai:cris.example.org:Persons/2", "2024-01-01", null );
+		checkpoint.chunkCompleted( "token2" );
+		store.save( checkpoint );
+
+		final HarvestCheckpoint loaded = store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		assertEquals( "token2", loaded.getResumptionToken() );
+		assertEquals( "2024-01-02", loaded.getLastDatestamp() );
+		assertEquals( 2L, loaded.getRecordCount() );
+		assertFalse( loaded.isComplete() );
+		assertTrue( loaded.contains( "oai:cris.example.org:Persons/1" ) );
+		assertFalse( loaded.contains( "oai:cris.example.org:Persons/2" ) );
+		final CERIFNode node = loaded.getRecordsByOaiIdentifier().get( "oai:cris.example.org:Persons/1" );
+		assertEquals( "Person[@id=\"1\"]", node.getName() );
+		assertEquals( "Doe", node.getChildren( "PersonName" ).iterator().next().getChildren( "FamilyNames" ).iterator().next().getValue() );
+	}
+
+	/**
+	 * Test that a checkpoint is only found for the same endpoint, set and metadata format, and that clearing removes it.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testLookupAndClear() throws Exception {
+		final CheckpointStore store = new CheckpointStore( folder.getRoot().toPath(), 0L );
+		final HarvestCheckpoint checkpoint = new HarvestCheckpoint( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		checkpoint.completed();
+		store.save( checkpoint );
+		assertTrue( store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" ).isComplete() );
+		assertNull( store.load( "http://other.example.org/oai", "oai_cerif_openaire", "openaire_cris_persons" ) );
+		assertNull( store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_projects" ) );
+		store.clear();
+		assertNull( store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" ) );
+	}
+
+	/**
+	 * Test that a save appends just the records noted since the previous one, that a segment cut short is left out,
+	 * and that a record dropped from the harvest is dropped from the checkpoint.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testAppend() throws Exception {
+		final CheckpointStore store = new CheckpointStore( folder.getRoot().toPath(), 0L );
+		final HarvestCheckpoint checkpoint = new HarvestCheckpoint( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		checkpoint.record( "oai:cris.example.org:Persons/1", "2024-01-01", parse( "<Person xmlns='https://www.openaire.eu/cerif-profile/1.2/' id='1'/>" ) );
+		checkpoint.chunkCompleted( "token2" );
+		store.save( checkpoint );
+		final Path file;
+		try ( final Stream<Path> files = Files.list( folder.getRoot().toPath() ) ) {
+			file = files.filter( ( f ) -> f.toString().endsWith( ".checkpoint" ) ).findFirst().get();
+		}
+		final byte[] first = Files.readAllBytes( file );
+
+		checkpoint.record( "oai:cris.example.org:Persons/2", "2024-01-02", parse( "<Person xmlns='https://www.openaire.eu/cerif-profile/1.2/' id='2'/>" ) );
+		checkpoint.record( "oai:cris.example.org:Persons/1", "2024-01-03", null );
+		checkpoint.chunkCompleted( "token3" );
+		store.save( checkpoint );
+		final byte[] appended = Files.readAllBytes( file );
+		assertTrue( appended.length > first.length );
+		assertTrue( Arrays.equals( first, Arrays.copyOf( appended, first.length ) ) );
+
+		final HarvestCheckpoint loaded = store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		assertEquals( "token3", loaded.getResumptionToken() );
+		assertEquals( "2024-01-03", loaded.getLastDatestamp() );
+		assertEquals( 3L, loaded.getRecordCount() );
+		assertFalse( loaded.contains( "oai:cris.example.org:Persons/1" ) );
+		assertTrue( loaded.contains( "oai:cris.example.org:Persons/2" ) );
+
+		Files.write( file, Arrays.copyOf( appended, appended.length - 3 ) );
+		final HarvestCheckpoint cutShort = store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		assertEquals( "token2", cutShort.getResumptionToken() );
+		assertEquals( 1L, cutShort.getRecordCount() );
+		assertTrue( cutShort.contains( "oai:cris.example.org:Persons/1" ) );
+	}
+
+	/**
+	 * Test that a complete checkpoint is written whole, as one segment, and that the first save after resuming rewrites the file.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testCompact() throws Exception {
+		final CheckpointStore store = new CheckpointStore( folder.getRoot().toPath(), 0L );
+		final HarvestCheckpoint checkpoint = new HarvestCheckpoint( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		for ( int i = 1; i <= 3; ++i ) {
+			checkpoint.record( "oai:cris.example.org:Persons/" + i, "2024-01-0" + i, parse( "<Person xmlns='https://www.openaire.eu/cerif-profile/1.2/' id='" + i + "'/>" ) );
+			checkpoint.chunkCompleted( "token" + ( i + 1 ) );
+			store.save( checkpoint );
+		}
+		checkpoint.completed();
+		store.save( checkpoint );
+
+		final CheckpointStore other = new CheckpointStore( folder.newFolder().toPath(), 0L );
+		final HarvestCheckpoint same = new HarvestCheckpoint( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		for ( int i = 1; i <= 3; ++i ) {
+			same.record( "oai:cris.example.org:Persons/" + i, "2024-01-0" + i, parse( "<Person xmlns='https://www.openaire.eu/cerif-profile/1.2/' id='" + i + "'/>" ) );
+		}
+		same.completed();
+		other.save( same );
+		try ( final Stream<Path> files = Files.list( folder.getRoot().toPath() ) ) {
+			assertEquals( Files.size( other.getDirectory().resolve( "oai_cerif_openaire__openaire_cris_persons.checkpoint" ) ), Files.size( files.filter( ( f ) -> f.toString().endsWith( ".checkpoint" ) ).findFirst().get() ) );
+		}
+		final HarvestCheckpoint loaded = store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		assertTrue( loaded.isComplete() );
+		assertEquals( 3L, loaded.getRecordCount() );
+	}
+
+	/**
+	 * Test that the periodic saves keep to the interval.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testSaveIfDue() throws Exception {
+		final CheckpointStore store = new CheckpointStore( folder.getRoot().toPath(), 3600000L );
+		final HarvestCheckpoint checkpoint = new HarvestCheckpoint( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" );
+		assertTrue( store.saveIfDue( checkpoint ) );
+		checkpoint.chunkCompleted( "token2" );
+		assertFalse( store.saveIfDue( checkpoint ) );
+		assertNull( store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" ).getResumptionToken() );
+		store.save( checkpoint );
+		assertEquals( "token2", store.load( BASE_URL, "oai_cerif_openaire", "openaire_cris_persons" ).getResumptionToken() );
+	}
+
+}
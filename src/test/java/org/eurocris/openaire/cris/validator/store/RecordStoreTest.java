@@ -0,0 +1,108 @@
+package org.eurocris.openaire.cris.validator.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.eurocris.openaire.cris.validator.tree.CERIFNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit tests for {@link RecordStore}.
+ */
+public class RecordStoreTest {
+
+	private static final String BASE_URL = "http://cris.example.org/oai";
+
+	private static final String PERSON = "Person[@id=\"p1\"]";
+
+	private static final String ORGUNIT = "OrgUnit[@id=\"o1\"]";
+
+	/**
+	 * The directory for the store.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static CERIFNode parse( final String xml ) throws Exception {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware( true );
+		final Element el = dbf.newDocumentBuilder().parse( new InputSource( new StringReader( xml ) ) ).getDocumentElement();
+		return CERIFNode.buildTree( el );
+	}
+
+	/**
+	 * Test that the records referring to an object are found, also after the records change or go away.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testReferrers() throws Exception {
+		final RecordStore store = new RecordStore( BASE_URL );
+		store.put( "oai:1", parse( "<Publication id='1'/>" ), Arrays.asList( PERSON, ORGUNIT ) );
+		store.put( "oai:2", parse( "<Publication id='2'/>" ), Arrays.asList( PERSON ) );
+		assertEquals( new HashSet<>( Arrays.asList( "oai:1", "oai:2" ) ), store.getReferrers( PERSON ) );
+		assertEquals( Collections.singleton( "oai:1" ), store.getReferrers( ORGUNIT ) );
+		store.put( "oai:1", parse( "<Publication id='1'/>" ), Arrays.asList( ORGUNIT ) );
+		assertEquals( Collections.singleton( "oai:2" ), store.getReferrers( PERSON ) );
+		assertEquals( "Publication[@id=\"2\"]", store.remove( "oai:2" ).getName() );
+		assertTrue( store.getReferrers( PERSON ).isEmpty() );
+		assertNull( store.remove( "oai:2" ) );
+		assertEquals( 1, store.size() );
+	}
+
+	/**
+	 * Test that the records to check again after an incremental harvest are those harvested and those referring to the objects harvested or deleted,
+	 * the referrers of a deleted object included, for its absence to be found by the check (5a).
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testAffected() throws Exception {
+		final RecordStore store = new RecordStore( BASE_URL );
+		store.put( "oai:p1", parse( "<Person id='p1'/>" ), Collections.emptyList() );
+		store.put( "oai:o1", parse( "<OrgUnit id='o1'/>" ), Collections.emptyList() );
+		store.put( "oai:1", parse( "<Publication id='1'/>" ), Arrays.asList( PERSON ) );
+		store.put( "oai:2", parse( "<Publication id='2'/>" ), Arrays.asList( ORGUNIT ) );
+		store.put( "oai:3", parse( "<Publication id='3'/>" ), Collections.emptyList() );
+		// the run harvests the changed Person and the deleted OrgUnit
+		store.put( "oai:p1", parse( "<Person id='p1'><Name>B</Name></Person>" ), Collections.emptyList() );
+		assertEquals( ORGUNIT, store.remove( "oai:o1" ).getName() );
+		final Set<String> affected = store.getAffected( Collections.singleton( "oai:p1" ), Arrays.asList( PERSON, ORGUNIT ) );
+		assertEquals( new HashSet<>( Arrays.asList( "oai:p1", "oai:1", "oai:2" ) ), affected );
+		assertTrue( "Nothing changed", store.getAffected( Collections.emptySet(), Collections.emptySet() ).isEmpty() );
+	}
+
+	/**
+	 * Test that the store is read back as it was saved, and only for the same endpoint.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		final Path file = folder.getRoot().toPath().resolve( "records.store" );
+		assertNull( RecordStore.load( file, BASE_URL ).getResponseDate() );
+		final RecordStore store = new RecordStore( BASE_URL );
+		store.put( "oai:1", parse( "<Publication id='1'><Title>A</Title></Publication>" ), Arrays.asList( PERSON ) );
+		store.setResponseDate( "2024-01-01T00:00:00Z" );
+		store.save( file );
+
+		final RecordStore loaded = RecordStore.load( file, BASE_URL );
+		assertEquals( "2024-01-01T00:00:00Z", loaded.getResponseDate() );
+		assertEquals( 1, loaded.size() );
+		assertEquals( "A", loaded.getRecordsByOaiIdentifier().get( "oai:1" ).getChildren( "Title" ).iterator().next().getValue() );
+		assertEquals( Collections.singleton( "oai:1" ), loaded.getReferrers( PERSON ) );
+		assertEquals( 0, RecordStore.load( file, "http://other.example.org/oai" ).size() );
+	}
+
+}
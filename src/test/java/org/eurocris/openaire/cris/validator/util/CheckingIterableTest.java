@@ -1,5 +1,11 @@
 package org.eurocris.openaire.cris.validator.util;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -224,6 +230,80 @@ public class CheckingIterableTest {
 		runChecker( list, c2 );
 	}
 	
+	/**
+	 * Test that with a {@link FailureCollector} the iteration goes on to the end, and that all the failures are reported then.
+	 */
+	@Test
+	public void testCollectFailures() {
+		final List<String> list = Arrays.asList( "hello", "World", "hello", "Beautiful" );
+		final FailureCollector collector = new FailureCollector( 10, 1, String::valueOf );
+		final CheckingIterable<String> c0 = CheckingIterable.over( list, collector );
+		final CheckingIterable<String> c1 = c0.checkUnique( Function.identity(), "Non unique word (9a)" );
+		final CheckingIterable<String> c2 = c1.checkForAllEquals( String::toLowerCase, String::toString, "Entries should be lowercased (9b)" );
+		final CheckingIterable<String> c3 = c2.checkContains( ( s ) -> "goodbye".equals( s ), new MyException1() );
+		assertSame( collector, c3.getFailureCollector() );
+		try {
+			runChecker( list, c3 );
+			fail( "The failures not reported" );
+		} catch ( final AssertionError e ) {
+			assertTrue( e.getMessage(), e.getMessage().startsWith( "4 failed checks in 3 groups" ) );
+		}
+		assertEquals( 4L, collector.getTotal() );
+		final List<FailureCollector.Group> groups = collector.getGroups();
+		assertEquals( "9b", groups.get( 0 ).getCheckCode() );
+		assertEquals( 2L, groups.get( 0 ).getCount() );
+		assertEquals( Collections.singletonList( "World" ), groups.get( 0 ).getSamples() );
+	}
+
+	/**
+	 * See that the iteration stops at the budget of elements, without the checks of the whole collection, and is reported as truncated.
+	 */
+	@Test
+	public void testRecordBudget() {
+		final List<String> list = Arrays.asList( "hello", "world", "hello", "goodbye" );
+		final RunBudget budget = new RunBudget( 0L, 0L, 2L );
+		final CheckingIterable<String> c0 = CheckingIterable.over( list, null, budget );
+		final CheckingIterable<String> c1 = c0.checkContains( ( s ) -> "goodbye".equals( s ), new MyException1() );
+		assertSame( budget, c1.getBudget() );
+		try {
+			c1.run();
+			fail( "The truncation not reported" );
+		} catch ( final AssertionError e ) {
+			assertEquals( "Truncated after 2 elements, the budget of 2 records per harvest used up", e.getMessage() );
+		}
+		assertEquals( "the budget of 2 records per harvest used up", c1.getTruncation() );
+	}
+
+	/**
+	 * See that a collection just as large as the budget is not truncated.
+	 */
+	@Test
+	public void testRecordBudgetExact() {
+		final List<String> list = Arrays.asList( "hello", "goodbye" );
+		final CheckingIterable<String> c0 = CheckingIterable.over( list, null, new RunBudget( 0L, 0L, 2L ) );
+		final CheckingIterable<String> c1 = c0.checkContains( ( s ) -> "goodbye".equals( s ), new MyException1() );
+		runChecker( list, c1 );
+		assertNull( c1.getTruncation() );
+	}
+
+	/**
+	 * See that the iteration stops when a check has failed as many times as the budget allows, with the failures reported.
+	 */
+	@Test
+	public void testFailureBudget() {
+		final List<String> list = Arrays.asList( "Hello", "World", "hello", "Beautiful", "World" );
+		final FailureCollector collector = new FailureCollector( 10, 5, String::valueOf );
+		final CheckingIterable<String> c0 = CheckingIterable.over( list, collector, new RunBudget( 0L, 2L, 0L ) );
+		final CheckingIterable<String> c1 = c0.checkForAllEquals( String::toLowerCase, String::toString, "Entries should be lowercased (9b)" );
+		try {
+			c1.run();
+			fail( "The truncation not reported" );
+		} catch ( final AssertionError e ) {
+			assertTrue( e.getMessage(), e.getMessage().startsWith( "Truncated after 2 elements, the budget of 2 failures of (9b) used up; 2 failed checks in 1 groups" ) );
+		}
+		assertEquals( 2L, collector.getTotal() );
+	}
+
 	/**
 	 * Run the checker and see if the number of elements is preserved.
 	 * @param list the list the checker was constructed from
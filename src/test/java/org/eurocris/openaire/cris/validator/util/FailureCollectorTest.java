@@ -0,0 +1,121 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link FailureCollector}.
+ */
+public class FailureCollectorTest {
+
+	/**
+	 * Test the check codes and the message templates the failures are grouped by.
+	 */
+	@Test
+	public void testTemplates() {
+		assertEquals( "5a", FailureCollector.checkCode( "Record for Person[@id=\"p1\"] not found, referential integrity violated in oai:cris:Publications/1 (5a)" ) );
+		assertEquals( "Record for Person[@id=\"*\"] not found, referential integrity violated in oai:* (5a)", FailureCollector.template( "Record for Person[@id=\"p1\"] not found, referential integrity violated in oai:cris:Publications/1 (5a)" ) );
+		assertEquals( "5b", FailureCollector.checkCode( "Violation of (5b) in oai:cris:1:\nPerson (1)\n" ) );
+		assertEquals( "Violation of (5b) in oai:*", FailureCollector.template( "Violation of (5b) in oai:cris:1:\nPerson (1)\n" ) );
+		assertEquals( "2d", FailureCollector.checkCode( "Metadata prefix not unique (2d); value: oai_cerif (1)" ) );
+		assertEquals( "", FailureCollector.checkCode( "Metadata missing from OAI-PMH record; object: x" ) );
+		assertEquals( "While validating element Product[@id=\"*\"]: org.xml.sax.SAXParseException; cvc-complex-type.2.4.a: Invalid content was found starting with element '*'.",
+				FailureCollector.template( "While validating element Product[@id=\"x\"]: org.xml.sax.SAXParseException; lineNumber: 3; columnNumber: 40; cvc-complex-type.2.4.a: Invalid content was found starting with element 'Foo'." ) );
+	}
+
+	/**
+	 * Test that the failures are counted by the check, whatever the wording of the messages.
+	 */
+	@Test
+	public void testCountsByCheck() {
+		final FailureCollector collector = new FailureCollector( 10, 1, String::valueOf );
+		assertEquals( "(5a)", FailureCollector.checkOf( "Record for Person[@id=\"p1\"] not found, referential integrity violated in oai:cris:1 (5a)" ) );
+		assertEquals( "Metadata missing from OAI-PMH record", FailureCollector.checkOf( "Metadata missing from OAI-PMH record; object: x" ) );
+		assertEquals( 1L, collector.record( new AssertionError( "Record for Person[@id=\"p1\"] not found, referential integrity violated in oai:cris:1 (5a)" ), null ) );
+		assertEquals( 1L, collector.record( new AssertionError( "Metadata missing from OAI-PMH record; object: x" ), null ) );
+		assertEquals( 2L, collector.record( new AssertionError( "Record for OrgUnit[@id=\"o1\"] not found (5a)" ), null ) );
+		assertEquals( 2L, collector.record( new AssertionError( "Metadata missing from OAI-PMH record; object: y" ), null ) );
+	}
+
+	/**
+	 * Test that the failures that do not fit in a group are still counted by their check.
+	 */
+	@Test
+	public void testCountsByCheckUngrouped() {
+		final FailureCollector collector = new FailureCollector( 1, 1, String::valueOf );
+		assertEquals( 1L, collector.record( new AssertionError( "Metadata missing from OAI-PMH record; object: x" ), null ) );
+		assertEquals( 1L, collector.record( new AssertionError( "Record for Person[@id=\"p1\"] not found (5a)" ), null ) );
+		assertEquals( 2L, collector.record( new AssertionError( "Record for OrgUnit[@id=\"o1\"] not found (5a)" ), null ) );
+		assertEquals( 1L, collector.record( new AssertionError( "Violation of (5b) in oai:cris:1:\nPerson (1)\n" ), null ) );
+		assertEquals( 1, collector.getGroups().size() );
+		assertTrue( collector.getReport(), collector.getReport().endsWith( "\n  3 more in other groups" ) );
+	}
+
+	/**
+	 * Test the groups, their counts and samples, and the bound on their number, with the failures recorded from several threads.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testGroups() throws Exception {
+		final FailureCollector collector = new FailureCollector( 2, 3, ( obj ) -> "#" + obj );
+		final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+		for ( int i = 0; i < 100; ++i ) {
+			final int n = i;
+			executor.execute( () -> collector.record( new AssertionError( "Record for Person[@id=\"p" + n + "\"] not found (5a)" ), n ) );
+			if ( n % 10 == 0 ) {
+				executor.execute( () -> collector.record( new AssertionError( "OAI identifier other than expected; object: " + n ), n ) );
+			}
+		}
+		executor.shutdown();
+		assertTrue( executor.awaitTermination( 10, TimeUnit.SECONDS ) );
+		collector.record( new AssertionError( "Something else" ), null );
+		assertEquals( 111L, collector.getTotal() );
+		final List<FailureCollector.Group> groups = collector.getGroups();
+		assertEquals( 2, groups.size() );
+		assertEquals( "5a", groups.get( 0 ).getCheckCode() );
+		assertEquals( 100L, groups.get( 0 ).getCount() );
+		assertEquals( 3, groups.get( 0 ).getSamples().size() );
+		assertEquals( Arrays.asList( "", "OAI identifier other than expected", 10L ), Arrays.asList( groups.get( 1 ).getCheckCode(), groups.get( 1 ).getTemplate(), groups.get( 1 ).getCount() ) );
+		final String report = collector.getReport();
+		assertTrue( report, report.startsWith( "111 failed checks in 2 groups\n  Record for Person[@id=\"*\"] not found (5a): 100 [#" ) );
+		assertTrue( report, report.endsWith( "\n  1 more in other groups" ) );
+	}
+
+	/**
+	 * Test that the bound on the number of groups holds when new groups are started from several threads at the same time.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testGroupBoundConcurrent() throws Exception {
+		final FailureCollector collector = new FailureCollector( 5, 1, String::valueOf );
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		final CountDownLatch start = new CountDownLatch( 1 );
+		for ( int i = 0; i < 200; ++i ) {
+			final int n = i;
+			executor.execute( () -> {
+				try {
+					start.await();
+				} catch ( final InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+				collector.record( new AssertionError( "Failure number " + n ), null );
+			} );
+		}
+		start.countDown();
+		executor.shutdown();
+		assertTrue( executor.awaitTermination( 10, TimeUnit.SECONDS ) );
+		assertEquals( 200L, collector.getTotal() );
+		assertEquals( 5, collector.getGroups().size() );
+		assertTrue( collector.getReport(), collector.getReport().endsWith( "\n  195 more in other groups" ) );
+	}
+
+}
@@ -0,0 +1,188 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link OrderedPipeline}.
+ */
+public class OrderedPipelineTest {
+
+	private static final ExecutorService workers = Executors.newFixedThreadPool( 4, Threads.daemonThreadFactory( "test-worker" ) );
+
+	/**
+	 * Stop the workers.
+	 */
+	@AfterClass
+	public static void shutdown() {
+		workers.shutdownNow();
+	}
+
+	private static List<Integer> range( final int n ) {
+		return IntStream.range( 0, n ).boxed().collect( Collectors.toList() );
+	}
+
+	private static int slowSquare( final int x ) {
+		try {
+			Thread.sleep( ThreadLocalRandom.current().nextInt( 3 ) );
+		} catch ( final InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		return x * x;
+	}
+
+	/**
+	 * Test that the results come in the order of the elements, and that no more elements than the capacity (and the one the sink waits for) are in the pipeline.
+	 */
+	@Test
+	public void testOrderAndCapacity() {
+		final OrderedPipeline<Integer, Integer> pipeline = new OrderedPipeline<>( OrderedPipelineTest::slowSquare, workers, 8 );
+		final List<Integer> results = new ArrayList<>();
+		for ( final Integer x : pipeline.over( range( 200 ) ) ) {
+			results.add( x );
+		}
+		assertEquals( "Results", range( 200 ).stream().map( ( x ) -> x * x ).collect( Collectors.toList() ), results );
+		assertEquals( "Elements", 200L, pipeline.getElements() );
+		assertTrue( "Work queue depth: " + pipeline, pipeline.getMaxWorkQueueDepth() <= 9 );
+		assertTrue( "Sink queue depth: " + pipeline, pipeline.getMaxSinkQueueDepth() <= 9 );
+	}
+
+	/**
+	 * Test that a failure of the function comes after the results for the elements before it, and that the actions come where they were put.
+	 */
+	@Test
+	public void testFailureAndActionOrder() {
+		final List<String> events = new ArrayList<>();
+		final OrderedPipeline<Integer, Integer> pipeline = new OrderedPipeline<>( ( x ) -> {
+			if ( x == 7 ) {
+				throw new IllegalArgumentException( "seven" );
+			}
+			return slowSquare( x );
+		}, workers, 4 );
+		final Iterable<Integer> source = () -> new Iterator<Integer>() {
+
+			private int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				if ( i > 0 && i % 3 == 0 ) {
+					final int n = i;
+					pipeline.inOrder( () -> events.add( "chunk " + n ) );
+				}
+				return i < 10;
+			}
+
+			@Override
+			public Integer next() {
+				return i++;
+			}
+
+		};
+		try {
+			for ( final Integer x : pipeline.over( source ) ) {
+				events.add( Integer.toString( x ) );
+			}
+			fail( "The failure not reported" );
+		} catch ( final IllegalArgumentException e ) {
+			assertEquals( "Failure", "seven", e.getMessage() );
+		}
+		assertEquals( "Events", "[0, 1, 4, chunk 3, 9, 16, 25, chunk 6, 36]", events.toString() );
+	}
+
+	/**
+	 * Test that a failure of the source comes after the results for the elements before it.
+	 */
+	@Test
+	public void testSourceFailure() {
+		final OrderedPipeline<Integer, Integer> pipeline = new OrderedPipeline<>( OrderedPipelineTest::slowSquare, workers, 4 );
+		final Iterable<Integer> source = () -> new Iterator<Integer>() {
+
+			private int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				if ( i == 5 ) {
+					throw new IllegalStateException( "broken" );
+				}
+				return true;
+			}
+
+			@Override
+			public Integer next() {
+				return i++;
+			}
+
+		};
+		final List<Integer> results = new ArrayList<>();
+		try {
+			for ( final Integer x : pipeline.over( source ) ) {
+				results.add( x );
+			}
+			fail( "The failure not reported" );
+		} catch ( final IllegalStateException e ) {
+			assertEquals( "Failure", "broken", e.getMessage() );
+		}
+		assertEquals( "Results", "[0, 1, 4, 9, 16]", results.toString() );
+	}
+
+	/**
+	 * Test that closing the iterator of the sink stops the harvest stage and closes the source.
+	 * @throws Exception on any problem
+	 */
+	@Test
+	public void testClose() throws Exception {
+		final CountDownLatch sourceClosed = new CountDownLatch( 1 );
+		final OrderedPipeline<Integer, Integer> pipeline = new OrderedPipeline<>( ( x ) -> x, workers, 2 );
+		final Iterable<Integer> source = () -> new CloseableCounter( sourceClosed );
+		final Iterator<Integer> it = pipeline.over( source ).iterator();
+		assertEquals( "First", Integer.valueOf( 0 ), it.next() );
+		( (AutoCloseable) it ).close();
+		assertTrue( "Source not closed", sourceClosed.await( 5L, TimeUnit.SECONDS ) );
+	}
+
+	/**
+	 * An endless source that notes being closed.
+	 */
+	private static class CloseableCounter implements Iterator<Integer>, AutoCloseable {
+
+		private final CountDownLatch closed;
+
+		private int i = 0;
+
+		CloseableCounter( final CountDownLatch closed ) {
+			this.closed = closed;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return true;
+		}
+
+		@Override
+		public Integer next() {
+			return i++;
+		}
+
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+
+	}
+
+}
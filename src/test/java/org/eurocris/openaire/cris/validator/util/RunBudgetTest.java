@@ -0,0 +1,53 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RunBudget}.
+ */
+public class RunBudgetTest {
+
+	/**
+	 * Test the bounds, and that 0 means no bound.
+	 */
+	@Test
+	public void testBounds() {
+		final RunBudget budget = new RunBudget( 0L, 3L, 10L );
+		assertFalse( budget.isOverTime() );
+		assertTrue( budget.allowsRecords( 9L ) );
+		assertFalse( budget.allowsRecords( 10L ) );
+		assertTrue( budget.allowsFailures( 2L ) );
+		assertFalse( budget.allowsFailures( 3L ) );
+		assertTrue( budget.timeOnly().allowsRecords( 10L ) );
+		assertTrue( budget.timeOnly().allowsFailures( 3L ) );
+		final RunBudget unbounded = new RunBudget( 0L, 0L, 0L );
+		assertTrue( unbounded.allowsRecords( Long.MAX_VALUE ) );
+		assertTrue( unbounded.allowsFailures( Long.MAX_VALUE ) );
+	}
+
+	/**
+	 * Test that the time runs out, also for the view of just the time, and that the truncations are reported.
+	 * @throws InterruptedException when interrupted while waiting for the time to run out
+	 */
+	@Test
+	public void testOverTime() throws InterruptedException {
+		final RunBudget budget = new RunBudget( 100L, 0L, 0L );
+		Thread.sleep( 150L );
+		assertTrue( budget.isOverTime() );
+		assertFalse( budget.isTruncated() );
+		budget.truncated( "set1 in oai_cerif_openaire: " + budget.describeOverTime() );
+		assertTrue( budget.timeOnly().isOverTime() );
+		budget.timeOnly().truncated( "set2 in oai_cerif_openaire: not harvested" );
+		assertTrue( budget.isTruncated() );
+		assertEquals( Arrays.asList( "set1 in oai_cerif_openaire: the time budget of 0.1 s used up", "set2 in oai_cerif_openaire: not harvested" ), budget.getTruncations() );
+		assertTrue( budget.getReport(), budget.getReport().startsWith( "Truncated run after " ) );
+		assertTrue( budget.getReport(), budget.getReport().endsWith( " s\n  set1 in oai_cerif_openaire: the time budget of 0.1 s used up\n  set2 in oai_cerif_openaire: not harvested" ) );
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.eurocris.openaire.cris.validator.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link StratifiedSample}.
+ */
+public class StratifiedSampleTest {
+
+	/**
+	 * Test that the sample depends on the identifiers and the seed only, and that it is about as large as asked for.
+	 */
+	@Test
+	public void testSelection() {
+		final StratifiedSample sample1 = new StratifiedSample( 0.1, 42L );
+		final StratifiedSample sample2 = new StratifiedSample( 0.1, 42L );
+		final StratifiedSample sample3 = new StratifiedSample( 0.1, 43L );
+		int picked = 0;
+		int pickedByBoth = 0;
+		for ( int i = 0; i < 100000; ++i ) {
+			final String id = "oai:cris.example.org:Publications/" + i;
+			assertEquals( id, sample1.isSampled( id ), sample2.isSampled( id ) );
+			if ( sample1.isSampled( id ) ) {
+				++picked;
+				if ( sample3.isSampled( id ) ) {
+					++pickedByBoth;
+				}
+			}
+		}
+		assertTrue( "Picked: " + picked, picked > 9500 && picked < 10500 );
+		assertTrue( "Picked with either seed: " + pickedByBoth, pickedByBoth > 800 && pickedByBoth < 1200 );
+		assertTrue( new StratifiedSample( 1.0, 0L ).isSampled( "x" ) );
+		assertFalse( new StratifiedSample( 0.0, 0L ).isSampled( "x" ) );
+	}
+
+	/**
+	 * Test the estimates of the failure rates of the strata and of all of them.
+	 */
+	@Test
+	public void testEstimates() {
+		final StratifiedSample sample = new StratifiedSample( 0.1, 0L );
+		final StratifiedSample.Stratum publications = sample.getStratum( "publications" );
+		for ( int i = 0; i < 1000; ++i ) {
+			publications.count( i % 10 == 0, i % 100 == 0 );
+		}
+		final StratifiedSample.Stratum persons = sample.getStratum( "persons" );
+		for ( int i = 0; i < 3000; ++i ) {
+			persons.count( i % 10 == 0, false );
+		}
+		sample.getStratum( "events" ).count( false, false );
+		final StratifiedSample.Estimate p = publications.estimateFailureRate();
+		assertEquals( 0.1, p.getRate(), 1e-9 );
+		assertTrue( "Wilson interval " + p, p.getLow() > 0.05 && p.getLow() < 0.1 && p.getHigh() > 0.15 && p.getHigh() < 0.2 );
+		final StratifiedSample.Estimate all = sample.estimateFailureRate();
+		assertEquals( "Weighted by the sizes of the strata", 0.025, all.getRate(), 1e-9 );
+		assertTrue( "Interval " + all, all.getLow() < 0.025 && all.getHigh() > 0.025 );
+		assertNull( "No records checked", sample.getStratum( "events" ).estimateFailureRate() );
+		final String report = sample.getReport();
+		assertTrue( report, report.startsWith( "Sample of 10.00% (seed 0): 400 of 4001 records checked, 10 failed; estimated failure rate 2.50% (95% CI " ) );
+		assertTrue( report, report.contains( "\n  publications: 100 of 1000 checked, 10 failed; failure rate 10.00% (95% CI " ) );
+	}
+
+	/**
+	 * Test that the rate of a stratum whose records have all been checked is exact.
+	 */
+	@Test
+	public void testCensus() {
+		final StratifiedSample sample = new StratifiedSample( 0.5, 0L );
+		final StratifiedSample.Stratum stratum = sample.getStratum( "all" );
+		stratum.count( true, true );
+		stratum.count( true, false );
+		final StratifiedSample.Estimate estimate = stratum.estimateFailureRate();
+		assertEquals( 0.5, estimate.getLow(), 0.0 );
+		assertEquals( 0.5, estimate.getHigh(), 0.0 );
+		assertEquals( "50.00%", estimate.toString() );
+	}
+
+}